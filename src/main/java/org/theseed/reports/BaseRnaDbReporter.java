@@ -18,6 +18,8 @@ import org.slf4j.LoggerFactory;
 import org.theseed.basic.ParseFailureException;
 import org.theseed.java.erdb.DbConnection;
 import org.theseed.java.erdb.DbRecord;
+import org.theseed.rna.data.FeatureMetadata;
+import org.theseed.rna.data.SampleMatrix;
 
 import j2html.tags.ContainerTag;
 
@@ -33,6 +35,8 @@ public abstract class BaseRnaDbReporter {
     // FIELDS
     /** logging facility */
     protected static Logger log = LoggerFactory.getLogger(BaseRnaDbReporter.class);
+    /** controlling command processor */
+    private IParms processor;
     /** source database */
     private DbConnection db;
     /** genome ID for the genome of interest */
@@ -79,6 +83,16 @@ public abstract class BaseRnaDbReporter {
          */
         public File getSampleCorrFile();
 
+        /**
+         * @return the expression matrix for the genome of interest
+         *
+         * @param db	source database connection
+         *
+         * @throws SQLException
+         * @throws IOException
+         */
+        public SampleMatrix getSampleMatrix(DbConnection db) throws SQLException, IOException;
+
     }
 
     /**
@@ -170,8 +184,9 @@ public abstract class BaseRnaDbReporter {
      * @param db			source database connection
      */
     protected BaseRnaDbReporter(IParms processor, DbConnection db) {
-        // Get the database.
+        // Get the database and the processor.
         this.db = db;
+        this.processor = processor;
         // Get the target genome ID.
         this.genomeId = processor.getGenomeId();
 
@@ -202,12 +217,22 @@ public abstract class BaseRnaDbReporter {
     }
 
     /**
-     * @return a feature index for the genome of interest
+     * @return a feature index for the genome of interest (the feature data comes from the shared cache)
      *
      * @throws SQLException
      */
     protected FeatureIndex getFeatureIndex() throws SQLException {
-        return new FeatureIndex(this.db, this.genomeId);
+        return new FeatureIndex(FeatureMetadata.get(this.db, this.genomeId));
+    }
+
+    /**
+     * @return the expression matrix for the genome of interest
+     *
+     * @throws SQLException
+     * @throws IOException
+     */
+    protected SampleMatrix getSampleMatrix() throws SQLException, IOException {
+        return this.processor.getSampleMatrix(this.db);
     }
 
     /**
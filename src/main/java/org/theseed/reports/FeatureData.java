@@ -12,6 +12,7 @@ import java.util.TreeSet;
 
 import org.apache.commons.lang3.StringUtils;
 import org.theseed.java.erdb.DbRecord;
+import org.theseed.rna.data.FeatureMetadata;
 
 /**
  * This object encapsulates data about a feature that we need for various reports.
@@ -58,6 +59,26 @@ public class FeatureData {
         this.groupMap = new TreeMap<String, Set<String>>();
     }
 
+    /**
+     * Construct a feature-data object from cached feature metadata.
+     *
+     * @param meta		feature metadata for the genome
+     * @param idx		array index of the feature
+     */
+    public FeatureData(FeatureMetadata meta, int idx) {
+        this.fid = meta.getFid(idx);
+        this.gene = meta.getGene(idx);
+        this.alias = meta.getAlias(idx);
+        this.baseline = meta.getBaseline(idx);
+        this.assignment = meta.getAssignment(idx);
+        if (StringUtils.isBlank(this.assignment))
+            this.assignment = "hypothetical protein";
+        this.groupMap = new TreeMap<String, Set<String>>();
+        final int n = meta.getGroupCount(idx);
+        for (int k = 0; k < n; k++)
+            this.addGroup(meta.getGroupType(idx, k), meta.getGroupName(idx, k));
+    }
+
     /**
      * Add a group to this feature.
      *
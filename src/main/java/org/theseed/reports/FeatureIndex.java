@@ -3,18 +3,15 @@
  */
 package org.theseed.reports;
 import java.sql.SQLException;
+import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.List;
 import java.util.SortedSet;
-import java.util.TreeSet;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.theseed.java.erdb.DbConnection;
-import org.theseed.java.erdb.DbQuery;
-import org.theseed.java.erdb.DbRecord;
-import org.theseed.java.erdb.Relop;
-import org.theseed.stats.Shuffler;
+import org.theseed.rna.data.FeatureMetadata;
 
 /**
  * This object manages all the features in a genome for reporting purposes.  It contains
@@ -40,7 +37,8 @@ public class FeatureIndex implements Iterable<FeatureData> {
     private final String gName;
 
     /**
-     * Load the feature index from the database.
+     * Load the feature index from the database.  The feature metadata is taken from the shared cache
+     * if it is available there.
      *
      * @param db		source database connection
      * @param genomeId	ID of the source genome
@@ -48,40 +46,27 @@ public class FeatureIndex implements Iterable<FeatureData> {
      * @throws SQLException
      */
     public FeatureIndex(DbConnection db, String genomeId) throws SQLException {
-        this.genomeId = genomeId;
-        // Get the genome record.
-        DbRecord genome = db.getRecord("Genome", genomeId);
-        this.nPegs = genome.getInt("Genome.peg_count");
-        this.gName = genome.getString("Genome.genome_name");
-        // Allocate the feature structures.
-        this.features = new Shuffler<FeatureData>(this.nPegs);
-        this.groupTypes = new TreeSet<String>();
-        // Now we loop through the genome's features and group relationships.  The first time we see a
-        // feature we put it in the feature index.  Otherwise, we add the group.
-        try (DbQuery query = new DbQuery(db, "Feature < FeatureToGroup < FeatureGroup")) {
-            query.selectAll("Feature");
-            query.select("FeatureGroup", "group_type", "group_name");
-            query.rel("Feature.genome_id", Relop.EQ);
-            query.setParm(1, genomeId);
-            var iter = query.iterator();
-            while (iter.hasNext()) {
-                var record = iter.next();
-                // Get the sequence number of this feature.
-                int seqNo = record.getInt("Feature.seq_no");
-                // Get the feature descriptor.  We may have to create it.
-                FeatureData feat = this.features.get(seqNo);
-                if (feat == null) {
-                    feat = new FeatureData(record);
-                    this.features.set(seqNo, feat);
-                }
-                // We have a feature descriptor.  Check for a group.
-                String groupType = record.getString("FeatureGroup.group_type");
-                if (groupType != null) {
-                    String groupName = record.getString("FeatureGroup.group_name");
-                    feat.addGroup(groupType, groupName);
-                    this.groupTypes.add(groupType);
-                }
-            }
+        this(FeatureMetadata.get(db, genomeId));
+    }
+
+    /**
+     * Create a feature index from the feature metadata for a genome.
+     *
+     * @param meta		feature metadata for the genome
+     */
+    public FeatureIndex(FeatureMetadata meta) {
+        this.genomeId = meta.getGenomeId();
+        this.nPegs = meta.getPegCount();
+        this.gName = meta.getGenomeName();
+        this.groupTypes = meta.getGroupTypes();
+        // Build the feature descriptors in index order.  Positions with no feature are left NULL.
+        final int n = meta.size();
+        this.features = new ArrayList<FeatureData>(n);
+        for (int i = 0; i < n; i++) {
+            FeatureData feat = null;
+            if (meta.getFid(i) != null)
+                feat = new FeatureData(meta, i);
+            this.features.add(feat);
         }
     }
 
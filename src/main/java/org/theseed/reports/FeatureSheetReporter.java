@@ -6,21 +6,21 @@ package org.theseed.reports;
 import java.io.IOException;
 import java.io.PrintWriter;
 import java.sql.SQLException;
-import java.util.Iterator;
+import java.util.Set;
 import java.util.SortedMap;
 import java.util.TreeMap;
+import java.util.stream.IntStream;
 
 import org.theseed.java.erdb.DbConnection;
-import org.theseed.java.erdb.DbQuery;
-import org.theseed.java.erdb.DbRecord;
-import org.theseed.java.erdb.Relop;
+import org.theseed.rna.data.SampleMatrix;
 
 /**
  * This report contains the basic TPM data for a genome in tabular format.  The output is a giant spreadsheet, which each row being a gene and
  * each column being a good sample.
  *
- * The basic approach for this report is to read in all the samples in lexical order and then loop through the features, extracting the sample
- * data for each row.
+ * The basic approach for this report is to sort the samples in lexical order and then loop through the features, extracting the sample
+ * data for each row from the feature-major side of the expression matrix.  If a gene filter is specified, only the rows for the
+ * genes in the filter are extracted.
  *
  * @author Bruce Parrello
  *
@@ -30,6 +30,8 @@ public class FeatureSheetReporter extends BaseRnaDbReporter {
     // FIELDS
     /** genome of interest */
     private String genomeId;
+    /** gene filter (null to use all genes) */
+    private Set<String> geneFilter;
 
     /**
      * Construct a new feature-sheet reporter.
@@ -40,65 +42,54 @@ public class FeatureSheetReporter extends BaseRnaDbReporter {
     public FeatureSheetReporter(IParms processor, DbConnection db) {
         super(processor, db);
         this.genomeId = processor.getGenomeId();
+        this.geneFilter = processor.getGeneFilter();
     }
 
     @Override
     public void writeReport(PrintWriter writer) throws IOException, SQLException {
-        // Get the RNA Seq database.
-        DbConnection db = this.getDb();
-        // Our first task is to get the sample data.  We will use a sorted map, keyed by sample ID, with the array of
-        // TPM values as the value for each.
-        SortedMap<String, double[]> sampleMap = new TreeMap<String, double[]>();
-        // We build a query for the samples.
-        try (DbQuery query = new DbQuery(db, "RnaSample")) {
-            query.select("RnaSample", "sample_id", "feat_data");
-            query.rel("RnaSample.suspicious", Relop.EQ);
-            query.rel("RnaSample.genome_id", Relop.EQ);
-            query.setParm(1, false);
-            query.setParm(2, this.genomeId);
-            // Get all the samples in memory.
-            log.info("Reading samples for genome {}.", this.genomeId);
-            Iterator<DbRecord> iter = query.iterator();
-            while(iter.hasNext()) {
-                DbRecord record = iter.next();
-                String sampleId = record.getString("RnaSample.sample_id");
-                double[] levels = record.getDoubleArray("RnaSample.feat_data");
-                sampleMap.put(sampleId, levels);
-            }
-            log.info("{} samples saved in memory.", sampleMap.size());
-        }
+        // Our first task is to get the sample data.  This comes from the expression matrix.  We will use a
+        // sorted map of sample IDs to matrix rows so that the columns are in lexical order.
+        log.info("Reading samples for genome {}.", this.genomeId);
+        SampleMatrix matrix = this.getSampleMatrix();
+        SortedMap<String, Integer> sampleMap = new TreeMap<String, Integer>();
+        for (int s : matrix.getGoodSamples())
+            sampleMap.put(matrix.getSampleId(s), s);
+        log.info("{} samples found.", sampleMap.size());
+        final int[] samples = sampleMap.values().stream().mapToInt(x -> x).toArray();
+        double[] levels = new double[samples.length];
         // Create an output buffer for the print lines.
         StringBuilder buffer = new StringBuilder(12 * sampleMap.size() + 11);
         // Initialize it with the header.
         buffer.append("feature_id");
         sampleMap.keySet().stream().forEach(x -> buffer.append("\t").append(x));
         writer.println(buffer.toString());
-        // Now we use a query to loop through the features.
-        try (DbQuery query = new DbQuery(db, "Feature")) {
-            query.select("Feature", "fig_id", "seq_no");
-            query.rel("Feature.genome_id", Relop.EQ);
-            query.setParm(1, this.genomeId);
-            // Loop through the features, writing lines.
-            log.info("Processing features for {}.", this.genomeId);
-            Iterator<DbRecord> iter = query.iterator();
-            while (iter.hasNext()) {
-                DbRecord record = iter.next();
-                String fid = record.getString("Feature.fig_id");
-                int seqNo = record.getInt("Feature.seq_no");
-                // Clear the line buffer.
-                buffer.setLength(0);
-                // Store the feature ID.
-                buffer.append(fid);
-                // Loop through the map, filling in the data.  None that an NaN is blanked.
-                for (double[] levels : sampleMap.values()) {
-                    buffer.append("\t");
-                    double level = levels[seqNo];
-                    if (! Double.isNaN(level))
-                        buffer.append(level);
-                }
-                // Write the line.
-                writer.println(buffer.toString());
+        // Now we loop through the features.  Each feature is a row of the feature-major expression data.
+        log.info("Processing features for {}.", this.genomeId);
+        final int nFeats = matrix.getFeatureCount();
+        int[] seqNos;
+        if (this.geneFilter == null)
+            seqNos = IntStream.range(0, nFeats).toArray();
+        else {
+            FeatureIndex fIndex = this.getFeatureIndex();
+            seqNos = IntStream.range(0, nFeats).filter(i -> fIndex.getFeature(i) != null
+                    && this.geneFilter.contains(fIndex.getFeature(i).getAlias())).toArray();
+            log.info("{} features selected by gene filter.", seqNos.length);
+        }
+        for (int seqNo : seqNos) {
+            String fid = matrix.getFeatureId(seqNo);
+            matrix.getFeatureColumn(seqNo, samples, levels);
+            // Clear the line buffer.
+            buffer.setLength(0);
+            // Store the feature ID.
+            buffer.append(fid);
+            // Loop through the samples, filling in the data.  Note that an NaN is blanked.
+            for (double level : levels) {
+                buffer.append("\t");
+                if (! Double.isNaN(level))
+                    buffer.append(level);
             }
+            // Write the line.
+            writer.println(buffer.toString());
         }
     }
 
@@ -7,10 +7,12 @@ import java.io.IOException;
 import java.io.PrintWriter;
 import java.sql.SQLException;
 import java.util.Set;
+import java.util.stream.IntStream;
 
 import org.apache.commons.lang3.StringUtils;
 import org.theseed.java.erdb.DbConnection;
 import org.theseed.java.erdb.DbRecord;
+import org.theseed.rna.data.FeatureDataCodec;
 
 /**
  * This report generates a gene data load file from a single RNA sequence data
@@ -51,13 +53,23 @@ public class GeneDataReporter extends BaseRnaDbReporter {
             throw new SQLException("Specified sample \"" + this.sampleId + "\" not found.");
         // We have the sample record.  Start the output CSV.
         writer.println("gene,tpm");
-        // Get the expression-level array.
-        double[] levels = sample.getDoubleArray("RnaSample.feat_data");
-        // We loop through the expression levels in parallel with the feature index.
-        for (int i = 0; i < levels.length; i++) {
-            double level = levels[i];
+        // Get the expression levels.  If there is a gene filter, we only extract the levels for the features
+        // that pass it.
+        int[] positions;
+        double[] levels;
+        if (this.geneFilter == null) {
+            levels = FeatureDataCodec.getLevels(sample);
+            positions = IntStream.range(0, levels.length).toArray();
+        } else {
+            positions = IntStream.range(0, fIndex.getFeatureCount()).filter(i -> fIndex.getFeature(i) != null
+                    && this.geneFilter.contains(fIndex.getFeature(i).getAlias())).toArray();
+            levels = new FeatureDataCodec.Projection(positions).getLevels(sample, null);
+        }
+        // We loop through the expression levels in parallel with the feature positions.
+        for (int k = 0; k < positions.length; k++) {
+            double level = levels[k];
             if (Double.isFinite(level)) {
-                String alias = fIndex.getFeature(i).getAlias();
+                String alias = fIndex.getFeature(positions[k]).getAlias();
                 if (! StringUtils.isBlank(alias) &&
                         (this.geneFilter == null || this.geneFilter.contains(alias)))
                     writer.format("%s,%6.2f%n", alias, level);
@@ -6,27 +6,64 @@ package org.theseed.reports;
 import java.io.IOException;
 import java.io.PrintWriter;
 import java.sql.SQLException;
-import java.util.Iterator;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.stream.IntStream;
 
 import org.apache.commons.math3.distribution.NormalDistribution;
-import org.apache.commons.math3.stat.descriptive.DescriptiveStatistics;
 import org.apache.commons.math3.stat.inference.KolmogorovSmirnovTest;
 import org.theseed.java.erdb.DbConnection;
-import org.theseed.java.erdb.DbQuery;
-import org.theseed.java.erdb.DbRecord;
-import org.theseed.java.erdb.Relop;
+import org.theseed.rna.data.SampleMatrix;
+import org.theseed.rna.data.StreamingMoments;
 
 /**
  * This report evaluates the probability that the distribution of expression levels for each feature
  * is NOT a normal distribution.  It also outputs the skewness, kurtosis, mean, and standard
  * deviation for each feature's expression data.
  *
+ * The features are processed in parallel, in blocks.  Each worker reads the feature columns from the
+ * expression matrix into its own buffer, accumulates the moments in a single pass, and computes the
+ * Kolmogorov-Smirnov p-value from the same buffer.  Beyond the expression matrix itself, only the statistics
+ * for each feature and one column per worker are kept.  Without a matrix cache directory, the whole matrix is
+ * loaded into memory; with one, it is memory-mapped and its pages are read on demand.
+ *
  * @author Bruce Parrello
  *
  */
 public class NormalCheckReporter extends BaseRnaDbReporter {
 
+    // FIELDS
+    /** number of features in each parallel block */
+    private static final int BLOCK_SIZE = 32;
+
+    /**
+     * This object contains the working storage for a single thread.
+     */
+    private static class Worker {
+
+        /** full feature column */
+        private final double[] column;
+        /** finite values for the good samples */
+        private final double[] values;
+        /** moment accumulator */
+        private final StreamingMoments moments;
+        /** K-S test computation engine */
+        private final KolmogorovSmirnovTest ksTester;
+
+        /**
+         * Create the working storage for a thread.
+         *
+         * @param nSamples		number of samples in the matrix
+         * @param nGood			number of good samples
+         */
+        protected Worker(int nSamples, int nGood) {
+            this.column = new double[nSamples];
+            this.values = new double[nGood];
+            this.moments = new StreamingMoments();
+            this.ksTester = new KolmogorovSmirnovTest();
+        }
+
+    }
 
     public NormalCheckReporter(IParms processor, DbConnection db) {
         super(processor, db);
@@ -38,68 +75,72 @@ public class NormalCheckReporter extends BaseRnaDbReporter {
         log.info("Building feature index.");
         FeatureIndex fIndex = this.getFeatureIndex();
         final int n = fIndex.getFeatureCount();
-        log.info("Building statistics computers.");
-        // Allocate the statistics array.
-        var statsArray = IntStream.range(0, n).mapToObj(i -> new DescriptiveStatistics())
-                .toArray(DescriptiveStatistics[]::new);
-        // Now we loop through the samples, updating the stats computers.
-        try (DbQuery query = new DbQuery(this.getDb(), "RnaSample")) {
-            // We want the feature-data arrays, but only for this genome's non-suspicious samples.
-            query.select("RnaSample", "feat_data");
-            query.rel("RnaSample.genome_id", Relop.EQ);
-            query.rel("RnaSample.suspicious", Relop.EQ);
-            query.setParm(1, this.getGenomeId());
-            query.setParm(2, false);
-            // Loop through all the samples.
-            int count = 0;
-            Iterator<DbRecord> iter = query.iterator();
-            while (iter.hasNext()) {
-                DbRecord record = iter.next();
-                double[] values = record.getDoubleArray("RnaSample.feat_data");
-                IntStream.range(0, fIndex.getFeatureCount()).parallel().filter(i -> Double.isFinite(values[i]))
-                        .forEach(i -> statsArray[i].addValue(values[i]));
-                count++;
-                if (log.isInfoEnabled() && count % 100 == 0)
-                    log.info("{} samples processed.", count);
+        // Get the expression matrix.  We want the feature-major data for this genome's non-suspicious samples.
+        SampleMatrix matrix = this.getSampleMatrix();
+        final int[] goodSamples = matrix.getGoodSamples();
+        log.info("{} samples found for {} features.", goodSamples.length, n);
+        final int nCols = Math.min(n, matrix.getFeatureCount());
+        // These arrays hold the statistics for each feature.  A count of 0 means the feature has no data.
+        final long[] counts = new long[nCols];
+        final double[] means = new double[nCols];
+        final double[] sdevs = new double[nCols];
+        final double[] skews = new double[nCols];
+        final double[] kurts = new double[nCols];
+        final double[] kspvs = new double[nCols];
+        // Compute the statistics in parallel blocks of features.
+        log.info("Computing statistics.");
+        final ThreadLocal<Worker> workers = ThreadLocal.withInitial(() -> new Worker(matrix.getSampleCount(),
+                goodSamples.length));
+        final AtomicInteger done = new AtomicInteger();
+        final int nBlocks = (nCols + BLOCK_SIZE - 1) / BLOCK_SIZE;
+        IntStream.range(0, nBlocks).parallel().forEach(b -> {
+            Worker worker = workers.get();
+            final int end = Math.min(nCols, (b + 1) * BLOCK_SIZE);
+            for (int i = b * BLOCK_SIZE; i < end; i++) {
+                // Gather the finite values for the good samples.
+                matrix.getFeatureColumn(i, worker.column);
+                int found = 0;
+                for (int s : goodSamples) {
+                    double v = worker.column[s];
+                    if (Double.isFinite(v))
+                        worker.values[found++] = v;
+                }
+                // Only process features with expression data.
+                if (found > 0) {
+                    worker.moments.clear();
+                    worker.moments.addFinite(worker.values, found);
+                    counts[i] = found;
+                    means[i] = worker.moments.getMean();
+                    sdevs[i] = worker.moments.getStandardDeviation();
+                    skews[i] = worker.moments.getSkewness();
+                    kurts[i] = worker.moments.getKurtosis();
+                    // Compute the distribution error.
+                    if (sdevs[i] > 0.0) {
+                        NormalDistribution dist = new NormalDistribution(means[i], sdevs[i]);
+                        kspvs[i] = worker.ksTester.kolmogorovSmirnovTest(dist, Arrays.copyOf(worker.values, found));
+                    }
+                }
             }
-            log.info("{} samples processed.", count);
-        }
-        // Now we have filled in all the descriptive-statistics arrays.  For each one, we can compute its
-        // statistical values.  We will need a K-S test computation engine.
-        var ksTester = new KolmogorovSmirnovTest();
+            int processed = done.addAndGet(end - b * BLOCK_SIZE);
+            if (log.isInfoEnabled() && (processed / BLOCK_SIZE) % 50 == 0)
+                log.info("{} features processed.", processed);
+        });
         // Start the report output.
         log.info("Writing output report.");
         writer.println("fig_id\tbaseline\tgene_name\talias\tmean\tstd_dev\tskewness\tkurtosis\tKS_p_value\tassignment");
         // Loop through the features.
-        int count = 0;
-        for (int i = 0; i < n; i++) {
-            FeatureData feat = fIndex.getFeature(i);
-            String fid = feat.getFid();
-            var stats = statsArray[i];
-            // Only process features with expression data.
-            if (stats.getN() > 0) {
-                // Get the basic statistics.
-                double mean = stats.getMean();
-                double sdev = stats.getStandardDeviation();
-                double skew = stats.getSkewness();
-                double kurt = stats.getKurtosis();
+        for (int i = 0; i < nCols; i++) {
+            if (counts[i] > 0) {
+                FeatureData feat = fIndex.getFeature(i);
+                String fid = feat.getFid();
                 // Get the gene info.
                 String gene = feat.getGene();
                 if (gene == null) gene = "";
                 String alias = feat.getAlias();
                 if (alias == null) alias = "";
-                // Compute the distribution error.
-                double kspv = 0.0;
-                if (sdev > 0.0) {
-                    NormalDistribution dist = new NormalDistribution(mean, sdev);
-                    kspv = ksTester.kolmogorovSmirnovTest(dist, stats.getValues());
-                }
                 // Now write all this out.
                 writer.format("%s\t%8.2f\t%s\t%s\t%8.2f\t%8.2f\t%8.2f\t%8.2f\t%8g\t%s%n", fid, feat.getBaseline(), gene,
-                        alias, mean, sdev, skew, kurt, kspv, feat.getAssignment());
-                count++;
-                if (log.isInfoEnabled() && count % 50 == 0)
-                    log.info("{} features processed.", count);
+                        alias, means[i], sdevs[i], skews[i], kurts[i], kspvs[i], feat.getAssignment());
             }
         }
     }
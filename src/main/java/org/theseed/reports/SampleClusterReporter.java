@@ -18,11 +18,11 @@ import org.apache.commons.math3.stat.descriptive.SummaryStatistics;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.theseed.basic.ParseFailureException;
-import org.theseed.io.TabbedLineReader;
 import org.theseed.java.erdb.DbConnection;
 import org.theseed.java.erdb.DbQuery;
 import org.theseed.java.erdb.DbRecord;
 import org.theseed.java.erdb.Relop;
+import org.theseed.rna.corr.CorrelationReader;
 import org.theseed.stats.WeightMap;
 import org.theseed.utils.StringPair;
 
@@ -41,6 +41,8 @@ public class SampleClusterReporter extends BaseRnaDbReporter {
     protected static Logger log = LoggerFactory.getLogger(SampleClusterReporter.class);
     /** map of sample ID pairs to similarity scores */
     private Map<StringPair, Double> scoreMap;
+    /** dense correlation file for random access, or NULL if the scores are in the map */
+    private CorrelationReader denseScores;
     /** ID of current cluster */
     private String clusterId;
     /** members of current cluster */
@@ -63,25 +65,34 @@ public class SampleClusterReporter extends BaseRnaDbReporter {
             throw new ParseFailureException("Sample correlation file is required for this report type.");
         if (! sCorrFile.canRead())
             throw new FileNotFoundException("Sample correlation file " + sCorrFile + " is not found or unreadable.");
-        // Estimate the hash size from the file size.
-        int hashSize = (int) (sCorrFile.length() / 20);
-        if (hashSize <= 0)
-            throw new IOException("Number of samples is too high for this report (maximum is roughly 40,000.");
-        this.scoreMap = new HashMap<StringPair, Double>(hashSize);
-        // Read in the correlation hash.  The first two columns are the IDs and the third is the similarity.
-        try (TabbedLineReader inStream = new TabbedLineReader(sCorrFile)) {
-            int linesIn = 0;
-            long lastMsg = System.currentTimeMillis();
-            for (var line : inStream) {
-                linesIn++;
-                StringPair pair = new StringPair(line.get(0), line.get(1));
-                this.scoreMap.put(pair, line.getDouble(2));
-                if (log.isInfoEnabled() && System.currentTimeMillis() - lastMsg >= 10000) {
-                    lastMsg = System.currentTimeMillis();
-                    log.info("{} correlations read.", linesIn);
-                }
+        CorrelationReader reader = CorrelationReader.open(sCorrFile);
+        if (reader.isDense()) {
+            // A dense binary file supports random access, so we use it directly.
+            log.info("Using dense correlation file {} with {} samples.", sCorrFile, reader.getIdCount());
+            this.denseScores = reader;
+            this.scoreMap = null;
+        } else {
+            this.denseScores = null;
+            // Estimate the hash size from the file size.
+            int hashSize = (int) (sCorrFile.length() / (reader.isBinary() ? 12 : 20));
+            if (hashSize <= 0)
+                throw new IOException("Number of samples is too high for this report (maximum is roughly 40,000.");
+            this.scoreMap = new HashMap<StringPair, Double>(hashSize);
+            // Read in the correlation hash.
+            try (reader) {
+                int[] linesIn = new int[1];
+                long[] lastMsg = new long[] { System.currentTimeMillis() };
+                reader.forEach((i, j, sim) -> {
+                    linesIn[0]++;
+                    StringPair pair = new StringPair(reader.getId(i), reader.getId(j));
+                    this.scoreMap.put(pair, sim);
+                    if (log.isInfoEnabled() && System.currentTimeMillis() - lastMsg[0] >= 10000) {
+                        lastMsg[0] = System.currentTimeMillis();
+                        log.info("{} correlations read.", linesIn[0]);
+                    }
+                });
+                log.info("{} correlations stored.", linesIn[0]);
             }
-            log.info("{} correlations stored.", linesIn);
         }
     }
 
@@ -148,8 +159,7 @@ public class SampleClusterReporter extends BaseRnaDbReporter {
                 for (String member2 : this.members) {
                     // Skip cases where both sample IDs are the same.
                     if (! member1.contentEquals(member2)) {
-                        StringPair pair = new StringPair(member1, member2);
-                        Double dist = this.scoreMap.get(pair);
+                        Double dist = this.getScore(member1, member2);
                         if (dist == null)
                             throw new IOException("Correlation between " + member1 + " and " + member2
                                     + " missing from correlation file.");
@@ -169,4 +179,26 @@ public class SampleClusterReporter extends BaseRnaDbReporter {
         }
     }
 
+    /**
+     * @return the similarity score between two samples, or NULL if it is not available
+     *
+     * @param member1	ID of the first sample
+     * @param member2	ID of the second sample
+     */
+    private Double getScore(String member1, String member2) {
+        Double retVal = null;
+        if (this.denseScores == null)
+            retVal = this.scoreMap.get(new StringPair(member1, member2));
+        else {
+            int i = this.denseScores.findIndex(member1);
+            int j = this.denseScores.findIndex(member2);
+            if (i >= 0 && j >= 0) {
+                double score = this.denseScores.getScore(i, j);
+                if (! Double.isNaN(score))
+                    retVal = score;
+            }
+        }
+        return retVal;
+    }
+
 }
@@ -44,12 +44,15 @@ public class SampleMeasureReporter extends BaseRnaDbReporter {
 
     @Override
     public void writeReport(PrintWriter writer) throws IOException, SQLException {
-        // Construct the measurement query.  We will build a hash of sample ID to measurement value.
+        // Construct the measurement query.  We will build a hash of sample ID to measurement value.  Only
+        // the target genome's measurements are fetched.
         Map<String, Double> measureMap = new HashMap<String, Double>(1000);
         try (DbQuery query = new DbQuery(this.getDb(), "Measurement")) {
             query.select("Measurement", "sample_id", "value");
+            query.rel("Measurement.genome_id", Relop.EQ);
             query.rel("Measurement.measure_type", Relop.EQ);
-            query.setParm(1, this.mType);
+            query.setParm(1, this.genomeId);
+            query.setParm(2, this.mType);
             // Loop through the values found.
             var iter = query.iterator();
             while (iter.hasNext()) {
@@ -57,7 +60,7 @@ public class SampleMeasureReporter extends BaseRnaDbReporter {
                 measureMap.put(record.getString("Measurement.sample_id"), record.getDouble("Measurement.value"));
             }
         }
-        log.info("{} measurement values found.", measureMap.size());
+        log.info("{} measurement values found for {}.", measureMap.size(), this.genomeId);
         // Construct the main query.
         try (DbQuery query = new DbQuery(this.getDb(), "RnaSample")) {
             query.select("RnaSample", "sample_id", "feat_count", "project_id", "pubmed", "quality", "suspicious");
@@ -84,7 +87,7 @@ public class SampleMeasureReporter extends BaseRnaDbReporter {
                 var good = ! record.getBool("RnaSample.suspicious");
                 String measurement = (measured ? String.format("%8.6f", measureMap.get(sampleId)) : "");
                 String pubmed = (record.isNull("RnaSample.pubmed") ? "" :
-                    String.format("%d", record.getInt("Measurement.pubmed")));
+                    String.format("%d", record.getInt("RnaSample.pubmed")));
                 String suspicious = (good ? "" : "Y");
                 writer.format("%s\t%d\t%s\t%s\t%6.2f\t%s\t%s%n", sampleId, record.getInt("RnaSample.feat_count"),
                         record.getReportString("RnaSample.project_id"), pubmed,
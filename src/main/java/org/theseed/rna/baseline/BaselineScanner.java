@@ -0,0 +1,198 @@
+/**
+ *
+ */
+package org.theseed.rna.baseline;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.IntStream;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.theseed.rna.data.SampleMatrix;
+
+/**
+ * This object computes baselines for every feature in an expression matrix using one or more baseline computers.
+ * The matrix is scanned a single time in feature-major order.  The features are processed in parallel blocks, and
+ * for each feature the expression levels of the good samples are gathered into a column object that is passed to
+ * each baseline computer in turn.  Each thread has its own column object, so the computers need no synchronization.
+ *
+ * @author Bruce Parrello
+ *
+ */
+public class BaselineScanner {
+
+    // FIELDS
+    /** logging facility */
+    protected static Logger log = LoggerFactory.getLogger(BaselineScanner.class);
+    /** expression matrix */
+    private final SampleMatrix matrix;
+    /** row indices of the samples to use */
+    private final int[] samples;
+    /** cluster index of each sample to use (-1 if unclustered) */
+    private final int[] sampleClusters;
+    /** number of clusters */
+    private final int nClusters;
+    /** number of features per parallel block */
+    private static final int BLOCK_SIZE = 32;
+
+    /**
+     * This object contains the data for a single feature.  It is reused from one feature to the next,
+     * so the computers must not keep references to its arrays.
+     */
+    public static class Column {
+
+        /** full feature column from the matrix */
+        private final double[] raw;
+        /** finite expression levels for the good samples */
+        private final double[] values;
+        /** cluster index for each value (-1 if unclustered) */
+        private final int[] clusters;
+        /** number of values */
+        private int n;
+        /** number of clusters */
+        private final int nClusters;
+        /** sorted copy of the values */
+        private final double[] sorted;
+        /** TRUE if the sorted copy is current */
+        private boolean sortValid;
+
+        /**
+         * Create an empty column.
+         *
+         * @param nSamples		number of samples in the matrix
+         * @param nGood			number of samples to use
+         * @param nClusters		number of sample clusters
+         */
+        protected Column(int nSamples, int nGood, int nClusters) {
+            this.raw = new double[nSamples];
+            this.values = new double[nGood];
+            this.clusters = new int[nGood];
+            this.sorted = new double[nGood];
+            this.nClusters = nClusters;
+            this.n = 0;
+            this.sortValid = false;
+        }
+
+        /**
+         * @return the number of values
+         */
+        public int size() {
+            return this.n;
+        }
+
+        /**
+         * @return the value at the specified position
+         *
+         * @param k		index of the desired value
+         */
+        public double getValue(int k) {
+            return this.values[k];
+        }
+
+        /**
+         * @return the cluster index for the value at the specified position (-1 if unclustered)
+         *
+         * @param k		index of the desired value
+         */
+        public int getCluster(int k) {
+            return this.clusters[k];
+        }
+
+        /**
+         * @return the number of sample clusters
+         */
+        public int getClusterCount() {
+            return this.nClusters;
+        }
+
+        /**
+         * @return an array whose first size() elements are the values in ascending order (must not be modified)
+         */
+        public double[] getSorted() {
+            if (! this.sortValid) {
+                System.arraycopy(this.values, 0, this.sorted, 0, this.n);
+                Arrays.sort(this.sorted, 0, this.n);
+                this.sortValid = true;
+            }
+            return this.sorted;
+        }
+
+    }
+
+    /**
+     * Create a baseline scanner for a set of samples in an expression matrix.
+     *
+     * @param matrix	expression matrix
+     * @param samples	array of row indices for the samples to use
+     */
+    public BaselineScanner(SampleMatrix matrix, int[] samples) {
+        this.matrix = matrix;
+        this.samples = samples;
+        // Assign an index to each cluster.
+        Map<String, Integer> clusterMap = new HashMap<String, Integer>(1000);
+        this.sampleClusters = new int[samples.length];
+        for (int k = 0; k < samples.length; k++) {
+            String clusterId = matrix.getClusterId(samples[k]);
+            this.sampleClusters[k] = (clusterId == null ? -1
+                    : clusterMap.computeIfAbsent(clusterId, x -> clusterMap.size()));
+        }
+        this.nClusters = clusterMap.size();
+        log.info("{} samples in {} clusters will be used for baselines.", samples.length, this.nClusters);
+    }
+
+    /**
+     * Compute the baselines for all the features using the specified computers.
+     *
+     * @param computers		list of baseline computers to use
+     *
+     * @return an array of baseline arrays, one per computer, each indexed by feature sequence number
+     */
+    public double[][] scan(List<DbBaselineComputer> computers) {
+        final int nFeats = this.matrix.getFeatureCount();
+        final int nComputers = computers.size();
+        final double[][] retVal = new double[nComputers][nFeats];
+        final ThreadLocal<Column> columns = ThreadLocal.withInitial(() -> new Column(this.matrix.getSampleCount(),
+                this.samples.length, this.nClusters));
+        final AtomicInteger done = new AtomicInteger();
+        final int nBlocks = (nFeats + BLOCK_SIZE - 1) / BLOCK_SIZE;
+        IntStream.range(0, nBlocks).parallel().forEach(b -> {
+            Column column = columns.get();
+            final int end = Math.min(nFeats, (b + 1) * BLOCK_SIZE);
+            for (int i = b * BLOCK_SIZE; i < end; i++) {
+                this.fillColumn(i, column);
+                for (int c = 0; c < nComputers; c++)
+                    retVal[c][i] = (column.n == 0 ? Double.NaN : computers.get(c).computeBaseline(column));
+            }
+            int processed = done.addAndGet(end - b * BLOCK_SIZE);
+            if (log.isInfoEnabled() && (processed / BLOCK_SIZE) % 25 == 0)
+                log.info("{} of {} features processed.", processed, nFeats);
+        });
+        return retVal;
+    }
+
+    /**
+     * Fill a column object with the data for a feature.
+     *
+     * @param feat		feature sequence number
+     * @param column	column object to fill
+     */
+    private void fillColumn(int feat, Column column) {
+        this.matrix.getFeatureColumn(feat, column.raw);
+        int n = 0;
+        for (int k = 0; k < this.samples.length; k++) {
+            double v = column.raw[this.samples[k]];
+            if (Double.isFinite(v)) {
+                column.values[n] = v;
+                column.clusters[n] = this.sampleClusters[k];
+                n++;
+            }
+        }
+        column.n = n;
+        column.sortValid = false;
+    }
+
+}
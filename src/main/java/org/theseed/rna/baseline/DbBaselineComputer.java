@@ -3,15 +3,13 @@
  */
 package org.theseed.rna.baseline;
 
-import java.sql.SQLException;
-
-import org.theseed.java.erdb.DbRecord;
-
 /**
- * This is the base class for a baseline computer.  The baseline computer takes as input
- * the RnaSample records, one after the other, and eventually outputs an array of feature
- * baseline values.  This can then be interrogated to update the baseline values in the
- * genome's feature records.
+ * This is the base class for a baseline computer.  The baseline computer takes as input the expression
+ * levels for a single feature across all the good samples of a genome (see BaselineScanner) and computes
+ * the feature's baseline value.  The baselines can then be used to update the genome's feature records.
+ *
+ * Because each computer works on one feature column at a time, several computers can be run during
+ * a single scan of the expression matrix, which allows the different methods to be compared cheaply.
  *
  * @author Bruce Parrello
  *
@@ -24,42 +22,89 @@ public abstract class DbBaselineComputer {
      */
     public interface IParms {
 
+        /**
+         * @return the fraction of values to trim from each end for a trimmed mean
+         */
+        public double getTrimFraction();
+
     }
 
     /**
      * This enumeration describes the different types of baseline computers.
      */
     public static enum Type {
+        /** trimean of the cluster means, giving each sample cluster equal weight */
         WEIGHTED {
             @Override
             public DbBaselineComputer create(IParms processor) {
                 return new WeightedBaselineComputer(processor);
             }
+        },
+        /** median of all the sample values */
+        MEDIAN {
+            @Override
+            public DbBaselineComputer create(IParms processor) {
+                return new MedianBaselineComputer(processor);
+            }
+        },
+        /** mean of the sample values after trimming the extremes */
+        TRIMMED {
+            @Override
+            public DbBaselineComputer create(IParms processor) {
+                return new TrimmedBaselineComputer(processor);
+            }
+        },
+        /** geometric mean of the sample values */
+        GEOMETRIC {
+            @Override
+            public DbBaselineComputer create(IParms processor) {
+                return new GeometricBaselineComputer(processor);
+            }
         };
 
         /**
          * @return a baseline computer of this type
          *
          * @param processor		controlling command processor
-         *
-         * @throws SQLException
          */
-        public abstract DbBaselineComputer create(IParms processor) throws SQLException;
+        public abstract DbBaselineComputer create(IParms processor);
 
     }
 
     /**
-     * Accumulate data for a particular sample.
+     * Compute the baseline for a feature.
      *
-     * @param sample	DbRecord for the sample in question
+     * @param column	expression data for the feature
      *
-     * @throws SQLException
+     * @return the baseline value, or NaN if none can be computed
      */
-    public abstract void processRecord(DbRecord sample) throws SQLException;
+    public abstract double computeBaseline(BaselineScanner.Column column);
 
     /**
-     * @return the computed baselines
+     * Compute a percentile of sorted values.  This uses the same estimation rule as the default (legacy)
+     * percentile computation in Apache Commons Math.
+     *
+     * @param sorted	array of values, sorted in ascending order
+     * @param n			number of values in the array to use (must be positive)
+     * @param p			percentile desired (0 to 100)
+     *
+     * @return the estimated percentile value
      */
-    public abstract double[] getBaselines();
+    protected static double percentile(double[] sorted, int n, double p) {
+        double retVal;
+        double pos = p * (n + 1) / 100.0;
+        double fpos = Math.floor(pos);
+        int intPos = (int) fpos;
+        if (pos < 1)
+            retVal = sorted[0];
+        else if (pos >= n)
+            retVal = sorted[n - 1];
+        else {
+            double lower = sorted[intPos - 1];
+            double upper = sorted[intPos];
+            retVal = lower + (pos - fpos) * (upper - lower);
+        }
+        return retVal;
+    }
 
 }
@@ -0,0 +1,33 @@
+/**
+ *
+ */
+package org.theseed.rna.baseline;
+
+/**
+ * This baseline computer returns the geometric mean of all the good sample values.  Expression levels can be
+ * zero, so a pseudocount of 1 is added before taking logs and subtracted from the result.  Negative values
+ * are not meaningful for TPM data and are treated as zero.
+ *
+ * @author Bruce Parrello
+ *
+ */
+public class GeometricBaselineComputer extends DbBaselineComputer {
+
+    /**
+     * Initialize the baseline computer.
+     *
+     * @param processor		controlling command processor
+     */
+    public GeometricBaselineComputer(IParms processor) {
+    }
+
+    @Override
+    public double computeBaseline(BaselineScanner.Column column) {
+        final int n = column.size();
+        double total = 0.0;
+        for (int k = 0; k < n; k++)
+            total += Math.log1p(Math.max(0.0, column.getValue(k)));
+        return Math.expm1(total / n);
+    }
+
+}
@@ -0,0 +1,28 @@
+/**
+ *
+ */
+package org.theseed.rna.baseline;
+
+/**
+ * This baseline computer returns the median of all the good sample values, without regard to clustering.
+ * The median is computed exactly from the sorted feature column.
+ *
+ * @author Bruce Parrello
+ *
+ */
+public class MedianBaselineComputer extends DbBaselineComputer {
+
+    /**
+     * Initialize the baseline computer.
+     *
+     * @param processor		controlling command processor
+     */
+    public MedianBaselineComputer(IParms processor) {
+    }
+
+    @Override
+    public double computeBaseline(BaselineScanner.Column column) {
+        return percentile(column.getSorted(), column.size(), 50.0);
+    }
+
+}
@@ -0,0 +1,46 @@
+/**
+ *
+ */
+package org.theseed.rna.baseline;
+
+/**
+ * This baseline computer returns the mean of all the good sample values after the highest and lowest values
+ * are discarded.  The fraction discarded from each end is a parameter.  If trimming would leave nothing, the
+ * median is used.
+ *
+ * @author Bruce Parrello
+ *
+ */
+public class TrimmedBaselineComputer extends DbBaselineComputer {
+
+    // FIELDS
+    /** fraction of values to trim from each end */
+    private final double trimFraction;
+
+    /**
+     * Initialize the baseline computer.
+     *
+     * @param processor		controlling command processor
+     */
+    public TrimmedBaselineComputer(IParms processor) {
+        this.trimFraction = processor.getTrimFraction();
+    }
+
+    @Override
+    public double computeBaseline(BaselineScanner.Column column) {
+        final int n = column.size();
+        double[] sorted = column.getSorted();
+        final int trim = (int) Math.floor(n * this.trimFraction);
+        double retVal;
+        if (n - 2 * trim <= 0)
+            retVal = percentile(sorted, n, 50.0);
+        else {
+            double total = 0.0;
+            for (int k = trim; k < n - trim; k++)
+                total += sorted[k];
+            retVal = total / (n - 2 * trim);
+        }
+        return retVal;
+    }
+
+}
@@ -3,19 +3,13 @@
  */
 package org.theseed.rna.baseline;
 
-import java.sql.SQLException;
-import java.util.HashMap;
-import java.util.Map;
-import java.util.stream.IntStream;
-
-import org.apache.commons.math3.stat.descriptive.DescriptiveStatistics;
-import org.apache.commons.math3.stat.descriptive.SummaryStatistics;
-import org.theseed.java.erdb.DbRecord;
+import java.util.Arrays;
 
 /**
- * This baseline computer takes the mean of each sample cluster and returns the mean of all the sample
- * clusters as the baseline.  The net effect is to give each cluster equal weight regardless of size.
- * The resulting baseline represents expression levels from a diverse population.
+ * This baseline computer takes the mean of each sample cluster and returns the trimean of all the sample
+ * cluster means as the baseline.  The net effect is to give each cluster equal weight regardless of size.
+ * The resulting baseline represents expression levels from a diverse population.  Unclustered samples are
+ * either suspicious or have not been processed yet, so they are ignored.
  *
  * @author Bruce Parrello
  *
@@ -23,74 +17,82 @@ import org.theseed.java.erdb.DbRecord;
 public class WeightedBaselineComputer extends DbBaselineComputer {
 
     // FIELDS
-    /** map of cluster IDs to statistical object arrays */
-    private Map<String, SummaryStatistics[]> summMap;
-    /** number of features in the arrays */
-    private int featCount;
+    /** per-thread work arrays for the cluster sums, counts, and means */
+    private final ThreadLocal<Workspace> workspaces;
 
     /**
-     * Initialize the baseline computer.
-     *
-     * @param processor		controlling command processor
+     * This object contains the work arrays for a single thread.
      */
-    public WeightedBaselineComputer(IParms processor) {
-        this.summMap = new HashMap<String, SummaryStatistics[]>(1000);
-    }
+    private static class Workspace {
 
-    @Override
-    public void processRecord(DbRecord sample) throws SQLException {
-        // Get the sample cluster.
-        String clusterId = sample.getString("RnaSample.cluster_id");
-        // Only proceed if the sample is clustered.  An unclustered sample is either suspicious or
-        // has not been processed yet.
-        if (clusterId != null) {
-            // Get the expression level array.
-            double[] levels = sample.getDoubleArray("RnaSample.feat_data");
-            this.featCount = levels.length;
-            // Get the current summaries for the cluster and update them.
-            SummaryStatistics[] summaries = this.summMap.computeIfAbsent(clusterId, x -> this.initSummaries());
-            IntStream.range(0, this.featCount).parallel().filter(i -> Double.isFinite(levels[i]))
-                    .forEach(i -> summaries[i].addValue(levels[i]));
+        /** sums of expression levels by cluster */
+        private double[] sums;
+        /** counts of expression levels by cluster */
+        private int[] counts;
+        /** cluster means */
+        private double[] means;
+
+        /**
+         * Insure the arrays are large enough and clear the sums and counts.
+         *
+         * @param nClusters		number of clusters
+         */
+        protected void reset(int nClusters) {
+            if (this.sums == null || this.sums.length < nClusters) {
+                this.sums = new double[nClusters];
+                this.counts = new int[nClusters];
+                this.means = new double[nClusters];
+            } else {
+                Arrays.fill(this.sums, 0, nClusters, 0.0);
+                Arrays.fill(this.counts, 0, nClusters, 0);
+            }
         }
+
     }
 
     /**
-     * @return an array of empty summary-statistics objects
+     * Initialize the baseline computer.
+     *
+     * @param processor		controlling command processor
      */
-    private SummaryStatistics[] initSummaries() {
-        SummaryStatistics[] retVal = new SummaryStatistics[this.featCount];
-        IntStream.range(0, this.featCount).forEach(i -> retVal[i] = new SummaryStatistics());
-        return retVal;
+    public WeightedBaselineComputer(IParms processor) {
+        this.workspaces = ThreadLocal.withInitial(() -> new Workspace());
     }
 
     @Override
-    public double[] getBaselines() {
-        // Summarize the results for each feature.
-        double[] retVal = IntStream.range(0, this.featCount).parallel().mapToDouble(i -> this.summarize(i)).toArray();
-        return retVal;
-    }
-
-    /**
-     * @return the computed baseline for the indicated feature
-     *
-     * @param i		index of the feature to summarize
-     */
-    private double summarize(int i) {
-        DescriptiveStatistics computer = new DescriptiveStatistics();
-        // For each cluster that has at least one observation, we get the mean from the statistical object.
-        for (SummaryStatistics[] statArray : this.summMap.values()) {
-            SummaryStatistics stats = statArray[i];
-            if (stats.getN() > 0)
-                computer.addValue(stats.getMean());
+    public double computeBaseline(BaselineScanner.Column column) {
+        // Accumulate the sums and counts for each cluster.
+        final int nClusters = column.getClusterCount();
+        Workspace work = this.workspaces.get();
+        work.reset(nClusters);
+        final int n = column.size();
+        for (int k = 0; k < n; k++) {
+            int c = column.getCluster(k);
+            if (c >= 0) {
+                work.sums[c] += column.getValue(k);
+                work.counts[c]++;
+            }
+        }
+        // For each cluster that has at least one observation, we get the mean.
+        int nMeans = 0;
+        for (int c = 0; c < nClusters; c++) {
+            if (work.counts[c] > 0)
+                work.means[nMeans++] = work.sums[c] / work.counts[c];
         }
         // Compute the trimean if possible.
         double retVal;
-        if (computer.getN() == 0)
+        if (nMeans == 0)
             retVal = Double.NaN;
-        else if (computer.getN() <= 2)
-            retVal = computer.getMean();
-        else
-            retVal = (computer.getPercentile(25.0) + 2 * computer.getPercentile(50.0) + computer.getPercentile(75.0)) / 4.0;
+        else if (nMeans <= 2) {
+            double total = 0.0;
+            for (int k = 0; k < nMeans; k++)
+                total += work.means[k];
+            retVal = total / nMeans;
+        } else {
+            Arrays.sort(work.means, 0, nMeans);
+            retVal = (percentile(work.means, nMeans, 25.0) + 2 * percentile(work.means, nMeans, 50.0)
+                    + percentile(work.means, nMeans, 75.0)) / 4.0;
+        }
         return retVal;
     }
 
@@ -0,0 +1,131 @@
+/**
+ *
+ */
+package org.theseed.rna.corr;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * This is the base class for objects that collect the (i, j, score) triples produced by a parallel
+ * correlation computation without any locking.  Each thread stores the triples it is given in its own
+ * thread-local structure, and the structures are only combined when the computation is finished.  A
+ * shared counter is used to track progress.
+ *
+ * An optional minimum score can be specified.  If it is, triples below the minimum (or with an
+ * undefined score) are discarded immediately.
+ *
+ * The collector is meant to be used for a single computation.  The "forEach" method should only be called
+ * after all of the producing threads have finished.
+ *
+ * @author Bruce Parrello
+ *
+ */
+public abstract class BasePairCollector<T> implements PearsonEngine.Consumer {
+
+    // FIELDS
+    /** logging facility */
+    protected static Logger log = LoggerFactory.getLogger(BasePairCollector.class);
+    /** list of all the thread-local structures created */
+    private final List<T> locals;
+    /** thread-local structure for the current thread */
+    private final ThreadLocal<T> localData;
+    /** number of pairs seen in the current thread (used to throttle progress checks) */
+    private final ThreadLocal<int[]> localCount;
+    /** number of pairs seen */
+    private final LongAdder counter;
+    /** number of pairs between progress messages */
+    private final long logInterval;
+    /** pair count at which the next progress message should be written */
+    private final AtomicLong nextLog;
+    /** minimum score to keep */
+    private final double minScore;
+    /** TRUE if we are filtering by score */
+    private final boolean filtering;
+    /** mask for determining when a thread should check progress */
+    private static final int CHECK_MASK = 0xFFFF;
+
+    /**
+     * Create a new, empty pair collector.
+     *
+     * @param logInterval	number of pairs between progress messages
+     * @param minScore		minimum score to keep, or NaN to keep all scores
+     */
+    public BasePairCollector(long logInterval, double minScore) {
+        this.locals = new CopyOnWriteArrayList<T>();
+        this.counter = new LongAdder();
+        this.logInterval = logInterval;
+        this.nextLog = new AtomicLong(logInterval);
+        this.minScore = minScore;
+        this.filtering = ! Double.isNaN(minScore);
+        this.localData = ThreadLocal.withInitial(() -> {
+            T retVal = this.createLocal();
+            this.locals.add(retVal);
+            return retVal;
+        });
+        this.localCount = ThreadLocal.withInitial(() -> new int[1]);
+    }
+
+    @Override
+    public void accept(int i, int j, double r) {
+        if (! this.filtering || r >= this.minScore)
+            this.store(this.localData.get(), i, j, r);
+        this.counter.increment();
+        // Only look at the shared progress counter once in a while, since summing it is not free.
+        int[] count = this.localCount.get();
+        count[0]++;
+        if ((count[0] & CHECK_MASK) == 0) {
+            long now = this.counter.sum();
+            long next = this.nextLog.get();
+            if (now >= next && this.nextLog.compareAndSet(next, now + this.logInterval))
+                log.info("{} comparisons computed.", now);
+        }
+    }
+
+    /**
+     * @return a new thread-local structure
+     */
+    protected abstract T createLocal();
+
+    /**
+     * Store a triple in a thread-local structure.
+     *
+     * @param local		thread-local structure for the current thread
+     * @param i			first index
+     * @param j			second index
+     * @param r			score
+     */
+    protected abstract void store(T local, int i, int j, double r);
+
+    /**
+     * @return the list of thread-local structures created
+     */
+    protected List<T> getLocals() {
+        return this.locals;
+    }
+
+    /**
+     * @return the number of pairs seen so far
+     */
+    public long size() {
+        return this.counter.sum();
+    }
+
+    /**
+     * @return the number of pairs kept (only valid after the computation is finished)
+     */
+    public abstract long keptCount();
+
+    /**
+     * Pass all the kept triples to a consumer.  The consumer is called from the current thread only.
+     *
+     * @param consumer	consumer to receive the triples
+     */
+    public abstract void forEach(PearsonEngine.Consumer consumer);
+
+}
@@ -0,0 +1,181 @@
+/**
+ *
+ */
+package org.theseed.rna.corr;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.channels.FileChannel;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * This object reads a binary correlation file.  The data section is memory-mapped read-only.  Because a
+ * single mapping cannot exceed 2 gigabytes, the data section is mapped in chunks, each containing a whole
+ * number of records.
+ *
+ * @author Bruce Parrello
+ *
+ */
+public class BinaryCorrelationReader extends CorrelationReader {
+
+    // FIELDS
+    /** data layout */
+    private final CorrelationWriter.Layout layout;
+    /** array of IDs, in index order */
+    private final String[] ids;
+    /** map of IDs to indices */
+    private final Map<String, Integer> idMap;
+    /** number of slots in the data section */
+    private final long slots;
+    /** mapped data chunks */
+    private final ByteBuffer[] chunks;
+    /** float views of the data chunks (dense layout only) */
+    private final FloatBuffer[] floats;
+    /** log2 of the number of pair records per chunk */
+    private static final int PAIR_CHUNK_SHIFT = 27;
+
+    /**
+     * Open a binary correlation file.
+     *
+     * @param inFile	file to open
+     *
+     * @throws IOException
+     */
+    public BinaryCorrelationReader(File inFile) throws IOException {
+        long dictOffset;
+        try (RandomAccessFile raFile = new RandomAccessFile(inFile, "r")) {
+            int magic = raFile.readInt();
+            int version = raFile.readInt();
+            if (magic != CorrelationWriter.MAGIC || version != CorrelationWriter.VERSION)
+                throw new IOException("File " + inFile + " is not a valid version-" + CorrelationWriter.VERSION
+                        + " binary correlation file.");
+            int layoutIdx = raFile.readInt();
+            CorrelationWriter.Layout[] layouts = CorrelationWriter.Layout.values();
+            if (layoutIdx < 0 || layoutIdx >= layouts.length)
+                throw new IOException("Invalid data layout in correlation file " + inFile + ".");
+            this.layout = layouts[layoutIdx];
+            final int nIds = raFile.readInt();
+            this.slots = raFile.readLong();
+            dictOffset = raFile.readLong();
+            if (dictOffset > raFile.length())
+                throw new IOException("Correlation file " + inFile + " is truncated.");
+            this.ids = new String[nIds];
+            // Map the data section.
+            final int slotLen = (this.layout == CorrelationWriter.Layout.DENSE ? Float.BYTES
+                    : PairCorrelationWriter.RECORD_LEN);
+            final int shift = (this.layout == CorrelationWriter.Layout.DENSE ? DenseCorrelationWriter.CHUNK_SHIFT
+                    : PAIR_CHUNK_SHIFT);
+            final long perChunk = 1L << shift;
+            int nChunks = (int) ((this.slots + perChunk - 1) >> shift);
+            this.chunks = new ByteBuffer[nChunks];
+            this.floats = new FloatBuffer[nChunks];
+            FileChannel channel = raFile.getChannel();
+            for (int c = 0; c < nChunks; c++) {
+                long start = c * perChunk;
+                long len = Math.min(this.slots - start, perChunk);
+                this.chunks[c] = channel.map(FileChannel.MapMode.READ_ONLY,
+                        CorrelationWriter.HEADER_LEN + start * slotLen, len * slotLen)
+                        .order(ByteOrder.LITTLE_ENDIAN);
+                if (this.layout == CorrelationWriter.Layout.DENSE)
+                    this.floats[c] = this.chunks[c].asFloatBuffer();
+            }
+        }
+        // Read the ID dictionary.
+        this.idMap = new HashMap<String, Integer>(this.ids.length * 4 / 3 + 1);
+        try (FileInputStream fileStream = new FileInputStream(inFile)) {
+            fileStream.getChannel().position(dictOffset);
+            DataInputStream inStream = new DataInputStream(new BufferedInputStream(fileStream));
+            for (int i = 0; i < this.ids.length; i++) {
+                this.ids[i] = inStream.readUTF();
+                this.idMap.put(this.ids[i], i);
+            }
+        }
+    }
+
+    @Override
+    public void forEach(PearsonEngine.Consumer consumer) {
+        if (this.layout == CorrelationWriter.Layout.DENSE) {
+            // The triangle is in column order, so we loop through the columns.
+            long pos = 0;
+            for (int j = 1; j < this.ids.length; j++) {
+                for (int i = 0; i < j; i++) {
+                    float score = this.floats[(int) (pos >> DenseCorrelationWriter.CHUNK_SHIFT)]
+                            .get((int) (pos & DenseCorrelationWriter.CHUNK_MASK));
+                    if (! Float.isNaN(score))
+                        consumer.accept(i, j, score);
+                    pos++;
+                }
+            }
+        } else {
+            for (ByteBuffer chunk : this.chunks) {
+                final int n = chunk.limit() / PairCorrelationWriter.RECORD_LEN;
+                for (int k = 0; k < n; k++) {
+                    int p = k * PairCorrelationWriter.RECORD_LEN;
+                    consumer.accept(chunk.getInt(p), chunk.getInt(p + 4), chunk.getFloat(p + 8));
+                }
+            }
+        }
+    }
+
+    @Override
+    public String getId(int idx) {
+        return this.ids[idx];
+    }
+
+    @Override
+    public int findIndex(String id) {
+        return this.idMap.getOrDefault(id, -1);
+    }
+
+    @Override
+    public int getIdCount() {
+        return this.ids.length;
+    }
+
+    @Override
+    public boolean isBinary() {
+        return true;
+    }
+
+    @Override
+    public boolean isDense() {
+        return (this.layout == CorrelationWriter.Layout.DENSE);
+    }
+
+    @Override
+    public double getScore(int i, int j) {
+        if (this.layout != CorrelationWriter.Layout.DENSE)
+            throw new UnsupportedOperationException("Random access is not supported for correlation files in the "
+                    + this.layout + " layout.");
+        long pos = CorrelationWriter.trianglePos(i, j);
+        return this.floats[(int) (pos >> DenseCorrelationWriter.CHUNK_SHIFT)]
+                .get((int) (pos & DenseCorrelationWriter.CHUNK_MASK));
+    }
+
+    /**
+     * @return the number of slots in the data section
+     */
+    public long size() {
+        return this.slots;
+    }
+
+    /**
+     * @return the data layout
+     */
+    public CorrelationWriter.Layout getLayout() {
+        return this.layout;
+    }
+
+    @Override
+    public void close() {
+    }
+
+}
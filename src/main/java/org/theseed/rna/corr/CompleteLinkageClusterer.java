@@ -0,0 +1,588 @@
+/**
+ *
+ */
+package org.theseed.rna.corr;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * This object performs complete-linkage agglomerative clustering with a minimum similarity, using memory
+ * proportional to the number of similarities at or above the minimum.
+ *
+ * Under complete linkage, two clusters can only merge if every pair of members has a similarity at or above
+ * the minimum.  A pair below the minimum therefore blocks a merge forever, and so does a pair that is missing
+ * altogether.  This means we only need to keep the pairs at or above the minimum, and we can treat every
+ * other pair as a permanent block.  Each cluster keeps a map of the clusters it can still merge with,
+ * along with the linkage (minimum member similarity) between them.  When two clusters merge, the new
+ * cluster's neighbors are the clusters that were neighbors of BOTH parents, with the smaller of the two
+ * linkages; a cluster that was a neighbor of only one parent has a blocking pair with the other, so it is
+ * dropped.
+ *
+ * Candidate merges are kept in a priority queue ordered by linkage.  Merged clusters get new indices, so an
+ * entry that refers to a dead cluster is simply discarded when it comes off the queue.  The merges happen in
+ * the same order as the classic algorithm (highest linkage first), but each one only costs time
+ * proportional to the neighbor counts of the two parents.
+ *
+ * For each cluster we track the height of its merge tree (1 for a singleton) and its score (the minimum
+ * similarity between any two members, or 1.0 for a singleton).
+ *
+ * @author Bruce Parrello
+ *
+ */
+public class CompleteLinkageClusterer {
+
+    // FIELDS
+    /** logging facility */
+    protected static Logger log = LoggerFactory.getLogger(CompleteLinkageClusterer.class);
+    /** minimum similarity for merging */
+    private final double minSim;
+    /** first indices of the retained input pairs */
+    private int[] pairI;
+    /** second indices of the retained input pairs */
+    private int[] pairJ;
+    /** similarities of the retained input pairs */
+    private float[] pairSims;
+    /** number of retained input pairs */
+    private int pairCount;
+    /** number of input pairs seen */
+    private long inputCount;
+    /** number of samples (one more than the highest index seen) */
+    private int nSamples;
+    /** neighbor maps for the clusters, indexed by cluster index */
+    private NeighborMap[] neighbors;
+    /** TRUE for each cluster index that is still active */
+    private boolean[] alive;
+    /** height of each cluster */
+    private int[] heights;
+    /** score of each cluster */
+    private double[] scores;
+    /** first member of each cluster */
+    private int[] heads;
+    /** last member of each cluster */
+    private int[] tails;
+    /** next member after each sample in its cluster's member chain (-1 for the end) */
+    private int[] next;
+    /** size of each cluster */
+    private int[] sizes;
+    /** number of cluster indices used */
+    private int nextCluster;
+    /** number of merges performed */
+    private int mergeCount;
+
+    /**
+     * This is a simple open-addressing hash map from cluster indices to linkage values.
+     */
+    private static class NeighborMap {
+
+        /** key array (-1 for empty, -2 for deleted) */
+        private int[] keys;
+        /** value array */
+        private float[] values;
+        /** number of live entries */
+        private int size;
+        /** number of slots used (live or deleted) */
+        private int used;
+
+        /**
+         * Create an empty neighbor map.
+         *
+         * @param capacity	expected number of entries
+         */
+        protected NeighborMap(int capacity) {
+            int cap = 4;
+            while (cap < capacity * 2)
+                cap <<= 1;
+            this.keys = new int[cap];
+            Arrays.fill(this.keys, -1);
+            this.values = new float[cap];
+            this.size = 0;
+            this.used = 0;
+        }
+
+        /**
+         * @return the slot for a key, or the empty slot where it should go
+         *
+         * @param key	key to find
+         */
+        private int find(int key) {
+            final int mask = this.keys.length - 1;
+            int pos = (key * 0x9E3779B9) >>> 7 & mask;
+            int retVal = -1;
+            while (this.keys[pos] != -1 && this.keys[pos] != key) {
+                if (this.keys[pos] == -2 && retVal < 0)
+                    retVal = pos;
+                pos = (pos + 1) & mask;
+            }
+            if (this.keys[pos] == key || retVal < 0)
+                retVal = pos;
+            return retVal;
+        }
+
+        /**
+         * Store a value, keeping the smaller value if the key is already present.
+         *
+         * @param key		key to store
+         * @param value		value to store
+         */
+        protected void putMin(int key, float value) {
+            if ((this.used + 1) * 2 > this.keys.length)
+                this.rehash();
+            int pos = this.find(key);
+            if (this.keys[pos] == key) {
+                if (value < this.values[pos])
+                    this.values[pos] = value;
+            } else {
+                if (this.keys[pos] == -1)
+                    this.used++;
+                this.keys[pos] = key;
+                this.values[pos] = value;
+                this.size++;
+            }
+        }
+
+        /**
+         * @return the value for a key, or NaN if the key is not present
+         *
+         * @param key	key to find
+         */
+        protected float get(int key) {
+            int pos = this.find(key);
+            return (this.keys[pos] == key ? this.values[pos] : Float.NaN);
+        }
+
+        /**
+         * Remove a key from the map.
+         *
+         * @param key	key to remove
+         */
+        protected void remove(int key) {
+            int pos = this.find(key);
+            if (this.keys[pos] == key) {
+                this.keys[pos] = -2;
+                this.size--;
+            }
+        }
+
+        /**
+         * Resize the hash table to fit the current entries.
+         */
+        private void rehash() {
+            int[] oldKeys = this.keys;
+            float[] oldValues = this.values;
+            int cap = 4;
+            while (cap < (this.size + 1) * 4)
+                cap <<= 1;
+            this.keys = new int[cap];
+            Arrays.fill(this.keys, -1);
+            this.values = new float[cap];
+            this.size = 0;
+            this.used = 0;
+            for (int p = 0; p < oldKeys.length; p++) {
+                if (oldKeys[p] >= 0)
+                    this.putMin(oldKeys[p], oldValues[p]);
+            }
+        }
+
+    }
+
+    /**
+     * This is a max-heap of candidate merges, stored in primitive arrays.
+     */
+    private static class MergeQueue {
+
+        /** linkage values */
+        private float[] sims;
+        /** first cluster indices */
+        private int[] first;
+        /** second cluster indices */
+        private int[] second;
+        /** number of entries */
+        private int size;
+
+        /**
+         * Create an empty merge queue.
+         *
+         * @param capacity	initial capacity
+         */
+        protected MergeQueue(int capacity) {
+            capacity = Math.max(16, capacity);
+            this.sims = new float[capacity];
+            this.first = new int[capacity];
+            this.second = new int[capacity];
+            this.size = 0;
+        }
+
+        /**
+         * @return TRUE if entry x should come out of the queue before entry y
+         *
+         * @param x		index of first entry
+         * @param y		index of second entry
+         */
+        private boolean before(int x, int y) {
+            boolean retVal;
+            if (this.sims[x] != this.sims[y])
+                retVal = this.sims[x] > this.sims[y];
+            else if (this.first[x] != this.first[y])
+                retVal = this.first[x] < this.first[y];
+            else
+                retVal = this.second[x] < this.second[y];
+            return retVal;
+        }
+
+        /**
+         * Swap two heap entries.
+         *
+         * @param x		index of first entry
+         * @param y		index of second entry
+         */
+        private void swap(int x, int y) {
+            float s = this.sims[x]; this.sims[x] = this.sims[y]; this.sims[y] = s;
+            int f = this.first[x]; this.first[x] = this.first[y]; this.first[y] = f;
+            int g = this.second[x]; this.second[x] = this.second[y]; this.second[y] = g;
+        }
+
+        /**
+         * Add a candidate merge.
+         *
+         * @param sim	linkage value
+         * @param a		first cluster index
+         * @param b		second cluster index
+         */
+        protected void add(float sim, int a, int b) {
+            if (this.size >= this.sims.length) {
+                int newCap = this.sims.length * 2;
+                this.sims = Arrays.copyOf(this.sims, newCap);
+                this.first = Arrays.copyOf(this.first, newCap);
+                this.second = Arrays.copyOf(this.second, newCap);
+            }
+            int pos = this.size++;
+            this.sims[pos] = sim;
+            this.first[pos] = Math.min(a, b);
+            this.second[pos] = Math.max(a, b);
+            while (pos > 0) {
+                int parent = (pos - 1) >> 1;
+                if (! this.before(pos, parent))
+                    break;
+                this.swap(pos, parent);
+                pos = parent;
+            }
+        }
+
+        /**
+         * Remove the top entry.  The caller should read the top entry's fields first.
+         */
+        protected void pop() {
+            this.size--;
+            if (this.size > 0) {
+                this.sims[0] = this.sims[this.size];
+                this.first[0] = this.first[this.size];
+                this.second[0] = this.second[this.size];
+                int pos = 0;
+                while (true) {
+                    int child = 2 * pos + 1;
+                    if (child >= this.size)
+                        break;
+                    if (child + 1 < this.size && this.before(child + 1, child))
+                        child++;
+                    if (! this.before(child, pos))
+                        break;
+                    this.swap(pos, child);
+                    pos = child;
+                }
+            }
+        }
+
+        /**
+         * @return TRUE if the queue is empty
+         */
+        protected boolean isEmpty() {
+            return this.size == 0;
+        }
+
+    }
+
+    /**
+     * This object describes an output cluster.
+     */
+    public static class Result {
+
+        /** indices of the members */
+        private final int[] members;
+        /** height of the merge tree */
+        private final int height;
+        /** minimum similarity between members */
+        private final double score;
+
+        /**
+         * Create a cluster result.
+         *
+         * @param members	indices of the members
+         * @param height	height of the merge tree
+         * @param score		minimum similarity between members
+         */
+        protected Result(int[] members, int height, double score) {
+            this.members = members;
+            this.height = height;
+            this.score = score;
+        }
+
+        /**
+         * @return the indices of the members
+         */
+        public int[] getMembers() {
+            return this.members;
+        }
+
+        /**
+         * @return the number of members
+         */
+        public int size() {
+            return this.members.length;
+        }
+
+        /**
+         * @return the height of the merge tree
+         */
+        public int getHeight() {
+            return this.height;
+        }
+
+        /**
+         * @return the minimum similarity between any two members
+         */
+        public double getScore() {
+            return this.score;
+        }
+
+    }
+
+    /**
+     * Create a new, empty complete-linkage clusterer.
+     *
+     * @param minSim	minimum similarity for merging
+     */
+    public CompleteLinkageClusterer(double minSim) {
+        this.minSim = minSim;
+        this.pairI = new int[1024];
+        this.pairJ = new int[1024];
+        this.pairSims = new float[1024];
+        this.pairCount = 0;
+        this.inputCount = 0;
+        this.nSamples = 0;
+    }
+
+    /**
+     * Record a similarity between two samples.  Pairs below the minimum are counted but not stored.
+     *
+     * @param i		index of first sample
+     * @param j		index of second sample
+     * @param sim	similarity between the samples
+     */
+    public void addSim(int i, int j, double sim) {
+        this.inputCount++;
+        this.nSamples = Math.max(this.nSamples, Math.max(i, j) + 1);
+        if (i != j && sim >= this.minSim) {
+            if (this.pairCount >= this.pairI.length) {
+                int newCap = this.pairI.length * 2;
+                this.pairI = Arrays.copyOf(this.pairI, newCap);
+                this.pairJ = Arrays.copyOf(this.pairJ, newCap);
+                this.pairSims = Arrays.copyOf(this.pairSims, newCap);
+            }
+            this.pairI[this.pairCount] = i;
+            this.pairJ[this.pairCount] = j;
+            this.pairSims[this.pairCount] = (float) sim;
+            this.pairCount++;
+        }
+    }
+
+    /**
+     * @return the number of input pairs seen
+     */
+    public long getInputCount() {
+        return this.inputCount;
+    }
+
+    /**
+     * @return the number of input pairs retained
+     */
+    public int getRetainedCount() {
+        return this.pairCount;
+    }
+
+    /**
+     * @return the number of merges performed
+     */
+    public int getMergeCount() {
+        return this.mergeCount;
+    }
+
+    /**
+     * Perform all the possible merges.
+     *
+     * @param nIds		number of samples (must be at least one more than the highest index in any pair)
+     */
+    public void merge(int nIds) {
+        final int n = Math.max(nIds, this.nSamples);
+        final int maxClusters = 2 * n;
+        // Set up the cluster arrays.  Each sample starts as a singleton cluster with the same index.
+        this.alive = new boolean[maxClusters];
+        this.heights = new int[maxClusters];
+        this.scores = new double[maxClusters];
+        this.heads = new int[maxClusters];
+        this.tails = new int[maxClusters];
+        this.sizes = new int[maxClusters];
+        this.next = new int[n];
+        this.neighbors = new NeighborMap[maxClusters];
+        for (int i = 0; i < n; i++) {
+            this.alive[i] = true;
+            this.heights[i] = 1;
+            this.scores[i] = 1.0;
+            this.heads[i] = i;
+            this.tails[i] = i;
+            this.sizes[i] = 1;
+            this.next[i] = -1;
+        }
+        this.nextCluster = n;
+        this.mergeCount = 0;
+        // Count the neighbors of each sample so we can size the maps.
+        int[] degrees = new int[n];
+        for (int p = 0; p < this.pairCount; p++) {
+            degrees[this.pairI[p]]++;
+            degrees[this.pairJ[p]]++;
+        }
+        for (int i = 0; i < n; i++)
+            this.neighbors[i] = new NeighborMap(degrees[i]);
+        // Build the neighbor maps and the queue.  A duplicate pair keeps its lowest similarity.
+        MergeQueue queue = new MergeQueue(this.pairCount);
+        for (int p = 0; p < this.pairCount; p++) {
+            this.neighbors[this.pairI[p]].putMin(this.pairJ[p], this.pairSims[p]);
+            this.neighbors[this.pairJ[p]].putMin(this.pairI[p], this.pairSims[p]);
+        }
+        // Release the input pairs.
+        this.pairI = null;
+        this.pairJ = null;
+        this.pairSims = null;
+        // Queue each neighbor pair once.
+        for (int i = 0; i < n; i++) {
+            NeighborMap iMap = this.neighbors[i];
+            for (int p = 0; p < iMap.keys.length; p++) {
+                if (iMap.keys[p] > i)
+                    queue.add(iMap.values[p], i, iMap.keys[p]);
+            }
+        }
+        // Now perform the merges.
+        long start = System.currentTimeMillis();
+        long lastMsg = start;
+        while (! queue.isEmpty()) {
+            final float sim = queue.sims[0];
+            final int a = queue.first[0];
+            final int b = queue.second[0];
+            queue.pop();
+            if (this.alive[a] && this.alive[b]) {
+                int c = this.join(a, b, sim);
+                // Queue the new cluster's candidate merges.
+                NeighborMap cMap = this.neighbors[c];
+                for (int p = 0; p < cMap.keys.length; p++) {
+                    if (cMap.keys[p] >= 0)
+                        queue.add(cMap.values[p], cMap.keys[p], c);
+                }
+                if (log.isInfoEnabled() && System.currentTimeMillis() - lastMsg >= 10000) {
+                    lastMsg = System.currentTimeMillis();
+                    log.info("{} merges performed.", this.mergeCount);
+                }
+            }
+        }
+        double seconds = (System.currentTimeMillis() - start) / 1000.0;
+        log.info("{} merges performed in {} seconds ({} merges/second).", this.mergeCount, seconds,
+                (seconds > 0 ? String.format("%1.1f", this.mergeCount / seconds) : "n/a"));
+    }
+
+    /**
+     * Merge two clusters into a new cluster.
+     *
+     * @param a		index of first cluster
+     * @param b		index of second cluster
+     * @param sim	linkage between the clusters
+     *
+     * @return the index of the new cluster
+     */
+    private int join(int a, int b, float sim) {
+        final int c = this.nextCluster++;
+        this.mergeCount++;
+        this.alive[a] = false;
+        this.alive[b] = false;
+        this.alive[c] = true;
+        this.heights[c] = Math.max(this.heights[a], this.heights[b]) + 1;
+        this.scores[c] = Math.min(sim, Math.min(this.scores[a], this.scores[b]));
+        this.sizes[c] = this.sizes[a] + this.sizes[b];
+        // Concatenate the member chains.
+        this.next[this.tails[a]] = this.heads[b];
+        this.heads[c] = this.heads[a];
+        this.tails[c] = this.tails[b];
+        // The new neighbors are the ones common to both parents.  We iterate through the smaller map.
+        NeighborMap aMap = this.neighbors[a];
+        NeighborMap bMap = this.neighbors[b];
+        if (aMap.size > bMap.size) {
+            NeighborMap temp = aMap;
+            aMap = bMap;
+            bMap = temp;
+        }
+        NeighborMap cMap = new NeighborMap(aMap.size);
+        for (int p = 0; p < aMap.keys.length; p++) {
+            int x = aMap.keys[p];
+            if (x >= 0 && x != a && x != b) {
+                float bSim = bMap.get(x);
+                if (! Float.isNaN(bSim))
+                    cMap.putMin(x, Math.min(aMap.values[p], bSim));
+            }
+        }
+        // Update the neighbors of the parents.  Every neighbor of either parent loses both parents, and the
+        // common neighbors gain the new cluster.
+        for (NeighborMap map : new NeighborMap[] { this.neighbors[a], this.neighbors[b] }) {
+            for (int p = 0; p < map.keys.length; p++) {
+                int x = map.keys[p];
+                if (x >= 0 && this.alive[x]) {
+                    this.neighbors[x].remove(a);
+                    this.neighbors[x].remove(b);
+                }
+            }
+        }
+        for (int p = 0; p < cMap.keys.length; p++) {
+            int x = cMap.keys[p];
+            if (x >= 0)
+                this.neighbors[x].putMin(c, cMap.values[p]);
+        }
+        this.neighbors[a] = null;
+        this.neighbors[b] = null;
+        this.neighbors[c] = cMap;
+        return c;
+    }
+
+    /**
+     * @return the list of final clusters, sorted from largest to smallest
+     */
+    public List<Result> getClusters() {
+        List<Result> retVal = new ArrayList<Result>();
+        for (int c = 0; c < this.nextCluster; c++) {
+            if (this.alive[c]) {
+                int[] members = new int[this.sizes[c]];
+                int m = this.heads[c];
+                for (int k = 0; k < members.length; k++) {
+                    members[k] = m;
+                    m = this.next[m];
+                }
+                Arrays.sort(members);
+                retVal.add(new Result(members, this.heights[c], this.scores[c]));
+            }
+        }
+        retVal.sort(Comparator.comparingInt(Result::size).reversed().thenComparingInt(x -> x.members[0]));
+        return retVal;
+    }
+
+}
@@ -0,0 +1,129 @@
+/**
+ *
+ */
+package org.theseed.rna.corr;
+
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * This is the base class for reading correlation files.  A correlation file can be either a tab-delimited
+ * text file with headers (the first two columns containing IDs and the third a correlation score) or a
+ * binary correlation file produced by a CorrelationWriter.  The "open" method detects the format
+ * automatically.
+ *
+ * The IDs are presented as integer indices.  For a binary file, the full ID dictionary is available when
+ * the file is opened.  For a text file, the indices are assigned as the IDs are encountered, so the
+ * dictionary is only complete after the correlations have been read.
+ *
+ * @author Bruce Parrello
+ *
+ */
+public abstract class CorrelationReader implements AutoCloseable {
+
+    /**
+     * Open a correlation file.
+     *
+     * @param inFile	file to open
+     *
+     * @return a reader for the file
+     *
+     * @throws IOException
+     */
+    public static CorrelationReader open(File inFile) throws IOException {
+        CorrelationReader retVal;
+        if (isBinary(inFile))
+            retVal = new BinaryCorrelationReader(inFile);
+        else
+            retVal = new TextCorrelationReader(inFile);
+        return retVal;
+    }
+
+    /**
+     * Open a text correlation stream.  Streams are always assumed to be in text format.
+     *
+     * @param inStream	stream to read
+     *
+     * @return a reader for the stream
+     *
+     * @throws IOException
+     */
+    public static CorrelationReader open(InputStream inStream) throws IOException {
+        return new TextCorrelationReader(inStream);
+    }
+
+    /**
+     * @return TRUE if the specified file is a binary correlation file
+     *
+     * @param inFile	file to check
+     *
+     * @throws IOException
+     */
+    public static boolean isBinary(File inFile) throws IOException {
+        boolean retVal = false;
+        if (inFile.length() >= CorrelationWriter.HEADER_LEN) {
+            try (DataInputStream inStream = new DataInputStream(new FileInputStream(inFile))) {
+                retVal = (inStream.readInt() == CorrelationWriter.MAGIC);
+            }
+        }
+        return retVal;
+    }
+
+    /**
+     * Pass all the correlations in the file to a consumer.  For a dense file, the missing correlations
+     * are skipped.
+     *
+     * @param consumer	consumer to receive the correlations
+     *
+     * @throws IOException
+     */
+    public abstract void forEach(PearsonEngine.Consumer consumer) throws IOException;
+
+    /**
+     * @return the ID with the specified index
+     *
+     * @param idx	index of the desired ID
+     */
+    public abstract String getId(int idx);
+
+    /**
+     * @return the index of the specified ID, or -1 if it is not known
+     *
+     * @param id	ID to find
+     */
+    public abstract int findIndex(String id);
+
+    /**
+     * @return the number of IDs currently known
+     */
+    public abstract int getIdCount();
+
+    /**
+     * @return TRUE if the file is binary (and therefore has a complete ID dictionary when opened)
+     */
+    public abstract boolean isBinary();
+
+    /**
+     * @return TRUE if the file supports random access to scores
+     */
+    public boolean isDense() {
+        return false;
+    }
+
+    /**
+     * @return the score for a pair of indices (only supported for dense files)
+     *
+     * @param i		index of first ID
+     * @param j		index of second ID
+     */
+    public double getScore(int i, int j) {
+        throw new UnsupportedOperationException("Random access is only supported for dense correlation files.");
+    }
+
+    @Override
+    public abstract void close() throws IOException;
+
+}
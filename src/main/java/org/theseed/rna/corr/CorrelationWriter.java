@@ -0,0 +1,245 @@
+/**
+ *
+ */
+package org.theseed.rna.corr;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * This is the base class for writing binary correlation files.  A binary correlation file is much smaller
+ * and much faster to read than the tab-delimited text correlation files it replaces.  The IDs are
+ * dictionary-encoded, so each correlation is stored using integer indices.
+ *
+ * The file starts with a fixed-length header.
+ *
+ * 	magic number (int)
+ * 	version number (int)
+ * 	layout ordinal (int)
+ * 	number of IDs (int)
+ * 	number of correlation slots (long)
+ * 	offset of the ID dictionary (long)
+ *
+ * The header is padded to HEADER_LEN bytes.  The data section follows, and then the ID dictionary, which is
+ * a sequence of UTF strings in index order.  The header fields are in network byte order, as is the
+ * dictionary, but the data section is little-endian so that it can be memory-mapped efficiently.
+ *
+ * There are two layouts.  In the PAIRS layout, each record is two int32 indices followed by a float32
+ * score.  In the DENSE layout, the data is the strict upper triangle of the score matrix, stored as
+ * float32 values in column order, so that the score for indices i < j is at position j(j-1)/2 + i.
+ * Missing scores in the DENSE layout are stored as NaN.  The column order means new IDs can be appended
+ * without moving any existing scores.
+ *
+ * @author Bruce Parrello
+ *
+ */
+public abstract class CorrelationWriter implements AutoCloseable {
+
+    // FIELDS
+    /** magic number for binary correlation files */
+    protected static final int MAGIC = 0x52434F52;
+    /** current file version */
+    protected static final int VERSION = 1;
+    /** length of the fixed header */
+    protected static final int HEADER_LEN = 64;
+    /** output file */
+    private final File outFile;
+    /** list of IDs, in index order */
+    private final List<String> ids;
+    /** map of IDs to indices */
+    private final Map<String, Integer> idMap;
+
+    /**
+     * This enumeration describes the data layouts.
+     */
+    public static enum Layout {
+        /** index pairs with scores, one record per correlation */
+        PAIRS,
+        /** column-ordered strict upper triangle of the score matrix */
+        DENSE;
+    }
+
+    /**
+     * Construct a correlation writer.
+     *
+     * @param outFile	output file
+     * @param ids		initial list of IDs (may be empty)
+     */
+    protected CorrelationWriter(File outFile, List<String> ids) {
+        this.outFile = outFile;
+        this.ids = new ArrayList<String>(ids);
+        this.idMap = new HashMap<String, Integer>(ids.size() * 4 / 3 + 1);
+        for (int i = 0; i < ids.size(); i++)
+            this.idMap.put(ids.get(i), i);
+    }
+
+    /**
+     * Create a streaming writer for the PAIRS layout.  IDs can be added as they are encountered.
+     *
+     * @param outFile	output file
+     * @param ids		initial list of IDs (may be empty)
+     *
+     * @return the new writer
+     *
+     * @throws IOException
+     */
+    public static PairCorrelationWriter pairs(File outFile, List<String> ids) throws IOException {
+        return new PairCorrelationWriter(outFile, ids);
+    }
+
+    /**
+     * Create a writer for the DENSE layout.  The ID list is fixed.
+     *
+     * @param outFile	output file
+     * @param ids		list of IDs, in index order
+     *
+     * @return the new writer
+     *
+     * @throws IOException
+     */
+    public static DenseCorrelationWriter dense(File outFile, List<String> ids) throws IOException {
+        return new DenseCorrelationWriter(outFile, ids);
+    }
+
+    /**
+     * Copy an existing DENSE-layout file to a new file in order to add new IDs.  Only the pairs involving the
+     * new IDs can be written.  The existing file is not modified, so the caller can replace it with the new
+     * file once the new pairs are complete.
+     *
+     * @param file		existing dense correlation file
+     * @param outFile	output file for the extended copy
+     * @param newIds	list of IDs to add
+     *
+     * @return the new writer
+     *
+     * @throws IOException
+     */
+    public static DenseCorrelationWriter appendDense(File file, File outFile, List<String> newIds) throws IOException {
+        return DenseCorrelationWriter.append(file, outFile, newIds);
+    }
+
+    /**
+     * @return the index for an ID, adding it to the dictionary if necessary
+     *
+     * @param id	ID of interest
+     */
+    public int getIndex(String id) {
+        Integer retVal = this.idMap.get(id);
+        if (retVal == null) {
+            retVal = this.ids.size();
+            this.checkNewId(id);
+            this.ids.add(id);
+            this.idMap.put(id, retVal);
+        }
+        return retVal;
+    }
+
+    /**
+     * Verify that a new ID can be added to the dictionary.
+     *
+     * @param id	ID to add
+     */
+    protected abstract void checkNewId(String id);
+
+    /**
+     * Write a correlation.
+     *
+     * @param i		index of first ID
+     * @param j		index of second ID
+     * @param score	correlation score
+     *
+     * @throws IOException
+     */
+    public abstract void write(int i, int j, double score) throws IOException;
+
+    /**
+     * Write a correlation.
+     *
+     * @param id1	first ID
+     * @param id2	second ID
+     * @param score	correlation score
+     *
+     * @throws IOException
+     */
+    public void write(String id1, String id2, double score) throws IOException {
+        this.write(this.getIndex(id1), this.getIndex(id2), score);
+    }
+
+    /**
+     * @return the number of IDs in the dictionary
+     */
+    public int getIdCount() {
+        return this.ids.size();
+    }
+
+    /**
+     * @return the output file
+     */
+    public File getFile() {
+        return this.outFile;
+    }
+
+    /**
+     * Write the ID dictionary and the header.  This must be called after all the data has been written.
+     *
+     * @param layout		data layout
+     * @param slots			number of correlation slots in the data section
+     * @param dictOffset	file offset for the ID dictionary
+     *
+     * @throws IOException
+     */
+    protected void finish(Layout layout, long slots, long dictOffset) throws IOException {
+        try (RandomAccessFile raFile = new RandomAccessFile(this.outFile, "rw")) {
+            raFile.setLength(dictOffset);
+        }
+        try (DataOutputStream outStream = new DataOutputStream(new BufferedOutputStream(
+                new FileOutputStream(this.outFile, true)))) {
+            for (String id : this.ids)
+                outStream.writeUTF(id);
+        }
+        try (RandomAccessFile raFile = new RandomAccessFile(this.outFile, "rw")) {
+            raFile.writeInt(MAGIC);
+            raFile.writeInt(VERSION);
+            raFile.writeInt(layout.ordinal());
+            raFile.writeInt(this.ids.size());
+            raFile.writeLong(slots);
+            raFile.writeLong(dictOffset);
+        }
+    }
+
+    /**
+     * @return the number of slots in a dense triangle for the specified number of IDs
+     *
+     * @param n		number of IDs
+     */
+    public static long triangleSize(int n) {
+        return (long) n * (n - 1) / 2;
+    }
+
+    /**
+     * @return the dense triangle position for a pair of indices
+     *
+     * @param i		first index
+     * @param j		second index (must be different from the first)
+     */
+    public static long trianglePos(int i, int j) {
+        long retVal;
+        if (i < j)
+            retVal = (long) j * (j - 1) / 2 + i;
+        else
+            retVal = (long) i * (i - 1) / 2 + j;
+        return retVal;
+    }
+
+    @Override
+    public abstract void close() throws IOException;
+
+}
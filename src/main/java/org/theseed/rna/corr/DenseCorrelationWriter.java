@@ -0,0 +1,179 @@
+/**
+ *
+ */
+package org.theseed.rna.corr;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.stream.IntStream;
+
+/**
+ * This object writes a binary correlation file in the DENSE layout.  The data section is memory-mapped, so
+ * the scores can be written in any order, and different threads can safely write different pairs at the
+ * same time.  All slots start out as NaN (missing).  A writer can also be created from an existing file to add
+ * new IDs.  In this case the existing scores are copied to a new file, so the old file is untouched until the
+ * caller replaces it.
+ *
+ * @author Bruce Parrello
+ *
+ */
+public class DenseCorrelationWriter extends CorrelationWriter {
+
+    // FIELDS
+    /** mapped data chunks (NULL for chunks that are not being written) */
+    private final MappedByteBuffer[] chunks;
+    /** float views of the data chunks */
+    private final FloatBuffer[] floats;
+    /** first slot mapped in each chunk */
+    private final long[] chunkBase;
+    /** number of slots in the triangle */
+    private final long slots;
+    /** first slot that can be written */
+    private final long startSlot;
+    /** log2 of the number of slots per chunk */
+    protected static final int CHUNK_SHIFT = 28;
+    /** mask for computing the position in a chunk */
+    protected static final long CHUNK_MASK = (1L << CHUNK_SHIFT) - 1;
+
+    /**
+     * Create a new dense correlation writer.
+     *
+     * @param outFile	output file
+     * @param ids		list of IDs, in index order
+     *
+     * @throws IOException
+     */
+    protected DenseCorrelationWriter(File outFile, List<String> ids) throws IOException {
+        this(outFile, ids, 0);
+    }
+
+    /**
+     * Create a dense correlation writer for a range of slots at the end of a file.  Only the slots at or after
+     * the start slot are mapped and initialized, and only those can be written.  When the start slot is
+     * nonzero, the file must already contain the earlier slots.
+     *
+     * @param outFile	output file
+     * @param ids		list of IDs, in index order
+     * @param startSlot	first slot to be written
+     *
+     * @throws IOException
+     */
+    private DenseCorrelationWriter(File outFile, List<String> ids, long startSlot) throws IOException {
+        super(outFile, ids);
+        this.slots = triangleSize(ids.size());
+        this.startSlot = startSlot;
+        int nChunks = (int) ((this.slots + CHUNK_MASK) >> CHUNK_SHIFT);
+        this.chunks = new MappedByteBuffer[nChunks];
+        this.floats = new FloatBuffer[nChunks];
+        this.chunkBase = new long[nChunks];
+        try (RandomAccessFile raFile = new RandomAccessFile(outFile, "rw")) {
+            raFile.setLength(HEADER_LEN + this.slots * Float.BYTES);
+            FileChannel channel = raFile.getChannel();
+            for (int c = 0; c < nChunks; c++) {
+                long start = Math.max(startSlot, (long) c << CHUNK_SHIFT);
+                long end = Math.min(this.slots, (long) (c + 1) << CHUNK_SHIFT);
+                if (start < end) {
+                    this.chunkBase[c] = start;
+                    this.chunks[c] = channel.map(FileChannel.MapMode.READ_WRITE, HEADER_LEN + start * Float.BYTES,
+                            (end - start) * Float.BYTES);
+                    this.floats[c] = this.chunks[c].order(ByteOrder.LITTLE_ENDIAN).asFloatBuffer();
+                }
+            }
+        }
+        // Mark all the new slots as missing.
+        IntStream.range(0, nChunks).filter(c -> this.floats[c] != null).parallel().forEach(c -> {
+            float[] nans = new float[65536];
+            Arrays.fill(nans, Float.NaN);
+            FloatBuffer view = this.floats[c].duplicate();
+            while (view.hasRemaining())
+                view.put(nans, 0, Math.min(nans.length, view.remaining()));
+        });
+    }
+
+    /**
+     * Create a copy of an existing dense correlation file so that new IDs can be added.  Because the triangle
+     * is stored in column order, the slots for the new IDs all follow the existing slots, so the existing data
+     * section is copied unchanged and the new slots are added after it.  Only pairs that involve at least one
+     * new ID can be written.
+     *
+     * @param file		existing dense correlation file
+     * @param outFile	output file for the extended copy (must not be the existing file)
+     * @param newIds	list of new IDs to add
+     *
+     * @return a writer for the new slots
+     *
+     * @throws IOException
+     */
+    protected static DenseCorrelationWriter append(File file, File outFile, List<String> newIds) throws IOException {
+        if (file.getCanonicalFile().equals(outFile.getCanonicalFile()))
+            throw new IOException("Cannot extend correlation file " + file + " in place.");
+        List<String> ids = new ArrayList<String>();
+        try (BinaryCorrelationReader reader = new BinaryCorrelationReader(file)) {
+            if (! reader.isDense())
+                throw new IOException("Correlation file " + file + " is not in the dense layout.");
+            for (int i = 0; i < reader.getIdCount(); i++)
+                ids.add(reader.getId(i));
+        }
+        final long oldSlots = triangleSize(ids.size());
+        Set<String> oldIds = new HashSet<String>(ids);
+        for (String newId : newIds) {
+            if (oldIds.contains(newId))
+                throw new IOException("ID " + newId + " is already in correlation file " + file + ".");
+        }
+        // Copy the header and the existing scores.  The header is rewritten when the new writer is closed.
+        final long copyLen = HEADER_LEN + oldSlots * Float.BYTES;
+        try (FileChannel inChannel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+                FileChannel outChannel = FileChannel.open(outFile.toPath(), StandardOpenOption.WRITE,
+                        StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            if (inChannel.size() < copyLen)
+                throw new IOException("Correlation file " + file + " is truncated.");
+            long pos = 0;
+            while (pos < copyLen)
+                pos += inChannel.transferTo(pos, copyLen - pos, outChannel);
+        }
+        ids.addAll(newIds);
+        return new DenseCorrelationWriter(outFile, ids, oldSlots);
+    }
+
+    @Override
+    protected void checkNewId(String id) {
+        throw new IllegalArgumentException("ID " + id + " is not in the dense correlation file dictionary.");
+    }
+
+    @Override
+    public void write(int i, int j, double score) {
+        long pos = trianglePos(i, j);
+        if (pos < this.startSlot)
+            throw new IllegalArgumentException("Cannot rewrite an existing correlation in append mode.");
+        int c = (int) (pos >> CHUNK_SHIFT);
+        this.floats[c].put((int) (pos - this.chunkBase[c]), (float) score);
+    }
+
+    /**
+     * @return the number of slots in the triangle
+     */
+    public long size() {
+        return this.slots;
+    }
+
+    @Override
+    public void close() throws IOException {
+        for (MappedByteBuffer chunk : this.chunks) {
+            if (chunk != null)
+                chunk.force();
+        }
+        this.finish(Layout.DENSE, this.slots, HEADER_LEN + this.slots * Float.BYTES);
+    }
+
+}
@@ -0,0 +1,95 @@
+/**
+ *
+ */
+package org.theseed.rna.corr;
+
+/**
+ * This object formats floating-point numbers with a fixed number of decimal places.  It produces the same
+ * result as a "%w.df" format specification, but it appends directly to a string builder and does not
+ * create any intermediate objects, so it is much faster than String.format.  Values that are not finite
+ * or are too large to scale exactly are passed to String.format.
+ *
+ * @author Bruce Parrello
+ *
+ */
+public class FixedFormatter {
+
+    // FIELDS
+    /** minimum field width */
+    private final int width;
+    /** number of decimal places */
+    private final int decimals;
+    /** scale factor (10 to the power of the decimal places) */
+    private final long scale;
+    /** format string for unusual values */
+    private final String fallback;
+    /** largest value that can be scaled safely */
+    private final double limit;
+
+    /**
+     * Construct a fixed-point formatter.
+     *
+     * @param width		minimum field width
+     * @param decimals	number of decimal places (at most 15)
+     */
+    public FixedFormatter(int width, int decimals) {
+        if (decimals < 0 || decimals > 15)
+            throw new IllegalArgumentException("Number of decimal places must be between 0 and 15.");
+        this.width = width;
+        this.decimals = decimals;
+        long scaleFactor = 1;
+        for (int i = 0; i < decimals; i++)
+            scaleFactor *= 10;
+        this.scale = scaleFactor;
+        this.fallback = "%" + width + "." + decimals + "f";
+        this.limit = 1e15 / scaleFactor;
+    }
+
+    /**
+     * Append a formatted number to a string builder.
+     *
+     * @param buffer	string builder to receive the output
+     * @param value		number to format
+     */
+    public void append(StringBuilder buffer, double value) {
+        if (! Double.isFinite(value) || Math.abs(value) >= this.limit)
+            buffer.append(String.format(this.fallback, value));
+        else {
+            // Note that a negative zero is still formatted with a sign, as it is by String.format.
+            boolean negative = (Double.doubleToRawLongBits(value) < 0);
+            long scaled = Math.round(Math.abs(value) * this.scale);
+            long intPart = scaled / this.scale;
+            long fracPart = scaled % this.scale;
+            // Compute the length so we can pad to the field width.
+            int intLen = Math.max(1, digits(intPart));
+            int len = (negative ? 1 : 0) + intLen + (this.decimals > 0 ? this.decimals + 1 : 0);
+            for (int i = len; i < this.width; i++)
+                buffer.append(' ');
+            if (negative)
+                buffer.append('-');
+            buffer.append(intPart);
+            if (this.decimals > 0) {
+                buffer.append('.');
+                for (int i = digits(fracPart); i < this.decimals; i++)
+                    buffer.append('0');
+                if (fracPart > 0)
+                    buffer.append(fracPart);
+            }
+        }
+    }
+
+    /**
+     * @return the number of decimal digits in a non-negative number (zero has no digits)
+     *
+     * @param n		number to check
+     */
+    private static int digits(long n) {
+        int retVal = 0;
+        while (n > 0) {
+            retVal++;
+            n /= 10;
+        }
+        return retVal;
+    }
+
+}
@@ -0,0 +1,110 @@
+/**
+ *
+ */
+package org.theseed.rna.corr;
+
+import java.util.Arrays;
+
+/**
+ * This object collects all the (i, j, score) triples produced by a parallel correlation computation, or all
+ * the ones at or above a minimum score.  Each thread appends to its own buffer of primitive arrays.
+ *
+ * @author Bruce Parrello
+ *
+ */
+public class PairCollector extends BasePairCollector<PairCollector.Buffer> {
+
+    // FIELDS
+    /** initial capacity of a thread buffer */
+    private static final int INITIAL_CAPACITY = 4096;
+
+    /**
+     * This is a thread buffer.  It contains parallel arrays for the two indices and the score.
+     */
+    protected static class Buffer {
+
+        /** first indices */
+        private int[] iList;
+        /** second indices */
+        private int[] jList;
+        /** scores */
+        private double[] scores;
+        /** number of entries used */
+        private int size;
+
+        /**
+         * Create an empty buffer.
+         */
+        protected Buffer() {
+            this.iList = new int[INITIAL_CAPACITY];
+            this.jList = new int[INITIAL_CAPACITY];
+            this.scores = new double[INITIAL_CAPACITY];
+            this.size = 0;
+        }
+
+        /**
+         * Add a triple to this buffer.
+         *
+         * @param i		first index
+         * @param j		second index
+         * @param r		score
+         */
+        protected void add(int i, int j, double r) {
+            if (this.size >= this.iList.length) {
+                int newCap = this.iList.length * 2;
+                this.iList = Arrays.copyOf(this.iList, newCap);
+                this.jList = Arrays.copyOf(this.jList, newCap);
+                this.scores = Arrays.copyOf(this.scores, newCap);
+            }
+            this.iList[this.size] = i;
+            this.jList[this.size] = j;
+            this.scores[this.size] = r;
+            this.size++;
+        }
+
+    }
+
+    /**
+     * Create a new, empty pair collector that keeps all pairs.
+     *
+     * @param logInterval	number of pairs between progress messages
+     */
+    public PairCollector(long logInterval) {
+        super(logInterval, Double.NaN);
+    }
+
+    /**
+     * Create a new, empty pair collector that keeps pairs at or above a minimum score.
+     *
+     * @param logInterval	number of pairs between progress messages
+     * @param minScore		minimum score to keep, or NaN to keep all pairs
+     */
+    public PairCollector(long logInterval, double minScore) {
+        super(logInterval, minScore);
+    }
+
+    @Override
+    protected Buffer createLocal() {
+        return new Buffer();
+    }
+
+    @Override
+    protected void store(Buffer local, int i, int j, double r) {
+        local.add(i, j, r);
+    }
+
+    @Override
+    public long keptCount() {
+        return this.getLocals().stream().mapToLong(x -> x.size).sum();
+    }
+
+    @Override
+    public void forEach(PearsonEngine.Consumer consumer) {
+        for (Buffer buffer : this.getLocals()) {
+            final int n = buffer.size;
+            for (int k = 0; k < n; k++)
+                consumer.accept(buffer.iList[k], buffer.jList[k], buffer.scores[k]);
+        }
+    }
+
+}
@@ -0,0 +1,92 @@
+/**
+ *
+ */
+package org.theseed.rna.corr;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.List;
+
+/**
+ * This object writes a binary correlation file in the PAIRS layout.  The records are streamed through a
+ * buffer, so the memory used does not depend on the number of correlations.  This object is not
+ * thread-safe.
+ *
+ * @author Bruce Parrello
+ *
+ */
+public class PairCorrelationWriter extends CorrelationWriter {
+
+    // FIELDS
+    /** output channel */
+    private final FileChannel channel;
+    /** output buffer */
+    private final ByteBuffer buffer;
+    /** number of records written */
+    private long count;
+    /** size of a record in bytes */
+    protected static final int RECORD_LEN = 12;
+    /** size of the output buffer */
+    private static final int BUFFER_SIZE = RECORD_LEN * 65536;
+
+    /**
+     * Create a new pair correlation writer.
+     *
+     * @param outFile	output file
+     * @param ids		initial list of IDs (may be empty)
+     *
+     * @throws IOException
+     */
+    protected PairCorrelationWriter(File outFile, List<String> ids) throws IOException {
+        super(outFile, ids);
+        FileOutputStream outStream = new FileOutputStream(outFile);
+        this.channel = outStream.getChannel();
+        this.buffer = ByteBuffer.allocateDirect(BUFFER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        this.count = 0;
+        // Reserve space for the header.  It is filled in when we close.
+        this.channel.write(ByteBuffer.allocate(HEADER_LEN));
+    }
+
+    @Override
+    protected void checkNewId(String id) {
+    }
+
+    @Override
+    public void write(int i, int j, double score) throws IOException {
+        if (this.buffer.remaining() < RECORD_LEN)
+            this.flush();
+        this.buffer.putInt(i).putInt(j).putFloat((float) score);
+        this.count++;
+    }
+
+    /**
+     * Write the buffered records to the output file.
+     *
+     * @throws IOException
+     */
+    private void flush() throws IOException {
+        this.buffer.flip();
+        while (this.buffer.hasRemaining())
+            this.channel.write(this.buffer);
+        this.buffer.clear();
+    }
+
+    /**
+     * @return the number of correlations written
+     */
+    public long size() {
+        return this.count;
+    }
+
+    @Override
+    public void close() throws IOException {
+        this.flush();
+        this.channel.close();
+        this.finish(Layout.PAIRS, this.count, HEADER_LEN + this.count * RECORD_LEN);
+    }
+
+}
@@ -0,0 +1,320 @@
+/**
+ *
+ */
+package org.theseed.rna.corr;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * This object computes the pairwise Pearson correlations between a set of expression-level columns.  Each
+ * column contains the expression levels of one feature across all the samples, and missing values are coded
+ * as NaN.  A correlation between two columns is computed using only the samples where both columns have
+ * a finite value, so the result is the same as running a PearsonsCorrelation on the filtered arrays.
+ *
+ * The columns are pre-processed once.  Each column is centered on its own mean and the missing values are
+ * replaced by zero.  (Pearson correlation is shift-invariant, so centering on the full-column mean does not
+ * change the result for any subset of the samples, but it greatly improves the numerical behavior of the
+ * one-pass sums.)  A bitset of the finite positions is kept for each column, along with a 0/1 mask array for
+ * columns that have missing values.  For a pair of complete columns, the correlation is simply the dot product
+ * of the centered columns scaled by the precomputed inverse norms.  For other pairs, we accumulate five
+ * masked sums in a single pass and count the shared positions using the bitsets.
+ *
+ * The pairs are processed in square tiles of columns, and within each tile the samples are processed in
+ * blocks, so that the working set of a tile fits in the processor cache.  The tiles are processed in
+ * parallel.
+ *
+ * @author Bruce Parrello
+ *
+ */
+public class PearsonEngine {
+
+    // FIELDS
+    /** number of samples per column */
+    private final int nSamples;
+    /** centered column values, with missing values set to zero */
+    private final double[][] values;
+    /** 0/1 mask arrays for columns with missing values (NULL for complete columns) */
+    private final double[][] masks;
+    /** bitsets of the finite positions in each column */
+    private final long[][] bits;
+    /** inverse norm of each complete column (NaN if the column has no variance) */
+    private final double[] invNorms;
+    /** array of ones used as the mask for complete columns */
+    private final double[] ones;
+    /** relative tolerance for detecting a zero variance */
+    private static final double EPSILON = 1e-12;
+    /** number of columns per tile */
+    private static final int TILE_COLS = 32;
+    /** number of samples per block inside a tile */
+    private static final int BLOCK_SAMPLES = 1024;
+
+    /**
+     * This interface is used to receive the correlations computed.
+     */
+    @FunctionalInterface
+    public interface Consumer {
+
+        /**
+         * Process a computed correlation.  This method may be called from multiple threads
+         * at the same time.
+         *
+         * @param i		index of the first column
+         * @param j		index of the second column (always greater than the first)
+         * @param r		correlation coefficient, or NaN if it could not be computed
+         */
+        public void accept(int i, int j, double r);
+
+    }
+
+    /**
+     * Construct a Pearson engine for a set of columns.
+     *
+     * @param columns	array of expression-level columns, all of the same length
+     */
+    public PearsonEngine(double[][] columns) {
+        final int nCols = columns.length;
+        this.nSamples = (nCols == 0 ? 0 : columns[0].length);
+        this.values = new double[nCols][];
+        this.masks = new double[nCols][];
+        this.bits = new long[nCols][];
+        this.invNorms = new double[nCols];
+        this.ones = new double[this.nSamples];
+        Arrays.fill(this.ones, 1.0);
+        final int nWords = (this.nSamples + 63) >> 6;
+        for (int c = 0; c < nCols; c++) {
+            double[] column = columns[c];
+            if (column.length != this.nSamples)
+                throw new IllegalArgumentException("Column " + c + " has length " + column.length + " instead of "
+                        + this.nSamples + ".");
+            // Compute the mean of the finite values and build the bitset.
+            long[] colBits = new long[nWords];
+            double sum = 0.0;
+            int count = 0;
+            for (int k = 0; k < this.nSamples; k++) {
+                if (Double.isFinite(column[k])) {
+                    colBits[k >> 6] |= 1L << (k & 63);
+                    sum += column[k];
+                    count++;
+                }
+            }
+            double mean = (count > 0 ? sum / count : 0.0);
+            // Center the values and zero out the missing ones.
+            double[] centered = new double[this.nSamples];
+            double sumSq = 0.0;
+            for (int k = 0; k < this.nSamples; k++) {
+                if (Double.isFinite(column[k])) {
+                    double x = column[k] - mean;
+                    centered[k] = x;
+                    sumSq += x * x;
+                }
+            }
+            this.values[c] = centered;
+            this.bits[c] = colBits;
+            if (count < this.nSamples) {
+                // Here the column has missing values, so it needs a mask.
+                double[] mask = new double[this.nSamples];
+                for (int k = 0; k < this.nSamples; k++) {
+                    if ((colBits[k >> 6] & (1L << (k & 63))) != 0)
+                        mask[k] = 1.0;
+                }
+                this.masks[c] = mask;
+                this.invNorms[c] = Double.NaN;
+            } else {
+                // A constant column has no variance, but rounding in the mean can leave a tiny residue.
+                double noise = count * Math.ulp(mean) * Math.ulp(mean) * 16.0;
+                this.invNorms[c] = (sumSq > noise ? 1.0 / Math.sqrt(sumSq) : Double.NaN);
+            }
+        }
+    }
+
+    /**
+     * @return the number of columns
+     */
+    public int size() {
+        return this.values.length;
+    }
+
+    /**
+     * @return the number of samples in each column
+     */
+    public int getSampleCount() {
+        return this.nSamples;
+    }
+
+    /**
+     * @return the correlation between two columns
+     *
+     * @param i		index of first column
+     * @param j		index of second column
+     */
+    public double correlation(int i, int j) {
+        double[] retVal = new double[1];
+        Tile tile = new Tile(i, i + 1, j, j + 1);
+        tile.compute((x, y, r) -> retVal[0] = r, true);
+        return retVal[0];
+    }
+
+    /**
+     * Compute all the pairwise correlations.  The tiles are processed in parallel.
+     *
+     * @param consumer	object to receive the correlations
+     */
+    public void computeAll(Consumer consumer) {
+        final int nCols = this.size();
+        List<Tile> tiles = new ArrayList<Tile>();
+        for (int i0 = 0; i0 < nCols; i0 += TILE_COLS) {
+            int i1 = Math.min(nCols, i0 + TILE_COLS);
+            for (int j0 = i0; j0 < nCols; j0 += TILE_COLS)
+                tiles.add(new Tile(i0, i1, j0, Math.min(nCols, j0 + TILE_COLS)));
+        }
+        tiles.parallelStream().forEach(x -> x.compute(consumer, false));
+    }
+
+    /**
+     * This object represents a tile of column pairs.  The rows of the tile are the first columns
+     * and the columns of the tile are the second columns.
+     */
+    private class Tile {
+
+        /** first row column index */
+        private final int i0;
+        /** past-the-end row column index */
+        private final int i1;
+        /** first second column index */
+        private final int j0;
+        /** past-the-end second column index */
+        private final int j1;
+
+        /**
+         * Create a tile.
+         *
+         * @param i0	first row column index
+         * @param i1	past-the-end row column index
+         * @param j0	first second column index
+         * @param j1	past-the-end second column index
+         */
+        protected Tile(int i0, int i1, int j0, int j1) {
+            this.i0 = i0;
+            this.i1 = i1;
+            this.j0 = j0;
+            this.j1 = j1;
+        }
+
+        /**
+         * Compute the correlations in this tile.
+         *
+         * @param consumer	object to receive the correlations
+         * @param all		TRUE to compute all pairs, FALSE to compute only the pairs with i < j
+         */
+        protected void compute(Consumer consumer, boolean all) {
+            final int rows = this.i1 - this.i0;
+            final int cols = this.j1 - this.j0;
+            final int n = PearsonEngine.this.nSamples;
+            final double[][] vals = PearsonEngine.this.values;
+            final double[][] masks = PearsonEngine.this.masks;
+            // These are the accumulators for the sums.  The index is row * cols + col.
+            final int size = rows * cols;
+            double[] sxy = new double[size];
+            double[] sx = new double[size];
+            double[] sy = new double[size];
+            double[] sxx = new double[size];
+            double[] syy = new double[size];
+            for (int k0 = 0; k0 < n; k0 += BLOCK_SAMPLES) {
+                final int k1 = Math.min(n, k0 + BLOCK_SAMPLES);
+                for (int r = 0; r < rows; r++) {
+                    final int i = this.i0 + r;
+                    final double[] xi = vals[i];
+                    final double[] mi = (masks[i] == null ? PearsonEngine.this.ones : masks[i]);
+                    final int cStart = (all ? 0 : Math.max(0, i + 1 - this.j0));
+                    for (int c = cStart; c < cols; c++) {
+                        final int j = this.j0 + c;
+                        final double[] yj = vals[j];
+                        final int p = r * cols + c;
+                        if (masks[i] == null && masks[j] == null) {
+                            // Both columns are complete, so we only need the cross product.
+                            double acc = 0.0;
+                            for (int k = k0; k < k1; k++)
+                                acc += xi[k] * yj[k];
+                            sxy[p] += acc;
+                        } else {
+                            final double[] mj = (masks[j] == null ? PearsonEngine.this.ones : masks[j]);
+                            double aXY = 0.0, aX = 0.0, aY = 0.0, aXX = 0.0, aYY = 0.0;
+                            for (int k = k0; k < k1; k++) {
+                                final double x = xi[k];
+                                final double y = yj[k];
+                                final double a = mi[k];
+                                final double b = mj[k];
+                                aXY += x * y;
+                                aX += x * b;
+                                aY += y * a;
+                                aXX += x * x * b;
+                                aYY += y * y * a;
+                            }
+                            sxy[p] += aXY;
+                            sx[p] += aX;
+                            sy[p] += aY;
+                            sxx[p] += aXX;
+                            syy[p] += aYY;
+                        }
+                    }
+                }
+            }
+            // Now convert the sums to correlations.
+            for (int r = 0; r < rows; r++) {
+                final int i = this.i0 + r;
+                final int cStart = (all ? 0 : Math.max(0, i + 1 - this.j0));
+                for (int c = cStart; c < cols; c++) {
+                    final int j = this.j0 + c;
+                    final int p = r * cols + c;
+                    double result;
+                    if (masks[i] == null && masks[j] == null) {
+                        if (n <= 2)
+                            result = 0.0;
+                        else
+                            result = sxy[p] * PearsonEngine.this.invNorms[i] * PearsonEngine.this.invNorms[j];
+                    } else {
+                        int count = PearsonEngine.this.sharedCount(i, j);
+                        if (count <= 2)
+                            result = 0.0;
+                        else {
+                            double cov = sxy[p] - sx[p] * sy[p] / count;
+                            double vx = sxx[p] - sx[p] * sx[p] / count;
+                            double vy = syy[p] - sy[p] * sy[p] / count;
+                            // If either column has no variance over the shared positions, the correlation
+                            // is undefined.
+                            if (vx <= EPSILON * sxx[p] || vy <= EPSILON * syy[p])
+                                result = Double.NaN;
+                            else
+                                result = cov / Math.sqrt(vx * vy);
+                        }
+                    }
+                    // Clamp away any rounding excursions past the legal range.
+                    if (result > 1.0)
+                        result = 1.0;
+                    else if (result < -1.0)
+                        result = -1.0;
+                    consumer.accept(i, j, result);
+                }
+            }
+        }
+
+    }
+
+    /**
+     * @return the number of samples where both columns have finite values
+     *
+     * @param i		index of first column
+     * @param j		index of second column
+     */
+    private int sharedCount(int i, int j) {
+        final long[] bi = this.bits[i];
+        final long[] bj = this.bits[j];
+        int retVal = 0;
+        for (int w = 0; w < bi.length; w++)
+            retVal += Long.bitCount(bi[w] & bj[w]);
+        return retVal;
+    }
+
+}
@@ -0,0 +1,438 @@
+/**
+ *
+ */
+package org.theseed.rna.corr;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.AbstractMap;
+import java.util.Arrays;
+import java.util.Map;
+
+/**
+ * This object computes the normalized mean-absolute-error similarity between every pair of samples.
+ * Each feature's values are range-normalized using the minimum and maximum finite value for that feature
+ * over all the samples, so the error at a single position is never more than 1.0.  The similarity of two
+ * samples is 1 minus the mean of the absolute normalized differences, taken over the positions where both
+ * samples have a finite value.  If there are no such positions, the similarity is 0.  A feature whose
+ * values are all the same contributes no error.
+ *
+ * The samples are normalized once into single-precision rows.  Missing values are stored as zero, and the
+ * finite positions of each row are packed into a bitset.  Rows with missing values also get a 0/1 mask
+ * array, so that the masked sums can be computed without branches.
+ *
+ * The pairs are computed in strips of consecutive rows.  Each strip is compared to the subsequent rows in
+ * cache-sized tiles of columns and feature blocks.  Strips are independent, so they can be computed in
+ * parallel.
+ *
+ * @author Bruce Parrello
+ *
+ */
+public class SampleSimilarityEngine {
+
+    // FIELDS
+    /** number of features per sample */
+    private final int nFeatures;
+    /** normalized sample rows, with missing values set to zero */
+    private final float[][] values;
+    /** 0/1 mask arrays for rows with missing values (NULL for complete rows) */
+    private final float[][] masks;
+    /** bitsets of the finite positions in each row */
+    private final long[][] bits;
+    /** feature ranges used for normalization */
+    private final Ranges ranges;
+    /** number of rows per column tile */
+    private static final int TILE_COLS = 64;
+    /** number of features per block */
+    private static final int BLOCK_FEATURES = 512;
+
+    /**
+     * This interface is used to retrieve the sample rows.
+     */
+    @FunctionalInterface
+    public interface RowSource {
+
+        /**
+         * Retrieve the expression levels for a sample.
+         *
+         * @param idx		index of the desired sample
+         * @param buffer	array to receive the expression levels (missing values are NaN)
+         */
+        public void getRow(int idx, double[] buffer);
+
+    }
+
+    /**
+     * This object contains the normalization range for each feature.  It can be saved to a file so that
+     * later incremental computations use the same scale.  It also contains a fingerprint of each sample's
+     * expression levels, so that a later computation can tell whether the samples it is building on have
+     * changed.
+     */
+    public static class Ranges {
+
+        /** minimum finite value of each feature */
+        private final double[] mins;
+        /** maximum finite value of each feature */
+        private final double[] maxs;
+        /** fingerprint of each sample's expression levels (NULL if unknown) */
+        private final long[] prints;
+        /** multiplier for the fingerprint hash */
+        private static final long PRINT_PRIME = 0x100000001B3L;
+
+        /**
+         * Compute the feature ranges and sample fingerprints for a set of samples.
+         *
+         * @param nSamples		number of samples
+         * @param nFeatures		number of features per sample
+         * @param source		source for the sample rows
+         */
+        public Ranges(int nSamples, int nFeatures, RowSource source) {
+            this.mins = new double[nFeatures];
+            this.maxs = new double[nFeatures];
+            Arrays.fill(this.mins, Double.POSITIVE_INFINITY);
+            Arrays.fill(this.maxs, Double.NEGATIVE_INFINITY);
+            this.prints = new long[nSamples];
+            double[] buffer = new double[nFeatures];
+            for (int s = 0; s < nSamples; s++) {
+                source.getRow(s, buffer);
+                long print = 0xCBF29CE484222325L;
+                for (int f = 0; f < nFeatures; f++) {
+                    double v = buffer[f];
+                    print = (print ^ Double.doubleToLongBits(v)) * PRINT_PRIME;
+                    if (Double.isFinite(v)) {
+                        if (v < this.mins[f]) this.mins[f] = v;
+                        if (v > this.maxs[f]) this.maxs[f] = v;
+                    }
+                }
+                this.prints[s] = print;
+            }
+        }
+
+        /**
+         * Create a range object from saved arrays.
+         *
+         * @param mins		array of minimum values
+         * @param maxs		array of maximum values
+         * @param prints	array of sample fingerprints, or NULL if they are unknown
+         */
+        private Ranges(double[] mins, double[] maxs, long[] prints) {
+            this.mins = mins;
+            this.maxs = maxs;
+            this.prints = prints;
+        }
+
+        /**
+         * Load the feature ranges from a file.  A file saved without sample fingerprints produces ranges
+         * whose sample count is unknown.
+         *
+         * @param inFile	file containing the saved ranges
+         *
+         * @return the ranges read
+         *
+         * @throws IOException
+         */
+        public static Ranges load(File inFile) throws IOException {
+            try (DataInputStream inStream = new DataInputStream(new BufferedInputStream(new FileInputStream(inFile)))) {
+                int n = inStream.readInt();
+                double[] mins = new double[n];
+                double[] maxs = new double[n];
+                for (int f = 0; f < n; f++) {
+                    mins[f] = inStream.readDouble();
+                    maxs[f] = inStream.readDouble();
+                }
+                long[] prints = null;
+                int nSamples = -1;
+                try {
+                    nSamples = inStream.readInt();
+                } catch (EOFException e) {
+                    // Here the file predates the fingerprints.
+                }
+                if (nSamples >= 0) {
+                    prints = new long[nSamples];
+                    for (int s = 0; s < nSamples; s++)
+                        prints[s] = inStream.readLong();
+                }
+                return new Ranges(mins, maxs, prints);
+            }
+        }
+
+        /**
+         * Save the feature ranges to a file.
+         *
+         * @param outFile	file to contain the ranges
+         *
+         * @throws IOException
+         */
+        public void save(File outFile) throws IOException {
+            try (DataOutputStream outStream = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(outFile)))) {
+                outStream.writeInt(this.mins.length);
+                for (int f = 0; f < this.mins.length; f++) {
+                    outStream.writeDouble(this.mins[f]);
+                    outStream.writeDouble(this.maxs[f]);
+                }
+                if (this.prints != null) {
+                    outStream.writeInt(this.prints.length);
+                    for (long print : this.prints)
+                        outStream.writeLong(print);
+                }
+            }
+        }
+
+        /**
+         * @return a copy of these ranges with the sample fingerprints from another range object
+         *
+         * @param other		range object whose sample fingerprints are to be used
+         */
+        public Ranges withSamples(Ranges other) {
+            return new Ranges(this.mins, this.maxs, other.prints);
+        }
+
+        /**
+         * @return the number of samples fingerprinted, or -1 if the fingerprints are unknown
+         */
+        public int getSampleCount() {
+            return (this.prints == null ? -1 : this.prints.length);
+        }
+
+        /**
+         * @return the number of samples whose fingerprints differ between this object and another, counting
+         * 		   only the samples fingerprinted in this object
+         *
+         * @param other		range object to compare (must fingerprint at least as many samples)
+         */
+        public int countChanged(Ranges other) {
+            int retVal = 0;
+            for (int s = 0; s < this.prints.length; s++) {
+                if (this.prints[s] != other.prints[s])
+                    retVal++;
+            }
+            return retVal;
+        }
+
+        /**
+         * @return the number of features
+         */
+        public int size() {
+            return this.mins.length;
+        }
+
+        /**
+         * Compute the drift of another set of ranges relative to this one.  The drift for a feature is the
+         * larger of the changes to its endpoints, as a fraction of this object's range.  A feature whose
+         * range was zero and is no longer zero has a drift of 1.  The drift for the whole set is the
+         * largest drift for any feature.
+         *
+         * @param other		other ranges to compare (must have the same number of features)
+         *
+         * @return the index of the feature with the largest drift and the drift itself
+         */
+        public Map.Entry<Integer, Double> drift(Ranges other) {
+            int worst = -1;
+            double retVal = 0.0;
+            for (int f = 0; f < this.mins.length; f++) {
+                double range = this.maxs[f] - this.mins[f];
+                double otherRange = other.maxs[f] - other.mins[f];
+                double drift;
+                if (! (range > 0.0))
+                    drift = (otherRange > 0.0 ? 1.0 : 0.0);
+                else
+                    drift = Math.max(Math.abs(other.mins[f] - this.mins[f]), Math.abs(other.maxs[f] - this.maxs[f]))
+                            / range;
+                if (drift > retVal) {
+                    retVal = drift;
+                    worst = f;
+                }
+            }
+            return new AbstractMap.SimpleEntry<Integer, Double>(worst, retVal);
+        }
+
+    }
+
+    /**
+     * Construct a sample similarity engine.  The rows are read twice:  once to compute the feature ranges
+     * and once to normalize them.
+     *
+     * @param nSamples		number of samples
+     * @param nFeatures		number of features per sample
+     * @param source		source for the sample rows
+     */
+    public SampleSimilarityEngine(int nSamples, int nFeatures, RowSource source) {
+        this(nSamples, source, new Ranges(nSamples, nFeatures, source));
+    }
+
+    /**
+     * Construct a sample similarity engine using pre-computed feature ranges.
+     *
+     * @param nSamples		number of samples
+     * @param source		source for the sample rows
+     * @param ranges		feature ranges to use for normalization
+     */
+    public SampleSimilarityEngine(int nSamples, RowSource source, Ranges ranges) {
+        final int nFeatures = ranges.size();
+        this.nFeatures = nFeatures;
+        this.ranges = ranges;
+        final double[] mins = ranges.mins;
+        double[] scales = new double[nFeatures];
+        for (int f = 0; f < nFeatures; f++) {
+            double range = ranges.maxs[f] - mins[f];
+            scales[f] = (range > 0.0 ? 1.0 / range : 0.0);
+        }
+        double[] buffer = new double[nFeatures];
+        // Normalize the rows.
+        this.values = new float[nSamples][];
+        this.masks = new float[nSamples][];
+        this.bits = new long[nSamples][];
+        final int nWords = (nFeatures + 63) >> 6;
+        for (int s = 0; s < nSamples; s++) {
+            source.getRow(s, buffer);
+            float[] row = new float[nFeatures];
+            long[] rowBits = new long[nWords];
+            int count = 0;
+            for (int f = 0; f < nFeatures; f++) {
+                double v = buffer[f];
+                if (Double.isFinite(v)) {
+                    row[f] = (float) ((v - mins[f]) * scales[f]);
+                    rowBits[f >> 6] |= 1L << (f & 63);
+                    count++;
+                }
+            }
+            this.values[s] = row;
+            this.bits[s] = rowBits;
+            if (count < nFeatures) {
+                float[] mask = new float[nFeatures];
+                for (int f = 0; f < nFeatures; f++) {
+                    if ((rowBits[f >> 6] & (1L << (f & 63))) != 0)
+                        mask[f] = 1.0f;
+                }
+                this.masks[s] = mask;
+            }
+        }
+    }
+
+    /**
+     * @return the feature ranges used for normalization
+     */
+    public Ranges getRanges() {
+        return this.ranges;
+    }
+
+    /**
+     * @return the number of samples
+     */
+    public int size() {
+        return this.values.length;
+    }
+
+    /**
+     * @return an array of output rows suitable for a strip
+     *
+     * @param i0	index of the first row in the strip
+     * @param i1	past-the-end index of the last row in the strip
+     * @param jMin	index of the first column to compare
+     */
+    public float[][] createStripOutput(int i0, int i1, int jMin) {
+        final int n = this.size();
+        float[][] retVal = new float[i1 - i0][];
+        for (int r = 0; r < retVal.length; r++)
+            retVal[r] = new float[n - firstColumn(i0 + r, jMin)];
+        return retVal;
+    }
+
+    /**
+     * @return the index of the first column to compare to a row
+     *
+     * @param i		row index
+     * @param jMin	index of the first column of interest
+     */
+    public static int firstColumn(int i, int jMin) {
+        return Math.max(i + 1, jMin);
+    }
+
+    /**
+     * Compute the similarities for a strip of rows.  Each row is compared to all the rows after it that are
+     * at or past a specified minimum column.  (The minimum column is used to compute only the pairs that
+     * involve newly-added samples.)
+     *
+     * @param i0	index of the first row in the strip
+     * @param i1	past-the-end index of the last row in the strip
+     * @param jMin	index of the first column to compare
+     * @param out	output array; for each row i in the strip, out[i - i0][k] will be set to the similarity
+     * 				between row i and row firstColumn(i, jMin) + k
+     */
+    public void computeStrip(int i0, int i1, int jMin, float[][] out) {
+        final int n = this.size();
+        final int rows = i1 - i0;
+        double[] acc = new double[rows * TILE_COLS];
+        for (int j0 = firstColumn(i0, jMin); j0 < n; j0 += TILE_COLS) {
+            final int j1 = Math.min(n, j0 + TILE_COLS);
+            final int cols = j1 - j0;
+            Arrays.fill(acc, 0.0);
+            for (int f0 = 0; f0 < this.nFeatures; f0 += BLOCK_FEATURES) {
+                final int f1 = Math.min(this.nFeatures, f0 + BLOCK_FEATURES);
+                for (int r = 0; r < rows; r++) {
+                    final int i = i0 + r;
+                    final float[] a = this.values[i];
+                    final float[] ma = this.masks[i];
+                    for (int c = Math.max(0, i + 1 - j0); c < cols; c++) {
+                        final int j = j0 + c;
+                        final float[] b = this.values[j];
+                        final float[] mb = this.masks[j];
+                        float sum = 0.0f;
+                        if (ma == null && mb == null) {
+                            for (int f = f0; f < f1; f++)
+                                sum += Math.abs(a[f] - b[f]);
+                        } else if (ma == null) {
+                            for (int f = f0; f < f1; f++)
+                                sum += Math.abs(a[f] - b[f]) * mb[f];
+                        } else if (mb == null) {
+                            for (int f = f0; f < f1; f++)
+                                sum += Math.abs(a[f] - b[f]) * ma[f];
+                        } else {
+                            for (int f = f0; f < f1; f++)
+                                sum += Math.abs(a[f] - b[f]) * ma[f] * mb[f];
+                        }
+                        acc[r * TILE_COLS + c] += sum;
+                    }
+                }
+            }
+            // Convert the error sums to similarities.
+            for (int r = 0; r < rows; r++) {
+                final int i = i0 + r;
+                for (int c = Math.max(0, i + 1 - j0); c < cols; c++) {
+                    final int j = j0 + c;
+                    int count = this.sharedCount(i, j);
+                    double sim = (count > 0 ? 1.0 - acc[r * TILE_COLS + c] / count : 0.0);
+                    out[r][j - firstColumn(i, jMin)] = (float) sim;
+                }
+            }
+        }
+    }
+
+    /**
+     * @return the number of features where both rows have finite values
+     *
+     * @param i		index of first row
+     * @param j		index of second row
+     */
+    private int sharedCount(int i, int j) {
+        int retVal;
+        if (this.masks[i] == null && this.masks[j] == null)
+            retVal = this.nFeatures;
+        else {
+            final long[] bi = this.bits[i];
+            final long[] bj = this.bits[j];
+            retVal = 0;
+            for (int w = 0; w < bi.length; w++)
+                retVal += Long.bitCount(bi[w] & bj[w]);
+        }
+        return retVal;
+    }
+
+}
@@ -0,0 +1,115 @@
+/**
+ *
+ */
+package org.theseed.rna.corr;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.theseed.io.TabbedLineReader;
+
+/**
+ * This object reads a tab-delimited text correlation file.  The file has headers, the first two columns
+ * contain IDs, and the third column contains the correlation score.
+ *
+ * @author Bruce Parrello
+ *
+ */
+public class TextCorrelationReader extends CorrelationReader {
+
+    // FIELDS
+    /** input stream */
+    private final TabbedLineReader inStream;
+    /** list of IDs, in index order */
+    private final List<String> ids;
+    /** map of IDs to indices */
+    private final Map<String, Integer> idMap;
+
+    /**
+     * Open a text correlation file.
+     *
+     * @param inFile	file to read
+     *
+     * @throws IOException
+     */
+    public TextCorrelationReader(File inFile) throws IOException {
+        this(new TabbedLineReader(inFile));
+    }
+
+    /**
+     * Open a text correlation stream.
+     *
+     * @param stream	stream to read
+     *
+     * @throws IOException
+     */
+    public TextCorrelationReader(InputStream stream) throws IOException {
+        this(new TabbedLineReader(stream));
+    }
+
+    /**
+     * Construct a text correlation reader from a tabbed line reader.
+     *
+     * @param reader	tabbed line reader for the input
+     */
+    private TextCorrelationReader(TabbedLineReader reader) {
+        this.inStream = reader;
+        this.ids = new ArrayList<String>();
+        this.idMap = new HashMap<String, Integer>();
+    }
+
+    @Override
+    public void forEach(PearsonEngine.Consumer consumer) throws IOException {
+        for (TabbedLineReader.Line line : this.inStream) {
+            int i = this.getIndex(line.get(0));
+            int j = this.getIndex(line.get(1));
+            consumer.accept(i, j, line.getDouble(2));
+        }
+    }
+
+    /**
+     * @return the index for an ID, adding it to the dictionary if necessary
+     *
+     * @param id	ID of interest
+     */
+    private int getIndex(String id) {
+        Integer retVal = this.idMap.get(id);
+        if (retVal == null) {
+            retVal = this.ids.size();
+            this.ids.add(id);
+            this.idMap.put(id, retVal);
+        }
+        return retVal;
+    }
+
+    @Override
+    public String getId(int idx) {
+        return this.ids.get(idx);
+    }
+
+    @Override
+    public int findIndex(String id) {
+        return this.idMap.getOrDefault(id, -1);
+    }
+
+    @Override
+    public int getIdCount() {
+        return this.ids.size();
+    }
+
+    @Override
+    public boolean isBinary() {
+        return false;
+    }
+
+    @Override
+    public void close() throws IOException {
+        this.inStream.close();
+    }
+
+}
@@ -0,0 +1,192 @@
+/**
+ *
+ */
+package org.theseed.rna.corr;
+
+/**
+ * This object collects the best-scoring pairs for each index from a parallel correlation computation.  For
+ * each index, we keep a bounded min-heap of the highest-scoring partners, so the memory required is
+ * proportional to the number of indices rather than the number of pairs.  An optional minimum score can
+ * also be specified.
+ *
+ * A pair is kept if it is in the top group for either of its indices.  This means that the neighborhood of
+ * every index can be reconstructed exactly from the kept pairs.
+ *
+ * Each thread maintains its own set of heaps.  When the computation is finished, the heaps are merged into
+ * a single set.
+ *
+ * @author Bruce Parrello
+ *
+ */
+public class TopPairCollector extends BasePairCollector<TopPairCollector.Heaps> {
+
+    // FIELDS
+    /** number of indices */
+    private final int nIndices;
+    /** maximum number of partners to keep per index */
+    private final int topK;
+    /** merged heaps (computed when the triples are first requested) */
+    private Heaps merged;
+
+    /**
+     * This object contains a set of bounded min-heaps, one per index.  The heaps are stored in flat primitive
+     * arrays, with the heap for index i occupying positions i*K through i*K + K - 1.
+     */
+    protected static class Heaps {
+
+        /** maximum heap size */
+        private final int k;
+        /** partner indices */
+        private final int[] partners;
+        /** partner scores */
+        private final double[] scores;
+        /** current size of each heap */
+        private final int[] sizes;
+
+        /**
+         * Create a set of empty heaps.
+         *
+         * @param n		number of indices
+         * @param k		maximum heap size
+         */
+        protected Heaps(int n, int k) {
+            this.k = k;
+            this.partners = new int[n * k];
+            this.scores = new double[n * k];
+            this.sizes = new int[n];
+        }
+
+        /**
+         * Offer a partner to the heap for an index.
+         *
+         * @param i		index whose heap is to be updated
+         * @param j		partner index
+         * @param r		score
+         */
+        protected void offer(int i, int j, double r) {
+            final int base = i * this.k;
+            final int size = this.sizes[i];
+            if (size < this.k) {
+                // The heap is not full, so sift the new entry up.
+                int pos = size;
+                while (pos > 0) {
+                    int parent = (pos - 1) >> 1;
+                    if (this.scores[base + parent] <= r)
+                        break;
+                    this.scores[base + pos] = this.scores[base + parent];
+                    this.partners[base + pos] = this.partners[base + parent];
+                    pos = parent;
+                }
+                this.scores[base + pos] = r;
+                this.partners[base + pos] = j;
+                this.sizes[i] = size + 1;
+            } else if (r > this.scores[base]) {
+                // The new entry beats the smallest one, so replace the root and sift down.
+                int pos = 0;
+                while (true) {
+                    int child = 2 * pos + 1;
+                    if (child >= size)
+                        break;
+                    if (child + 1 < size && this.scores[base + child + 1] < this.scores[base + child])
+                        child++;
+                    if (this.scores[base + child] >= r)
+                        break;
+                    this.scores[base + pos] = this.scores[base + child];
+                    this.partners[base + pos] = this.partners[base + child];
+                    pos = child;
+                }
+                this.scores[base + pos] = r;
+                this.partners[base + pos] = j;
+            }
+        }
+
+        /**
+         * @return TRUE if the specified partner is in the heap for an index
+         *
+         * @param i		index whose heap is to be checked
+         * @param j		partner index to look for
+         */
+        protected boolean contains(int i, int j) {
+            final int base = i * this.k;
+            final int end = base + this.sizes[i];
+            boolean retVal = false;
+            for (int p = base; p < end && ! retVal; p++)
+                retVal = (this.partners[p] == j);
+            return retVal;
+        }
+
+    }
+
+    /**
+     * Create a new top-pair collector.
+     *
+     * @param logInterval	number of pairs between progress messages
+     * @param nIndices		number of indices
+     * @param topK			maximum number of partners to keep for each index
+     * @param minScore		minimum score to keep, or NaN to keep all scores
+     */
+    public TopPairCollector(long logInterval, int nIndices, int topK, double minScore) {
+        super(logInterval, minScore);
+        this.nIndices = nIndices;
+        this.topK = topK;
+        this.merged = null;
+    }
+
+    @Override
+    protected Heaps createLocal() {
+        return new Heaps(this.nIndices, this.topK);
+    }
+
+    @Override
+    protected void store(Heaps local, int i, int j, double r) {
+        // An undefined score can never be a top score.
+        if (! Double.isNaN(r)) {
+            local.offer(i, j, r);
+            local.offer(j, i, r);
+        }
+    }
+
+    /**
+     * @return the merged heaps, computing them if necessary
+     */
+    private Heaps getMerged() {
+        if (this.merged == null) {
+            this.merged = new Heaps(this.nIndices, this.topK);
+            for (Heaps local : this.getLocals()) {
+                for (int i = 0; i < this.nIndices; i++) {
+                    final int base = i * this.topK;
+                    final int end = base + local.sizes[i];
+                    for (int p = base; p < end; p++)
+                        this.merged.offer(i, local.partners[p], local.scores[p]);
+                }
+            }
+        }
+        return this.merged;
+    }
+
+    @Override
+    public long keptCount() {
+        long[] retVal = new long[1];
+        this.forEach((i, j, r) -> retVal[0]++);
+        return retVal[0];
+    }
+
+    @Override
+    public void forEach(PearsonEngine.Consumer consumer) {
+        Heaps heaps = this.getMerged();
+        for (int i = 0; i < this.nIndices; i++) {
+            final int base = i * this.topK;
+            final int end = base + heaps.sizes[i];
+            for (int p = base; p < end; p++) {
+                int j = heaps.partners[p];
+                // Each pair is output once, in (low, high) order.  If the pair is in the heaps of both
+                // indices, it is output from the lower one.
+                if (i < j)
+                    consumer.accept(i, j, heaps.scores[p]);
+                else if (! heaps.contains(j, i))
+                    consumer.accept(j, i, heaps.scores[p]);
+            }
+        }
+    }
+
+}
@@ -0,0 +1,695 @@
+/**
+ *
+ */
+package org.theseed.rna.data;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.sql.SQLException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.stream.IntStream;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import org.theseed.java.erdb.DbRecord;
+
+/**
+ * This class encodes and decodes the expression-level arrays stored in the "feat_data" field of the RnaSample
+ * table.  The original format is a raw array of doubles, one per feature, with NaN for missing values.  The
+ * encoded format is much smaller, but it is still stored as a double array so that the database layer does
+ * not need to change.
+ *
+ * An encoded array begins with a marker value that can never be an expression level (levels are never
+ * negative), followed by the length of the encoded byte stream.  The rest of the array contains the byte
+ * stream packed 52 bits at a time into non-negative integers, each of which is represented exactly by a
+ * double.  The byte stream contains a header, a table of chunk lengths, and the chunks.  Each chunk covers
+ * a fixed number of features and contains a bitmap of the missing values followed by the values present,
+ * either as 32-bit floats or as 16-bit quantized natural logs.  Each chunk is deflated if that makes it
+ * smaller.  Because the chunks are independent, a subset of the features can be decoded without
+ * unpacking and decoding the whole array.  Note, however, that the database layer still reads and converts
+ * the entire field, so this saves decoding work but not I/O.
+ *
+ * Arrays in the original format are passed through unchanged by the decoder, so an old database can be read
+ * normally and migrated at leisure.
+ *
+ * @author Bruce Parrello
+ *
+ */
+public class FeatureDataCodec {
+
+    // FIELDS
+    /** marker value in the first position of an encoded array */
+    public static final double MARKER = -1179468116.0;
+    /** current format version */
+    private static final int VERSION = 1;
+    /** number of features per chunk */
+    private static final int CHUNK_FEATURES = 1024;
+    /** number of data bits packed into each double */
+    private static final int PACK_BITS = 52;
+    /** mask for the packed data bits */
+    private static final long PACK_MASK = (1L << PACK_BITS) - 1;
+    /** number of positions before the packed data */
+    private static final int PREFIX = 2;
+    /** maximum quantized log value */
+    private static final int MAX_QUANT = 0xFFFF;
+    /** flag indicating a chunk is deflated (stored in the high bit of the chunk length) */
+    private static final int DEFLATED = 0x80000000;
+
+    /**
+     * This enumeration describes the types of encoding.
+     */
+    public static enum Encoding {
+        /** original raw double array */
+        LEGACY,
+        /** 32-bit floats */
+        FLOAT32,
+        /** 16-bit quantized natural logs (positive values only) */
+        LOG16;
+
+        /**
+         * @return the number of bytes used to store each present value
+         */
+        protected int valueBytes() {
+            return (this == FLOAT32 ? 4 : 2);
+        }
+    }
+
+    /**
+     * @return TRUE if an array from the database is in the encoded format
+     *
+     * @param raw	array from the feat_data field
+     */
+    public static boolean isEncoded(double[] raw) {
+        return (raw != null && raw.length >= PREFIX && raw[0] == MARKER);
+    }
+
+    /**
+     * @return the encoding used for an array from the database
+     *
+     * @param raw	array from the feat_data field
+     */
+    public static Encoding getEncoding(double[] raw) {
+        Encoding retVal = Encoding.LEGACY;
+        if (isEncoded(raw))
+            retVal = Encoding.values()[unpack(raw).get(1)];
+        return retVal;
+    }
+
+    /**
+     * Read the expression levels from the feat_data field of an RnaSample record.  This is the method all
+     * clients should use instead of reading the field directly.
+     *
+     * @param record	database record containing the RnaSample.feat_data field
+     *
+     * @return the decoded expression levels
+     *
+     * @throws SQLException
+     */
+    public static double[] getLevels(DbRecord record) throws SQLException {
+        return decode(record.getDoubleArray("RnaSample.feat_data"));
+    }
+
+    /**
+     * Encode an expression-level array.
+     *
+     * @param levels	array of expression levels, with NaN for missing values
+     * @param type		type of encoding desired
+     *
+     * @return the encoded array, suitable for storing in the feat_data field (if the LEGACY encoding is used,
+     * 		   either by request or as a fallback, this is the input array itself)
+     */
+    public static double[] encode(double[] levels, Encoding type) {
+        double[] retVal;
+        // Verify that the values can be represented in the desired encoding.  If they cannot, we fall back
+        // to one that is more general.
+        if (type == Encoding.LOG16 && ! allPositive(levels))
+            type = Encoding.FLOAT32;
+        if (type == Encoding.FLOAT32 && ! fitsFloat(levels))
+            type = Encoding.LEGACY;
+        if (type == Encoding.LEGACY)
+            retVal = levels;
+        else {
+            final int n = levels.length;
+            final int nChunks = (n + CHUNK_FEATURES - 1) / CHUNK_FEATURES;
+            // For LOG16, compute the quantization range.
+            double lo = 0.0;
+            double step = 0.0;
+            if (type == Encoding.LOG16) {
+                double hi = Double.NEGATIVE_INFINITY;
+                lo = Double.POSITIVE_INFINITY;
+                for (double v : levels) {
+                    if (! Double.isNaN(v)) {
+                        double l = Math.log(v);
+                        lo = Math.min(lo, l);
+                        hi = Math.max(hi, l);
+                    }
+                }
+                if (hi > lo)
+                    step = (hi - lo) / MAX_QUANT;
+                else if (hi < lo)
+                    lo = 0.0;
+            }
+            // Encode the chunks.
+            byte[][] chunks = new byte[nChunks][];
+            boolean[] deflated = new boolean[nChunks];
+            Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+            try {
+                for (int c = 0; c < nChunks; c++) {
+                    final int f0 = c * CHUNK_FEATURES;
+                    final int f1 = Math.min(n, f0 + CHUNK_FEATURES);
+                    byte[] chunk = encodeChunk(levels, f0, f1, type, lo, step);
+                    byte[] squeezed = deflate(deflater, chunk);
+                    if (squeezed.length < chunk.length) {
+                        chunk = squeezed;
+                        deflated[c] = true;
+                    }
+                    chunks[c] = chunk;
+                }
+            } finally {
+                deflater.end();
+            }
+            // Assemble the byte stream.
+            int len = headerLength(type) + 4 * nChunks;
+            for (byte[] chunk : chunks)
+                len += chunk.length;
+            ByteBuffer buffer = ByteBuffer.allocate(len).order(ByteOrder.LITTLE_ENDIAN);
+            buffer.put((byte) VERSION);
+            buffer.put((byte) type.ordinal());
+            buffer.putInt(n);
+            buffer.putInt(CHUNK_FEATURES);
+            if (type == Encoding.LOG16) {
+                buffer.putDouble(lo);
+                buffer.putDouble(step);
+            }
+            for (int c = 0; c < nChunks; c++)
+                buffer.putInt(chunks[c].length | (deflated[c] ? DEFLATED : 0));
+            for (byte[] chunk : chunks)
+                buffer.put(chunk);
+            retVal = pack(buffer.array());
+        }
+        return retVal;
+    }
+
+    /**
+     * Decode an array from the database.  If the array is in the original format, it is returned unchanged.
+     *
+     * @param raw	array from the feat_data field
+     *
+     * @return the expression levels, with NaN for missing values
+     */
+    public static double[] decode(double[] raw) {
+        double[] retVal;
+        if (! isEncoded(raw))
+            retVal = raw;
+        else {
+            ByteBuffer buffer = unpack(raw);
+            Header header = new Header(buffer);
+            retVal = new double[header.nFeatures];
+            Inflater inflater = new Inflater();
+            try {
+                byte[] work = new byte[header.maxChunkLength()];
+                for (int c = 0; c < header.nChunks(); c++)
+                    header.decodeChunk(buffer, c, inflater, work, retVal, 0);
+            } finally {
+                inflater.end();
+            }
+        }
+        return retVal;
+    }
+
+    /**
+     * This object contains the header information for an encoded array.
+     */
+    protected static class Header {
+
+        /** type of encoding */
+        private final Encoding type;
+        /** number of features */
+        private final int nFeatures;
+        /** number of features per chunk */
+        private final int chunkFeatures;
+        /** minimum log value (LOG16 only) */
+        private final double lo;
+        /** quantization step (LOG16 only) */
+        private final double step;
+        /** offset of each chunk in the byte stream */
+        private final int[] chunkOffsets;
+        /** stored length of each chunk */
+        private final int[] chunkLengths;
+        /** TRUE for each deflated chunk */
+        private final boolean[] deflated;
+
+        /**
+         * Parse the header of an encoded byte stream.
+         *
+         * @param buffer	buffer containing the byte stream
+         */
+        protected Header(ByteBuffer buffer) {
+            int version = buffer.get(0);
+            if (version != VERSION)
+                throw new IllegalArgumentException("Unsupported feature data encoding version " + version + ".");
+            this.type = Encoding.values()[buffer.get(1)];
+            this.nFeatures = buffer.getInt(2);
+            this.chunkFeatures = buffer.getInt(6);
+            if (this.type == Encoding.LOG16) {
+                this.lo = buffer.getDouble(10);
+                this.step = buffer.getDouble(18);
+            } else {
+                this.lo = 0.0;
+                this.step = 0.0;
+            }
+            final int nChunks = (this.nFeatures + this.chunkFeatures - 1) / this.chunkFeatures;
+            this.chunkOffsets = new int[nChunks];
+            this.chunkLengths = new int[nChunks];
+            this.deflated = new boolean[nChunks];
+            int tablePos = headerLength(this.type);
+            int offset = tablePos + 4 * nChunks;
+            for (int c = 0; c < nChunks; c++) {
+                int len = buffer.getInt(tablePos + 4 * c);
+                this.deflated[c] = ((len & DEFLATED) != 0);
+                this.chunkLengths[c] = len & ~DEFLATED;
+                this.chunkOffsets[c] = offset;
+                offset += this.chunkLengths[c];
+            }
+        }
+
+        /**
+         * @return the number of chunks
+         */
+        protected int nChunks() {
+            return this.chunkOffsets.length;
+        }
+
+        /**
+         * @return the number of features
+         */
+        protected int getFeatureCount() {
+            return this.nFeatures;
+        }
+
+        /**
+         * @return the number of features per chunk
+         */
+        protected int getChunkFeatures() {
+            return this.chunkFeatures;
+        }
+
+        /**
+         * @return the offset of a chunk in the byte stream
+         *
+         * @param c		index of the chunk
+         */
+        protected int chunkOffset(int c) {
+            return this.chunkOffsets[c];
+        }
+
+        /**
+         * @return the stored length of a chunk
+         *
+         * @param c		index of the chunk
+         */
+        protected int chunkLength(int c) {
+            return this.chunkLengths[c];
+        }
+
+        /**
+         * @return TRUE if a chunk is deflated
+         *
+         * @param c		index of the chunk
+         */
+        protected boolean isDeflated(int c) {
+            return this.deflated[c];
+        }
+
+        /**
+         * @return the encoding type
+         */
+        protected Encoding getType() {
+            return this.type;
+        }
+
+        /**
+         * @return the quantization step (LOG16 only)
+         */
+        protected double getStep() {
+            return this.step;
+        }
+
+        /**
+         * @return the maximum decoded length of a chunk
+         */
+        protected int maxChunkLength() {
+            return (this.chunkFeatures + 7) / 8 + this.chunkFeatures * this.type.valueBytes();
+        }
+
+        /**
+         * Decode a chunk into an expression-level array.
+         *
+         * @param buffer	buffer containing the byte stream
+         * @param c			index of the chunk to decode
+         * @param inflater	inflater to use for deflated chunks
+         * @param work		work buffer, at least as long as the maximum decoded chunk length
+         * @param levels	output array for the expression levels
+         * @param base		feature index corresponding to position 0 in the output array
+         */
+        protected void decodeChunk(ByteBuffer buffer, int c, Inflater inflater, byte[] work, double[] levels,
+                int base) {
+            final int f0 = c * this.chunkFeatures;
+            final int f1 = Math.min(this.nFeatures, f0 + this.chunkFeatures);
+            final byte[] src = buffer.array();
+            byte[] data;
+            int pos;
+            if (! this.deflated[c]) {
+                data = src;
+                pos = this.chunkOffsets[c];
+            } else {
+                inflater.reset();
+                inflater.setInput(src, this.chunkOffsets[c], this.chunkLengths[c]);
+                try {
+                    int len = 0;
+                    while (! inflater.finished() && len < work.length) {
+                        int k = inflater.inflate(work, len, work.length - len);
+                        if (k == 0 && (inflater.needsInput() || inflater.needsDictionary()))
+                            break;
+                        len += k;
+                    }
+                } catch (DataFormatException e) {
+                    throw new IllegalArgumentException("Corrupt feature data chunk: " + e.getMessage());
+                }
+                data = work;
+                pos = 0;
+            }
+            // The bitmap comes first.  A set bit indicates a value is present.
+            final int bitmap = pos;
+            int vPos = pos + (f1 - f0 + 7) / 8;
+            for (int f = f0; f < f1; f++) {
+                final int k = f - f0;
+                if ((data[bitmap + (k >> 3)] & (1 << (k & 7))) == 0)
+                    levels[f - base] = Double.NaN;
+                else if (this.type == Encoding.FLOAT32) {
+                    int bits = (data[vPos] & 0xFF) | (data[vPos + 1] & 0xFF) << 8 | (data[vPos + 2] & 0xFF) << 16
+                            | (data[vPos + 3] & 0xFF) << 24;
+                    levels[f - base] = Float.intBitsToFloat(bits);
+                    vPos += 4;
+                } else {
+                    int q = (data[vPos] & 0xFF) | (data[vPos + 1] & 0xFF) << 8;
+                    levels[f - base] = Math.exp(this.lo + q * this.step);
+                    vPos += 2;
+                }
+            }
+        }
+
+    }
+
+    /**
+     * This object extracts a fixed subset of the features from encoded arrays.  Only the chunks containing the
+     * features of interest are unpacked and decoded, so when the subset is small, most of the decoding work is
+     * skipped.  The whole field is still read from the database and converted to a double array before the
+     * projection sees it, so the savings are in CPU time and garbage, not in database I/O.  The object keeps
+     * its work buffers between calls, so it is not thread-safe.
+     */
+    public static class Projection {
+
+        /** array indices of the features to extract */
+        private final int[] indices;
+        /** byte stream buffer (only the needed ranges are filled) */
+        private byte[] bytes;
+        /** decompression work buffer */
+        private byte[] work;
+        /** decoded chunk buffer */
+        private double[] chunkLevels;
+        /** inflater for deflated chunks */
+        private final Inflater inflater;
+        /** positions in the index array sorted by feature index */
+        private final int[] order;
+
+        /**
+         * Create a projection for a set of features.
+         *
+         * @param indices	array indices (seq_no values) of the features to extract, in output order
+         */
+        public Projection(int[] indices) {
+            this.indices = indices.clone();
+            this.order = IntStream.range(0, indices.length).boxed()
+                    .sorted(Comparator.comparingInt(k -> indices[k])).mapToInt(k -> k).toArray();
+            this.bytes = new byte[64];
+            this.work = new byte[0];
+            this.chunkLevels = new double[0];
+            this.inflater = new Inflater();
+        }
+
+        /**
+         * @return the number of features extracted
+         */
+        public int size() {
+            return this.indices.length;
+        }
+
+        /**
+         * Extract the features of interest from the feat_data field of an RnaSample record.  The record
+         * already holds the complete field, so only the decoding is restricted to the features of interest.
+         *
+         * @param record	database record containing the RnaSample.feat_data field
+         * @param out		output array, or NULL to allocate a new one
+         *
+         * @return an array of the expression levels for the features of interest, in output order
+         *
+         * @throws SQLException
+         */
+        public double[] getLevels(DbRecord record, double[] out) throws SQLException {
+            return this.project(record.getDoubleArray("RnaSample.feat_data"), out);
+        }
+
+        /**
+         * Extract the features of interest from an array in the feat_data field.  Features beyond the end of
+         * the array are returned as NaN.
+         *
+         * @param raw	array from the feat_data field
+         * @param out	output array, or NULL to allocate a new one
+         *
+         * @return an array of the expression levels for the features of interest, in output order
+         */
+        public double[] project(double[] raw, double[] out) {
+            final int n = this.indices.length;
+            double[] retVal = (out == null ? new double[n] : out);
+            if (! isEncoded(raw)) {
+                for (int k = 0; k < n; k++) {
+                    int idx = this.indices[k];
+                    retVal[k] = (idx < raw.length ? raw[idx] : Double.NaN);
+                }
+            } else {
+                // Unpack the fixed header, and then the chunk table.
+                final int len = (int) raw[1];
+                if (this.bytes.length < len + 8)
+                    this.bytes = new byte[len + 8];
+                unpackRange(raw, 0, Math.min(len, headerLength(Encoding.LOG16)), this.bytes);
+                ByteBuffer buffer = ByteBuffer.wrap(this.bytes, 0, len).order(ByteOrder.LITTLE_ENDIAN);
+                final int nFeatures = buffer.getInt(2);
+                final int chunkFeatures = buffer.getInt(6);
+                final int nChunks = (nFeatures + chunkFeatures - 1) / chunkFeatures;
+                final Encoding type = Encoding.values()[buffer.get(1)];
+                unpackRange(raw, 0, headerLength(type) + 4 * nChunks, this.bytes);
+                Header header = new Header(buffer);
+                if (this.work.length < header.maxChunkLength())
+                    this.work = new byte[header.maxChunkLength()];
+                if (this.chunkLevels.length < chunkFeatures)
+                    this.chunkLevels = new double[chunkFeatures];
+                // Loop through the features in index order, decoding each chunk when we first reach it.
+                int currentChunk = -1;
+                for (int k : this.order) {
+                    final int idx = this.indices[k];
+                    if (idx >= nFeatures)
+                        retVal[k] = Double.NaN;
+                    else {
+                        final int c = idx / chunkFeatures;
+                        if (c != currentChunk) {
+                            final int start = header.chunkOffset(c);
+                            unpackRange(raw, start, start + header.chunkLength(c), this.bytes);
+                            header.decodeChunk(buffer, c, this.inflater, this.work, this.chunkLevels, c * chunkFeatures);
+                            currentChunk = c;
+                        }
+                        retVal[k] = this.chunkLevels[idx - c * chunkFeatures];
+                    }
+                }
+            }
+            return retVal;
+        }
+
+    }
+
+    /**
+     * Encode the values in a chunk.
+     *
+     * @param levels	array of expression levels
+     * @param f0		index of the first feature in the chunk
+     * @param f1		past-the-end index of the last feature in the chunk
+     * @param type		type of encoding
+     * @param lo		minimum log value (LOG16 only)
+     * @param step		quantization step (LOG16 only)
+     *
+     * @return the encoded chunk
+     */
+    private static byte[] encodeChunk(double[] levels, int f0, int f1, Encoding type, double lo, double step) {
+        int present = 0;
+        for (int f = f0; f < f1; f++) {
+            if (! Double.isNaN(levels[f]))
+                present++;
+        }
+        final int bitmapLen = (f1 - f0 + 7) / 8;
+        byte[] retVal = new byte[bitmapLen + present * type.valueBytes()];
+        int vPos = bitmapLen;
+        for (int f = f0; f < f1; f++) {
+            double v = levels[f];
+            if (! Double.isNaN(v)) {
+                final int k = f - f0;
+                retVal[k >> 3] |= (byte) (1 << (k & 7));
+                if (type == Encoding.FLOAT32) {
+                    int bits = Float.floatToRawIntBits((float) v);
+                    retVal[vPos++] = (byte) bits;
+                    retVal[vPos++] = (byte) (bits >> 8);
+                    retVal[vPos++] = (byte) (bits >> 16);
+                    retVal[vPos++] = (byte) (bits >> 24);
+                } else {
+                    int q = (step == 0.0 ? 0 : (int) Math.round((Math.log(v) - lo) / step));
+                    q = Math.max(0, Math.min(MAX_QUANT, q));
+                    retVal[vPos++] = (byte) q;
+                    retVal[vPos++] = (byte) (q >> 8);
+                }
+            }
+        }
+        return retVal;
+    }
+
+    /**
+     * @return the deflated version of a byte array
+     *
+     * @param deflater	deflater to use
+     * @param data		bytes to deflate
+     */
+    private static byte[] deflate(Deflater deflater, byte[] data) {
+        deflater.reset();
+        deflater.setInput(data);
+        deflater.finish();
+        byte[] retVal = new byte[data.length + 64];
+        int len = 0;
+        while (! deflater.finished() && len < retVal.length)
+            len += deflater.deflate(retVal, len, retVal.length - len);
+        if (! deflater.finished())
+            retVal = data;
+        else
+            retVal = Arrays.copyOf(retVal, len);
+        return retVal;
+    }
+
+    /**
+     * @return the length of the fixed header for an encoding type
+     *
+     * @param type		type of encoding
+     */
+    private static int headerLength(Encoding type) {
+        return (type == Encoding.LOG16 ? 26 : 10);
+    }
+
+    /**
+     * @return TRUE if all the present values are positive and finite
+     *
+     * @param levels	array of expression levels
+     */
+    private static boolean allPositive(double[] levels) {
+        boolean retVal = true;
+        for (int i = 0; i < levels.length && retVal; i++) {
+            double v = levels[i];
+            retVal = Double.isNaN(v) || (v > 0.0 && v < Double.POSITIVE_INFINITY);
+        }
+        return retVal;
+    }
+
+    /**
+     * @return TRUE if all the present values are within the range of a 32-bit float
+     *
+     * @param levels	array of expression levels
+     */
+    private static boolean fitsFloat(double[] levels) {
+        boolean retVal = true;
+        for (int i = 0; i < levels.length && retVal; i++) {
+            double v = levels[i];
+            retVal = ! Double.isFinite(v) || Math.abs(v) <= Float.MAX_VALUE;
+        }
+        return retVal;
+    }
+
+    /**
+     * Pack a byte stream into an encoded double array.
+     *
+     * @param bytes		byte stream to pack
+     *
+     * @return an encoded array containing the marker, the stream length, and the packed bytes
+     */
+    private static double[] pack(byte[] bytes) {
+        final int nBits = bytes.length * 8;
+        final int nWords = (nBits + PACK_BITS - 1) / PACK_BITS;
+        double[] retVal = new double[PREFIX + nWords];
+        retVal[0] = MARKER;
+        retVal[1] = bytes.length;
+        for (int w = 0; w < nWords; w++) {
+            final int bitPos = w * PACK_BITS;
+            final int b0 = bitPos >> 3;
+            long word = 0;
+            for (int k = 0; k < 8 && b0 + k < bytes.length; k++)
+                word |= (bytes[b0 + k] & 0xFFL) << (8 * k);
+            word = (word >>> (bitPos & 7)) & PACK_MASK;
+            retVal[PREFIX + w] = word;
+        }
+        return retVal;
+    }
+
+    /**
+     * Unpack a range of the byte stream from an encoded double array.  Only the bytes in the range are
+     * modified in the output buffer.
+     *
+     * @param raw		encoded array
+     * @param from		offset of the first byte to unpack
+     * @param to		offset past the last byte to unpack
+     * @param bytes		output buffer for the byte stream
+     */
+    protected static void unpackRange(double[] raw, int from, int to, byte[] bytes) {
+        if (to > from) {
+            Arrays.fill(bytes, from, to, (byte) 0);
+            final int w0 = (int) ((long) from * 8 / PACK_BITS);
+            final int w1 = (int) (((long) to * 8 - 1) / PACK_BITS);
+            for (int w = w0; w <= w1; w++) {
+                final long bitPos = (long) w * PACK_BITS;
+                final int b0 = (int) (bitPos >> 3);
+                long word = ((long) raw[PREFIX + w]) << (bitPos & 7);
+                final int kStart = Math.max(0, from - b0);
+                final int kEnd = Math.min(8, to - b0);
+                for (int k = kStart; k < kEnd; k++)
+                    bytes[b0 + k] |= (byte) (word >>> (8 * k));
+            }
+        }
+    }
+
+    /**
+     * Unpack the byte stream from an encoded double array.
+     *
+     * @param raw	encoded array
+     *
+     * @return a little-endian buffer containing the byte stream
+     */
+    protected static ByteBuffer unpack(double[] raw) {
+        final int len = (int) raw[1];
+        byte[] bytes = new byte[len + 8];
+        final int nWords = raw.length - PREFIX;
+        for (int w = 0; w < nWords; w++) {
+            final int bitPos = w * PACK_BITS;
+            final int b0 = bitPos >> 3;
+            long word = ((long) raw[PREFIX + w]) << (bitPos & 7);
+            for (int k = 0; k < 8 && b0 + k < bytes.length; k++)
+                bytes[b0 + k] |= (byte) (word >>> (8 * k));
+        }
+        return ByteBuffer.wrap(bytes, 0, len).order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+}
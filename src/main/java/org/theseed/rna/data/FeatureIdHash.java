@@ -0,0 +1,229 @@
+/**
+ *
+ */
+package org.theseed.rna.data;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * This object is a minimal perfect hash from feature ID bytes to feature array indices.  It is built once from
+ * a genome's feature index and then allows feature IDs to be looked up directly from a byte buffer, without
+ * creating any strings.
+ *
+ * The construction uses the hash-and-displace method.  Each key is hashed once to a 64-bit value.  The high
+ * half of the hash picks a bucket, and each bucket has a displacement seed that is mixed with the full hash to
+ * pick a slot in the table.  The buckets are placed largest first, and for each bucket we search for the first
+ * seed that puts all of its keys in empty slots.  A lookup therefore costs one hash computation, one seed
+ * lookup, and one key comparison.  The key bytes are stored in the table so that IDs not in the index can be
+ * rejected.
+ *
+ * @author Bruce Parrello
+ *
+ */
+public class FeatureIdHash {
+
+    // FIELDS
+    /** displacement seed for each bucket */
+    private final int[] seeds;
+    /** feature index for each slot, or -1 if the slot is empty */
+    private final int[] slotIdx;
+    /** offset of each slot's key in the key buffer */
+    private final int[] slotOffset;
+    /** length of each slot's key */
+    private final int[] slotLen;
+    /** buffer containing all the key bytes */
+    private final byte[] keyBytes;
+    /** number of keys in the hash */
+    private final int size;
+    /** average number of keys per bucket */
+    private static final int KEYS_PER_BUCKET = 4;
+    /** maximum displacement seed to try for a bucket */
+    private static final int MAX_SEED = 1000000;
+    /** FNV-1a offset basis */
+    private static final long FNV_BASIS = 0xcbf29ce484222325L;
+    /** FNV-1a prime */
+    private static final long FNV_PRIME = 0x100000001b3L;
+
+    /**
+     * Construct a perfect hash for a feature index.
+     *
+     * @param featureIndex	list of feature IDs, in feature index order (NULL entries are skipped)
+     */
+    public FeatureIdHash(List<String> featureIndex) {
+        final int nFeats = featureIndex.size();
+        // Convert the keys to bytes and compute their hashes.
+        byte[][] keys = new byte[nFeats][];
+        long[] hashes = new long[nFeats];
+        int total = 0;
+        int count = 0;
+        for (int i = 0; i < nFeats; i++) {
+            String fid = featureIndex.get(i);
+            if (fid != null) {
+                keys[i] = fid.getBytes(StandardCharsets.UTF_8);
+                hashes[i] = hash(keys[i], 0, keys[i].length);
+                total += keys[i].length;
+                count++;
+            }
+        }
+        this.size = count;
+        final int nBuckets = Math.max(1, count / KEYS_PER_BUCKET);
+        final int tableSize = Math.max(1, count + count / 4);
+        // Sort the keys into buckets.
+        List<List<Integer>> buckets = new ArrayList<List<Integer>>(nBuckets);
+        for (int b = 0; b < nBuckets; b++)
+            buckets.add(new ArrayList<Integer>(KEYS_PER_BUCKET * 2));
+        for (int i = 0; i < nFeats; i++) {
+            if (keys[i] != null)
+                buckets.get(bucket(hashes[i], nBuckets)).add(i);
+        }
+        Integer[] order = new Integer[nBuckets];
+        for (int b = 0; b < nBuckets; b++)
+            order[b] = b;
+        Arrays.sort(order, (x, y) -> Integer.compare(buckets.get(y).size(), buckets.get(x).size()));
+        // Place the buckets.
+        this.seeds = new int[nBuckets];
+        this.slotIdx = new int[tableSize];
+        Arrays.fill(this.slotIdx, -1);
+        int[] trial = new int[KEYS_PER_BUCKET * 4];
+        for (int b : order) {
+            List<Integer> members = buckets.get(b);
+            final int m = members.size();
+            if (m > 0) {
+                if (trial.length < m)
+                    trial = new int[m];
+                int seed = 0;
+                boolean placed = false;
+                while (! placed) {
+                    seed++;
+                    placed = true;
+                    for (int k = 0; k < m && placed; k++) {
+                        int slot = slot(hashes[members.get(k)], seed, tableSize);
+                        if (this.slotIdx[slot] >= 0)
+                            placed = false;
+                        else {
+                            for (int k2 = 0; k2 < k && placed; k2++) {
+                                if (trial[k2] == slot)
+                                    placed = false;
+                            }
+                        }
+                        trial[k] = slot;
+                    }
+                    if (! placed && seed >= MAX_SEED) {
+                        // Two identical keys always land in the same slot, so this is the only way to fail.
+                        throw new IllegalArgumentException("Could not build perfect hash:  feature index has duplicates.");
+                    }
+                }
+                this.seeds[b] = seed;
+                for (int k = 0; k < m; k++)
+                    this.slotIdx[trial[k]] = members.get(k);
+            }
+        }
+        // Store the keys in slot order.
+        this.keyBytes = new byte[total];
+        this.slotOffset = new int[tableSize];
+        this.slotLen = new int[tableSize];
+        int pos = 0;
+        for (int s = 0; s < tableSize; s++) {
+            int idx = this.slotIdx[s];
+            if (idx >= 0) {
+                byte[] key = keys[idx];
+                System.arraycopy(key, 0, this.keyBytes, pos, key.length);
+                this.slotOffset[s] = pos;
+                this.slotLen[s] = key.length;
+                pos += key.length;
+            }
+        }
+    }
+
+    /**
+     * @return the feature index for a feature ID stored in a byte buffer, or -1 if the ID is not in the index
+     *
+     * @param buffer	buffer containing the ID
+     * @param offset	offset of the ID in the buffer
+     * @param len		length of the ID
+     */
+    public int find(byte[] buffer, int offset, int len) {
+        int retVal = -1;
+        final int tableSize = this.slotIdx.length;
+        if (this.size > 0) {
+            long h = hash(buffer, offset, len);
+            int slot = slot(h, this.seeds[bucket(h, this.seeds.length)], tableSize);
+            int idx = this.slotIdx[slot];
+            if (idx >= 0 && this.slotLen[slot] == len && Arrays.equals(this.keyBytes, this.slotOffset[slot],
+                    this.slotOffset[slot] + len, buffer, offset, offset + len))
+                retVal = idx;
+        }
+        return retVal;
+    }
+
+    /**
+     * @return the feature index for a feature ID, or -1 if the ID is not in the index
+     *
+     * @param fid	feature ID to find
+     */
+    public int find(String fid) {
+        byte[] key = fid.getBytes(StandardCharsets.UTF_8);
+        return this.find(key, 0, key.length);
+    }
+
+    /**
+     * @return the number of feature IDs in the hash
+     */
+    public int size() {
+        return this.size;
+    }
+
+    /**
+     * @return the 64-bit FNV-1a hash of a byte range, with a final avalanche step
+     *
+     * @param buffer	buffer containing the key
+     * @param offset	offset of the key
+     * @param len		length of the key
+     */
+    private static long hash(byte[] buffer, int offset, int len) {
+        long retVal = FNV_BASIS;
+        final int end = offset + len;
+        for (int i = offset; i < end; i++) {
+            retVal ^= buffer[i] & 0xFF;
+            retVal *= FNV_PRIME;
+        }
+        return mix(retVal);
+    }
+
+    /**
+     * @return a well-mixed version of a 64-bit value (the SplitMix64 finalizer)
+     *
+     * @param x		value to mix
+     */
+    private static long mix(long x) {
+        x = (x ^ (x >>> 30)) * 0xbf58476d1ce4e5b9L;
+        x = (x ^ (x >>> 27)) * 0x94d049bb133111ebL;
+        return x ^ (x >>> 31);
+    }
+
+    /**
+     * @return the bucket for a key hash
+     *
+     * @param h			key hash
+     * @param nBuckets	number of buckets
+     */
+    private static int bucket(long h, int nBuckets) {
+        return (int) (((h >>> 32) * nBuckets) >>> 32);
+    }
+
+    /**
+     * @return the table slot for a key hash and a bucket seed
+     *
+     * @param h			key hash
+     * @param seed		bucket displacement seed
+     * @param tableSize	size of the table
+     */
+    private static int slot(long h, int seed, int tableSize) {
+        long x = mix(h + seed * 0x9E3779B97F4A7C15L);
+        return (int) (((x >>> 32) * tableSize) >>> 32);
+    }
+
+}
@@ -0,0 +1,455 @@
+/**
+ *
+ */
+package org.theseed.rna.data;
+
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedSet;
+import java.util.TreeSet;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.theseed.java.erdb.DbConnection;
+import org.theseed.java.erdb.DbQuery;
+import org.theseed.java.erdb.DbRecord;
+import org.theseed.java.erdb.Relop;
+import org.theseed.java.erdb.SqlBuffer;
+
+/**
+ * This object contains the feature metadata for a single genome:  the feature IDs in expression-array order,
+ * the gene names, aliases, assignments, baselines, and group memberships.  It is loaded with a single query
+ * and is immutable once built, so it can be shared by everything that needs feature information.
+ *
+ * The objects are kept in a static cache keyed on database URL and genome ID, since a server can be asked to
+ * run commands against different databases.  The cache is size-limited, with the least-recently used genome
+ * discarded first.  A cached copy is only used if the genome record still has the same name and feature count
+ * and the feature data still has the same content signature.  The signature is a hash of every field the
+ * metadata holds, computed from a single query over the genome's features and groups, so it catches changes
+ * made by other processes (such as a baseline computation run while a server is up).  The signature query
+ * reads the same rows as a load, but it builds no objects, so a cache hit still saves the parsing and the
+ * allocation, and every user in the process shares one copy.  Commands that rewrite the Feature or
+ * FeatureGroup data for a genome should still call invalidate() when they are done, so the memory is
+ * released at once.
+ *
+ * @author Bruce Parrello
+ *
+ */
+public class FeatureMetadata {
+
+    // FIELDS
+    /** logging facility */
+    protected static Logger log = LoggerFactory.getLogger(FeatureMetadata.class);
+    /** ID of the genome */
+    private final String genomeId;
+    /** name of the genome */
+    private final String genomeName;
+    /** feature count from the genome record */
+    private final int pegCount;
+    /** content signature of the feature data when it was loaded */
+    private final String signature;
+    /** feature IDs, by array index */
+    private final List<String> fids;
+    /** gene names, by array index */
+    private final String[] genes;
+    /** aliases, by array index */
+    private final String[] aliases;
+    /** functional assignments, by array index */
+    private final String[] assignments;
+    /** baseline expression levels, by array index */
+    private final double[] baselines;
+    /** group types for each feature, parallel to the group names */
+    private final String[][] groupTypes;
+    /** group names for each feature, parallel to the group types */
+    private final String[][] groupNames;
+    /** set of all group types in the genome */
+    private final SortedSet<String> allGroupTypes;
+    /** empty group list */
+    private static final String[] NO_GROUPS = new String[0];
+    /** cache of feature metadata, keyed by database URL and genome ID, in access order */
+    private static final Map<String, FeatureMetadata> cache = new LinkedHashMap<String, FeatureMetadata>(16, 0.75f, true);
+    /** maximum number of genomes to keep in the cache */
+    private static int cacheLimit = 8;
+    /** number of cache hits */
+    private static int hitCount = 0;
+    /** number of cache misses */
+    private static int missCount = 0;
+
+    /**
+     * This object describes the current state of a genome's feature data in a database.
+     */
+    private static class Stamp {
+
+        /** cache key, consisting of the database URL and the genome ID */
+        private final String key;
+        /** content signature of the feature data */
+        private final String signature;
+
+        /**
+         * Create a state descriptor.
+         *
+         * @param key			cache key
+         * @param signature		content signature
+         */
+        protected Stamp(String key, String signature) {
+            this.key = key;
+            this.signature = signature;
+        }
+
+    }
+
+    /**
+     * Load the feature metadata for a genome from the database.
+     *
+     * @param db			source database connection
+     * @param genome		genome record
+     * @param signature		content signature of the feature data, computed before the load
+     *
+     * @throws SQLException
+     */
+    private FeatureMetadata(DbConnection db, DbRecord genome, String signature) throws SQLException {
+        this.genomeId = genome.getString("Genome.genome_id");
+        this.genomeName = genome.getString("Genome.genome_name");
+        this.pegCount = genome.getInt("Genome.peg_count");
+        this.signature = signature;
+        // These lists are indexed by sequence number and are grown as needed.
+        List<String> fidList = new ArrayList<String>(this.pegCount);
+        List<String> geneList = new ArrayList<String>(this.pegCount);
+        List<String> aliasList = new ArrayList<String>(this.pegCount);
+        List<String> assignList = new ArrayList<String>(this.pegCount);
+        double[] baseArray = new double[this.pegCount];
+        List<List<String>> typeLists = new ArrayList<List<String>>(this.pegCount);
+        List<List<String>> nameLists = new ArrayList<List<String>>(this.pegCount);
+        this.allGroupTypes = new TreeSet<String>();
+        // Each feature appears once for each group it is in, and once with null group data if it has none.
+        try (DbQuery query = new DbQuery(db, "Feature < FeatureToGroup < FeatureGroup")) {
+            query.select("Feature", "fig_id", "gene_name", "alias", "assignment", "baseline", "seq_no");
+            query.select("FeatureGroup", "group_type", "group_name");
+            query.rel("Feature.genome_id", Relop.EQ);
+            query.setParm(1, this.genomeId);
+            var iter = query.iterator();
+            while (iter.hasNext()) {
+                var record = iter.next();
+                int seqNo = record.getInt("Feature.seq_no");
+                while (fidList.size() <= seqNo) {
+                    fidList.add(null);
+                    geneList.add(null);
+                    aliasList.add(null);
+                    assignList.add(null);
+                    typeLists.add(null);
+                    nameLists.add(null);
+                }
+                if (seqNo >= baseArray.length)
+                    baseArray = Arrays.copyOf(baseArray, Math.max(seqNo + 1, baseArray.length * 2));
+                if (fidList.get(seqNo) == null) {
+                    // Here we have a new feature.
+                    fidList.set(seqNo, record.getString("Feature.fig_id"));
+                    geneList.set(seqNo, record.getString("Feature.gene_name"));
+                    aliasList.set(seqNo, record.getString("Feature.alias"));
+                    assignList.set(seqNo, record.getString("Feature.assignment"));
+                    baseArray[seqNo] = record.getDouble("Feature.baseline");
+                }
+                String groupType = record.getString("FeatureGroup.group_type");
+                if (groupType != null) {
+                    if (typeLists.get(seqNo) == null) {
+                        typeLists.set(seqNo, new ArrayList<String>(4));
+                        nameLists.set(seqNo, new ArrayList<String>(4));
+                    }
+                    typeLists.get(seqNo).add(groupType);
+                    nameLists.get(seqNo).add(record.getString("FeatureGroup.group_name"));
+                    this.allGroupTypes.add(groupType);
+                }
+            }
+        }
+        // Freeze the data.
+        final int n = fidList.size();
+        this.fids = Collections.unmodifiableList(fidList);
+        this.genes = geneList.toArray(new String[n]);
+        this.aliases = aliasList.toArray(new String[n]);
+        this.assignments = assignList.toArray(new String[n]);
+        this.baselines = Arrays.copyOf(baseArray, n);
+        this.groupTypes = new String[n][];
+        this.groupNames = new String[n][];
+        for (int i = 0; i < n; i++) {
+            List<String> types = typeLists.get(i);
+            if (types == null) {
+                this.groupTypes[i] = NO_GROUPS;
+                this.groupNames[i] = NO_GROUPS;
+            } else {
+                this.groupTypes[i] = types.toArray(new String[types.size()]);
+                this.groupNames[i] = nameLists.get(i).toArray(new String[types.size()]);
+            }
+        }
+    }
+
+    /**
+     * Get the feature metadata for a genome.  If a valid copy is in the cache, it will be used; otherwise, it
+     * will be loaded from the database and cached.
+     *
+     * @param db			source database connection
+     * @param genomeId		ID of the genome of interest
+     *
+     * @return the feature metadata for the genome
+     *
+     * @throws SQLException
+     */
+    public static FeatureMetadata get(DbConnection db, String genomeId) throws SQLException {
+        // We always read the genome record.  This is a single-row lookup, and it lets us detect a
+        // genome that was reloaded by another process.
+        DbRecord genome = db.getRecord("Genome", genomeId);
+        if (genome == null)
+            throw new SQLException("Genome " + genomeId + " not found in database.");
+        String name = genome.getString("Genome.genome_name");
+        int count = genome.getInt("Genome.peg_count");
+        // If the data changes during the load, the signature will be out of date, so the next request
+        // will simply load again.
+        Stamp stamp = computeStamp(db, genomeId);
+        FeatureMetadata retVal;
+        synchronized (cache) {
+            retVal = cache.get(stamp.key);
+            if (retVal != null && (retVal.pegCount != count || ! retVal.genomeName.equals(name)
+                    || ! retVal.signature.equals(stamp.signature))) {
+                log.info("Cached feature data for {} is out of date.", genomeId);
+                cache.remove(stamp.key);
+                retVal = null;
+            }
+            if (retVal != null) {
+                hitCount++;
+                log.debug("Feature data for {} found in cache.", genomeId);
+            }
+        }
+        if (retVal == null) {
+            log.info("Loading feature data for {}.", genomeId);
+            retVal = new FeatureMetadata(db, genome, stamp.signature);
+            synchronized (cache) {
+                missCount++;
+                if (cacheLimit > 0) {
+                    cache.put(stamp.key, retVal);
+                    trimCache();
+                }
+            }
+        }
+        return retVal;
+    }
+
+    /**
+     * Compute the cache key and content signature of the feature data for a genome.  The signature is built
+     * from a hash of each feature and group-membership row.  The row hashes are summed, so the result does not
+     * depend on the order in which the database returns the rows.
+     *
+     * @param db			source database connection
+     * @param genomeId		ID of the genome of interest
+     *
+     * @return the cache key and a signature that changes whenever the feature data is changed
+     *
+     * @throws SQLException
+     */
+    private static Stamp computeStamp(DbConnection db, String genomeId) throws SQLException {
+        SqlBuffer buffer = new SqlBuffer(db).append("SELECT ").quote("Feature", "fig_id").appendDelim()
+                .quote("Feature", "gene_name").appendDelim().quote("Feature", "alias").appendDelim()
+                .quote("Feature", "assignment").appendDelim().quote("Feature", "baseline").appendDelim()
+                .quote("Feature", "seq_no").appendDelim().quote("FeatureGroup", "group_type").appendDelim()
+                .quote("FeatureGroup", "group_name").append(" FROM ").quote("Feature").append(" LEFT JOIN ")
+                .quote("FeatureToGroup").append(" ON ").quote("FeatureToGroup", "fig_id").append(" = ")
+                .quote("Feature", "fig_id").append(" LEFT JOIN ").quote("FeatureGroup").append(" ON ")
+                .quote("FeatureGroup", "group_id").append(" = ").quote("FeatureToGroup", "group_id")
+                .append(" WHERE ").quote("Feature", "genome_id").append(" = ").appendMark();
+        String dbUrl;
+        long rows = 0;
+        long hash = 0;
+        try (PreparedStatement stmt = db.createStatement(buffer)) {
+            dbUrl = stmt.getConnection().getMetaData().getURL();
+            stmt.setString(1, genomeId);
+            try (ResultSet results = stmt.executeQuery()) {
+                while (results.next()) {
+                    long rowHash = 0xcbf29ce484222325L;
+                    for (int i = 1; i <= 8; i++) {
+                        // A null field hashes differently from every string, including the empty one.
+                        String field = results.getString(i);
+                        if (field == null)
+                            rowHash = (rowHash ^ 0xFF) * 0x100000001b3L;
+                        else {
+                            for (int k = 0; k < field.length(); k++)
+                                rowHash = (rowHash ^ field.charAt(k)) * 0x100000001b3L;
+                        }
+                        rowHash = (rowHash ^ '\t') * 0x100000001b3L;
+                    }
+                    hash += rowHash;
+                    rows++;
+                }
+            }
+        }
+        return new Stamp(dbUrl + "\t" + genomeId, rows + "\t" + Long.toHexString(hash));
+    }
+
+    /**
+     * Remove a genome from the cache.  This must be called after the features or feature groups of a genome
+     * are changed in the database.
+     *
+     * @param genomeId		ID of the genome whose features have changed
+     */
+    public static void invalidate(String genomeId) {
+        synchronized (cache) {
+            // The genome is removed for every database, since we do not know which one changed.
+            if (cache.values().removeIf(x -> x.genomeId.equals(genomeId)))
+                log.info("Cached feature data for {} discarded.", genomeId);
+        }
+    }
+
+    /**
+     * Specify the maximum number of genomes whose feature data can be cached.
+     *
+     * @param limit		new cache limit (0 to disable caching)
+     */
+    public static void setCacheLimit(int limit) {
+        synchronized (cache) {
+            cacheLimit = limit;
+            trimCache();
+        }
+    }
+
+    /**
+     * Remove the least-recently-used entries from the cache until it fits within the limit.
+     */
+    private static void trimCache() {
+        var iter = cache.keySet().iterator();
+        while (cache.size() > cacheLimit && iter.hasNext()) {
+            iter.next();
+            iter.remove();
+        }
+    }
+
+    /**
+     * @return a string describing the cache hits and misses
+     */
+    public static String getCacheStats() {
+        synchronized (cache) {
+            return String.format("%d feature-data cache hits, %d misses, %d genomes cached.", hitCount, missCount,
+                    cache.size());
+        }
+    }
+
+    /**
+     * @return the genome ID
+     */
+    public String getGenomeId() {
+        return this.genomeId;
+    }
+
+    /**
+     * @return the genome name
+     */
+    public String getGenomeName() {
+        return this.genomeName;
+    }
+
+    /**
+     * @return the feature count from the genome record
+     */
+    public int getPegCount() {
+        return this.pegCount;
+    }
+
+    /**
+     * @return the number of positions in the expression level array
+     */
+    public int size() {
+        return this.fids.size();
+    }
+
+    /**
+     * @return an unmodifiable list of the feature IDs in expression-array order (positions with no feature are NULL)
+     */
+    public List<String> getFids() {
+        return this.fids;
+    }
+
+    /**
+     * @return the ID of the feature at the specified position, or NULL if there is none
+     *
+     * @param idx	array index of interest
+     */
+    public String getFid(int idx) {
+        return this.fids.get(idx);
+    }
+
+    /**
+     * @return the gene name of the feature at the specified position (or NULL if none)
+     *
+     * @param idx	array index of interest
+     */
+    public String getGene(int idx) {
+        return this.genes[idx];
+    }
+
+    /**
+     * @return the alias of the feature at the specified position (or NULL if none)
+     *
+     * @param idx	array index of interest
+     */
+    public String getAlias(int idx) {
+        return this.aliases[idx];
+    }
+
+    /**
+     * @return the functional assignment of the feature at the specified position
+     *
+     * @param idx	array index of interest
+     */
+    public String getAssignment(int idx) {
+        return this.assignments[idx];
+    }
+
+    /**
+     * @return the baseline expression level of the feature at the specified position
+     *
+     * @param idx	array index of interest
+     */
+    public double getBaseline(int idx) {
+        return this.baselines[idx];
+    }
+
+    /**
+     * @return the number of groups containing the feature at the specified position
+     *
+     * @param idx	array index of interest
+     */
+    public int getGroupCount(int idx) {
+        return this.groupTypes[idx].length;
+    }
+
+    /**
+     * @return the type of a group containing the feature at the specified position
+     *
+     * @param idx	array index of interest
+     * @param k		index of the group in the feature's group list
+     */
+    public String getGroupType(int idx, int k) {
+        return this.groupTypes[idx][k];
+    }
+
+    /**
+     * @return the name of a group containing the feature at the specified position
+     *
+     * @param idx	array index of interest
+     * @param k		index of the group in the feature's group list
+     */
+    public String getGroupName(int idx, int k) {
+        return this.groupNames[idx][k];
+    }
+
+    /**
+     * @return the set of all group types found in the genome
+     */
+    public SortedSet<String> getGroupTypes() {
+        return Collections.unmodifiableSortedSet(this.allGroupTypes);
+    }
+
+}
@@ -12,8 +12,6 @@ import org.apache.commons.lang3.StringUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.theseed.java.erdb.DbConnection;
-import org.theseed.java.erdb.DbQuery;
-import org.theseed.java.erdb.Relop;
 
 /**
  * This object represents data about a feature used for expression data analysis.
@@ -68,41 +66,22 @@ public class RnaFeature {
      * @throws SQLException
      */
     public static Map<String, RnaFeature> loadFeats(DbConnection db, String genomeId, RnaFeatureFilter filter) throws SQLException {
-        // We will start by building a map of the features.
-        var retVal = new HashMap<String, RnaFeature>(4000);
+        // We build the map from the cached feature metadata.
+        FeatureMetadata meta = FeatureMetadata.get(db, genomeId);
+        final int n = meta.size();
+        var retVal = new HashMap<String, RnaFeature>(n * 4 / 3 + 1);
         log.info("Reading features from {}.", genomeId);
-        try (DbQuery fQuery = new DbQuery(db, "Feature")) {
-            fQuery.select("Feature", "fig_id", "gene_name", "baseline", "seq_no");
-            fQuery.rel("Feature.genome_id", Relop.EQ);
-            fQuery.setParm(1, genomeId);
-            // Get all features for the genome.
-            var iter = fQuery.iterator();
-            while (iter.hasNext()) {
-                var record = iter.next();
-                var fid = record.getString("Feature.fig_id");
-                var feat = new RnaFeature(fid, record.getString("Feature.gene_name"),
-                        record.getDouble("Feature.baseline"), record.getInt("Feature.seq_no"));
+        for (int i = 0; i < n; i++) {
+            String fid = meta.getFid(i);
+            if (fid != null) {
+                var feat = new RnaFeature(fid, meta.getGene(i), meta.getBaseline(i), i);
+                // Add in the group types.
+                final int nGroups = meta.getGroupCount(i);
+                for (int k = 0; k < nGroups; k++)
+                    feat.groupTypes.add(meta.getGroupType(i, k));
                 retVal.put(fid, feat);
             }
         }
-        // Now add in all the group types.
-        log.info("Reading group data for {} features.", retVal.size());
-        try (DbQuery tQuery = new DbQuery(db, "Feature FeatureToGroup FeatureGroup")) {
-            tQuery.select("FeatureToGroup", "fig_id");
-            tQuery.select("FeatureGroup", "group_type");
-            tQuery.rel("Feature.genome_id", Relop.EQ);
-            tQuery.setParm(1, genomeId);
-            // Get the groups for all the features.
-            var iter = tQuery.iterator();
-            while (iter.hasNext()) {
-                var record = iter.next();
-                var fid = record.getString("FeatureToGroup.fig_id");
-                var type = record.getString("FeatureGroup.group_type");
-                var feat = retVal.get(fid);
-                if (feat != null)
-                    feat.groupTypes.add(type);
-            }
-        }
         // Apply the filter.
         log.info("Applying filter.");
         var iter = retVal.entrySet().iterator();
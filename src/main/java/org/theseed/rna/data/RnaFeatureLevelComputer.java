@@ -3,11 +3,17 @@
  */
 package org.theseed.rna.data;
 
+import java.util.List;
+
 /**
  * This is the base class for methods that compute the expression level representation for an RNA feature.
  * Among the possibilities are normalizing to a ratio of the baseline, collapsing to high/low/normal, and
  * so forth.
  *
+ * Each computer can process a single value or a whole sample row at a time.  The row method works on primitive
+ * arrays with the feature baselines pre-extracted (see getBaselines), so that its loop can be optimized by the
+ * compiler.  The two methods must produce the same results.
+ *
  * @author Bruce Parrello
  *
  */
@@ -55,6 +61,28 @@ public abstract class RnaFeatureLevelComputer {
      */
     public abstract double compute(RnaFeature feat, double level);
 
+    /**
+     * Compute the expression levels for a whole sample row.
+     *
+     * @param levels		array of raw level numbers
+     * @param baselines		array of baseline values for the features, parallel to the levels
+     * @param out			array to receive the computed expression levels (can be the same as the levels array)
+     */
+    public abstract void computeRow(double[] levels, double[] baselines, double[] out);
+
+    /**
+     * @return an array of the baseline values for a list of features, for use with computeRow
+     *
+     * @param feats		list of features in output order
+     */
+    public static double[] getBaselines(List<RnaFeature> feats) {
+        final int n = feats.size();
+        double[] retVal = new double[n];
+        for (int i = 0; i < n; i++)
+            retVal[i] = feats.get(i).getBaseLine();
+        return retVal;
+    }
+
     /**
      * This is the simplest feature level computer.  It simply returns the input unchanged.
      * Unknown values translate to the baseline.
@@ -70,6 +98,15 @@ public abstract class RnaFeatureLevelComputer {
             return (Double.isFinite(level) ? level : feat.getBaseLine());
         }
 
+        @Override
+        public void computeRow(double[] levels, double[] baselines, double[] out) {
+            final int n = levels.length;
+            for (int i = 0; i < n; i++) {
+                final double level = levels[i];
+                out[i] = (Double.isFinite(level) ? level : baselines[i]);
+            }
+        }
+
     }
 
 
@@ -6,9 +6,15 @@ package org.theseed.rna.data;
 import java.sql.SQLException;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
 
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import org.theseed.java.erdb.DbConnection;
 import org.theseed.java.erdb.DbQuery;
+import org.theseed.java.erdb.DbRecord;
 import org.theseed.java.erdb.Relop;
 
 /**
@@ -21,6 +27,8 @@ import org.theseed.java.erdb.Relop;
 public class RnaSample {
 
     // FIELDS
+    /** logging facility */
+    protected static Logger log = LoggerFactory.getLogger(RnaSample.class);
     /** sample ID */
     private String sampleId;
     /** array of expression levels */
@@ -53,30 +61,55 @@ public class RnaSample {
      * @throws SQLException
      */
     public static Collection<RnaSample> load(DbConnection db, String genomeId, String mType, double qual, double scale) throws SQLException {
-        var retVal = new ArrayList<RnaSample>(4000);
-        // Create the query.
-        try (DbQuery query = new DbQuery(db, "Measurement RnaSample")) {
-            // Filter the query for the measurement type and target genome.
-            query.select("Measurement", "value");
-            query.select("RnaSample", "sample_id", "feat_data");
+        return load(db, genomeId, mType, qual, scale, null);
+    }
+
+    /**
+     * Construct a list of the RNA samples from a database query, restricted to a specified set of samples.
+     * The measurements are read first, and only the expression data for measured samples in the set
+     * is fetched.
+     *
+     * @param db			database connection
+     * @param genomeId		ID of the target genome
+     * @param mType			measurement type
+     * @param qual			minimum quality level
+     * @param scale			scale factor to divide into output value
+     * @param sampleIds		set of IDs for the samples to load, or NULL to load all measured samples
+     *
+     * @throws SQLException
+     */
+    public static Collection<RnaSample> load(DbConnection db, String genomeId, String mType, double qual, double scale,
+            Set<String> sampleIds) throws SQLException {
+        // Get the measurement values for the genome's samples.
+        Map<String, Double> measureMap = new HashMap<String, Double>(4000);
+        try (DbQuery query = new DbQuery(db, "Measurement")) {
+            query.select("Measurement", "sample_id", "value");
             query.rel("Measurement.genome_id", Relop.EQ);
             query.rel("Measurement.measure_type", Relop.EQ);
-            query.rel("RnaSample.quality", Relop.GE);
             query.setParm(1, genomeId);
             query.setParm(2, mType);
-            query.setParm(3, qual);
-            // Now loop through the samples found.
             var iter = query.iterator();
             while (iter.hasNext()) {
                 var record = iter.next();
+                String sampleId = record.getString("Measurement.sample_id");
+                if (sampleIds == null || sampleIds.contains(sampleId))
+                    measureMap.put(sampleId, record.getDouble("Measurement.value"));
+            }
+        }
+        // Now fetch the expression data for the measured samples.
+        var retVal = new ArrayList<RnaSample>(measureMap.size());
+        try (SampleFetcher fetcher = new SampleFetcher(db, genomeId, qual, measureMap.keySet())) {
+            for (DbRecord record = fetcher.next(); record != null; record = fetcher.next()) {
+                String sampleId = record.getString("RnaSample.sample_id");
                 // Scale the output value.
-                var output = record.getDouble("Measurement.value");
+                double output = measureMap.get(sampleId);
                 if (Double.isFinite(output)) output /= scale;
                 // Create the sample.
-                var sample = new RnaSample(record.getString("RnaSample.sample_id"),
-                        record.getDoubleArray("RnaSample.feat_data"), output);
+                var sample = new RnaSample(sampleId, FeatureDataCodec.getLevels(record), output);
                 retVal.add(sample);
             }
+            log.info("{} sample records fetched for {} measured samples, {} kept.", fetcher.getFetched(),
+                    measureMap.size(), fetcher.getKept());
         }
         return retVal;
     }
@@ -0,0 +1,303 @@
+/**
+ *
+ */
+package org.theseed.rna.data;
+
+import java.sql.SQLException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.theseed.java.erdb.DbConnection;
+import org.theseed.java.erdb.DbQuery;
+import org.theseed.java.erdb.DbRecord;
+import org.theseed.java.erdb.Relop;
+
+/**
+ * This object returns the RnaSample records for a genome that meet a minimum quality and are in an optional
+ * set of wanted sample IDs.  The expression data is the largest part of each record, so when only a few of the
+ * genome's samples are wanted, the wanted set is pushed down to the database.  First, the IDs of the qualifying
+ * samples are read without the expression data.  Then, the wanted samples among them are fetched in batches.
+ * When most of the samples are wanted, a single scan of the full records is cheaper, and the unwanted records
+ * are discarded as they are read.
+ *
+ * The query builder cannot express an IN-list, and a hand-built statement would return the expression data
+ * in a form only the query builder can decode.  Instead, each batch is a key-range query covering a run of
+ * wanted IDs in sorted order.  The runs are chosen from the qualifying IDs so that at most half the records
+ * in a batch are unwanted, and a wanted ID with no nearby partners is fetched alone by primary key.  If the
+ * database orders the keys differently from Java, a wanted record may fall outside its range; such records are
+ * fetched by key when the batch is finished, so no record is ever missed.
+
+ * The records are returned by next(), which returns NULL when there are no more.  The statistics methods
+ * indicate how many full records were fetched and how many were kept.
+ *
+ * @author Bruce Parrello
+ *
+ */
+public class SampleFetcher implements AutoCloseable {
+
+    // FIELDS
+    /** logging facility */
+    protected static Logger log = LoggerFactory.getLogger(SampleFetcher.class);
+    /** database connection */
+    private final DbConnection db;
+    /** ID of the target genome */
+    private final String genomeId;
+    /** minimum acceptable quality */
+    private final double minQual;
+    /** set of wanted sample IDs (NULL for all) */
+    private final Set<String> wanted;
+    /** list of batches of sample IDs to fetch by key, each in sorted order (NULL if we are scanning) */
+    private List<List<String>> batches;
+    /** position in the batch list */
+    private int batchPos;
+    /** sample IDs to fetch individually by key */
+    private Deque<String> keyQueue;
+    /** wanted sample IDs in the current batch not yet returned */
+    private Set<String> pendingKeys;
+    /** full-record query for the scan or the current batch (NULL if none is active) */
+    private DbQuery query;
+    /** iterator through the full-record query */
+    private Iterator<DbRecord> iter;
+    /** number of qualifying samples in the genome (-1 if unknown) */
+    private int qualifying;
+    /** number of full records fetched */
+    private int fetched;
+    /** number of records returned */
+    private int kept;
+    /** maximum fraction of the qualifying samples for which fetching by key is used */
+    private static final double KEY_FETCH_LIMIT = 0.5;
+    /** maximum number of wanted samples in a batch */
+    private static final int BATCH_SIZE = 100;
+
+    /**
+     * Set up to fetch sample records.
+     *
+     * @param db			database connection
+     * @param genomeId		ID of the target genome
+     * @param minQual		minimum acceptable quality (a percent, as stored in the database)
+     * @param wanted		set of IDs for the samples wanted, or NULL to return all qualifying samples
+     *
+     * @throws SQLException
+     */
+    public SampleFetcher(DbConnection db, String genomeId, double minQual, Set<String> wanted) throws SQLException {
+        this.db = db;
+        this.genomeId = genomeId;
+        this.minQual = minQual;
+        this.wanted = wanted;
+        this.fetched = 0;
+        this.kept = 0;
+        this.qualifying = -1;
+        this.batches = null;
+        if (wanted != null) {
+            // Get the qualifying sample IDs, without the expression data.
+            List<String> allKeys = new ArrayList<String>(1000);
+            int count = 0;
+            try (DbQuery keyQuery = this.createQuery("sample_id")) {
+                var keyIter = keyQuery.iterator();
+                while (keyIter.hasNext()) {
+                    allKeys.add(keyIter.next().getString("RnaSample.sample_id"));
+                    count++;
+                }
+            }
+            this.qualifying = count;
+            int wantCount = 0;
+            for (String sampleId : allKeys) {
+                if (wanted.contains(sampleId))
+                    wantCount++;
+            }
+            if (wantCount <= count * KEY_FETCH_LIMIT) {
+                this.batches = computeBatches(allKeys, wanted);
+                this.batchPos = 0;
+                this.keyQueue = new ArrayDeque<String>();
+                log.info("Fetching {} of {} qualifying samples by key in {} batches.", wantCount, count,
+                        this.batches.size());
+            }
+        }
+        if (this.batches == null) {
+            // Here we are scanning the full records.
+            this.query = this.createQuery("sample_id", "feat_data");
+            this.iter = this.query.iterator();
+        }
+    }
+
+    /**
+     * Divide the wanted sample IDs into batches.  Each batch is a run of wanted IDs in sorted order, and the
+     * number of unwanted qualifying IDs inside the run is never more than the number of wanted ones.
+     *
+     * @param allKeys	IDs of the qualifying samples (will be sorted)
+     * @param wanted	set of wanted sample IDs
+     *
+     * @return a list of batches, each a sorted list of wanted sample IDs
+     */
+    protected static List<List<String>> computeBatches(List<String> allKeys, Set<String> wanted) {
+        List<List<String>> retVal = new ArrayList<List<String>>();
+        Collections.sort(allKeys);
+        List<String> batch = null;
+        // "gap" is the number of unwanted IDs since the last wanted one, and "waste" is the number of unwanted
+        // IDs inside the current batch.
+        int gap = 0;
+        int waste = 0;
+        for (String sampleId : allKeys) {
+            if (! wanted.contains(sampleId))
+                gap++;
+            else {
+                if (batch != null && (batch.size() >= BATCH_SIZE || waste + gap > batch.size())) {
+                    retVal.add(batch);
+                    batch = null;
+                }
+                if (batch == null) {
+                    batch = new ArrayList<String>(BATCH_SIZE);
+                    waste = 0;
+                } else
+                    waste += gap;
+                batch.add(sampleId);
+                gap = 0;
+            }
+        }
+        if (batch != null)
+            retVal.add(batch);
+        return retVal;
+    }
+
+    /**
+     * @return a query for qualifying samples in the genome
+     *
+     * @param fields		names of the RnaSample fields to return
+     *
+     * @throws SQLException
+     */
+    private DbQuery createQuery(String... fields) throws SQLException {
+        DbQuery retVal = new DbQuery(this.db, "RnaSample");
+        try {
+            retVal.select("RnaSample", fields);
+            retVal.rel("RnaSample.genome_id", Relop.EQ);
+            retVal.rel("RnaSample.quality", Relop.GE);
+            retVal.setParm(1, this.genomeId);
+            retVal.setParm(2, this.minQual);
+        } catch (SQLException e) {
+            retVal.close();
+            throw e;
+        }
+        return retVal;
+    }
+
+    /**
+     * @return a query for the full records of qualifying samples in a range of sample IDs
+     *
+     * @param first		first sample ID in the range
+     * @param last		last sample ID in the range
+     *
+     * @throws SQLException
+     */
+    private DbQuery createRangeQuery(String first, String last) throws SQLException {
+        DbQuery retVal = this.createQuery("sample_id", "feat_data");
+        try {
+            retVal.rel("RnaSample.sample_id", Relop.GE);
+            retVal.rel("RnaSample.sample_id", Relop.LE);
+            retVal.setParm(3, first);
+            retVal.setParm(4, last);
+        } catch (SQLException e) {
+            retVal.close();
+            throw e;
+        }
+        return retVal;
+    }
+
+    /**
+     * @return the next wanted sample record, or NULL if there are no more
+     *
+     * @throws SQLException
+     */
+    public DbRecord next() throws SQLException {
+        DbRecord retVal = null;
+        if (this.batches != null) {
+            boolean done = false;
+            while (retVal == null && ! done) {
+                if (! this.keyQueue.isEmpty()) {
+                    // Fetch a single sample by key.
+                    retVal = this.db.getRecord("RnaSample", this.keyQueue.remove());
+                    if (retVal != null)
+                        this.fetched++;
+                } else if (this.iter != null) {
+                    if (this.iter.hasNext()) {
+                        DbRecord record = this.iter.next();
+                        this.fetched++;
+                        if (this.pendingKeys.remove(record.getString("RnaSample.sample_id")))
+                            retVal = record;
+                    } else {
+                        // The batch is finished.  Anything it missed is fetched by key.
+                        this.query.close();
+                        this.query = null;
+                        this.iter = null;
+                        this.keyQueue.addAll(this.pendingKeys);
+                    }
+                } else if (this.batchPos < this.batches.size()) {
+                    List<String> batch = this.batches.get(this.batchPos);
+                    this.batchPos++;
+                    final int n = batch.size();
+                    if (n == 1)
+                        this.keyQueue.add(batch.get(0));
+                    else {
+                        this.pendingKeys = new HashSet<String>(batch);
+                        this.query = this.createRangeQuery(batch.get(0), batch.get(n - 1));
+                        this.iter = this.query.iterator();
+                    }
+                } else
+                    done = true;
+            }
+        } else {
+            while (retVal == null && this.iter.hasNext()) {
+                DbRecord record = this.iter.next();
+                this.fetched++;
+                if (this.wanted == null || this.wanted.contains(record.getString("RnaSample.sample_id")))
+                    retVal = record;
+            }
+        }
+        if (retVal != null)
+            this.kept++;
+        return retVal;
+    }
+
+    /**
+     * @return the number of full sample records fetched from the database
+     */
+    public int getFetched() {
+        return this.fetched;
+    }
+
+    /**
+     * @return the number of sample records returned
+     */
+    public int getKept() {
+        return this.kept;
+    }
+
+    /**
+     * @return the number of qualifying samples in the genome, or -1 if they were not counted
+     */
+    public int getQualifying() {
+        return this.qualifying;
+    }
+
+    /**
+     * @return TRUE if the samples are being fetched by key
+     */
+    public boolean isKeyFetch() {
+        return this.batches != null;
+    }
+
+    @Override
+    public void close() throws SQLException {
+        if (this.query != null)
+            this.query.close();
+    }
+
+}
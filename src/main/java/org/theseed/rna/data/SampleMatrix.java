@@ -0,0 +1,999 @@
+/**
+ *
+ */
+package org.theseed.rna.data;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.function.IntPredicate;
+import java.util.stream.IntStream;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.theseed.java.erdb.DbConnection;
+import org.theseed.java.erdb.DbQuery;
+import org.theseed.java.erdb.DbRecord;
+import org.theseed.java.erdb.Relop;
+import org.theseed.java.erdb.SqlBuffer;
+import org.theseed.java.erdb.sqlite.SqliteDbConnection;
+
+/**
+ * This object contains the complete expression matrix for a genome's RNA samples.  The matrix is
+ * stored twice, once in sample-major order (one row per sample, which is the native database layout)
+ * and once in feature-major order (one row per feature, which is what the correlation and statistics
+ * commands need).  The data can be held in memory or in a file on disk.  If it is on disk, the file
+ * is memory-mapped, so that the commands using it can access the expression levels without reading
+ * and decoding the RnaSample records from the database.  A matrix held in memory only stores the
+ * orientation its caller asked for, since two copies of a large genome's matrix will not fit in
+ * a normal heap.  The accessors for the other orientation still work, but they are much slower.
+ *
+ * Every sample for the genome is included, along with the flags needed to filter it (suspicious flag,
+ * quality, and cluster ID).  The header also contains a signature computed from these flags, the
+ * sample IDs, and a fingerprint of each sample's expression data (the feature count, the processing
+ * date, and an MD5 digest of the stored data).  If the signature in the file does not match
+ * the signature computed from the database, the file is out of date and must be rebuilt.
+ *
+ * The file begins with a magic number, a version number, and the length of the header.  The header
+ * is written with a DataOutputStream and contains the precision, the counts, the signature, the sample
+ * descriptors, and the feature IDs in sequence-number order.  The data sections follow, aligned on an
+ * 8-byte boundary, in little-endian order.
+ *
+ * @author Bruce Parrello
+ *
+ */
+public class SampleMatrix {
+
+    // FIELDS
+    /** logging facility */
+    protected static Logger log = LoggerFactory.getLogger(SampleMatrix.class);
+    /** magic number for matrix files */
+    private static final int MAGIC = 0x52534D58;
+    /** current file version */
+    private static final int VERSION = 1;
+    /** length of the fixed prefix (magic, version, header length) */
+    private static final int PREFIX_LEN = 12;
+    /** precision of the stored values */
+    private final Precision precision;
+    /** ID of the genome */
+    private final String genomeId;
+    /** data signature */
+    private final long signature;
+    /** array of sample IDs */
+    private final String[] sampleIds;
+    /** array of suspicious flags */
+    private final boolean[] suspicious;
+    /** array of sample quality percentages */
+    private final double[] quality;
+    /** array of sample cluster IDs (NULL if unclustered) */
+    private final String[] clusterIds;
+    /** array of feature IDs, in sequence-number order */
+    private final String[] featureIds;
+    /** sample-major data region (NULL if not stored) */
+    private Region sampleRows;
+    /** feature-major data region (NULL if not stored) */
+    private Region featureRows;
+
+    /**
+     * This enumeration describes the precision used to store the expression values.
+     */
+    public static enum Precision {
+        FLOAT(Float.BYTES), DOUBLE(Double.BYTES);
+
+        /** number of bytes per value */
+        private final int width;
+
+        private Precision(int width) {
+            this.width = width;
+        }
+
+        /**
+         * @return the number of bytes per stored value
+         */
+        public int getWidth() {
+            return this.width;
+        }
+
+    }
+
+    /**
+     * This enumeration describes the orientation of a matrix held in memory.
+     */
+    public static enum Orientation {
+        /** one row per sample, for commands that compare samples */
+        SAMPLE,
+        /** one row per feature, for commands that compare or summarize features */
+        FEATURE;
+    }
+
+    /**
+     * This object represents a two-dimensional region of values.  Each row is a contiguous run of
+     * values.  Because a single byte buffer cannot exceed 2 gigabytes, the region is broken into
+     * chunks, each containing a whole number of rows.
+     */
+    private static class Region {
+
+        /** array of chunk buffers */
+        private final ByteBuffer[] chunks;
+        /** number of rows */
+        private final int rows;
+        /** number of rows per chunk */
+        private final int rowsPerChunk;
+        /** number of values per row */
+        private final int rowLen;
+        /** precision of the values */
+        private final Precision precision;
+
+        /**
+         * Create a region.
+         *
+         * @param rows			number of rows
+         * @param rowLen		number of values per row
+         * @param precision		precision of the values
+         * @param mapper		function that allocates a buffer given a byte offset and length
+         *
+         * @throws IOException
+         */
+        protected Region(int rows, int rowLen, Precision precision, ChunkAllocator mapper) throws IOException {
+            this.rows = rows;
+            this.rowLen = rowLen;
+            this.precision = precision;
+            long rowBytes = (long) rowLen * precision.getWidth();
+            this.rowsPerChunk = (int) Math.max(1, Math.min(rows, Integer.MAX_VALUE / Math.max(1, rowBytes)));
+            int nChunks = (rows + this.rowsPerChunk - 1) / this.rowsPerChunk;
+            this.chunks = new ByteBuffer[nChunks];
+            for (int i = 0; i < nChunks; i++) {
+                int chunkRows = Math.min(this.rowsPerChunk, rows - i * this.rowsPerChunk);
+                ByteBuffer buffer = mapper.allocate(i * this.rowsPerChunk * rowBytes, chunkRows * rowBytes);
+                buffer.order(ByteOrder.LITTLE_ENDIAN);
+                this.chunks[i] = buffer;
+            }
+        }
+
+        /**
+         * @return the byte offset of a value inside its chunk
+         *
+         * @param row	row index
+         * @param col	column index
+         */
+        private int offset(int row, int col) {
+            return ((row % this.rowsPerChunk) * this.rowLen + col) * this.precision.getWidth();
+        }
+
+        /**
+         * @return the value at the specified position
+         *
+         * @param row	row index
+         * @param col	column index
+         */
+        protected double get(int row, int col) {
+            ByteBuffer buffer = this.chunks[row / this.rowsPerChunk];
+            int pos = this.offset(row, col);
+            return (this.precision == Precision.FLOAT ? buffer.getFloat(pos) : buffer.getDouble(pos));
+        }
+
+        /**
+         * Store a value at the specified position.
+         *
+         * @param row	row index
+         * @param col	column index
+         * @param value	value to store
+         */
+        protected void put(int row, int col, double value) {
+            ByteBuffer buffer = this.chunks[row / this.rowsPerChunk];
+            int pos = this.offset(row, col);
+            if (this.precision == Precision.FLOAT)
+                buffer.putFloat(pos, (float) value);
+            else
+                buffer.putDouble(pos, value);
+        }
+
+        /**
+         * Copy an entire row into an array.
+         *
+         * @param row		row index
+         * @param buffer	output array (must be at least as long as a row)
+         */
+        protected void getRow(int row, double[] buffer) {
+            ByteBuffer chunk = this.chunks[row / this.rowsPerChunk].duplicate().order(ByteOrder.LITTLE_ENDIAN);
+            chunk.position(this.offset(row, 0));
+            if (this.precision == Precision.DOUBLE)
+                chunk.asDoubleBuffer().get(buffer, 0, this.rowLen);
+            else {
+                var floats = chunk.asFloatBuffer();
+                for (int i = 0; i < this.rowLen; i++)
+                    buffer[i] = floats.get(i);
+            }
+        }
+
+        /**
+         * Store an entire row from an array.  If the array is short, the residual values are
+         * set to NaN.
+         *
+         * @param row		row index
+         * @param values	input array
+         */
+        protected void putRow(int row, double[] values) {
+            final int n = Math.min(values.length, this.rowLen);
+            for (int i = 0; i < n; i++)
+                this.put(row, i, values[i]);
+            for (int i = n; i < this.rowLen; i++)
+                this.put(row, i, Double.NaN);
+        }
+
+        /**
+         * Store an entire column from an array.  If the array is short, the residual values are
+         * set to NaN.
+         *
+         * @param col		column index
+         * @param values	input array
+         */
+        protected void putColumn(int col, double[] values) {
+            final int n = Math.min(values.length, this.rows);
+            for (int i = 0; i < n; i++)
+                this.put(i, col, values[i]);
+            for (int i = n; i < this.rows; i++)
+                this.put(i, col, Double.NaN);
+        }
+
+        /**
+         * Insure all the data in this region is written to disk.
+         */
+        protected void force() {
+            for (ByteBuffer chunk : this.chunks) {
+                if (chunk instanceof MappedByteBuffer)
+                    ((MappedByteBuffer) chunk).force();
+            }
+        }
+
+    }
+
+    /**
+     * This interface allocates the byte buffer for a region chunk.
+     */
+    @FunctionalInterface
+    private interface ChunkAllocator {
+
+        /**
+         * @return a buffer for the region chunk at the specified offset and length
+         *
+         * @param offset	byte offset of the chunk in the region
+         * @param len		byte length of the chunk
+         *
+         * @throws IOException
+         */
+        public ByteBuffer allocate(long offset, long len) throws IOException;
+
+    }
+
+    /**
+     * Construct a sample matrix from its header data.  The data regions are allocated separately.
+     *
+     * @param genomeId		ID of the genome
+     * @param precision		value precision
+     * @param signature		data signature
+     * @param samples		list of sample descriptors
+     * @param featureIds	array of feature IDs in sequence-number order
+     */
+    private SampleMatrix(String genomeId, Precision precision, long signature, List<SampleDesc> samples,
+            String[] featureIds) {
+        this.genomeId = genomeId;
+        this.precision = precision;
+        this.signature = signature;
+        final int n = samples.size();
+        this.sampleIds = new String[n];
+        this.suspicious = new boolean[n];
+        this.quality = new double[n];
+        this.clusterIds = new String[n];
+        for (int i = 0; i < n; i++) {
+            SampleDesc desc = samples.get(i);
+            this.sampleIds[i] = desc.sampleId;
+            this.suspicious[i] = desc.suspicious;
+            this.quality[i] = desc.quality;
+            this.clusterIds[i] = desc.clusterId;
+        }
+        this.featureIds = featureIds;
+    }
+
+    /**
+     * This is a simple descriptor for the sample metadata.
+     */
+    protected static class SampleDesc {
+
+        /** ID of the sample */
+        private final String sampleId;
+        /** TRUE if the sample is suspicious */
+        private final boolean suspicious;
+        /** quality percentage */
+        private final double quality;
+        /** cluster ID, or NULL if none */
+        private final String clusterId;
+        /** fingerprint of the expression data (empty if unknown) */
+        private final String content;
+
+        /**
+         * Create a sample descriptor.
+         *
+         * @param id		sample ID
+         * @param susp		suspicious flag
+         * @param qual		quality percentage
+         * @param cluster	cluster ID (or NULL)
+         * @param content	fingerprint of the expression data (or an empty string)
+         */
+        protected SampleDesc(String id, boolean susp, double qual, String cluster, String content) {
+            this.sampleId = id;
+            this.suspicious = susp;
+            this.quality = qual;
+            this.clusterId = cluster;
+            this.content = content;
+        }
+
+        /**
+         * @return a 64-bit hash of this descriptor
+         */
+        protected long hash64() {
+            String key = this.sampleId + "\t" + this.suspicious + "\t" + this.quality + "\t" + this.clusterId
+                    + "\t" + this.content;
+            long retVal = 0xcbf29ce484222325L;
+            for (int i = 0; i < key.length(); i++) {
+                retVal ^= key.charAt(i);
+                retVal *= 0x100000001b3L;
+            }
+            return retVal;
+        }
+
+    }
+
+    /**
+     * This object contains the sample metadata for a genome and the signature computed from it.  The metadata
+     * includes a fingerprint of each sample's expression data, so that reloading or recoding a sample changes
+     * the signature even if its flags are unchanged.
+     */
+    public static class Census {
+
+        /** list of sample descriptors */
+        private final List<SampleDesc> samples;
+        /** signature of the metadata */
+        private final long signature;
+        /** URL of the source database */
+        private final String dbUrl;
+
+        /**
+         * Read the sample metadata for a genome.  The fingerprint of each sample's expression data includes an
+         * MD5 digest of the stored feat_data field, so that any change to the values is detected, even one that
+         * leaves the length and the other fields alone.  On MySQL the digest is computed by the server, so only
+         * the digest is transmitted.  SQLite has no digest function, so there the data is read and the digest is
+         * computed locally; this is still far cheaper than decoding the data.  The query is built directly,
+         * because neither form is something we can select through the normal query interface.
+         *
+         * @param db			database connection
+         * @param genomeId		ID of the genome of interest
+         *
+         * @throws SQLException
+         */
+        public Census(DbConnection db, String genomeId) throws SQLException {
+            this.samples = new ArrayList<SampleDesc>(1000);
+            long sig = 0;
+            final boolean localDigest = (db instanceof SqliteDbConnection);
+            SqlBuffer buffer = new SqlBuffer(db).append("SELECT ").quote("RnaSample", "sample_id").appendDelim()
+                    .quote("RnaSample", "suspicious").appendDelim().quote("RnaSample", "quality").appendDelim()
+                    .quote("RnaSample", "cluster_id").appendDelim().quote("RnaSample", "feat_count").appendDelim()
+                    .quote("RnaSample", "process_date").appendDelim();
+            if (localDigest)
+                buffer.quote("RnaSample", "feat_data");
+            else
+                buffer.append("MD5(").quote("RnaSample", "feat_data").append(")");
+            buffer.append(" FROM ").quote("RnaSample").append(" WHERE ").quote("RnaSample", "genome_id")
+                    .append(" = ").appendMark();
+            MessageDigest md5 = (localDigest ? createDigest() : null);
+            try (PreparedStatement stmt = db.createStatement(buffer)) {
+                this.dbUrl = stmt.getConnection().getMetaData().getURL();
+                stmt.setString(1, genomeId);
+                try (ResultSet results = stmt.executeQuery()) {
+                    while (results.next()) {
+                        String sampleId = results.getString(1);
+                        boolean susp = results.getBoolean(2);
+                        double qual = results.getDouble(3);
+                        String cluster = results.getString(4);
+                        int featCount = results.getInt(5);
+                        double procDate = results.getDouble(6);
+                        String dateString = (results.wasNull() ? "" : Double.toString(procDate));
+                        String digest;
+                        if (localDigest)
+                            digest = toHex(md5.digest(results.getBytes(7)));
+                        else
+                            digest = results.getString(7).toLowerCase();
+                        String content = featCount + "\t" + dateString + "\t" + digest;
+                        SampleDesc desc = new SampleDesc(sampleId, susp, qual, cluster, content);
+                        this.samples.add(desc);
+                        // The signature is a commutative combination of the descriptor hashes, so it does not
+                        // depend on the order in which the database returns the records.
+                        sig += desc.hash64();
+                    }
+                }
+            }
+            this.signature = sig * 31 + this.samples.size();
+        }
+
+        /**
+         * @return an MD5 message digest
+         */
+        private static MessageDigest createDigest() {
+            try {
+                return MessageDigest.getInstance("MD5");
+            } catch (NoSuchAlgorithmException e) {
+                // MD5 is required in every Java implementation.
+                throw new IllegalStateException(e);
+            }
+        }
+
+        /**
+         * @return a digest as a lower-case hex string, matching the output of the MySQL MD5 function
+         *
+         * @param digest	digest bytes to convert
+         */
+        private static String toHex(byte[] digest) {
+            StringBuilder retVal = new StringBuilder(digest.length * 2);
+            for (byte b : digest)
+                retVal.append(String.format("%02x", b));
+            return retVal.toString();
+        }
+
+        /**
+         * @return the signature of the sample metadata
+         */
+        public long getSignature() {
+            return this.signature;
+        }
+
+        /**
+         * @return the URL of the database from which the census was taken
+         */
+        public String getDatabaseUrl() {
+            return this.dbUrl;
+        }
+
+        /**
+         * @return the number of samples
+         */
+        public int size() {
+            return this.samples.size();
+        }
+
+        /**
+         * @return the ID of a sample
+         *
+         * @param i		index of the sample in this census
+         */
+        public String getSampleId(int i) {
+            return this.samples.get(i).sampleId;
+        }
+
+        /**
+         * @return the quality percentage of a sample
+         *
+         * @param i		index of the sample in this census
+         */
+        public double getQuality(int i) {
+            return this.samples.get(i).quality;
+        }
+
+        /**
+         * @return a 64-bit hash of a sample's metadata and data fingerprint
+         *
+         * @param i		index of the sample in this census
+         */
+        public long getSampleHash(int i) {
+            return this.samples.get(i).hash64();
+        }
+
+    }
+
+    /**
+     * Load a sample matrix from the database into memory.  Only the requested orientation is stored.
+     *
+     * @param db			database connection
+     * @param genomeId		ID of the genome whose samples are desired
+     * @param precision		precision for storing the values
+     * @param orientation	orientation to store
+     *
+     * @return the sample matrix for the specified genome
+     *
+     * @throws SQLException
+     * @throws IOException
+     */
+    public static SampleMatrix load(DbConnection db, String genomeId, Precision precision, Orientation orientation)
+            throws SQLException, IOException {
+        Census census = new Census(db, genomeId);
+        String[] featureIds = readFeatureIds(db, genomeId);
+        SampleMatrix retVal = new SampleMatrix(genomeId, precision, census.getSignature(), census.samples, featureIds);
+        if (orientation == Orientation.SAMPLE)
+            retVal.sampleRows = new Region(retVal.getSampleCount(), featureIds.length, precision,
+                    (offset, len) -> ByteBuffer.allocate((int) len));
+        else
+            retVal.featureRows = new Region(featureIds.length, retVal.getSampleCount(), precision,
+                    (offset, len) -> ByteBuffer.allocate((int) len));
+        retVal.fill(db);
+        return retVal;
+    }
+
+    /**
+     * Build a sample matrix file from the database and return the mapped matrix.
+     *
+     * @param db			database connection
+     * @param genomeId		ID of the genome whose samples are desired
+     * @param census		sample metadata for the genome
+     * @param precision		precision for storing the values
+     * @param outFile		file in which to store the matrix
+     *
+     * @return the memory-mapped sample matrix
+     *
+     * @throws SQLException
+     * @throws IOException
+     */
+    public static SampleMatrix build(DbConnection db, String genomeId, Census census, Precision precision, File outFile)
+            throws SQLException, IOException {
+        String[] featureIds = readFeatureIds(db, genomeId);
+        SampleMatrix retVal = new SampleMatrix(genomeId, precision, census.getSignature(), census.samples, featureIds);
+        // We build into a uniquely-named temporary file and then rename it, so that a failed build never leaves
+        // a partial matrix where another command could find it, and two concurrent builds do not collide.
+        File tempFile = File.createTempFile("matrix", ".tmp", outFile.getAbsoluteFile().getParentFile());
+        try {
+            byte[] header = retVal.createHeader();
+            long dataStart = dataOffset(header.length);
+            long regionLen = (long) retVal.getSampleCount() * featureIds.length * precision.getWidth();
+            try (RandomAccessFile raFile = new RandomAccessFile(tempFile, "rw")) {
+                raFile.setLength(dataStart + 2 * regionLen);
+                raFile.writeInt(MAGIC);
+                raFile.writeInt(VERSION);
+                raFile.writeInt(header.length);
+                raFile.write(header);
+                FileChannel channel = raFile.getChannel();
+                retVal.mapRegions(channel, FileChannel.MapMode.READ_WRITE, dataStart, regionLen);
+                retVal.fill(db);
+                retVal.sampleRows.force();
+                retVal.featureRows.force();
+            }
+            if (outFile.exists() && ! outFile.delete())
+                throw new IOException("Could not replace sample matrix file " + outFile + ".");
+            if (! tempFile.renameTo(outFile))
+                throw new IOException("Could not rename " + tempFile + " to " + outFile + ".");
+        } finally {
+            if (tempFile.exists() && ! tempFile.delete())
+                log.warn("Could not delete temporary file {}.", tempFile);
+        }
+        // Re-open the final file read-only.
+        return open(outFile);
+    }
+
+    /**
+     * Open a sample matrix file.  The data regions are memory-mapped read-only.
+     *
+     * @param inFile	file containing the sample matrix
+     *
+     * @return the sample matrix
+     *
+     * @throws IOException
+     */
+    public static SampleMatrix open(File inFile) throws IOException {
+        SampleMatrix retVal;
+        try (RandomAccessFile raFile = new RandomAccessFile(inFile, "r")) {
+            int magic = raFile.readInt();
+            int version = raFile.readInt();
+            if (magic != MAGIC || version != VERSION)
+                throw new IOException("File " + inFile + " is not a valid version-" + VERSION + " sample matrix.");
+            int headerLen = raFile.readInt();
+            byte[] header = new byte[headerLen];
+            raFile.readFully(header);
+            retVal = parseHeader(header);
+            long regionLen = (long) retVal.getSampleCount() * retVal.getFeatureCount() * retVal.precision.getWidth();
+            long dataStart = dataOffset(headerLen);
+            if (raFile.length() < dataStart + 2 * regionLen)
+                throw new IOException("Sample matrix file " + inFile + " is truncated.");
+            retVal.mapRegions(raFile.getChannel(), FileChannel.MapMode.READ_ONLY, dataStart, regionLen);
+        }
+        return retVal;
+    }
+
+    /**
+     * Read the header of a sample matrix file without mapping the data.
+     *
+     * @param inFile	file containing the sample matrix
+     *
+     * @return the data signature in the file, or 0 if the file is invalid
+     */
+    public static long readSignature(File inFile) {
+        long retVal = 0;
+        try (DataInputStream inStream = new DataInputStream(new FileInputStream(inFile))) {
+            if (inStream.readInt() == MAGIC && inStream.readInt() == VERSION) {
+                inStream.readInt();
+                // Skip the genome ID and the precision.
+                inStream.readUTF();
+                inStream.readUTF();
+                retVal = inStream.readLong();
+            }
+        } catch (IOException e) {
+            log.warn("Error reading sample matrix header from {}: {}", inFile, e.toString());
+        }
+        return retVal;
+    }
+
+    /**
+     * @return the precision stored in a sample matrix file, or NULL if the file is invalid
+     *
+     * @param inFile	file containing the sample matrix
+     */
+    public static Precision readPrecision(File inFile) {
+        Precision retVal = null;
+        try (DataInputStream inStream = new DataInputStream(new FileInputStream(inFile))) {
+            if (inStream.readInt() == MAGIC && inStream.readInt() == VERSION) {
+                inStream.readInt();
+                inStream.readUTF();
+                retVal = Precision.valueOf(inStream.readUTF());
+            }
+        } catch (IOException | IllegalArgumentException e) {
+            log.warn("Error reading sample matrix header from {}: {}", inFile, e.toString());
+        }
+        return retVal;
+    }
+
+    /**
+     * @return the offset to the data regions, given the header length
+     *
+     * @param headerLen		length of the header in bytes
+     */
+    private static long dataOffset(int headerLen) {
+        long retVal = PREFIX_LEN + headerLen;
+        return (retVal + 7) & ~7L;
+    }
+
+    /**
+     * Map the data regions from a file channel.
+     *
+     * @param channel		file channel to map
+     * @param mode			mapping mode
+     * @param dataStart		file offset of the first data region
+     * @param regionLen		byte length of each region
+     *
+     * @throws IOException
+     */
+    private void mapRegions(FileChannel channel, FileChannel.MapMode mode, long dataStart, long regionLen) throws IOException {
+        final int nSamples = this.getSampleCount();
+        final int nFeatures = this.getFeatureCount();
+        this.sampleRows = new Region(nSamples, nFeatures, this.precision,
+                (offset, len) -> channel.map(mode, dataStart + offset, len));
+        this.featureRows = new Region(nFeatures, nSamples, this.precision,
+                (offset, len) -> channel.map(mode, dataStart + regionLen + offset, len));
+    }
+
+    /**
+     * @return the header bytes for this matrix
+     *
+     * @throws IOException
+     */
+    private byte[] createHeader() throws IOException {
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream(this.getSampleCount() * 30 + this.getFeatureCount() * 25);
+        try (DataOutputStream outStream = new DataOutputStream(buffer)) {
+            outStream.writeUTF(this.genomeId);
+            outStream.writeUTF(this.precision.name());
+            outStream.writeLong(this.signature);
+            outStream.writeInt(this.getSampleCount());
+            outStream.writeInt(this.getFeatureCount());
+            for (int i = 0; i < this.sampleIds.length; i++) {
+                outStream.writeUTF(this.sampleIds[i]);
+                outStream.writeBoolean(this.suspicious[i]);
+                outStream.writeDouble(this.quality[i]);
+                outStream.writeUTF(this.clusterIds[i] == null ? "" : this.clusterIds[i]);
+            }
+            // A gap in the sequence numbers has no feature ID.
+            for (String fid : this.featureIds)
+                outStream.writeUTF(fid == null ? "" : fid);
+        }
+        return buffer.toByteArray();
+    }
+
+    /**
+     * Create a sample matrix from a file header.
+     *
+     * @param header	header bytes
+     *
+     * @return a sample matrix with the header information filled in, but no data regions
+     *
+     * @throws IOException
+     */
+    private static SampleMatrix parseHeader(byte[] header) throws IOException {
+        try (DataInputStream inStream = new DataInputStream(new java.io.ByteArrayInputStream(header))) {
+            String genomeId = inStream.readUTF();
+            Precision precision = Precision.valueOf(inStream.readUTF());
+            long signature = inStream.readLong();
+            final int nSamples = inStream.readInt();
+            final int nFeatures = inStream.readInt();
+            List<SampleDesc> samples = new ArrayList<SampleDesc>(nSamples);
+            for (int i = 0; i < nSamples; i++) {
+                String sampleId = inStream.readUTF();
+                boolean susp = inStream.readBoolean();
+                double qual = inStream.readDouble();
+                String cluster = inStream.readUTF();
+                samples.add(new SampleDesc(sampleId, susp, qual, (cluster.isEmpty() ? null : cluster), ""));
+            }
+            String[] featureIds = new String[nFeatures];
+            for (int i = 0; i < nFeatures; i++) {
+                String fid = inStream.readUTF();
+                featureIds[i] = (fid.isEmpty() ? null : fid);
+            }
+            return new SampleMatrix(genomeId, precision, signature, samples, featureIds);
+        }
+    }
+
+    /**
+     * @return the feature IDs for a genome, in sequence-number order
+     *
+     * @param db			database connection
+     * @param genomeId		ID of the genome of interest
+     *
+     * @throws SQLException
+     */
+    private static String[] readFeatureIds(DbConnection db, String genomeId) throws SQLException {
+        List<String> retVal = new ArrayList<String>(4000);
+        try (DbQuery query = new DbQuery(db, "Feature")) {
+            query.select("Feature", "fig_id", "seq_no");
+            query.rel("Feature.genome_id", Relop.EQ);
+            query.setParm(1, genomeId);
+            Iterator<DbRecord> iter = query.iterator();
+            while (iter.hasNext()) {
+                DbRecord record = iter.next();
+                int seqNo = record.getInt("Feature.seq_no");
+                while (retVal.size() <= seqNo)
+                    retVal.add(null);
+                retVal.set(seqNo, record.getString("Feature.fig_id"));
+            }
+        }
+        return retVal.stream().toArray(String[]::new);
+    }
+
+    /**
+     * Fill the data regions from the database.  If there is a sample-major region, it is filled while
+     * reading the samples, and then it is transposed into the feature-major region (if any).  Otherwise,
+     * the samples are stored directly into the feature-major region.  A newly-allocated region reads as zero,
+     * so if any sample in the census is no longer in the database, the build fails rather than storing
+     * zeroes for its expression levels.
+     *
+     * @param db	database connection
+     *
+     * @throws SQLException
+     */
+    private void fill(DbConnection db) throws SQLException {
+        final int nSamples = this.getSampleCount();
+        final int nFeatures = this.getFeatureCount();
+        Map<String, Integer> rowMap = new HashMap<String, Integer>(nSamples * 4 / 3 + 1);
+        for (int i = 0; i < nSamples; i++)
+            rowMap.put(this.sampleIds[i], i);
+        log.info("Reading expression data for {} samples in genome {}.", nSamples, this.genomeId);
+        try (DbQuery query = new DbQuery(db, "RnaSample")) {
+            query.select("RnaSample", "sample_id", "feat_data");
+            query.rel("RnaSample.genome_id", Relop.EQ);
+            query.setParm(1, this.genomeId);
+            int count = 0;
+            long lastMsg = System.currentTimeMillis();
+            Iterator<DbRecord> iter = query.iterator();
+            while (iter.hasNext()) {
+                DbRecord record = iter.next();
+                Integer row = rowMap.get(record.getString("RnaSample.sample_id"));
+                if (row != null) {
+                    double[] levels = FeatureDataCodec.getLevels(record);
+                    if (this.sampleRows != null)
+                        this.sampleRows.putRow(row, levels);
+                    else
+                        this.featureRows.putColumn(row, levels);
+                    count++;
+                    if (log.isInfoEnabled() && System.currentTimeMillis() - lastMsg >= 5000) {
+                        log.info("{} of {} samples read.", count, nSamples);
+                        lastMsg = System.currentTimeMillis();
+                    }
+                }
+            }
+            if (count != nSamples)
+                throw new SQLException("Only " + count + " of " + nSamples + " samples for genome " + this.genomeId
+                        + " were found.  The samples changed while the matrix was being built.");
+        }
+        if (this.sampleRows != null && this.featureRows != null) {
+            // Now transpose the matrix.  We do this in blocks of samples so that the source rows stay in cache.
+            log.info("Transposing expression matrix for {}.", this.genomeId);
+            final int blockSize = 64;
+            IntStream.range(0, (nSamples + blockSize - 1) / blockSize).parallel().forEach(b -> {
+                final int start = b * blockSize;
+                final int end = Math.min(nSamples, start + blockSize);
+                for (int f = 0; f < nFeatures; f++) {
+                    for (int s = start; s < end; s++)
+                        this.featureRows.put(f, s, this.sampleRows.get(s, f));
+                }
+            });
+        }
+    }
+
+    /**
+     * @return the number of samples in this matrix
+     */
+    public int getSampleCount() {
+        return this.sampleIds.length;
+    }
+
+    /**
+     * @return the number of features in this matrix
+     */
+    public int getFeatureCount() {
+        return this.featureIds.length;
+    }
+
+    /**
+     * @return the ID of the genome for this matrix
+     */
+    public String getGenomeId() {
+        return this.genomeId;
+    }
+
+    /**
+     * @return the signature of the sample metadata used to build this matrix
+     */
+    public long getSignature() {
+        return this.signature;
+    }
+
+    /**
+     * @return the precision of the stored values
+     */
+    public Precision getPrecision() {
+        return this.precision;
+    }
+
+    /**
+     * @return the ID of the sample at the specified row
+     *
+     * @param idx	sample row index
+     */
+    public String getSampleId(int idx) {
+        return this.sampleIds[idx];
+    }
+
+    /**
+     * @return TRUE if the sample at the specified row is suspicious
+     *
+     * @param idx	sample row index
+     */
+    public boolean isSuspicious(int idx) {
+        return this.suspicious[idx];
+    }
+
+    /**
+     * @return the quality percentage of the sample at the specified row
+     *
+     * @param idx	sample row index
+     */
+    public double getQuality(int idx) {
+        return this.quality[idx];
+    }
+
+    /**
+     * @return the cluster ID of the sample at the specified row, or NULL if it is unclustered
+     *
+     * @param idx	sample row index
+     */
+    public String getClusterId(int idx) {
+        return this.clusterIds[idx];
+    }
+
+    /**
+     * @return the ID of the feature with the specified sequence number
+     *
+     * @param idx	feature sequence number
+     */
+    public String getFeatureId(int idx) {
+        return this.featureIds[idx];
+    }
+
+    /**
+     * @return the indices of the samples that satisfy a condition
+     *
+     * @param filter	predicate that takes a sample row index as input
+     */
+    public int[] selectSamples(IntPredicate filter) {
+        return IntStream.range(0, this.getSampleCount()).filter(filter).toArray();
+    }
+
+    /**
+     * @return the indices of the non-suspicious samples
+     */
+    public int[] getGoodSamples() {
+        return this.selectSamples(i -> ! this.suspicious[i]);
+    }
+
+    /**
+     * @return the expression level for a single sample and feature
+     *
+     * @param sample	sample row index
+     * @param feat		feature sequence number
+     */
+    public double getValue(int sample, int feat) {
+        return (this.sampleRows != null ? this.sampleRows.get(sample, feat) : this.featureRows.get(feat, sample));
+    }
+
+    /**
+     * Copy the expression levels for a sample into an array.
+     *
+     * @param sample	sample row index
+     * @param buffer	output array, or NULL to allocate a new one
+     *
+     * @return the array containing the sample's expression levels, indexed by feature sequence number
+     */
+    public double[] getSampleRow(int sample, double[] buffer) {
+        double[] retVal = (buffer == null ? new double[this.getFeatureCount()] : buffer);
+        if (this.sampleRows != null)
+            this.sampleRows.getRow(sample, retVal);
+        else {
+            final int n = this.getFeatureCount();
+            for (int f = 0; f < n; f++)
+                retVal[f] = this.featureRows.get(f, sample);
+        }
+        return retVal;
+    }
+
+    /**
+     * Copy the expression levels for a feature into an array.
+     *
+     * @param feat		feature sequence number
+     * @param buffer	output array, or NULL to allocate a new one
+     *
+     * @return the array containing the feature's expression levels, indexed by sample row
+     */
+    public double[] getFeatureColumn(int feat, double[] buffer) {
+        double[] retVal = (buffer == null ? new double[this.getSampleCount()] : buffer);
+        if (this.featureRows != null)
+            this.featureRows.getRow(feat, retVal);
+        else {
+            final int n = this.getSampleCount();
+            for (int s = 0; s < n; s++)
+                retVal[s] = this.sampleRows.get(s, feat);
+        }
+        return retVal;
+    }
+
+    /**
+     * Copy the expression levels for a feature and a subset of the samples into an array.
+     *
+     * @param feat		feature sequence number
+     * @param samples	array of sample row indices
+     * @param buffer	output array, or NULL to allocate a new one
+     *
+     * @return an array parallel to the sample index array containing the feature's expression levels
+     */
+    public double[] getFeatureColumn(int feat, int[] samples, double[] buffer) {
+        double[] retVal = (buffer == null ? new double[samples.length] : buffer);
+        if (this.featureRows != null) {
+            for (int i = 0; i < samples.length; i++)
+                retVal[i] = this.featureRows.get(feat, samples[i]);
+        } else {
+            for (int i = 0; i < samples.length; i++)
+                retVal[i] = this.sampleRows.get(samples[i], feat);
+        }
+        return retVal;
+    }
+
+}
@@ -0,0 +1,215 @@
+/**
+ *
+ */
+package org.theseed.rna.data;
+
+import java.io.File;
+import java.io.IOException;
+import java.sql.SQLException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+import org.apache.commons.lang3.StringUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.theseed.java.erdb.DbConnection;
+
+/**
+ * This object manages a directory of cached sample matrix files.  There is one file per genome.  When
+ * a matrix is requested, we compute the signature of the genome's sample metadata (which is cheap) and
+ * compare it to the signature in the file.  If they match, the file is memory-mapped and returned.  If
+ * not, the file is rebuilt from the database.  The database loaders also explicitly invalidate the file
+ * when they change a genome's samples.
+ *
+ * If no cache directory is specified, the matrix is simply loaded into memory, in the orientation requested
+ * by the client.
+ *
+ * In a long-running server, the most recently used matrices can also be kept resident in memory.  A resident
+ * matrix is reused as long as its signature still matches the database.  The resident matrices are keyed by
+ * the database URL as well as the genome, since a server can be asked to run commands against different
+ * databases.
+ *
+ * @author Bruce Parrello
+ *
+ */
+public class SampleMatrixCache {
+
+    // FIELDS
+    /** logging facility */
+    protected static Logger log = LoggerFactory.getLogger(SampleMatrixCache.class);
+    /** cache directory, or NULL if caching is turned off */
+    private final File cacheDir;
+    /** precision to use for new matrices */
+    private final SampleMatrix.Precision precision;
+    /** orientation to use for matrices loaded into memory */
+    private final SampleMatrix.Orientation orientation;
+    /** file name suffix for matrix files */
+    private static final String MATRIX_SUFFIX = ".rsmx";
+    /** resident matrices, keyed by genome ID, precision, cache directory or orientation, and database URL, in
+     *  least-recently-used order */
+    private static final LinkedHashMap<String, SampleMatrix> resident = new LinkedHashMap<String, SampleMatrix>(16, 0.75f, true);
+    /** maximum number of resident matrices (0 to turn residency off) */
+    private static int residentLimit = 0;
+
+    /**
+     * Create a sample matrix cache.
+     *
+     * @param cacheDir		cache directory, or NULL to turn off caching
+     * @param precision		precision to use when building new matrix files
+     * @param orientation	orientation to use when loading a matrix into memory
+     */
+    public SampleMatrixCache(File cacheDir, SampleMatrix.Precision precision, SampleMatrix.Orientation orientation) {
+        this.cacheDir = cacheDir;
+        this.precision = precision;
+        this.orientation = orientation;
+    }
+
+    /**
+     * Create a sample matrix cache from the command-line options shared by the commands that use one.  The
+     * cache directory is validated and created if necessary.
+     *
+     * @param cacheDir		value of the cache directory option, or NULL if caching is turned off
+     * @param floatFlag		TRUE if new matrices should be stored in single precision
+     * @param orientation	orientation to use when loading a matrix into memory
+     *
+     * @return the sample matrix cache described by the options
+     *
+     * @throws IOException
+     */
+    public static SampleMatrixCache create(File cacheDir, boolean floatFlag, SampleMatrix.Orientation orientation)
+            throws IOException {
+        if (cacheDir != null)
+            validateDir(cacheDir);
+        SampleMatrix.Precision precision = (floatFlag ? SampleMatrix.Precision.FLOAT : SampleMatrix.Precision.DOUBLE);
+        return new SampleMatrixCache(cacheDir, precision, orientation);
+    }
+
+    /**
+     * Verify that a cache directory is usable, creating it if necessary.
+     *
+     * @param cacheDir		proposed cache directory
+     *
+     * @throws IOException
+     */
+    public static void validateDir(File cacheDir) throws IOException {
+        if (! cacheDir.isDirectory()) {
+            log.info("Creating matrix cache directory {}.", cacheDir);
+            if (! cacheDir.mkdirs())
+                throw new IOException("Could not create matrix cache directory " + cacheDir + ".");
+        } else if (! cacheDir.canWrite())
+            throw new IOException("Matrix cache directory " + cacheDir + " is not writable.");
+    }
+
+    /**
+     * @return the sample matrix for a genome
+     *
+     * @param db			database connection
+     * @param genomeId		ID of the genome of interest
+     *
+     * @throws SQLException
+     * @throws IOException
+     */
+    public SampleMatrix get(DbConnection db, String genomeId) throws SQLException, IOException {
+        SampleMatrix retVal = null;
+        SampleMatrix.Census census = null;
+        String key = null;
+        if (residentLimit > 0) {
+            // Check for a resident matrix that is still valid.
+            census = new SampleMatrix.Census(db, genomeId);
+            key = genomeId + "\t" + this.precision + "\t"
+                    + (this.cacheDir == null ? this.orientation.name() : this.cacheDir.getAbsolutePath())
+                    + "\t" + census.getDatabaseUrl();
+            synchronized (resident) {
+                SampleMatrix old = resident.get(key);
+                if (old != null && old.getSignature() == census.getSignature()) {
+                    log.info("Using resident sample matrix for {}.", genomeId);
+                    retVal = old;
+                }
+            }
+        }
+        if (retVal == null) {
+            if (this.cacheDir == null) {
+                log.info("Loading sample matrix for {} into memory.", genomeId);
+                retVal = SampleMatrix.load(db, genomeId, this.precision, this.orientation);
+            } else {
+                File matrixFile = getMatrixFile(this.cacheDir, genomeId);
+                if (census == null)
+                    census = new SampleMatrix.Census(db, genomeId);
+                if (matrixFile.exists() && SampleMatrix.readSignature(matrixFile) == census.getSignature()
+                        && SampleMatrix.readPrecision(matrixFile) == this.precision) {
+                    log.info("Using cached sample matrix {}.", matrixFile);
+                    retVal = SampleMatrix.open(matrixFile);
+                } else {
+                    log.info("Building sample matrix file {} for {} samples.", matrixFile, census.size());
+                    long start = System.currentTimeMillis();
+                    retVal = SampleMatrix.build(db, genomeId, census, this.precision, matrixFile);
+                    log.info("Sample matrix built in {} seconds.", (System.currentTimeMillis() - start) / 1000);
+                }
+            }
+            if (key != null) {
+                synchronized (resident) {
+                    resident.put(key, retVal);
+                    trimResident();
+                }
+            }
+        }
+        return retVal;
+    }
+
+    /**
+     * Specify the maximum number of matrices to keep resident in memory.  This should only be turned on in a
+     * long-running process.
+     *
+     * @param limit		maximum number of resident matrices, or 0 to turn residency off
+     */
+    public static void setResidentLimit(int limit) {
+        synchronized (resident) {
+            residentLimit = limit;
+            trimResident();
+        }
+    }
+
+    /**
+     * Remove the least-recently-used resident matrices until we are within the limit.  The caller must
+     * hold the lock on the resident map.
+     */
+    private static void trimResident() {
+        Iterator<String> iter = resident.keySet().iterator();
+        while (resident.size() > residentLimit && iter.hasNext()) {
+            String key = iter.next();
+            log.info("Releasing resident sample matrix for {}.", StringUtils.substringBefore(key, "\t"));
+            iter.remove();
+        }
+    }
+
+    /**
+     * Invalidate the cached matrix for a genome.  Any resident copies are also released.
+     *
+     * @param cacheDir		cache directory (if NULL, only resident copies are released)
+     * @param genomeId		ID of the genome whose samples have changed
+     */
+    public static void invalidate(File cacheDir, String genomeId) {
+        synchronized (resident) {
+            resident.keySet().removeIf(x -> x.startsWith(genomeId + "\t"));
+        }
+        if (cacheDir != null) {
+            File matrixFile = getMatrixFile(cacheDir, genomeId);
+            if (matrixFile.exists()) {
+                log.info("Invalidating cached sample matrix {}.", matrixFile);
+                if (! matrixFile.delete())
+                    log.warn("Could not delete {}.  It will be rebuilt when its signature is checked.", matrixFile);
+            }
+        }
+    }
+
+    /**
+     * @return the matrix file for a genome
+     *
+     * @param cacheDir		cache directory
+     * @param genomeId		ID of the genome of interest
+     */
+    public static File getMatrixFile(File cacheDir, String genomeId) {
+        return new File(cacheDir, genomeId + MATRIX_SUFFIX);
+    }
+
+}
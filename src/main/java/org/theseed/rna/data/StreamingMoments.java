@@ -0,0 +1,154 @@
+/**
+ *
+ */
+package org.theseed.rna.data;
+
+/**
+ * This object accumulates the first four moments of a stream of values in a single pass and constant space.
+ * The central moment sums are updated incrementally using the Welford/Pebay recurrences, which are numerically
+ * stable.
+ *
+ * The standard deviation, skewness, and kurtosis are the bias-corrected sample statistics, and they follow the
+ * same conventions as the Apache Commons DescriptiveStatistics object:  the kurtosis is the excess kurtosis,
+ * the skewness requires at least three values and the kurtosis at least four, and both are zero if the
+ * variance is effectively zero.
+ *
+ * @author Bruce Parrello
+ *
+ */
+public class StreamingMoments {
+
+    // FIELDS
+    /** number of values */
+    private long n;
+    /** mean of the values */
+    private double mean;
+    /** sum of squared deviations from the mean */
+    private double m2;
+    /** sum of cubed deviations from the mean */
+    private double m3;
+    /** sum of fourth-power deviations from the mean */
+    private double m4;
+    /** variance below which the distribution is considered constant */
+    private static final double MIN_VARIANCE = 10E-20;
+
+    /**
+     * Create an empty accumulator.
+     */
+    public StreamingMoments() {
+        this.clear();
+    }
+
+    /**
+     * Erase all the accumulated data.
+     */
+    public void clear() {
+        this.n = 0;
+        this.mean = 0.0;
+        this.m2 = 0.0;
+        this.m3 = 0.0;
+        this.m4 = 0.0;
+    }
+
+    /**
+     * Add a value to the accumulator.
+     *
+     * @param x		value to add
+     */
+    public void add(double x) {
+        final long n1 = this.n;
+        this.n++;
+        final double delta = x - this.mean;
+        final double deltaN = delta / this.n;
+        final double deltaN2 = deltaN * deltaN;
+        final double term1 = delta * deltaN * n1;
+        this.mean += deltaN;
+        this.m4 += term1 * deltaN2 * (this.n * this.n - 3 * this.n + 3) + 6 * deltaN2 * this.m2 - 4 * deltaN * this.m3;
+        this.m3 += term1 * deltaN * (this.n - 2) - 3 * deltaN * this.m2;
+        this.m2 += term1;
+    }
+
+    /**
+     * Add all the finite values in an array to the accumulator.
+     *
+     * @param values	array of values to add
+     * @param len		number of array positions to process
+     */
+    public void addFinite(double[] values, int len) {
+        for (int i = 0; i < len; i++) {
+            if (Double.isFinite(values[i]))
+                this.add(values[i]);
+        }
+    }
+
+    /**
+     * @return the number of values accumulated
+     */
+    public long getN() {
+        return this.n;
+    }
+
+    /**
+     * @return the mean of the values, or NaN if there are none
+     */
+    public double getMean() {
+        return (this.n == 0 ? Double.NaN : this.mean);
+    }
+
+    /**
+     * @return the sample variance of the values, or NaN if there are none
+     */
+    public double getVariance() {
+        double retVal;
+        if (this.n == 0)
+            retVal = Double.NaN;
+        else if (this.n == 1)
+            retVal = 0.0;
+        else
+            retVal = this.m2 / (this.n - 1);
+        return retVal;
+    }
+
+    /**
+     * @return the sample standard deviation of the values, or NaN if there are none
+     */
+    public double getStandardDeviation() {
+        return Math.sqrt(this.getVariance());
+    }
+
+    /**
+     * @return the bias-corrected sample skewness, or NaN if there are fewer than three values
+     */
+    public double getSkewness() {
+        double retVal = Double.NaN;
+        if (this.n > 2) {
+            double variance = this.getVariance();
+            if (variance < MIN_VARIANCE)
+                retVal = 0.0;
+            else {
+                double nd = this.n;
+                retVal = nd * this.m3 / ((nd - 1) * (nd - 2) * variance * Math.sqrt(variance));
+            }
+        }
+        return retVal;
+    }
+
+    /**
+     * @return the bias-corrected sample excess kurtosis, or NaN if there are fewer than four values
+     */
+    public double getKurtosis() {
+        double retVal = Double.NaN;
+        if (this.n > 3) {
+            double variance = this.getVariance();
+            if (variance < MIN_VARIANCE)
+                retVal = 0.0;
+            else {
+                double nd = this.n;
+                retVal = (nd * (nd + 1) * this.m4) / ((nd - 1) * (nd - 2) * (nd - 3) * variance * variance)
+                        - 3 * (nd - 1) * (nd - 1) / ((nd - 2) * (nd - 3));
+            }
+        }
+        return retVal;
+    }
+
+}
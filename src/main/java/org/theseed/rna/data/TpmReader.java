@@ -0,0 +1,296 @@
+/**
+ *
+ */
+package org.theseed.rna.data;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * This object reads the expression levels from a TPM file produced by the RNA Seq pipeline.  The file is
+ * tab-delimited with a header line.  The feature ID is in the column named "Gene_id" and the TPM value is
+ * always in the second column.
+ *
+ * The file is scanned as raw bytes.  Each feature ID is looked up directly in a perfect hash of the genome's
+ * feature index, and each TPM value is parsed in place, so no strings or boxed numbers are created for the
+ * data lines of known features.  The levels are stored in a caller-supplied array, and the number of distinct
+ * features expressed is counted in the same pass.  A reader is not thread-safe, but it can be reused for any number of files.
+ *
+ * @author Bruce Parrello
+ *
+ */
+public class TpmReader {
+
+    // FIELDS
+    /** perfect hash of the feature index */
+    private final FeatureIdHash fidHash;
+    /** read buffer */
+    private byte[] buffer;
+    /** number of features expressed in the last file read */
+    private int featCount;
+    /** number of features expressed in the last file read that were not in the feature index */
+    private int unknownCount;
+    /** IDs of the expressed features in the last file read that were not in the feature index */
+    private final Set<String> unknowns;
+    /** name of the feature ID column */
+    private static final String FID_COLUMN = "Gene_id";
+    /** index of the TPM column */
+    private static final int TPM_COL = 1;
+    /** initial buffer size */
+    private static final int BUFFER_SIZE = 65536;
+    /** exact powers of ten for the fast number parser */
+    private static final double[] POWERS_OF_TEN = new double[] { 1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8,
+            1e9, 1e10, 1e11, 1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22 };
+    /** largest mantissa that can be converted to a double exactly */
+    private static final long MAX_EXACT = 1L << 53;
+
+    /**
+     * Create a TPM reader for a genome.
+     *
+     * @param fidHash	perfect hash of the genome's feature index
+     */
+    public TpmReader(FeatureIdHash fidHash) {
+        this.fidHash = fidHash;
+        this.buffer = new byte[BUFFER_SIZE];
+        this.unknowns = new HashSet<String>();
+    }
+
+    /**
+     * Read the expression levels from a TPM file.  Every feature whose level is positive is stored in the
+     * level array at its feature index; all other features are set to NaN.
+     *
+     * @param tpmFile	TPM file to read
+     * @param levels	array to receive the expression levels, indexed by feature index
+     *
+     * @return the number of features expressed (including ones not in the feature index)
+     *
+     * @throws IOException
+     */
+    public int read(File tpmFile, double[] levels) throws IOException {
+        try (InputStream inStream = new FileInputStream(tpmFile)) {
+            this.read(inStream, levels, tpmFile.toString());
+        }
+        return this.featCount;
+    }
+
+    /**
+     * Read the expression levels from a TPM input stream.
+     *
+     * @param inStream	input stream to read
+     * @param levels	array to receive the expression levels, indexed by feature index
+     * @param name		name of the input, for error messages
+     *
+     * @throws IOException
+     */
+    protected void read(InputStream inStream, double[] levels, String name) throws IOException {
+        Arrays.fill(levels, Double.NaN);
+        this.featCount = 0;
+        this.unknownCount = 0;
+        this.unknowns.clear();
+        int fidCol = -1;
+        // "start" is the start of the current line and "end" is the end of the valid data in the buffer.
+        int start = 0;
+        int end = 0;
+        boolean eof = false;
+        while (! eof || start < end) {
+            // Find the end of the current line.
+            int eol = start;
+            while (eol < end && this.buffer[eol] != '\n')
+                eol++;
+            if (eol >= end && ! eof) {
+                // We need more data.  Shift the partial line to the front and refill.
+                int len = end - start;
+                if (len >= this.buffer.length)
+                    this.buffer = Arrays.copyOf(this.buffer, this.buffer.length * 2);
+                else if (start > 0)
+                    System.arraycopy(this.buffer, start, this.buffer, 0, len);
+                start = 0;
+                end = len;
+                int n = inStream.read(this.buffer, end, this.buffer.length - end);
+                if (n < 0)
+                    eof = true;
+                else
+                    end += n;
+            } else {
+                // Here we have a whole line.  Strip a trailing carriage return.
+                int lineEnd = eol;
+                if (lineEnd > start && this.buffer[lineEnd - 1] == '\r')
+                    lineEnd--;
+                if (fidCol < 0)
+                    fidCol = this.findFidColumn(start, lineEnd, name);
+                else if (lineEnd > start)
+                    this.processLine(start, lineEnd, fidCol, levels);
+                start = eol + 1;
+                if (start > end)
+                    start = end;
+            }
+        }
+        if (fidCol < 0)
+            throw new IOException("TPM file " + name + " is empty.");
+    }
+
+    /**
+     * Locate the feature ID column in the header line.
+     *
+     * @param start		start of the header line in the buffer
+     * @param end		end of the header line in the buffer
+     * @param name		name of the input, for error messages
+     *
+     * @return the index of the feature ID column
+     *
+     * @throws IOException
+     */
+    private int findFidColumn(int start, int end, String name) throws IOException {
+        String[] headers = new String(this.buffer, start, end - start, StandardCharsets.UTF_8).split("\t");
+        int retVal = -1;
+        for (int i = 0; i < headers.length && retVal < 0; i++) {
+            if (headers[i].equals(FID_COLUMN))
+                retVal = i;
+        }
+        if (retVal < 0)
+            throw new IOException("No \"" + FID_COLUMN + "\" column found in " + name + ".");
+        return retVal;
+    }
+
+    /**
+     * Process a data line.
+     *
+     * @param start		start of the line in the buffer
+     * @param end		end of the line in the buffer
+     * @param fidCol	index of the feature ID column
+     * @param levels	array to receive the expression levels
+     */
+    private void processLine(int start, int end, int fidCol, double[] levels) {
+        // Find the two fields we want.
+        int fidStart = -1, fidEnd = -1, tpmStart = -1, tpmEnd = -1;
+        int col = 0;
+        int fieldStart = start;
+        for (int p = start; p <= end && (fidEnd < 0 || tpmEnd < 0); p++) {
+            if (p == end || this.buffer[p] == '\t') {
+                if (col == fidCol) {
+                    fidStart = fieldStart;
+                    fidEnd = p;
+                }
+                if (col == TPM_COL) {
+                    tpmStart = fieldStart;
+                    tpmEnd = p;
+                }
+                col++;
+                fieldStart = p + 1;
+            }
+        }
+        if (fidEnd >= 0 && tpmEnd >= 0) {
+            double tpm = this.parseDouble(tpmStart, tpmEnd);
+            if (tpm > 0.0) {
+                int idx = this.fidHash.find(this.buffer, fidStart, fidEnd - fidStart);
+                if (idx < 0) {
+                    // Unknown features are rare, so we can afford a string to detect duplicates.
+                    String fid = new String(this.buffer, fidStart, fidEnd - fidStart, StandardCharsets.UTF_8);
+                    if (this.unknowns.add(fid)) {
+                        this.unknownCount++;
+                        this.featCount++;
+                    }
+                } else {
+                    if (Double.isNaN(levels[idx]))
+                        this.featCount++;
+                    levels[idx] = tpm;
+                }
+            }
+        }
+    }
+
+    /**
+     * Parse a floating-point number from the buffer.  Simple decimal numbers whose value can be computed
+     * exactly are parsed in place.  Anything else is passed to the standard parser, so the result is always
+     * the same as Double.parseDouble.  An empty field is treated as zero.
+     *
+     * @param start		start of the number in the buffer
+     * @param end		end of the number in the buffer
+     *
+     * @return the value of the number
+     */
+    protected double parseDouble(int start, int end) {
+        double retVal;
+        final byte[] buf = this.buffer;
+        int p = start;
+        boolean negative = false;
+        if (p < end && (buf[p] == '-' || buf[p] == '+')) {
+            negative = (buf[p] == '-');
+            p++;
+        }
+        long mantissa = 0;
+        int digits = 0;
+        int scale = 0;
+        int digitStart = p;
+        // Parse the integer part.
+        while (p < end && buf[p] >= '0' && buf[p] <= '9') {
+            mantissa = mantissa * 10 + (buf[p] - '0');
+            if (mantissa > 0)
+                digits++;
+            p++;
+        }
+        boolean valid = (p > digitStart);
+        // Parse the fraction.
+        if (p < end && buf[p] == '.') {
+            p++;
+            while (p < end && buf[p] >= '0' && buf[p] <= '9') {
+                mantissa = mantissa * 10 + (buf[p] - '0');
+                if (mantissa > 0)
+                    digits++;
+                scale--;
+                valid = true;
+                p++;
+            }
+        }
+        // Parse the exponent.
+        if (valid && p < end && (buf[p] == 'e' || buf[p] == 'E')) {
+            p++;
+            boolean expNegative = false;
+            if (p < end && (buf[p] == '-' || buf[p] == '+')) {
+                expNegative = (buf[p] == '-');
+                p++;
+            }
+            int exp = 0;
+            int expStart = p;
+            while (p < end && buf[p] >= '0' && buf[p] <= '9' && exp < 10000) {
+                exp = exp * 10 + (buf[p] - '0');
+                p++;
+            }
+            if (p == expStart)
+                valid = false;
+            scale += (expNegative ? -exp : exp);
+        }
+        if (start == end)
+            retVal = 0.0;
+        else if (valid && p == end && digits <= 18 && mantissa < MAX_EXACT && scale >= -22 && scale <= 22) {
+            // This is the exact fast path.  Both the mantissa and the power of ten are exact doubles, so
+            // a single rounded operation gives the correctly-rounded result.
+            retVal = (scale < 0 ? mantissa / POWERS_OF_TEN[-scale] : mantissa * POWERS_OF_TEN[scale]);
+            if (negative)
+                retVal = -retVal;
+        } else
+            retVal = Double.parseDouble(new String(buf, start, end - start, StandardCharsets.US_ASCII));
+        return retVal;
+    }
+
+    /**
+     * @return the number of features expressed in the last file read
+     */
+    public int getFeatCount() {
+        return this.featCount;
+    }
+
+    /**
+     * @return the number of features expressed in the last file read that were not in the feature index
+     */
+    public int getUnknownCount() {
+        return this.unknownCount;
+    }
+
+}
@@ -27,4 +27,14 @@ public class TriageRnaFeatureLevelComputer extends RnaFeatureLevelComputer {
         return retVal;
     }
 
+    @Override
+    public void computeRow(double[] levels, double[] baselines, double[] out) {
+        final int n = levels.length;
+        for (int i = 0; i < n; i++) {
+            final double level = levels[i];
+            final double baseline = baselines[i];
+            out[i] = (level >= baseline * 2.0 ? 1.0 : (level <= baseline * 0.5 ? -1.0 : 0.0));
+        }
+    }
+
 }
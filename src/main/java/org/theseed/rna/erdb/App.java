@@ -23,6 +23,9 @@ import org.theseed.basic.BaseProcessor;
  * neighbors	store the neighbor genes in the database
  * xmatrix		build a achine learning input directory for a specified measurement
  * dbStats		show basic database statistics
+ * recode		convert the stored expression data of a genome's samples to a new encoding
+ * server		run a persistent server that executes commands sent by clients
+ * client		send a command to a running server and display the output
  */
 public class App
 {
@@ -31,64 +34,87 @@ public class App
         // Get the control parameter.
         String command = args[0];
         String[] newArgs = Arrays.copyOfRange(args, 1, args.length);
-        BaseProcessor processor;
+        // The client command is handled without a processor, since its arguments belong to the server.
+        if (command.equals("client"))
+            RnaClient.run(newArgs);
+        else {
+            BaseProcessor processor = createProcessor(command);
+            // Process it.
+            boolean ok = processor.parseCommand(newArgs);
+            if (ok) {
+                processor.run();
+            }
+        }
+    }
+
+    /**
+     * Create the command processor for a command.
+     *
+     * @param command	name of the command
+     *
+     * @return a command processor for the command
+     */
+    public static BaseProcessor createProcessor(String command) {
+        BaseProcessor retVal;
         // Determine the command to process.
         switch (command) {
         case "baseline" :
-            processor = new GenomeBaselineProcessor();
+            retVal = new GenomeBaselineProcessor();
             break;
         case "tpm" :
-            processor = new RnaSeqProcessor();
+            retVal = new RnaSeqProcessor();
             break;
         case "groups" :
-            processor = new MetaGroupsProcessor();
+            retVal = new MetaGroupsProcessor();
             break;
         case "metaLoad" :
-            processor = new MetaLoadProcessor();
+            retVal = new MetaLoadProcessor();
             break;
         case "measureLoad" :
-            processor = new MeasureLoadProcessor();
+            retVal = new MeasureLoadProcessor();
             break;
         case "download" :
-            processor = new SampleDownloadProcessor();
+            retVal = new SampleDownloadProcessor();
             break;
         case "upload" :
-            processor = new SampleUploadProcessor();
+            retVal = new SampleUploadProcessor();
             break;
         case "sampleCorr" :
-            processor = new SampleCorrelationProcessor();
+            retVal = new SampleCorrelationProcessor();
             break;
         case "clusterLoad" :
-            processor = new ClusterLoadProcessor();
+            retVal = new ClusterLoadProcessor();
             break;
         case "dbReport" :
-            processor = new DbRnaReportProcessor();
+            retVal = new DbRnaReportProcessor();
             break;
         case "featCorr" :
-            processor = new FeatureCorrelationProcessor();
+            retVal = new FeatureCorrelationProcessor();
             break;
         case "corrReport" :
-            processor = new FeatureCorrReportProcessor();
+            retVal = new FeatureCorrReportProcessor();
             break;
         case "neighbors" :
-            processor = new NeighborProcessor();
+            retVal = new NeighborProcessor();
             break;
         case "xmatrix" :
-            processor = new XMatrixProcessor();
+            retVal = new XMatrixProcessor();
             break;
         case "measureFix" :
-            processor = new MeasureFixProcessor();
+            retVal = new MeasureFixProcessor();
             break;
         case "dbStats" :
-            processor = new RnaDbStatsProcessor();
+            retVal = new RnaDbStatsProcessor();
+            break;
+        case "recode" :
+            retVal = new SampleRecodeProcessor();
+            break;
+        case "server" :
+            retVal = new RnaServerProcessor();
             break;
         default:
             throw new RuntimeException("Invalid command " + command);
         }
-        // Process it.
-        boolean ok = processor.parseCommand(newArgs);
-        if (ok) {
-            processor.run();
-        }
+        return retVal;
     }
 }
@@ -17,6 +17,7 @@ import org.theseed.basic.ParseFailureException;
 import org.theseed.io.TabbedLineReader;
 import org.theseed.java.erdb.DbConnection;
 import org.theseed.java.erdb.DbLoader;
+import org.theseed.rna.data.SampleMatrixCache;
 import org.theseed.utils.PatternMap;
 
 /**
@@ -38,6 +39,8 @@ import org.theseed.utils.PatternMap;
  * --proj		the name of a tab-delimited file with headers containing (0) a regex for the sample ID, (1) the project
  * 				ID to use, and (2) the PUBMED ID of the associated paper
  * --replace	if specified, the new samples will be removed from the database before loading
+ * --cache		directory for cached sample matrix files (the genome's matrix will be invalidated)
+ * --xcache		directory for cached xmatrix data (the genome's entries will be deleted)
 
  * @author Bruce Parrello
  *
@@ -104,11 +107,16 @@ public abstract class BaseDbLoadProcessor extends BaseDbRnaProcessor {
     @Option(name = "--replace", usage = "if specified, existing copies of the named samples will be deleted before loading")
     private boolean replaceFlag;
 
+    /** xmatrix cache directory */
+    @Option(name = "--xcache", metaVar = "xmatrixCache", usage = "directory for cached xmatrix data")
+    private File xCacheDir;
+
     @Override
     protected final void setDbDefaults() {
         this.ncbiFile = null;
         this.patternFile = null;
         this.replaceFlag = false;
+        this.xCacheDir = null;
         this.setDbLoadDefaults();
     }
 
@@ -123,6 +131,9 @@ public abstract class BaseDbLoadProcessor extends BaseDbRnaProcessor {
         this.validateGenomeId();
         // Process the project-data maps.
         this.readProjectFiles();
+        // Verify the xmatrix cache directory.
+        if (this.xCacheDir != null)
+            SampleMatrixCache.validateDir(this.xCacheDir);
         // Do the subclass validation.
         this.validateDbLoadParms();
     }
@@ -187,6 +198,9 @@ public abstract class BaseDbLoadProcessor extends BaseDbRnaProcessor {
             // Commit the updates.
             xact.commit();
         }
+        // The genome's samples have changed, so any cached expression matrix or xmatrix is obsolete.
+        SampleMatrixCache.invalidate(this.getCacheDir(), this.getGenomeId());
+        XMatrixCache.invalidate(this.xCacheDir, this.getGenomeId());
     }
 
     /**
@@ -3,21 +3,22 @@
  */
 package org.theseed.rna.erdb;
 
+import java.io.File;
 import java.io.IOException;
 import java.sql.SQLException;
-import java.util.ArrayList;
-import java.util.Iterator;
 import java.util.List;
 import java.util.regex.Pattern;
 import org.kohsuke.args4j.Argument;
+import org.kohsuke.args4j.Option;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.theseed.basic.ParseFailureException;
 import org.theseed.erdb.utils.BaseDbProcessor;
 import org.theseed.java.erdb.DbConnection;
-import org.theseed.java.erdb.DbQuery;
-import org.theseed.java.erdb.DbRecord;
-import org.theseed.java.erdb.Relop;
+import org.theseed.rna.data.FeatureIdHash;
+import org.theseed.rna.data.FeatureMetadata;
+import org.theseed.rna.data.SampleMatrix;
+import org.theseed.rna.data.SampleMatrixCache;
 
 /**
  * This is the base class for commands that process RNA samples in the database.
@@ -33,7 +34,9 @@ import org.theseed.java.erdb.Relop;
  * --dbfile		database file name (SQLITE only)
  * --url		URL of database (host and name)
  * --parms		database connection parameter string (currently only MySQL)
-
+ * --cache		directory for cached sample matrix files (if omitted, matrices are built in memory)
+ * --float		if specified, new cached sample matrices will be stored in single precision
+ *
  * @author Bruce Parrello
  *
  */
@@ -44,11 +47,25 @@ public abstract class BaseDbRnaProcessor extends BaseDbProcessor {
     protected static Logger log = LoggerFactory.getLogger(BaseDbRnaProcessor.class);
     /** list of feature IDs in the order expected by the database */
     private List<String> featureIndex;
+    /** perfect hash of the feature index (built on demand) */
+    private FeatureIdHash featureHash;
     /** match pattern for genome IDs */
     private static final Pattern GENOME_ID_PATTERN = Pattern.compile("\\d+\\.\\d+");
+    /** sample matrix for this genome (loaded on demand) */
+    private SampleMatrix sampleMatrix;
+    /** sample matrix cache */
+    private SampleMatrixCache matrixCache;
 
     // COMMAND-LINE OPTIONS
 
+    /** sample matrix cache directory */
+    @Option(name = "--cache", metaVar = "matrixCache", usage = "directory for cached sample expression matrices")
+    private File cacheDir;
+
+    /** TRUE to store new cached matrices in single precision */
+    @Option(name = "--float", usage = "if specified, cached sample matrices will be built in single precision")
+    private boolean floatFlag;
+
     /** target genome ID */
     @Argument(index = 0, metaVar = "genomeId", usage = "ID of genome to which the RNA was mapped", required = true)
     private String genomeId;
@@ -57,6 +74,8 @@ public abstract class BaseDbRnaProcessor extends BaseDbProcessor {
     protected final boolean validateParms() throws ParseFailureException, IOException {
         // Insure the genome ID is reasonable.
         this.validateGenomeId();
+        // Set up the matrix cache.
+        this.matrixCache = SampleMatrixCache.create(this.cacheDir, this.floatFlag, this.getMatrixOrientation());
         // Validate the subclass parameters.
         this.validateDbRnaParms();
         return true;
@@ -70,6 +89,16 @@ public abstract class BaseDbRnaProcessor extends BaseDbProcessor {
      */
     protected abstract void validateDbRnaParms() throws ParseFailureException, IOException;
 
+    /**
+     * Specify the orientation to use if the sample matrix is loaded into memory.  The default is feature-major,
+     * which is what most of the commands need.
+     *
+     * @return the orientation for an in-memory sample matrix
+     */
+    protected SampleMatrix.Orientation getMatrixOrientation() {
+        return SampleMatrix.Orientation.FEATURE;
+    }
+
     /**
      * Insure the reference genome ID is valid.
      *
@@ -93,11 +122,13 @@ public abstract class BaseDbRnaProcessor extends BaseDbProcessor {
         log.info("Loading feature index for {}.", this.genomeId);
         // Create the array of feature indices.
         this.featureIndex = computeFeatureIndex(db, this.genomeId);
+        this.featureHash = null;
     }
 
     /**
      * Compute the feature index.  This is a list containing the feature IDs in the order the
-     * features appear in the expression level array inside each sample.
+     * features appear in the expression level array inside each sample.  It is taken from the
+     * shared feature metadata cache, and is unmodifiable.
      *
      * @param db			database to query
      * @param genome_id		genome ID whose feature index is to be built
@@ -109,19 +140,7 @@ public abstract class BaseDbRnaProcessor extends BaseDbProcessor {
      */
     public static List<String> computeFeatureIndex(DbConnection db, String genome_id)
             throws SQLException, ParseFailureException {
-        List<String> retVal = new ArrayList<String>(4000);
-        try (DbQuery query = new DbQuery(db, "Genome Feature")) {
-            query.select("Feature", "fig_id", "seq_no");
-            query.rel("Genome.genome_id", Relop.EQ);
-            query.setParm(1, genome_id);
-            Iterator<DbRecord> iter = query.iterator();
-            while (iter.hasNext()) {
-                DbRecord feat = iter.next();
-                String fid = feat.getString("Feature.fig_id");
-                int idx = feat.getInt("Feature.seq_no");
-                retVal.add(idx, fid);
-            }
-        }
+        List<String> retVal = FeatureMetadata.get(db, genome_id).getFids();
         if (retVal.isEmpty())
             throw new ParseFailureException("Genome ID \"" + genome_id + "\" is not found or has no features.");
         return retVal;
@@ -136,6 +155,15 @@ public abstract class BaseDbRnaProcessor extends BaseDbProcessor {
         return this.featureIndex.get(i);
     }
 
+    /**
+     * @return a perfect hash mapping feature ID bytes to positions in the expression level array
+     */
+    protected FeatureIdHash getFeatureHash() {
+        if (this.featureHash == null)
+            this.featureHash = new FeatureIdHash(this.featureIndex);
+        return this.featureHash;
+    }
+
     /**
      * @return the number of features in the expression level array
      */
@@ -143,6 +171,30 @@ public abstract class BaseDbRnaProcessor extends BaseDbProcessor {
         return this.featureIndex.size();
     }
 
+    /**
+     * Get the expression matrix for this processor's genome.  The matrix is taken from the cache
+     * directory if one was specified, and is built in memory otherwise.  It is only loaded once.
+     *
+     * @param db	RNA Seq database
+     *
+     * @return the sample matrix for the genome
+     *
+     * @throws SQLException
+     * @throws IOException
+     */
+    public SampleMatrix getSampleMatrix(DbConnection db) throws SQLException, IOException {
+        if (this.sampleMatrix == null)
+            this.sampleMatrix = this.matrixCache.get(db, this.genomeId);
+        return this.sampleMatrix;
+    }
+
+    /**
+     * @return the sample matrix cache directory, or NULL if there is none
+     */
+    protected File getCacheDir() {
+        return this.cacheDir;
+    }
+
     /**
      * @return the reference genome ID
      */
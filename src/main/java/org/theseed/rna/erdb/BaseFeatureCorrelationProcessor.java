@@ -6,11 +6,12 @@ package org.theseed.rna.erdb;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.sql.SQLException;
+import java.util.List;
+import java.util.stream.Collectors;
 import java.util.stream.IntStream;
 
-import org.apache.commons.math3.stat.correlation.PearsonsCorrelation;
-import org.apache.commons.math3.util.ResizableDoubleArray;
 import org.kohsuke.args4j.Option;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -18,9 +19,13 @@ import org.theseed.basic.ParseFailureException;
 import org.theseed.clusters.ClusterGroup;
 import org.theseed.clusters.methods.ClusterMergeMethod;
 import org.theseed.java.erdb.DbConnection;
-import org.theseed.java.erdb.DbQuery;
-import org.theseed.java.erdb.DbRecord;
-import org.theseed.java.erdb.Relop;
+import org.theseed.rna.corr.BasePairCollector;
+import org.theseed.rna.corr.CorrelationReader;
+import org.theseed.rna.corr.CorrelationWriter;
+import org.theseed.rna.corr.PairCollector;
+import org.theseed.rna.corr.PearsonEngine;
+import org.theseed.rna.corr.TopPairCollector;
+import org.theseed.rna.data.SampleMatrix;
 
 /**
  * This is a command-processor superclass for computing RNA feature correlations.  The main method is
@@ -38,9 +43,14 @@ import org.theseed.java.erdb.Relop;
  * --dbfile		database file name (SQLITE only)
  * --url		URL of database (host and name)
  * --parms		database connection parameter string (currently only MySQL)
- * --load		load file for correlations; if specified, it should have the feature IDs in the first
- * 				two columns and the correlation score in the third
+ * --load		load file for correlations; if specified, it should be a binary correlation file or a text file with
+ * 				the feature IDs in the first two columns and the correlation score in the third
  * --save		file in which to save the correlations computed (ignored if --load specified)
+ * --text		if specified, the save file will be written in text format instead of binary
+ * --cache		directory for cached sample matrix files (if omitted, matrices are built in memory)
+ * --float		if specified, new cached sample matrices will be stored in single precision
+ * --keep		if specified, only correlations at or above this value will be retained
+ * --top		if nonzero, only the specified number of highest correlations will be retained for each feature
  *
  * @author Bruce Parrello
  *
@@ -50,8 +60,8 @@ public abstract class BaseFeatureCorrelationProcessor extends BaseDbRnaProcessor
     // FIELDS
     /** logging facility */
     protected static Logger log = LoggerFactory.getLogger(FeatureCorrelationProcessor.class);
-    /** number of feature comparisons generated */
-    private int compareCount;
+    /** number of feature comparisons between progress messages */
+    private static final long LOG_INTERVAL = 1000000;
 
     // COMMAND-LINE OPTIONS
 
@@ -63,10 +73,25 @@ public abstract class BaseFeatureCorrelationProcessor extends BaseDbRnaProcessor
     @Option(name = "--save", metaVar = "saveCorr.tbl", usage = "file in which to save the correlation values (ignored if --load present)")
     private File saveFile;
 
+    /** TRUE to save the correlations as text */
+    @Option(name = "--text", usage = "if specified, the save file will be tab-delimited text instead of binary")
+    private boolean textFlag;
+
+    /** minimum correlation to retain */
+    @Option(name = "--keep", metaVar = "0.70", usage = "if specified, the minimum correlation to retain")
+    private double keepMin;
+
+    /** maximum number of correlations to retain per feature */
+    @Option(name = "--top", metaVar = "10", usage = "if nonzero, the number of best correlations to retain per feature")
+    private int topK;
+
     @Override
     final protected void setDbDefaults() {
         this.loadFile = null;
         this.saveFile = null;
+        this.textFlag = false;
+        this.keepMin = Double.NaN;
+        this.topK = 0;
         this.setFeatureCorrDefaults();
     }
 
@@ -81,6 +106,10 @@ public abstract class BaseFeatureCorrelationProcessor extends BaseDbRnaProcessor
             throw new FileNotFoundException("Load file " + this.loadFile + " is not found or unreadable.");
         else if (this.saveFile != null && this.saveFile.exists() && ! this.saveFile.canWrite())
             throw new IOException("Cannot write to specified save file " + this.saveFile + ".");
+        if (this.keepMin < -1.0 || this.keepMin > 1.0)
+            throw new ParseFailureException("Minimum correlation to keep must be between -1 and 1.");
+        if (this.topK < 0)
+            throw new ParseFailureException("Number of correlations to keep per feature cannot be negative.");
         this.validateFeatureCorrParms();
     }
 
@@ -109,17 +138,42 @@ public abstract class BaseFeatureCorrelationProcessor extends BaseDbRnaProcessor
         if (this.loadFile == null) {
             retVal = this.createClusterGroup();
             // Compute the expression level arrays.
-            ResizableDoubleArray[] levels = this.computeLevelArrays(db);
+            double[][] levels = this.computeLevelArrays(db);
             // We have an array of expression levels for each feature, one column per sample.  We compute
-            // the correlation for each sample pair.  Because this could involve millions of comparisons, we
-            // parallelize it.
-            this.compareCount = 0;
-            IntStream.range(0, getFeatureCount()).parallel().forEach(i -> this.compareLevels(retVal, levels, i));
+            // the correlation for each feature pair.  Because this could involve millions of comparisons, the
+            // engine processes the pairs in cache-sized tiles in parallel.
+            long start = System.currentTimeMillis();
+            PearsonEngine engine = new PearsonEngine(levels);
+            BasePairCollector<?> collector;
+            if (this.topK > 0) {
+                log.info("Retaining the top {} correlations per feature.", this.topK);
+                collector = new TopPairCollector(LOG_INTERVAL, levels.length, this.topK, this.keepMin);
+            } else
+                collector = new PairCollector(LOG_INTERVAL, this.keepMin);
+            if (! Double.isNaN(this.keepMin))
+                log.info("Retaining correlations of {} or more.", this.keepMin);
+            engine.computeAll(collector);
+            log.info("{} comparisons computed in {} seconds.  {} retained.", collector.size(),
+                    (System.currentTimeMillis() - start) / 1000.0, collector.keptCount());
+            // Now merge the results into the cluster group.  This happens on a single thread, so no locking
+            // is needed.
+            collector.forEach((i, j, pc) -> this.storeCorrelation(retVal, this.getFeatureId(i), this.getFeatureId(j), pc));
             // Here we may need to save the correlations.
-            if (this.saveFile != null)
-                retVal.save(this.saveFile);
+            if (this.saveFile != null) {
+                if (this.textFlag)
+                    retVal.save(this.saveFile);
+                else
+                    this.saveBinary(collector);
+            }
+        } else if (CorrelationReader.isBinary(this.loadFile)) {
+            // Here the correlations are loaded from a binary file.
+            log.info("Loading binary correlations from {}.", this.loadFile);
+            try (CorrelationReader reader = CorrelationReader.open(this.loadFile)) {
+                retVal = new ClusterGroup(reader.getIdCount(), ClusterMergeMethod.COMPLETE);
+                reader.forEach((i, j, pc) -> retVal.addSim(reader.getId(i), reader.getId(j), pc));
+            }
         } else {
-            // Here the correlations are loaded from a file.
+            // Here the correlations are loaded from a text file.
             log.info("Loading correlations from {}.", this.loadFile);
             retVal = ClusterGroup.load(this.loadFile, ClusterMergeMethod.COMPLETE);
         }
@@ -127,87 +181,68 @@ public abstract class BaseFeatureCorrelationProcessor extends BaseDbRnaProcessor
     }
 
     /**
-     * @return an empty cluster group sized to this processor's genome
+     * Save the collected correlations to the save file in binary form.  The feature index is used as the ID
+     * dictionary, so the collected indices can be written directly.
+     *
+     * @param collector		collector containing the correlations
+     *
+     * @throws IOException
      */
-    protected ClusterGroup createClusterGroup() {
-        return new ClusterGroup(this.getFeatureCount(), ClusterMergeMethod.COMPLETE);
+    private void saveBinary(BasePairCollector<?> collector) throws IOException {
+        log.info("Saving binary correlations to {}.", this.saveFile);
+        List<String> fids = IntStream.range(0, this.getFeatureCount()).mapToObj(i -> this.getFeatureId(i))
+                .collect(Collectors.toList());
+        try (CorrelationWriter writer = CorrelationWriter.pairs(this.saveFile, fids)) {
+            collector.forEach((i, j, pc) -> {
+                try {
+                    writer.write(i, j, (Double.isFinite(pc) ? pc : 0.0));
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+        }
     }
 
     /**
-     * Create the level arrays and fill them with expression data.
-     *
-     * @param db	RNA expression database
-     *
-     * @throws SQLException
+     * @return the minimum correlation retained, or NaN if there is no minimum
      */
-    private ResizableDoubleArray[] computeLevelArrays(DbConnection db) throws SQLException {
-        // Loop through the features, loading the level arrays.  We will have one level array per feature, which
-        // means we are essentially flipping the native representation, which is one array per sample.
-        // First, we create one array per feature.
-        final ResizableDoubleArray[] retVal = IntStream.range(0, this.getFeatureCount())
-                .mapToObj(i -> new ResizableDoubleArray())
-                .toArray(ResizableDoubleArray[]::new);
-        // Now we loop through the samples, filling the arrays.
-        log.info("Retrieving expression levels for {} features in genome {}.", this.getFeatureCount(), this.getGenomeId());
-        try (DbQuery query = new DbQuery(db, "RnaSample")) {
-            // Ask for all samples for this genome that are NOT suspicious.
-            query.select("RnaSample", "feat_data").rel("RnaSample.genome_id", Relop.EQ)
-                .rel("RnaSample.suspicious", Relop.EQ).setParm(1, this.getGenomeId())
-                .setParm(2, false);
-            query.stream().forEach(x -> this.processLevels(retVal, x));
-        }
-        return retVal;
+    protected double getKeepMin() {
+        return this.keepMin;
     }
 
     /**
-     * This method retrieves the feature array from a database record and adds its expression levels
-     * to the array of feature-level arrays.
-     *
-     * @param record	RnaSample record to process
+     * @return the number of correlations retained per feature, or 0 if all are retained
      */
-    private void processLevels(ResizableDoubleArray[] levelArrays, DbRecord record) {
-        try {
-            double[] levels = record.getDoubleArray("RnaSample.feat_data");
-            for (int i = 0; i < levelArrays.length; i++)
-                levelArrays[i].addElement(levels[i]);
-        } catch (SQLException e) {
-            // Convert the SQL exception to unchecked so we can do this in a stream.
-            throw new RuntimeException(e);
-        }
+    protected int getTopK() {
+        return this.topK;
+    }
+
+    /**
+     * @return an empty cluster group sized to this processor's genome
+     */
+    protected ClusterGroup createClusterGroup() {
+        return new ClusterGroup(this.getFeatureCount(), ClusterMergeMethod.COMPLETE);
     }
 
     /**
-     * Generate all the correlations to the feature at the specified index.
+     * Create the level arrays and fill them with expression data.
+     *
+     * @param db	RNA expression database
      *
-     * @param i		index of the feature to compare to all subsequent features
+     * @throws SQLException
+     * @throws IOException
      */
-    private void compareLevels(ClusterGroup clusters, ResizableDoubleArray[] levelArrays, int i) {
-        // Get a compute for the pearsons correlations.
-        PearsonsCorrelation computer = new PearsonsCorrelation();
-        String fidI = this.getFeatureId(i);
-        ResizableDoubleArray levelsI = levelArrays[i];
-        final int n = levelsI.getNumElements();
-        // Now loop through all of the features following this one.
-        for (int j = i + 1; j < levelArrays.length; j++) {
-            String fidJ = this.getFeatureId(j);
-            ResizableDoubleArray levelsJ = levelArrays[j];
-            // Create arrays for the matching finite values.
-            ResizableDoubleArray arrayI = new ResizableDoubleArray(n);
-            ResizableDoubleArray arrayJ = new ResizableDoubleArray(n);
-            for (int k = 0; k < n; k++) {
-                double valI = levelsI.getElement(k);
-                double valJ = levelsJ.getElement(k);
-                if (Double.isFinite(valI) && Double.isFinite(valJ)) {
-                    arrayI.addElement(valI);
-                    arrayJ.addElement(valJ);
-                }
-            }
-            // Compute the correlation.
-            double pc = 0.0;
-            if (arrayI.getNumElements() > 2)
-                pc = computer.correlation(arrayI.getElements(), arrayJ.getElements());
-            this.storeCorrelation(clusters, fidI, fidJ, pc);
-        }
+    private double[][] computeLevelArrays(DbConnection db) throws SQLException, IOException {
+        // We will have one level array per feature.  These come from the feature-major side of the sample
+        // matrix, restricted to the samples that are NOT suspicious.
+        SampleMatrix matrix = this.getSampleMatrix(db);
+        final int[] goodSamples = matrix.getGoodSamples();
+        log.info("Retrieving expression levels for {} features in {} samples of genome {}.", this.getFeatureCount(),
+                goodSamples.length, this.getGenomeId());
+        final double[][] retVal = IntStream.range(0, this.getFeatureCount())
+                .mapToObj(i -> matrix.getFeatureColumn(i, goodSamples, null))
+                .toArray(double[][]::new);
+        return retVal;
     }
 
     /**
@@ -217,14 +252,11 @@ public abstract class BaseFeatureCorrelationProcessor extends BaseDbRnaProcessor
      * @param fidJ		ID of second feature
      * @param pc		pearson correlation
      */
-    private synchronized void storeCorrelation(ClusterGroup clusters, String fidI, String fidJ, double pc) {
+    private void storeCorrelation(ClusterGroup clusters, String fidI, String fidJ, double pc) {
         if (! Double.isFinite(pc)) {
             log.warn("Could not compute correlation between {} and {}.", fidI, fidJ);
             pc = 0.0;
         }
         clusters.addSim(fidI, fidJ, pc);
-        this.compareCount++;
-        if (log.isInfoEnabled() && this.compareCount % 2000 == 0)
-            log.info("{} comparisons computed.", this.compareCount);
     }
 }
@@ -0,0 +1,326 @@
+/**
+ *
+ */
+package org.theseed.rna.erdb;
+
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Types;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.theseed.java.erdb.DbConnection;
+import org.theseed.java.erdb.SqlBuffer;
+import org.theseed.java.erdb.sqlite.SqliteDbConnection;
+
+/**
+ * This object changes a single field in many records of a table using a small number of database requests.
+ * Instead of one UPDATE per record, the new values are staged in a temporary table using multi-row inserts,
+ * and then applied with a single UPDATE.  On MySQL the final UPDATE joins the target table to the staging
+ * table.  On SQLite, which does not allow joins in an UPDATE, a correlated subquery is used instead.
+ *
+ * The staging table is created by the constructor and dropped by close().  The client calls one of the set()
+ * methods for each record to change, and then calls apply() to perform the update.  The whole process should
+ * be inside a transaction.  Each staged record uses two statement parameters, and older versions of SQLite
+ * allow at most 999 parameters in a statement, so batch sizes above 499 should only be used with MySQL.
+ *
+ * A key can be staged more than once.  The staging inserts are upserts (INSERT OR REPLACE on SQLite, and
+ * ON DUPLICATE KEY UPDATE on MySQL), so the last value staged for a key is the one applied.
+ *
+ * The statistics (inserts, staging time, and update time) are logged by apply().  The insert count and the
+ * staging time are then reset along with the staged-value count, so each apply reports only its own work.
+ *
+ * @author Bruce Parrello
+ *
+ */
+public class BulkUpdater implements AutoCloseable {
+
+    // FIELDS
+    /** logging facility */
+    protected static Logger log = LoggerFactory.getLogger(BulkUpdater.class);
+    /** database connection */
+    private final DbConnection db;
+    /** target table name */
+    private final String table;
+    /** key field name */
+    private final String keyField;
+    /** value field name */
+    private final String valueField;
+    /** type of value */
+    private final ValueType type;
+    /** number of records per insert */
+    private final int batchSize;
+    /** name of the staging table */
+    private final String tempTable;
+    /** statement for inserting a full batch */
+    private PreparedStatement batchStmt;
+    /** pending keys */
+    private final String[] keys;
+    /** pending string values */
+    private final String[] strings;
+    /** pending numeric values */
+    private final double[] numbers;
+    /** number of pending records */
+    private int pending;
+    /** number of records staged */
+    private int staged;
+    /** number of insert requests sent */
+    private int inserts;
+    /** time spent staging, in milliseconds */
+    private long stageTime;
+    /** TRUE if the staging table exists */
+    private boolean created;
+    /** counter used to make staging table names unique */
+    private static int tableCounter = 0;
+
+    /**
+     * This enumeration describes the type of value being stored.
+     */
+    public static enum ValueType {
+        /** floating-point number */
+        DOUBLE("DOUBLE"),
+        /** character string */
+        STRING("TEXT");
+
+        /** SQL type for the staging table */
+        private String sqlType;
+
+        private ValueType(String sqlType) {
+            this.sqlType = sqlType;
+        }
+
+    }
+
+    /**
+     * Create a bulk updater and its staging table.
+     *
+     * @param db			target database connection
+     * @param table			name of the table to update
+     * @param keyField		name of the field that identifies the records (normally the primary key)
+     * @param valueField	name of the field to change
+     * @param type			type of the field to change
+     * @param batchSize		number of records to stage in each insert request
+     *
+     * @throws SQLException
+     */
+    public BulkUpdater(DbConnection db, String table, String keyField, String valueField, ValueType type,
+            int batchSize) throws SQLException {
+        this.db = db;
+        this.table = table;
+        this.keyField = keyField;
+        this.valueField = valueField;
+        this.type = type;
+        this.batchSize = batchSize;
+        synchronized (BulkUpdater.class) {
+            tableCounter++;
+            this.tempTable = String.format("_bulk_%s_%s_%d", table, valueField, tableCounter);
+        }
+        this.keys = new String[batchSize];
+        this.strings = (type == ValueType.STRING ? new String[batchSize] : null);
+        this.numbers = (type == ValueType.DOUBLE ? new double[batchSize] : null);
+        this.pending = 0;
+        this.staged = 0;
+        this.inserts = 0;
+        this.stageTime = 0;
+        // Create the staging table.
+        SqlBuffer buffer = new SqlBuffer(db).append("CREATE TEMPORARY TABLE ").quote(this.tempTable)
+                .append(" (").quote("k").append(" VARCHAR(250) PRIMARY KEY, ").quote("v").append(" ")
+                .append(type.sqlType).append(")");
+        this.execute(buffer);
+        this.created = true;
+        this.batchStmt = db.createStatement(this.insertBuffer(batchSize));
+    }
+
+    /**
+     * @return a buffer containing a multi-row insert statement for the staging table
+     *
+     * @param rows		number of rows in the statement
+     */
+    private SqlBuffer insertBuffer(int rows) {
+        final boolean sqlite = (this.db instanceof SqliteDbConnection);
+        SqlBuffer retVal = new SqlBuffer(this.db).append(sqlite ? "INSERT OR REPLACE INTO " : "INSERT INTO ")
+                .quote(this.tempTable).append(" (").quote("k").append(", ").quote("v").append(") VALUES ");
+        for (int i = 0; i < rows; i++) {
+            if (i > 0)
+                retVal.append(", ");
+            retVal.append("(").appendMark().append(", ").appendMark().append(")");
+        }
+        if (! sqlite)
+            retVal.append(" ON DUPLICATE KEY UPDATE ").quote("v").append(" = VALUES(").quote("v").append(")");
+        return retVal;
+    }
+
+    /**
+     * Execute a statement that returns no results.
+     *
+     * @param buffer	SQL buffer containing the statement
+     *
+     * @return the number of records affected
+     *
+     * @throws SQLException
+     */
+    private int execute(SqlBuffer buffer) throws SQLException {
+        try (PreparedStatement stmt = this.db.createStatement(buffer)) {
+            return stmt.executeUpdate();
+        }
+    }
+
+    /**
+     * Stage a new numeric value for a record.
+     *
+     * @param key		key of the record to update
+     * @param value		new value for the field
+     *
+     * @throws SQLException
+     */
+    public void set(String key, double value) throws SQLException {
+        if (this.type != ValueType.DOUBLE)
+            throw new IllegalStateException("Attempt to stage a number in a " + this.type + " bulk update.");
+        this.keys[this.pending] = key;
+        this.numbers[this.pending] = value;
+        this.advance();
+    }
+
+    /**
+     * Stage a new string value for a record.
+     *
+     * @param key		key of the record to update
+     * @param value		new value for the field (can be NULL)
+     *
+     * @throws SQLException
+     */
+    public void set(String key, String value) throws SQLException {
+        if (this.type != ValueType.STRING)
+            throw new IllegalStateException("Attempt to stage a string in a " + this.type + " bulk update.");
+        this.keys[this.pending] = key;
+        this.strings[this.pending] = value;
+        this.advance();
+    }
+
+    /**
+     * Count a staged record and send the batch if it is full.
+     *
+     * @throws SQLException
+     */
+    private void advance() throws SQLException {
+        this.pending++;
+        if (this.pending >= this.batchSize)
+            this.flush();
+    }
+
+    /**
+     * Send the pending records to the staging table.
+     *
+     * @throws SQLException
+     */
+    private void flush() throws SQLException {
+        if (this.pending > 0) {
+            long start = System.currentTimeMillis();
+            if (this.pending == this.batchSize)
+                this.insertPending(this.batchStmt);
+            else {
+                try (PreparedStatement stmt = this.db.createStatement(this.insertBuffer(this.pending))) {
+                    this.insertPending(stmt);
+                }
+            }
+            this.staged += this.pending;
+            this.inserts++;
+            this.pending = 0;
+            this.stageTime += System.currentTimeMillis() - start;
+        }
+    }
+
+    /**
+     * Fill in the parameters of an insert statement from the pending records and execute it.
+     *
+     * @param stmt		statement to fill in
+     *
+     * @throws SQLException
+     */
+    private void insertPending(PreparedStatement stmt) throws SQLException {
+        int p = 1;
+        for (int i = 0; i < this.pending; i++) {
+            stmt.setString(p++, this.keys[i]);
+            if (this.type == ValueType.DOUBLE)
+                stmt.setDouble(p++, this.numbers[i]);
+            else if (this.strings[i] == null)
+                stmt.setNull(p++, Types.VARCHAR);
+            else
+                stmt.setString(p++, this.strings[i]);
+        }
+        stmt.executeUpdate();
+    }
+
+    /**
+     * Apply the staged values to the target table.  The staging table is emptied afterward, so the updater can
+     * be reused.
+     *
+     * @return the number of records updated
+     *
+     * @throws SQLException
+     */
+    public int apply() throws SQLException {
+        this.flush();
+        long start = System.currentTimeMillis();
+        SqlBuffer buffer = new SqlBuffer(this.db);
+        if (this.db instanceof SqliteDbConnection) {
+            // SQLite:  use a correlated subquery for the value and restrict to the staged keys.
+            buffer.append("UPDATE ").quote(this.table).append(" SET ").quote(this.valueField).append(" = (SELECT ")
+                    .quote(this.tempTable, "v").append(" FROM ").quote(this.tempTable).append(" WHERE ")
+                    .quote(this.tempTable, "k").append(" = ").quote(this.table, this.keyField).append(") WHERE ")
+                    .quote(this.table, this.keyField).append(" IN (SELECT ").quote(this.tempTable, "k")
+                    .append(" FROM ").quote(this.tempTable).append(")");
+        } else {
+            // MySQL:  join the staging table to the target table.
+            buffer.append("UPDATE ").quote(this.table).append(" JOIN ").quote(this.tempTable).append(" ON ")
+                    .quote(this.table, this.keyField).append(" = ").quote(this.tempTable, "k").append(" SET ")
+                    .quote(this.table, this.valueField).append(" = ").quote(this.tempTable, "v");
+        }
+        int retVal = this.execute(buffer);
+        this.execute(new SqlBuffer(this.db).append("DELETE FROM ").quote(this.tempTable));
+        long applyTime = System.currentTimeMillis() - start;
+        log.info("{} {} records updated from {} staged values:  {} inserts in {} seconds, update in {} seconds.",
+                retVal, this.table, this.staged, this.inserts, this.stageTime / 1000.0, applyTime / 1000.0);
+        this.staged = 0;
+        this.inserts = 0;
+        this.stageTime = 0;
+        return retVal;
+    }
+
+    /**
+     * @return the number of values staged since the last apply
+     */
+    public int getStaged() {
+        return this.staged + this.pending;
+    }
+
+    /**
+     * @return the number of insert requests sent to the staging table since the last apply
+     */
+    public int getInserts() {
+        return this.inserts;
+    }
+
+    /**
+     * @return the time spent staging values since the last apply, in milliseconds
+     */
+    public long getStageTime() {
+        return this.stageTime;
+    }
+
+    @Override
+    public void close() throws SQLException {
+        try {
+            if (this.batchStmt != null)
+                this.batchStmt.close();
+        } finally {
+            if (this.created) {
+                // On MySQL, the TEMPORARY keyword prevents an implicit commit.
+                String drop = (this.db instanceof SqliteDbConnection ? "DROP TABLE " : "DROP TEMPORARY TABLE ");
+                this.execute(new SqlBuffer(this.db).append(drop).quote(this.tempTable));
+                this.created = false;
+            }
+        }
+    }
+
+}
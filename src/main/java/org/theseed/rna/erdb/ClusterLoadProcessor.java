@@ -6,14 +6,19 @@ package org.theseed.rna.erdb;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
 import java.sql.PreparedStatement;
 import java.sql.SQLException;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.stream.Collectors;
+import java.util.stream.IntStream;
 
 import org.apache.commons.lang3.StringUtils;
 import org.kohsuke.args4j.Argument;
@@ -21,7 +26,6 @@ import org.kohsuke.args4j.Option;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.theseed.basic.ParseFailureException;
-import org.theseed.clusters.Cluster;
 import org.theseed.clusters.ClusterGroup;
 import org.theseed.clusters.methods.ClusterMergeMethod;
 import org.theseed.erdb.utils.BaseDbProcessor;
@@ -30,9 +34,10 @@ import org.theseed.java.erdb.DbConnection;
 import org.theseed.java.erdb.DbLoader;
 import org.theseed.java.erdb.DbQuery;
 import org.theseed.java.erdb.DbRecord;
-import org.theseed.java.erdb.DbUpdate;
 import org.theseed.java.erdb.Relop;
 import org.theseed.java.erdb.SqlBuffer;
+import org.theseed.rna.corr.CompleteLinkageClusterer;
+import org.theseed.rna.corr.CorrelationReader;
 
 /**
  * This is a very complicated database loader that updates the sample clusters for a genome in the
@@ -41,7 +46,12 @@ import org.theseed.java.erdb.SqlBuffer;
  * are then deleted.  This nulls out the pointers in the RnaSample table.  We then add new cluster
  * records and update the cluster IDs in the RnaSample records.
  *
- * The positional parameters are the ID of the target genome and the sample correlation input file.
+ * The positional parameters are the ID of the target genome and the sample correlation input file.  The
+ * correlation file can be in text or binary format.
+ *
+ * For complete linkage (the default), the clusters are formed by a streaming engine that only keeps the
+ * similarities at or above the minimum, since no pair below the minimum can ever be in the same cluster.
+ * The other methods load all the similarities into a cluster group.
  *
  * The command-line options are as follows.
  *
@@ -54,6 +64,7 @@ import org.theseed.java.erdb.SqlBuffer;
  * --parms		database connection parameter string (currently only MySQL)
  * --min		minimum acceptable clustering level (default 0.94)
  * --method		clustering method (default COMPLETE)
+ * --batch		number of sample updates to send in each database request (default 200)
  *
  * @author Bruce Parrello
  *
@@ -63,11 +74,57 @@ public class ClusterLoadProcessor extends BaseDbProcessor {
     // FIELDS
     /** logging facility */
     protected static Logger log = LoggerFactory.getLogger(ClusterLoadProcessor.class);
-    /** cluster group manager */
-    private ClusterGroup clusters;
     /** estimated number of datapoints */
     private int dataPoints;
 
+    /**
+     * This object describes a cluster to be stored in the database.
+     */
+    private static class ClusterData {
+
+        /** IDs of the member samples */
+        private final Collection<String> members;
+        /** height of the cluster tree */
+        private final int height;
+        /** minimum similarity in the cluster */
+        private final double score;
+
+        /**
+         * Create a cluster descriptor.
+         *
+         * @param members	IDs of the member samples
+         * @param height	height of the cluster tree
+         * @param score		minimum similarity in the cluster
+         */
+        protected ClusterData(Collection<String> members, int height, double score) {
+            this.members = members;
+            this.height = height;
+            this.score = score;
+        }
+
+        /**
+         * @return the IDs of the member samples
+         */
+        public Collection<String> getMembers() {
+            return this.members;
+        }
+
+        /**
+         * @return the height of the cluster tree
+         */
+        public int getHeight() {
+            return this.height;
+        }
+
+        /**
+         * @return the minimum similarity in the cluster
+         */
+        public double getScore() {
+            return this.score;
+        }
+
+    }
+
     // COMMAND-LINE OPTIONS
 
     /** minimum similarity eligible for clustering */
@@ -78,6 +135,10 @@ public class ClusterLoadProcessor extends BaseDbProcessor {
     @Option(name = "--method", usage = "clustering method")
     private ClusterMergeMethod method;
 
+    /** number of updates per database request */
+    @Option(name = "--batch", metaVar = "500", usage = "number of sample updates per database request")
+    private int batchSize;
+
     /** genome ID to cluster */
     @Argument(index = 0, metaVar = "genomeId", usage = "ID of the genome whose samples should be re-clustered",
             required = true)
@@ -92,6 +153,7 @@ public class ClusterLoadProcessor extends BaseDbProcessor {
     protected void setDbDefaults() {
         this.minSim = 0.94;
         this.method = ClusterMergeMethod.COMPLETE;
+        this.batchSize = 200;
     }
 
     @Override
@@ -99,11 +161,19 @@ public class ClusterLoadProcessor extends BaseDbProcessor {
         // First, insure that the minimum clustering level is valid.
         if (this.minSim > 1.0 || this.minSim <= 0.0)
             throw new ParseFailureException("Minimum similarity must be between 0 and 1.");
+        if (this.batchSize < 1)
+            throw new ParseFailureException("Batch size must be positive.");
         // Now verify we can read the correlation file.
         if (! this.corrFile.canRead())
             throw new FileNotFoundException("Correlation file " + this.corrFile + " is not found or unreadable.");
-        // Estimate the number of samples being correlated.
-        this.dataPoints = (int) Math.sqrt(this.corrFile.length() / 25 / 2) + 1;
+        // Estimate the number of samples being correlated.  For a text file, we use the file size.  A binary
+        // file tells us exactly.
+        if (CorrelationReader.isBinary(this.corrFile)) {
+            try (CorrelationReader reader = CorrelationReader.open(this.corrFile)) {
+                this.dataPoints = reader.getIdCount();
+            }
+        } else
+            this.dataPoints = (int) Math.sqrt(this.corrFile.length() / 25 / 2) + 1;
         return true;
     }
 
@@ -114,22 +184,13 @@ public class ClusterLoadProcessor extends BaseDbProcessor {
         if (genomeRecord == null)
             throw new ParseFailureException("Invalid genome ID " + this.genomeId + ": not found in database.");
         log.info("Processing clusters for genome {}.", this.genomeId);
-        // Now we create the cluster groups and merge them.
+        // Now we read the correlations and form the clusters.
         log.info("Reading correlations from file {}.", this.corrFile);
-        this.clusters = new ClusterGroup(this.dataPoints, this.method);
-        this.clusters.load(this.corrFile, "1", "2", "3", false);
-        if (this.clusters.size() < 2)
-            throw new IOException("Two few samples to cluster.");
-        // Now we validate the samples to insure they belong to our genome.
-        this.validateSamples(db);
-        log.info("Merging samples into clusters.");
-        int mergeCount = 0;
-        while (this.clusters.merge(this.minSim)) {
-            mergeCount++;
-            if (log.isInfoEnabled() && mergeCount % 100 == 0)
-                log.info("{} merges performed.", mergeCount);
-        }
-        log.info("{} merges completed resulting in {} clusters.", mergeCount, this.clusters.size());
+        List<ClusterData> clusterList;
+        if (this.method == ClusterMergeMethod.COMPLETE)
+            clusterList = this.mergeComplete(db);
+        else
+            clusterList = this.mergeGroup(db);
         // Now we have the clusters defined.  We need to update the database.  This is done inside a
         // transaction.
         try (var xact = db.new Transaction()) {
@@ -138,7 +199,7 @@ public class ClusterLoadProcessor extends BaseDbProcessor {
             // The clusters are assigned numbers, in order.  The map below will map each cluster
             // ID to its member list.
             Map<String, Collection<String>> memberMap =
-                    new HashMap<String, Collection<String>>(this.clusters.size() * 4 / 3);
+                    new HashMap<String, Collection<String>>(clusterList.size() * 4 / 3);
             // Now we create the new clusters.  We create them all first, so we can batch the
             // inserts.  If we updated the sample records at the same time, we would have to
             // insert one at a time.
@@ -148,7 +209,7 @@ public class ClusterLoadProcessor extends BaseDbProcessor {
                 clusterLoader.set("genome_id", this.genomeId);
                 // This will be the cluster index.
                 int clI = 0;
-                for (Cluster cluster : this.clusters.getClusters()) {
+                for (ClusterData cluster : clusterList) {
                     String cluster_id = String.format("%s:CL%05d", this.genomeId, clI + 1);
                     clusterLoader.set("cluster_id", cluster_id);
                     Collection<String> members = cluster.getMembers();
@@ -165,22 +226,16 @@ public class ClusterLoadProcessor extends BaseDbProcessor {
                 }
             }
             // Now we store the cluster IDs in the sample records.
-            try (DbUpdate stmt = DbUpdate.batch(db, "RnaSample")) {
-                stmt.change("cluster_id").primaryKey().createStatement();
-                int updateCount = 0;
+            try (BulkUpdater updater = new BulkUpdater(db, "RnaSample", "sample_id", "cluster_id",
+                    BulkUpdater.ValueType.STRING, this.batchSize)) {
                 // Loop through the clusters.
                 for (Map.Entry<String, Collection<String>> clEntry : memberMap.entrySet()) {
-                    // Update the cluster ID to this cluster's ID.
-                    stmt.set("cluster_id", clEntry.getKey());
-                    // Perform the update for each member.
-                    for (String sampleId : clEntry.getValue()) {
-                        stmt.set("sample_id", sampleId);
-                        stmt.update();
-                        updateCount++;
-                        if (log.isInfoEnabled() && updateCount % 100 == 0)
-                            log.info("{} samples updated.", updateCount);
-                    }
+                    // Stage the cluster ID for each member.
+                    String clusterId = clEntry.getKey();
+                    for (String sampleId : clEntry.getValue())
+                        updater.set(sampleId, clusterId);
                 }
+                updater.apply();
             }
             // Commit the changes.
             xact.commit();
@@ -188,14 +243,104 @@ public class ClusterLoadProcessor extends BaseDbProcessor {
     }
 
     /**
-     * Verify that each sample in the cluster table belongs to the caller-specified genome.
+     * Form the clusters using the streaming complete-linkage engine.  Only the pairs at or above the minimum
+     * similarity are kept in memory.
+     *
+     * @param db	database connection
+     *
+     * @return a list of the clusters found, from largest to smallest
+     *
+     * @throws IOException
+     * @throws SQLException
+     * @throws ParseFailureException
+     */
+    private List<ClusterData> mergeComplete(DbConnection db) throws IOException, SQLException, ParseFailureException {
+        CompleteLinkageClusterer engine = new CompleteLinkageClusterer(this.minSim);
+        List<String> ids;
+        try (CorrelationReader reader = CorrelationReader.open(this.corrFile)) {
+            reader.forEach((i, j, sim) -> engine.addSim(i, j, sim));
+            ids = IntStream.range(0, reader.getIdCount()).mapToObj(i -> reader.getId(i)).collect(Collectors.toList());
+        }
+        log.info("{} samples found.  {} of {} similarities are at or above {}.", ids.size(),
+                engine.getRetainedCount(), engine.getInputCount(), this.minSim);
+        if (ids.size() < 2)
+            throw new IOException("Two few samples to cluster.");
+        // Now we validate the samples to insure they belong to our genome.
+        this.validateSamples(db, ids);
+        log.info("Merging samples into clusters.");
+        engine.merge(ids.size());
+        List<CompleteLinkageClusterer.Result> results = engine.getClusters();
+        log.info("{} merges completed resulting in {} clusters.  Peak heap usage was {} megabytes.",
+                engine.getMergeCount(), results.size(), peakHeap() / (1024 * 1024));
+        List<ClusterData> retVal = results.stream()
+                .map(x -> new ClusterData(Arrays.stream(x.getMembers()).mapToObj(i -> ids.get(i))
+                        .collect(Collectors.toList()), x.getHeight(), x.getScore()))
+                .collect(Collectors.toList());
+        return retVal;
+    }
+
+    /**
+     * Form the clusters using a cluster group.  This is used for the linkage methods other than complete.
      *
      * @param db	database connection
      *
+     * @return a list of the clusters found
+     *
+     * @throws IOException
+     * @throws SQLException
+     * @throws ParseFailureException
+     */
+    private List<ClusterData> mergeGroup(DbConnection db) throws IOException, SQLException, ParseFailureException {
+        ClusterGroup clusters = new ClusterGroup(this.dataPoints, this.method);
+        if (CorrelationReader.isBinary(this.corrFile)) {
+            try (CorrelationReader reader = CorrelationReader.open(this.corrFile)) {
+                reader.forEach((i, j, sim) -> clusters.addSim(reader.getId(i), reader.getId(j), sim));
+            }
+        } else
+            clusters.load(this.corrFile, "1", "2", "3", false);
+        if (clusters.size() < 2)
+            throw new IOException("Two few samples to cluster.");
+        // Now we validate the samples to insure they belong to our genome.
+        this.validateSamples(db, clusters.getClusters().stream().map(x -> x.getId()).collect(Collectors.toList()));
+        log.info("Merging samples into clusters.");
+        long start = System.currentTimeMillis();
+        int mergeCount = 0;
+        while (clusters.merge(this.minSim)) {
+            mergeCount++;
+            if (log.isInfoEnabled() && mergeCount % 100 == 0)
+                log.info("{} merges performed.", mergeCount);
+        }
+        double seconds = (System.currentTimeMillis() - start) / 1000.0;
+        log.info("{} merges completed in {} seconds resulting in {} clusters.  Peak heap usage was {} megabytes.",
+                mergeCount, seconds, clusters.size(), peakHeap() / (1024 * 1024));
+        List<ClusterData> retVal = clusters.getClusters().stream()
+                .map(x -> new ClusterData(x.getMembers(), x.getHeight(), x.getScore()))
+                .collect(Collectors.toList());
+        return retVal;
+    }
+
+    /**
+     * @return the total peak usage of the heap memory pools, in bytes
+     */
+    private static long peakHeap() {
+        long retVal = 0;
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP)
+                retVal += pool.getPeakUsage().getUsed();
+        }
+        return retVal;
+    }
+
+    /**
+     * Verify that each sample in the cluster table belongs to the caller-specified genome.
+     *
+     * @param db		database connection
+     * @param samples	IDs of the samples being clustered
+     *
      * @throws SQLException
      * @throws ParseFailureException
      */
-    private void validateSamples(DbConnection db) throws SQLException, ParseFailureException {
+    private void validateSamples(DbConnection db, Collection<String> samples) throws SQLException, ParseFailureException {
         log.info("Validating the input samples.");
         // Create a set to contain all the samples currently belonging to the genome.
         Set<String> sampleSet;
@@ -206,7 +351,7 @@ public class ClusterLoadProcessor extends BaseDbProcessor {
             sampleSet = gSamples.stream().collect(DbCollectors.set("RnaSample.sample_id"));
         }
         // Now verify that each loaded sample from the correlation files is in the sample set.
-        List<String> invalid = this.clusters.getClusters().stream().map(x -> x.getId()).
+        List<String> invalid = samples.stream().
                 filter(x -> ! sampleSet.contains(x)).sorted().collect(Collectors.toList());
         if (! invalid.isEmpty()) {
             // If there are a small number of bad ones, we list them; otherwise, we use a general message.
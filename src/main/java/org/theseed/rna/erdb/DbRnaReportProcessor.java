@@ -39,7 +39,7 @@ import org.theseed.reports.BaseRnaDbReporter;
  * --url		URL of database (host and name)
  * --parms		database connection parameter string (currently only MySQL)
  * --sample		sample ID for GENE_DATA report
- * --gFilter	if specified, a CSV containing the genes to include in the GENE_DATA
+ * --gFilter	if specified, a CSV containing the genes to include in the GENE_DATA and FEATURE_SHEET
  * 				report (the default is to include all genes)
  * --sCorr		if specified, the name of a file containing the sample correlations
  * --proj		name of project of interest for MEASURE report
@@ -72,7 +72,7 @@ public class DbRnaReportProcessor extends BaseDbRnaProcessor implements BaseRnaD
     private String sampleId;
 
     /** name of CSV file containing gene filter (first column only) */
-    @Option(name = "-gFilter", metaVar = "genes.csv", usage = "CSV file containing genes to output in GENE_DATA report (default is to output all)")
+    @Option(name = "-gFilter", metaVar = "genes.csv", usage = "CSV file containing genes to output in GENE_DATA and FEATURE_SHEET reports (default is to output all)")
     private File geneFilterFile;
 
     /** target project ID */
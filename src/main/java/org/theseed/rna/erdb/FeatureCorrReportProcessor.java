@@ -35,6 +35,8 @@ import org.theseed.utils.FloatList;
  * --load		load file for correlations; if specified, it should have the feature IDs in the first
  * 				two columns and the correlation score in the third
  * --save		file in which to save the correlations computed (ignored if --load specified)
+ * --keep		if specified, only correlations at or above this value will be retained
+ * --top		if nonzero, only the specified number of highest correlations will be retained for each feature
  * --levels		comma-delimited list of correlation levels to track in the report, from highest to lowest
  *
  * @author Bruce Parrello
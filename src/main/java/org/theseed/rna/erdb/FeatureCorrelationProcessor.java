@@ -15,6 +15,7 @@ import org.theseed.clusters.ClusterGroup;
 import org.theseed.java.erdb.DbConnection;
 import org.theseed.java.erdb.DbLoader;
 import org.theseed.java.erdb.SqlBuffer;
+import org.theseed.rna.data.FeatureMetadata;
 
 /**
  * This command computes the correlations between RNA expression levels for features in a genome and updates
@@ -36,6 +37,15 @@ import org.theseed.java.erdb.SqlBuffer;
  * --load		load file for correlations; if specified, it should have the feature IDs in the first
  * 				two columns and the correlation score in the third
  * --save		file in which to save the correlations computed
+ * --keep		if specified, only correlations at or above this value will be retained
+ * --top		if nonzero, only the specified number of highest correlations will be retained for each feature
+ * --cache		directory for cached sample matrix files (if omitted, matrices are built in memory)
+ * --float		if specified, new cached sample matrices will be stored in single precision
+ *
+ * Complete-linkage clustering only merges groups whose members are all correlated at or above the minimum
+ * clustering score, so "--keep" can be set to the clustering minimum without changing the clusters while
+ * vastly reducing the memory required.  "--top" is intended for building neighbor files (see NeighborProcessor);
+ * because it discards some pairs above the minimum, it can prevent merges.
  *
  * @author Bruce Parrello
  *
@@ -62,6 +72,11 @@ public class FeatureCorrelationProcessor extends BaseFeatureCorrelationProcessor
     protected void validateFeatureCorrParms() throws ParseFailureException, IOException {
         if(this.minScore <= 0.0 || this.minScore > 1.0)
             throw new ParseFailureException("Minimum score must be between 0 and 1.");
+        if (this.getKeepMin() > this.minScore)
+            log.warn("Retention minimum {} is above the clustering minimum {}:  clusters may be incomplete.",
+                    this.getKeepMin(), this.minScore);
+        if (this.getTopK() > 0)
+            log.warn("Top-{} pruning is active:  clusters may be incomplete.", this.getTopK());
     }
 
     @Override
@@ -111,6 +126,9 @@ public class FeatureCorrelationProcessor extends BaseFeatureCorrelationProcessor
             }
             // Commit the changes.
             xact.commit();
+        } finally {
+            // Any cached feature data for this genome is now obsolete.
+            FeatureMetadata.invalidate(this.getGenomeId());
         }
     }
 
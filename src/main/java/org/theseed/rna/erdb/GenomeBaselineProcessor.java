@@ -3,25 +3,32 @@
  */
 package org.theseed.rna.erdb;
 
+import java.io.File;
 import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.List;
 
 import org.kohsuke.args4j.Option;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.theseed.basic.ParseFailureException;
 import org.theseed.java.erdb.DbConnection;
-import org.theseed.java.erdb.DbQuery;
-import org.theseed.java.erdb.DbRecord;
-import org.theseed.java.erdb.DbUpdate;
-import org.theseed.java.erdb.Relop;
+import org.theseed.rna.data.FeatureMetadata;
+import org.theseed.rna.data.SampleMatrix;
+import org.theseed.rna.baseline.BaselineScanner;
 import org.theseed.rna.baseline.DbBaselineComputer;
 import org.theseed.rna.baseline.DbBaselineComputer.IParms;
 
 /**
- * This command computes the baseline level for each feature in a particular genome.  We read in
- * the samples one at a time and compute the mean value for each level.  Only one baseline value
+ * This command computes the baseline level for each feature in a particular genome.  The baselines are
+ * computed from the non-suspicious samples in the genome's expression matrix.  Only one baseline value
  * is kept, but we provide multiple algorithms for computing the baseline.
  *
+ * If a comparison file is specified, the baselines for every method are computed during the same scan of
+ * the expression matrix and written to the file, one column per method.  The feature records are still
+ * updated using only the selected method.
+ *
  * The positional parameter is the ID of the target genome.  The command-line options are as
  * follows.
  *
@@ -32,7 +39,12 @@ import org.theseed.rna.baseline.DbBaselineComputer.IParms;
  * --dbfile		database file name (SQLITE only)
  * --url		URL of database (host and name)
  * --parms		database connection parameter string (currently only MySQL)
- * --method		baseline computation algorithm to use
+ * --method		baseline computation algorithm to use (default WEIGHTED)
+ * --cache		directory for cached sample matrix files (if omitted, the matrix is built in memory)
+ * --float		if specified, new cached sample matrices will be stored in single precision
+ * --trim		fraction of values to trim from each end for the TRIMMED method (default 0.10)
+ * --compare	if specified, a tab-delimited output file to contain the baselines for all the methods
+ * --batch		number of feature updates to send in each database request (default 200)
  *
  *
  * @author Bruce Parrello
@@ -43,8 +55,6 @@ public class GenomeBaselineProcessor extends BaseDbRnaProcessor implements IParm
     // FIELDS
     /** logging facility */
     protected static Logger log = LoggerFactory.getLogger(GenomeBaselineProcessor.class);
-    /** baseline computer */
-    private DbBaselineComputer computer;
 
     // COMMAND-LINE OPTIONS
 
@@ -52,56 +62,114 @@ public class GenomeBaselineProcessor extends BaseDbRnaProcessor implements IParm
     @Option(name = "--method", usage = "method for computing the baselines")
     private DbBaselineComputer.Type method;
 
+    /** fraction of values to trim from each end for a trimmed mean */
+    @Option(name = "--trim", metaVar = "0.05", usage = "fraction of values to trim from each end for the TRIMMED method")
+    private double trimFraction;
+
+    /** output file for method comparison */
+    @Option(name = "--compare", metaVar = "baselines.tbl", usage = "if specified, file to contain baselines for all methods")
+    private File compareFile;
+
+    /** number of updates per database request */
+    @Option(name = "--batch", metaVar = "500", usage = "number of feature updates per database request")
+    private int batchSize;
+
     @Override
     protected void setDbDefaults() {
         this.method = DbBaselineComputer.Type.WEIGHTED;
+        this.trimFraction = 0.10;
+        this.compareFile = null;
+        this.batchSize = 200;
     }
 
     @Override
     protected void validateDbRnaParms() throws ParseFailureException, IOException {
+        if (this.trimFraction < 0.0 || this.trimFraction >= 0.5)
+            throw new ParseFailureException("Trim fraction must be at least 0 and less than 0.5.");
+        if (this.batchSize < 1)
+            throw new ParseFailureException("Batch size must be positive.");
     }
 
     @Override
     protected void runDbCommand(DbConnection db) throws Exception {
         // Load the feature index.  We will need this later.
         this.buildFeatureIndex(db);
-        // Initialize the baseline computer.
-        this.computer = this.method.create(this);
-        // Now we need to loop through the non-suspicious samples for this genome and run them
-        // through the baseline computer.
-        try (DbQuery query = new DbQuery(db, "RnaSample")) {
-            query.selectAll("RnaSample").rel("RnaSample.genome_id", Relop.EQ).rel("RnaSample.suspicious", Relop.EQ);
-            query.setParm(1, this.getGenomeId());
-            query.setParm(2, false);
-            log.info("Processing samples for genome {}.", this.getGenomeId());
-            int count = 0;
-            for (DbRecord record : query) {
-                this.computer.processRecord(record);
-                count++;
-                if (log.isInfoEnabled() && count % 500 == 0)
-                    log.info("{} samples processed.", count);
-            }
-            log.info("{} total samples processed.", count);
-        }
-        // Now we get the baseline from the computer and update the feature records.
+        // Create the baseline computers.  We need all of them for a comparison, and only the selected one
+        // otherwise.
+        List<DbBaselineComputer.Type> types = new ArrayList<DbBaselineComputer.Type>();
+        if (this.compareFile != null)
+            types.addAll(List.of(DbBaselineComputer.Type.values()));
+        else
+            types.add(this.method);
+        List<DbBaselineComputer> computers = new ArrayList<DbBaselineComputer>(types.size());
+        for (DbBaselineComputer.Type type : types)
+            computers.add(type.create(this));
+        // Now we need to scan the non-suspicious samples for this genome and run them through the
+        // baseline computers.  These come from the expression matrix.
+        SampleMatrix matrix = this.getSampleMatrix(db);
+        log.info("Processing samples for genome {} using {} method(s).", this.getGenomeId(), computers.size());
+        long start = System.currentTimeMillis();
+        BaselineScanner scanner = new BaselineScanner(matrix, matrix.getGoodSamples());
+        double[][] results = scanner.scan(computers);
+        log.info("Baselines computed in {} seconds.", (System.currentTimeMillis() - start) / 1000.0);
+        // Write the comparison file if needed.
+        if (this.compareFile != null)
+            this.writeComparison(types, results);
+        // Now we get the selected baselines and update the feature records.
         try (var xact = db.new Transaction()) {
-            double[] baselines = this.computer.getBaselines();
-            try (DbUpdate updater = DbUpdate.batch(db, "Feature")) {
-                // We are changing the baseline and filtering the update using the primary key.
-                updater.change("baseline").primaryKey().createStatement();
+            double[] baselines = results[types.indexOf(this.method)];
+            try (BulkUpdater updater = new BulkUpdater(db, "Feature", "fig_id", "baseline",
+                    BulkUpdater.ValueType.DOUBLE, this.batchSize)) {
                 log.info("Updating baselines for {} features.", baselines.length);
                 // Loop through the feature index.
-                for (int i = 0; i < baselines.length; i++) {
+                final int n = Math.min(baselines.length, this.getFeatureCount());
+                for (int i = 0; i < n; i++) {
                     String fid = this.getFeatureId(i);
-                    if (Double.isFinite(baselines[i])) {
-                        updater.set("baseline", baselines[i]);
-                        updater.set("fig_id", fid);
-                        updater.update();
-                    }
+                    if (fid != null && Double.isFinite(baselines[i]))
+                        updater.set(fid, baselines[i]);
                 }
+                updater.apply();
             }
             xact.commit();
+        } finally {
+            // Any cached feature data for this genome is now obsolete.
+            FeatureMetadata.invalidate(this.getGenomeId());
+        }
+    }
+
+    /**
+     * Write the baselines for all the methods to the comparison file.
+     *
+     * @param types		list of baseline methods used
+     * @param results	array of baseline arrays, parallel to the method list
+     *
+     * @throws IOException
+     */
+    private void writeComparison(List<DbBaselineComputer.Type> types, double[][] results) throws IOException {
+        log.info("Writing baseline comparison to {}.", this.compareFile);
+        try (PrintWriter writer = new PrintWriter(this.compareFile)) {
+            StringBuilder line = new StringBuilder(100);
+            line.append("fig_id");
+            for (DbBaselineComputer.Type type : types)
+                line.append('\t').append(type.name());
+            writer.println(line);
+            final int n = Math.min(results[0].length, this.getFeatureCount());
+            for (int i = 0; i < n; i++) {
+                String fid = this.getFeatureId(i);
+                if (fid != null) {
+                    line.setLength(0);
+                    line.append(fid);
+                    for (double[] result : results)
+                        line.append('\t').append(Double.isFinite(result[i]) ? Double.toString(result[i]) : "");
+                    writer.println(line);
+                }
+            }
         }
     }
 
+    @Override
+    public double getTrimFraction() {
+        return this.trimFraction;
+    }
+
 }
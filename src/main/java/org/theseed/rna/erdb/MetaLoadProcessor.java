@@ -31,6 +31,7 @@ import org.theseed.io.TabbedLineReader;
 import org.theseed.java.erdb.DbConnection;
 import org.theseed.java.erdb.DbLoader;
 import org.theseed.java.erdb.DbQuery;
+import org.theseed.rna.data.FeatureMetadata;
 
 /**
  * This command loads the metadata for a genome into an RNA Seq database.  If the genome is
@@ -188,6 +189,9 @@ public class MetaLoadProcessor extends BaseDbProcessor {
             this.loadGroupFile(db);
             // Commit our changes.
             xact.commit();
+        } finally {
+            // Any cached feature data for this genome is now obsolete.
+            FeatureMetadata.invalidate(this.genomeId);
         }
     }
 
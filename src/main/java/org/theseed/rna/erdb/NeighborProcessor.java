@@ -14,10 +14,9 @@ import org.kohsuke.args4j.Option;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.theseed.basic.ParseFailureException;
-import org.theseed.io.TabbedLineReader;
 import org.theseed.java.erdb.DbConnection;
-import org.theseed.java.erdb.DbUpdate;
 import org.theseed.neighbors.Neighborhood;
+import org.theseed.rna.corr.CorrelationReader;
 
 /**
  * This command reads a feature correlation file and updates the neighbor fields in the
@@ -25,7 +24,10 @@ import org.theseed.neighbors.Neighborhood;
  *
  * The feature correlation table should be on the standard input.  It has three columns,
  * tab-delimited with headers, the first two columns containing feature IDs and the third
- * a correlation coefficient between them.
+ * a correlation coefficient between them.  If the correlations are in a file, it can also
+ * be a binary correlation file.  A file saved by the feature correlation command with the
+ * "--top" option set to at least the neighborhood size contains every correlation needed here, at a
+ * fraction of the size.
  *
  * The first positional parameters is the target genome ID.
  *
@@ -37,6 +39,7 @@ import org.theseed.neighbors.Neighborhood;
  * -n	number of neighbors to keep for each feature
  *
  * --min		minimum acceptable correlation (default 0.90)
+ * --batch		number of feature updates to send in each database request (default 200)
  * --type		type of database (default SQLITE)
  * --dbfile		database file name (SQLITE only)
  * --url		URL of database (host and name)
@@ -51,7 +54,7 @@ public class NeighborProcessor extends BaseDbRnaProcessor {
     /** logging facility */
     protected static Logger log = LoggerFactory.getLogger(NeighborProcessor.class);
     /** input stream for correlations */
-    private TabbedLineReader inStream;
+    private CorrelationReader inStream;
     /** map of feature IDs to neighborhoods */
     private Map<String, Neighborhood> neighborhoodMap;
 
@@ -71,11 +74,16 @@ public class NeighborProcessor extends BaseDbRnaProcessor {
     @Option(name = "--min", metaVar = "0.80", usage = "minimum acceptable correlation for a neighbor")
     private double minCorr;
 
+    /** number of updates per database request */
+    @Option(name = "--batch", metaVar = "500", usage = "number of feature updates per database request")
+    private int batchSize;
+
     @Override
     protected void setDbDefaults() {
         this.inFile = null;
         this.nMax =  10;
         this.minCorr = 0.90;
+        this.batchSize = 200;
     }
 
     @Override
@@ -85,13 +93,15 @@ public class NeighborProcessor extends BaseDbRnaProcessor {
             throw new ParseFailureException("Maximum neighborhood size must be positive.");
         if (this.minCorr <= 0.0 || this.minCorr > 1.0)
             throw new ParseFailureException("Minimum correlation must be between 0 and 1.");
+        if (this.batchSize < 1)
+            throw new ParseFailureException("Batch size must be positive.");
         // Set up the input file.
         if (this.inFile == null) {
             log.info("Correlations will be read from the standard input.");
-            this.inStream = new TabbedLineReader(System.in);
+            this.inStream = CorrelationReader.open(System.in);
         } else {
             log.info("Correlations wiill be read from {}.", this.inFile);
-            this.inStream = new TabbedLineReader(this.inFile);
+            this.inStream = CorrelationReader.open(this.inFile);
         }
     }
 
@@ -101,43 +111,39 @@ public class NeighborProcessor extends BaseDbRnaProcessor {
             // Create the empty neighbor map.
             this.neighborhoodMap = new HashMap<String, Neighborhood>(4000);
             // Loop through the input file, saving correlations.
-            int inCount = 0;
-            int keptCount = 0;
-            for (TabbedLineReader.Line line : this.inStream) {
-                String id1 = line.get(0);
-                String id2 = line.get(1);
-                double corr = line.getDouble(2);
+            int[] counts = new int[2];
+            this.inStream.forEach((i, j, corr) -> {
                 if (corr >= this.minCorr) {
+                    String id1 = this.inStream.getId(i);
+                    String id2 = this.inStream.getId(j);
                     this.addCorr(id1, id2, corr);
                     this.addCorr(id2, id1, corr);
-                    keptCount++;
+                    counts[1]++;
                 }
-                inCount++;
-                if (log.isInfoEnabled() && inCount % 100000 == 0)
-                    log.info("{} correlations processed, {} kept.", inCount, keptCount);
-            }
+                counts[0]++;
+                if (log.isInfoEnabled() && counts[0] % 100000 == 0)
+                    log.info("{} correlations processed, {} kept.", counts[0], counts[1]);
+            });
             // Now we must store the neighborhoods in the features.  Get the feature table.
             log.info("Updating database.");
             int outCount = 0;
             int nCount = 0;
-            try (DbUpdate updater = DbUpdate.batch(db, "Feature")) {
-                updater.change("neighbors").primaryKey();
-                updater.createStatement();
+            try (var xact = db.new Transaction();
+                    BulkUpdater updater = new BulkUpdater(db, "Feature", "fig_id", "neighbors",
+                    BulkUpdater.ValueType.STRING, this.batchSize)) {
                 for (Map.Entry<String, Neighborhood> hoodEntry : this.neighborhoodMap.entrySet()) {
                     String fid = hoodEntry.getKey();
                     Neighborhood hood = hoodEntry.getValue();
                     if (hood.size() > 0) {
                         String neighbors = Arrays.stream(hood.getNeighbors()).map(x -> x.getId())
                                 .collect(Collectors.joining(","));
-                        updater.set("neighbors", neighbors);
-                        updater.set("fig_id", fid);
-                        updater.update();
+                        updater.set(fid, neighbors);
                         outCount++;
                         nCount += hood.size();
-                        if (log.isInfoEnabled() && outCount % 100 == 0)
-                            log.info("{} updates submitted.", outCount);
                     }
                 }
+                updater.apply();
+                xact.commit();
             }
             log.info("{} features updated with {} neighbors.", outCount, nCount);
         } finally {
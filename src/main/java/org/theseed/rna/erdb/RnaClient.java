@@ -0,0 +1,69 @@
+/**
+ *
+ */
+package org.theseed.rna.erdb;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.Socket;
+
+/**
+ * This class sends a command to a running server (see the "server" command) and copies the output to the
+ * standard output.  The parameters are an optional "--port" option followed by the command name and its
+ * arguments, exactly as they would be specified on the command line.  A command of "shutdown" stops the
+ * server.  Each request begins with the shared secret from the server's token file in the user's home
+ * directory, so only the user who started the server can send it commands.
+ *
+ * @author Bruce Parrello
+ *
+ */
+public class RnaClient {
+
+    /**
+     * Send a command to the server and display the output.
+     *
+     * @param args		command-line parameters
+     */
+    public static void run(String[] args) {
+        int port = RnaServerProcessor.DEFAULT_PORT;
+        int first = 0;
+        if (args.length >= 2 && args[0].equals("--port")) {
+            port = Integer.parseInt(args[1]);
+            first = 2;
+        }
+        if (first >= args.length)
+            throw new IllegalArgumentException("No command specified for client.");
+        File tokenFile = RnaServerProcessor.tokenFile(port);
+        String token;
+        try {
+            token = RnaServerProcessor.readToken(tokenFile);
+        } catch (IOException e) {
+            throw new RuntimeException("Cannot read server token: " + e.toString(), e);
+        }
+        try (Socket server = new Socket(InetAddress.getLoopbackAddress(), port)) {
+            // Send the request.
+            DataOutputStream outStream = new DataOutputStream(new BufferedOutputStream(server.getOutputStream()));
+            outStream.writeUTF(token);
+            outStream.writeInt(args.length - first);
+            for (int i = first; i < args.length; i++)
+                outStream.writeUTF(args[i]);
+            outStream.flush();
+            // Copy the response.
+            InputStream inStream = server.getInputStream();
+            byte[] buffer = new byte[65536];
+            int n = inStream.read(buffer);
+            while (n >= 0) {
+                System.out.write(buffer, 0, n);
+                n = inStream.read(buffer);
+            }
+            System.out.flush();
+        } catch (IOException e) {
+            throw new RuntimeException("Error communicating with server on port " + port + ": " + e.toString(), e);
+        }
+    }
+
+}
@@ -0,0 +1,278 @@
+/**
+ *
+ */
+package org.theseed.rna.erdb;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.attribute.PosixFileAttributeView;
+import java.nio.file.attribute.PosixFilePermission;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.Set;
+
+import org.kohsuke.args4j.Option;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.theseed.basic.BaseProcessor;
+import org.theseed.basic.ParseFailureException;
+import org.theseed.rna.data.SampleMatrixCache;
+
+/**
+ * This command runs a persistent server that executes the other commands of this application on behalf of
+ * clients.  Because the server stays up, the JIT-compiled code and the resident sample matrices are reused
+ * from one command to the next, so repeated reports and matrix builds for the same genome start warm.
+ *
+ * The server listens on a socket bound to the loopback address, so only local clients can connect.  Because
+ * other users on the same machine can also reach the loopback address, each request must begin with a shared
+ * secret.  The secret is kept in the file ".rna-erdb.PORT.token" in the user's home directory, where PORT is
+ * the port number.  If the file does not exist, the server creates it with a new random secret; if it does
+ * exist, it must be readable and writable only by its owner, or the server will not start.  Requests without
+ * the correct secret are rejected without being run, and a client that does not send its request within thirty
+ * seconds is disconnected.  After the secret, the client sends a command name and
+ * its arguments (see the "client" command).  The server runs the command
+ * with the standard output redirected to the client connection, and closes the connection when the command
+ * is finished.  Requests are processed one at a time, in the order received.  The standard input is empty
+ * for commands run by the server, so input files must be specified by name.  Log messages are written by
+ * the server.  The special command "shutdown" stops the server.
+ *
+ * Each command still opens its own database connection, because the connection is managed by the base
+ * database command class.  Opening a connection is cheap compared to reading the samples, which is what the
+ * resident matrices save.
+ *
+ * The command-line options are as follows.
+ *
+ * -h	display command-line usage
+ * -v	display more frequent log messages
+ *
+ * --port		port number on which to listen (default 7155)
+ * --matrices	maximum number of sample matrices to keep resident (default 4)
+ *
+ * @author Bruce Parrello
+ *
+ */
+public class RnaServerProcessor extends BaseProcessor {
+
+    // FIELDS
+    /** logging facility */
+    protected static Logger log = LoggerFactory.getLogger(RnaServerProcessor.class);
+    /** default port number */
+    public static final int DEFAULT_PORT = 7155;
+    /** command name for stopping the server */
+    public static final String SHUTDOWN = "shutdown";
+    /** maximum number of arguments in a request */
+    private static final int MAX_ARGS = 10000;
+    /** number of milliseconds to wait for a client to send data before giving up on it */
+    private static final int READ_TIMEOUT = 30000;
+    /** number of random bytes in a new secret */
+    private static final int TOKEN_BYTES = 32;
+    /** permissions required for the secret file */
+    private static final Set<PosixFilePermission> TOKEN_PERMISSIONS = EnumSet.of(PosixFilePermission.OWNER_READ,
+            PosixFilePermission.OWNER_WRITE);
+    /** shared secret for validating requests */
+    private String token;
+
+    // COMMAND-LINE OPTIONS
+
+    /** port number for the server */
+    @Option(name = "--port", metaVar = "7000", usage = "port number on which to listen")
+    private int port;
+
+    /** maximum number of resident matrices */
+    @Option(name = "--matrices", metaVar = "10", usage = "maximum number of sample matrices to keep in memory")
+    private int matrixLimit;
+
+    @Override
+    protected void setDefaults() {
+        this.port = DEFAULT_PORT;
+        this.matrixLimit = 4;
+    }
+
+    @Override
+    protected boolean validateParms() throws IOException, ParseFailureException {
+        if (this.port <= 0 || this.port > 65535)
+            throw new ParseFailureException("Invalid port number " + this.port + ".");
+        if (this.matrixLimit < 0)
+            throw new ParseFailureException("Resident matrix limit cannot be negative.");
+        return true;
+    }
+
+    @Override
+    protected void runCommand() throws Exception {
+        this.token = setupToken(tokenFile(this.port));
+        SampleMatrixCache.setResidentLimit(this.matrixLimit);
+        try (ServerSocket server = new ServerSocket(this.port, 50, InetAddress.getLoopbackAddress())) {
+            log.info("Server listening on port {}.", this.port);
+            boolean done = false;
+            int count = 0;
+            while (! done) {
+                try (Socket client = server.accept()) {
+                    // Requests are processed one at a time, so a client that connects and then stalls must
+                    // not be allowed to block the server.
+                    client.setSoTimeout(READ_TIMEOUT);
+                    String[] request = readRequest(client.getInputStream(), this.token);
+                    if (request.length == 0)
+                        log.warn("Empty request ignored.");
+                    else if (request[0].equals(SHUTDOWN)) {
+                        log.info("Shutdown requested.");
+                        done = true;
+                    } else {
+                        count++;
+                        this.execute(request, client);
+                    }
+                } catch (IOException e) {
+                    log.error("Error communicating with client: {}", e.toString());
+                }
+            }
+            log.info("{} requests processed.", count);
+        } finally {
+            SampleMatrixCache.setResidentLimit(0);
+        }
+    }
+
+    /**
+     * @return the file containing the shared secret for a server port
+     *
+     * @param port		port number of the server
+     */
+    public static File tokenFile(int port) {
+        return new File(System.getProperty("user.home"), ".rna-erdb." + port + ".token");
+    }
+
+    /**
+     * Read the shared secret from a token file.  On file systems that support it, the file permissions are
+     * checked first.
+     *
+     * @param file		token file to read
+     *
+     * @return the shared secret in the file
+     *
+     * @throws IOException
+     */
+    public static String readToken(File file) throws IOException {
+        PosixFileAttributeView view = Files.getFileAttributeView(file.toPath(), PosixFileAttributeView.class);
+        if (view != null) {
+            Set<PosixFilePermission> perms = view.readAttributes().permissions();
+            if (! TOKEN_PERMISSIONS.containsAll(perms))
+                throw new IOException("Token file " + file + " has permissions "
+                        + PosixFilePermissions.toString(perms) + ", but only the owner may have access.");
+        }
+        String retVal = new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8).trim();
+        if (retVal.isEmpty())
+            throw new IOException("Token file " + file + " is empty.");
+        return retVal;
+    }
+
+    /**
+     * Get the shared secret for the server.  If the token file does not exist, it is created with a new random
+     * secret.
+     *
+     * @param file		token file to use
+     *
+     * @return the shared secret
+     *
+     * @throws IOException
+     */
+    private static String setupToken(File file) throws IOException {
+        String retVal;
+        if (file.exists())
+            retVal = readToken(file);
+        else {
+            byte[] bytes = new byte[TOKEN_BYTES];
+            new SecureRandom().nextBytes(bytes);
+            StringBuilder hex = new StringBuilder(TOKEN_BYTES * 2);
+            for (byte b : bytes)
+                hex.append(String.format("%02x", b));
+            retVal = hex.toString();
+            // Create the file with restricted permissions before any data is written to it.
+            if (Files.getFileAttributeView(file.getParentFile().toPath(), PosixFileAttributeView.class) != null)
+                Files.createFile(file.toPath(), PosixFilePermissions.asFileAttribute(TOKEN_PERMISSIONS));
+            else {
+                Files.createFile(file.toPath());
+                file.setReadable(false, false);
+                file.setWritable(false, false);
+                file.setReadable(true, true);
+                file.setWritable(true, true);
+            }
+            Files.write(file.toPath(), retVal.getBytes(StandardCharsets.UTF_8));
+            log.info("New server token written to {}.", file);
+        }
+        return retVal;
+    }
+
+    /**
+     * Read a request from a client.  The request consists of the shared secret, an argument count, and the
+     * arguments.
+     *
+     * @param inStream	input stream from the client
+     * @param token		expected shared secret
+     *
+     * @return the command name followed by its arguments
+     *
+     * @throws IOException
+     */
+    public static String[] readRequest(InputStream inStream, String token) throws IOException {
+        DataInputStream dataStream = new DataInputStream(inStream);
+        byte[] clientToken = dataStream.readUTF().getBytes(StandardCharsets.UTF_8);
+        if (! MessageDigest.isEqual(clientToken, token.getBytes(StandardCharsets.UTF_8)))
+            throw new IOException("Request rejected:  invalid server token.");
+        int n = dataStream.readInt();
+        if (n < 0 || n > MAX_ARGS)
+            throw new IOException("Invalid argument count " + n + " in request.");
+        String[] retVal = new String[n];
+        for (int i = 0; i < n; i++)
+            retVal[i] = dataStream.readUTF();
+        return retVal;
+    }
+
+    /**
+     * Execute a command on behalf of a client.  The standard output is redirected to the client during the
+     * command.
+     *
+     * @param request	command name followed by its arguments
+     * @param client	client connection
+     *
+     * @throws IOException
+     */
+    private void execute(String[] request, Socket client) throws IOException {
+        String command = request[0];
+        log.info("Executing command {}.", command);
+        long start = System.currentTimeMillis();
+        PrintStream oldOut = System.out;
+        InputStream oldIn = System.in;
+        try (PrintStream clientOut = new PrintStream(new BufferedOutputStream(client.getOutputStream()), false)) {
+            System.setOut(clientOut);
+            System.setIn(new ByteArrayInputStream(new byte[0]));
+            try {
+                BaseProcessor processor = App.createProcessor(command);
+                boolean ok = processor.parseCommand(Arrays.copyOfRange(request, 1, request.length));
+                if (ok)
+                    processor.run();
+                else
+                    clientOut.println("Invalid parameters for command " + command + ".");
+            } catch (RuntimeException e) {
+                log.error("Command {} failed.", command, e);
+                clientOut.println("Command " + command + " failed: " + e.toString());
+            }
+            clientOut.flush();
+        } finally {
+            System.setOut(oldOut);
+            System.setIn(oldIn);
+        }
+        log.info("Command {} completed in {} seconds.", command, (System.currentTimeMillis() - start) / 1000.0);
+    }
+
+}
@@ -3,14 +3,21 @@
  */
 package org.theseed.rna.erdb;
 
+import java.io.File;
 import java.io.IOException;
 import java.io.PrintWriter;
-import java.util.AbstractMap;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
-import java.util.Map.Entry;
-import java.util.stream.IntStream;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
 
 import org.kohsuke.args4j.Argument;
 import org.kohsuke.args4j.Option;
@@ -19,14 +26,19 @@ import org.slf4j.LoggerFactory;
 import org.theseed.basic.ParseFailureException;
 import org.theseed.erdb.utils.BaseDbReportProcessor;
 import org.theseed.java.erdb.DbConnection;
-import org.theseed.java.erdb.DbQuery;
 import org.theseed.java.erdb.DbRecord;
-import org.theseed.java.erdb.Relop;
-import org.theseed.reports.RangeNormalizer;
+import org.theseed.rna.corr.CorrelationReader;
+import org.theseed.rna.corr.CorrelationWriter;
+import org.theseed.rna.corr.DenseCorrelationWriter;
+import org.theseed.rna.corr.FixedFormatter;
+import org.theseed.rna.corr.SampleSimilarityEngine;
+import org.theseed.rna.data.SampleMatrix;
+import org.theseed.rna.data.SampleMatrixCache;
 
 /**
  * This command reads a genome's RNA samples from the database and outputs a correlation report.
- * The report can then be used to cluster the samples into groups.
+ * The report can then be used to cluster the samples into groups.  The similarity between two samples
+ * is 1 minus the mean absolute difference between their range-normalized expression levels.
  *
  * The positional parameter is the ID of the genome whose samples should be processed.
  *
@@ -41,6 +53,19 @@ import org.theseed.reports.RangeNormalizer;
  * --url		URL of database (host and name)
  * --parms		database connection parameter string (currently only MySQL)
  * --all		if specified, suspicious samples will be included
+ * --cache		directory for cached sample matrix files (if omitted, the matrix is built in memory)
+ * --float		if specified, new cached sample matrices will be stored in single precision
+ * --binary		if specified, the name of a file to contain the correlations in dense binary form; in this case,
+ * 				the text output will only contain the header line
+ * --update		if specified, the name of a dense binary correlation store to update; only the pairs involving
+ * 				samples not already in the store are computed (if the store does not exist, it is created)
+ * --drift		maximum normalization range drift allowed for an incremental update, as a fraction of the
+ * 				original range (default 0.05)
+ *
+ * The normalization ranges used for a binary correlation file are saved in a companion file with the same
+ * name plus a ".ranges" suffix, along with a fingerprint of each sample's expression levels.  An incremental
+ * update is only possible if no samples have been removed, none of the samples in the store have changed, and
+ * the ranges have not moved by more than the drift limit.  Otherwise, the store is recomputed in full.
  *
  * @author Bruce Parrello
  *
@@ -50,14 +75,30 @@ public class SampleCorrelationProcessor extends BaseDbReportProcessor {
     // FIELDS
     /** logging facility */
     protected static Logger log = LoggerFactory.getLogger(SampleCorrelationProcessor.class);
-    /** array of range normalizers for the features */
-    private RangeNormalizer[] fidRanges;
-    /** map of sample IDs to expression level arrays */
-    private List<Map.Entry<String, double[]>> sampleLevels;
+    /** similarity engine for the samples */
+    private SampleSimilarityEngine engine;
     /** number of comparisons made */
-    private int compareCount;
+    private long compareCount;
     /** total number of comparisons required */
-    private int totalCount;
+    private long totalCount;
+    /** sample matrix cache */
+    private SampleMatrixCache matrixCache;
+    /** field width for similarity scores */
+    private static final int SIM_WIDTH = 8;
+    /** formatter for similarity scores */
+    private static final FixedFormatter SIM_FORMAT = new FixedFormatter(SIM_WIDTH, 6);
+    /** line terminator for output */
+    private static final String LINE_END = System.lineSeparator();
+    /** maximum number of bytes of strip output allowed to be pending */
+    private static final long PENDING_BYTES = 256L * 1024 * 1024;
+    /** target number of pairs per strip for text output */
+    private static final int TEXT_STRIP_PAIRS = 131072;
+    /** maximum number of rows per strip for text output */
+    private static final int MAX_TEXT_STRIP = 32;
+    /** number of rows per strip for binary output */
+    private static final int BINARY_STRIP = 256;
+    /** suffix for normalization range files */
+    private static final String RANGE_SUFFIX = ".ranges";
 
     // COMMAND-LINE OPTIONS
 
@@ -65,6 +106,26 @@ public class SampleCorrelationProcessor extends BaseDbReportProcessor {
     @Option(name = "--all", usage = "if specified, suspicious samples will be included in the clusters")
     private boolean allFlag;
 
+    /** sample matrix cache directory */
+    @Option(name = "--cache", metaVar = "matrixCache", usage = "directory for cached sample expression matrices")
+    private File cacheDir;
+
+    /** TRUE to store new cached matrices in single precision */
+    @Option(name = "--float", usage = "if specified, cached sample matrices will be built in single precision")
+    private boolean floatFlag;
+
+    /** binary output file */
+    @Option(name = "--binary", metaVar = "sampleCorr.bcor", usage = "if specified, a file to contain the correlations in binary form")
+    private File binFile;
+
+    /** existing correlation store to update */
+    @Option(name = "--update", metaVar = "sampleCorr.bcor", usage = "if specified, a binary correlation store to update incrementally")
+    private File updateFile;
+
+    /** maximum normalization drift for an incremental update */
+    @Option(name = "--drift", metaVar = "0.10", usage = "maximum normalization range drift for an incremental update")
+    private double maxDrift;
+
     /** ID of the genome of interest */
     @Argument(index = 0, metaVar = "genomeId", usage = "ID of the genome whose samples are to be clustered",
             required = true)
@@ -73,10 +134,20 @@ public class SampleCorrelationProcessor extends BaseDbReportProcessor {
     @Override
     protected void setReporterDefaults() {
         this.allFlag = false;
+        this.cacheDir = null;
+        this.floatFlag = false;
+        this.binFile = null;
+        this.updateFile = null;
+        this.maxDrift = 0.05;
     }
 
     @Override
     protected void validateReporterParms() throws IOException, ParseFailureException {
+        this.matrixCache = SampleMatrixCache.create(this.cacheDir, this.floatFlag, SampleMatrix.Orientation.SAMPLE);
+        if (this.binFile != null && this.updateFile != null)
+            throw new ParseFailureException("Cannot specify both --binary and --update.");
+        if (this.maxDrift < 0.0)
+            throw new ParseFailureException("Maximum drift cannot be negative.");
     }
 
     @Override
@@ -90,91 +161,363 @@ public class SampleCorrelationProcessor extends BaseDbReportProcessor {
         final int nPegs = genomeRecord.getInt("Genome.peg_count");
         String gName = genomeRecord.getString("Genome.genome_name");
         log.info("Genome {} ({}) contains {} pegs.", genomeId, gName, nPegs);
-        // Create the normalizer array.
-        this.fidRanges = IntStream.range(0, nPegs).mapToObj(i -> new RangeNormalizer()).toArray(RangeNormalizer[]::new);
-        this.sampleLevels = new ArrayList<Map.Entry<String, double[]>>(1000);
-        // We start by querying the database to get the sample data.  The basic query is for
-        // all samples for the genome.  If the all-flag is FALSE, we restrict to samples that
-        // are not suspicious.
-        log.info("Reading samples from database.");
-        try (DbQuery query = new DbQuery(db, "RnaSample")) {
-            query.select("RnaSample", "sample_id", "feat_data");
-            query.rel("RnaSample.genome_id", Relop.EQ);
-            query.setParm(1, this.genomeId);
-            if (! this.allFlag) {
-                query.rel("RnaSample.suspicious", Relop.EQ);
-                query.setParm(2, false);
-            }
-            // We loop through the samples.  For each one, we stash its levels array in the sample map, and
-            // then update the normalizers.
-            for (DbRecord sample : query) {
-                double[] levels = sample.getDoubleArray("RnaSample.feat_data");
-                String sampleId = sample.getString("RnaSample.sample_id");
-                for (int i = 0; i < nPegs; i++) {
-                    if (Double.isFinite(levels[i]))
-                        this.fidRanges[i].addElement(levels[i]);
-                }
-                this.sampleLevels.add(new AbstractMap.SimpleImmutableEntry<>(sampleId, levels));
-            }
-        }
-        // Now we have everything we need in memory.  Write the output header.
+        // Get the sample matrix.  If the all-flag is FALSE, we restrict to samples that are not suspicious.
+        SampleMatrix matrix = this.matrixCache.get(db, this.genomeId);
+        int[] samples = (this.allFlag ? matrix.selectSamples(i -> true) : matrix.getGoodSamples());
+        final String[] sampleIds = Arrays.stream(samples).mapToObj(i -> matrix.getSampleId(i)).toArray(String[]::new);
+        // Write the output header.
         writer.println("sample1\tsample2\tsimilarity");
+        long start = System.currentTimeMillis();
+        boolean done = false;
+        if (this.updateFile != null && this.updateFile.exists())
+            done = this.updateStore(matrix, samples, sampleIds);
+        if (! done) {
+            // Here we must compute all the pairs.
+            File outFile = (this.updateFile != null ? this.updateFile : this.binFile);
+            this.computeAll(writer, matrix, samples, sampleIds, outFile);
+        }
+        log.info("{} comparisons computed in {} seconds.", this.compareCount,
+                (System.currentTimeMillis() - start) / 1000.0);
+    }
+
+    /**
+     * Compute the similarities for all the sample pairs.
+     *
+     * @param writer		output writer for text output
+     * @param matrix		sample matrix for the genome
+     * @param samples		array of matrix indices for the samples to use
+     * @param sampleIds		array of sample IDs, parallel to the sample indices
+     * @param outFile		binary output file, or NULL for text output
+     *
+     * @throws IOException
+     */
+    private void computeAll(PrintWriter writer, SampleMatrix matrix, int[] samples, String[] sampleIds, File outFile)
+            throws IOException {
+        final int nSamples = samples.length;
+        // Normalize the samples into the similarity engine.
+        log.info("Normalizing {} samples with {} features.", nSamples, matrix.getFeatureCount());
+        this.engine = new SampleSimilarityEngine(nSamples, matrix.getFeatureCount(),
+                (i, buffer) -> matrix.getSampleRow(samples[i], buffer));
         // Compute the total number of comparisons required so we can count.
-        int nSamples = this.sampleLevels.size();
-        this.totalCount = nSamples * (nSamples + 1) / 2;
+        this.totalCount = CorrelationWriter.triangleSize(nSamples);
         this.compareCount = 0;
-        // Loop through the samples.  For each sample, we compute its correlations.
-        IntStream.range(0, nSamples).parallel().forEach(i ->
-                this.processSample(writer, this.sampleLevels.get(i), this.sampleLevels.subList(i+1, nSamples)));
+        // Compute the rows in strips.  For text output, the strips are computed and formatted in parallel and
+        // the pipeline writes them in order.  For binary output, the strips are stored directly in the output
+        // file, so the order does not matter and we can use much taller strips.
+        if (outFile == null) {
+            int stripRows = Math.max(1, Math.min(MAX_TEXT_STRIP, TEXT_STRIP_PAIRS / Math.max(1, nSamples)));
+            final long[] idChars = suffixLengths(sampleIds);
+            this.runPipeline(nSamples, stripRows, 0, (i0, i1) -> this.formatStrip(i0, i1, sampleIds, idChars),
+                    (i0, i1) -> textLength(i0, i1, sampleIds, idChars), x -> writer.append(x));
+        } else {
+            // We write to a temporary file and rename it, so that a failure does not destroy an existing
+            // correlation store.
+            log.info("Writing binary correlations to {}.", outFile);
+            File tempFile = new File(outFile.getPath() + ".tmp");
+            try (DenseCorrelationWriter binOut = CorrelationWriter.dense(tempFile, Arrays.asList(sampleIds))) {
+                this.runPipeline(nSamples, BINARY_STRIP, 0, (i0, i1) -> this.storeStrip(binOut, i0, i1, 0),
+                        (i0, i1) -> stripPairs(nSamples, i0, i1, 0) * Float.BYTES, x -> { });
+            }
+            replaceFile(tempFile, outFile);
+            // Save the normalization ranges so the file can be updated incrementally later.
+            this.engine.getRanges().save(getRangeFile(outFile));
+        }
     }
 
     /**
-     * This method computes the correlation for a single sample.  The incoming entry is compared to
-     * every entry in the sublist, which is to say, every subsequent sample.  This method is
-     * executed in parallel, so the subroutine that writes to the output is synchronized.
+     * Attempt to update an existing correlation store with the new samples.  Only the pairs involving
+     * new samples are computed, and they are appended to the store.  The update is refused if samples
+     * have been removed from the store's sample set, if the expression data for any sample already in
+     * the store has changed, or if the normalization ranges have drifted too far, since in these cases
+     * the old similarities are no longer valid.  Changes to the old samples are detected by comparing
+     * the fingerprints saved with the normalization ranges.
+     *
+     * @param matrix		sample matrix for the genome
+     * @param samples		array of matrix indices for the samples to use
+     * @param sampleIds		array of sample IDs, parallel to the sample indices
      *
-     * @param writer	output writer for the results
-     * @param entry		main sample entry
-     * @param subList	list of other sample entries to which it should be compared
+     * @return TRUE if the update succeeded, FALSE if a full recomputation is required
+     *
+     * @throws IOException
      */
-    private void processSample(PrintWriter writer, Entry<String, double[]> entry, List<Map.Entry<String, double[]>> subList) {
-        String sample1 = entry.getKey();
-        double[] levels1 = entry.getValue();
-        // Loop through the other samples.
-        for (Map.Entry<String, double[]> entry2 : subList) {
-            String sample2 = entry2.getKey();
-            double[] levels2 = entry2.getValue();
-            // Now we accumulate the error sum and the total count.  The maximum error at each position is 1.0
-            // because of the normalizing.  A position is only counted if it is finite in both arrays.
-            double errorSum = 0.0;
-            int count = 0;
-            for (int i = 0; i < levels1.length; i++) {
-                double v1 = levels1[i];
-                double v2 = levels2[i];
-                if (Double.isFinite(v1) && Double.isFinite(v2)) {
-                    double err = this.fidRanges[i].difference(v1, v2);
-                    errorSum += Math.abs(err);
-                    count++;
+    private boolean updateStore(SampleMatrix matrix, int[] samples, String[] sampleIds) throws IOException {
+        boolean retVal = false;
+        File rangeFile = getRangeFile(this.updateFile);
+        // Get the existing sample IDs.
+        List<String> oldIds = new ArrayList<String>();
+        try (CorrelationReader reader = CorrelationReader.open(this.updateFile)) {
+            if (! reader.isDense())
+                throw new IOException("Correlation store " + this.updateFile + " is not a dense binary correlation file.");
+            for (int i = 0; i < reader.getIdCount(); i++)
+                oldIds.add(reader.getId(i));
+        }
+        // Map the current sample IDs to their matrix indices.
+        Map<String, Integer> currentMap = new HashMap<String, Integer>(samples.length * 4 / 3 + 1);
+        for (int i = 0; i < samples.length; i++)
+            currentMap.put(sampleIds[i], samples[i]);
+        long removed = oldIds.stream().filter(x -> ! currentMap.containsKey(x)).count();
+        if (! rangeFile.exists())
+            log.warn("Normalization range file {} not found:  full recomputation required.", rangeFile);
+        else if (removed > 0)
+            log.warn("{} samples in {} are no longer in the sample set:  full recomputation required.", removed,
+                    this.updateFile);
+        else {
+            // Build the ordered sample list.  The old samples come first, in store order, and the new
+            // ones are added at the end.
+            Set<String> oldSet = new HashSet<String>(oldIds);
+            List<String> newIds = Arrays.stream(sampleIds).filter(x -> ! oldSet.contains(x)).collect(Collectors.toList());
+            final int nOld = oldIds.size();
+            final int nSamples = nOld + newIds.size();
+            final int[] ordered = new int[nSamples];
+            for (int i = 0; i < nOld; i++)
+                ordered[i] = currentMap.get(oldIds.get(i));
+            for (int i = 0; i < newIds.size(); i++)
+                ordered[nOld + i] = currentMap.get(newIds.get(i));
+            SampleSimilarityEngine.RowSource source = (i, buffer) -> matrix.getSampleRow(ordered[i], buffer);
+            // Check the range drift.
+            SampleSimilarityEngine.Ranges oldRanges = SampleSimilarityEngine.Ranges.load(rangeFile);
+            if (oldRanges.size() != matrix.getFeatureCount())
+                log.warn("Feature count in {} does not match genome:  full recomputation required.", rangeFile);
+            else if (oldRanges.getSampleCount() != nOld)
+                log.warn("Sample fingerprints in {} do not match {}:  full recomputation required.", rangeFile,
+                        this.updateFile);
+            else {
+                // The new ranges also fingerprint the samples, so we can find out if any of the old ones changed.
+                var newRanges = new SampleSimilarityEngine.Ranges(nSamples, matrix.getFeatureCount(), source);
+                int changed = oldRanges.countChanged(newRanges);
+                var drift = oldRanges.drift(newRanges);
+                if (drift.getKey() >= 0)
+                    log.info("Maximum normalization drift is {} for feature {}.", drift.getValue(),
+                            matrix.getFeatureId(drift.getKey()));
+                if (changed > 0)
+                    log.warn("{} samples in {} have changed expression data:  full recomputation required.", changed,
+                            this.updateFile);
+                else if (drift.getValue() > this.maxDrift)
+                    log.warn("Normalization drift exceeds {}:  full recomputation required.", this.maxDrift);
+                else if (newIds.isEmpty()) {
+                    log.info("No new samples found.  Correlation store {} is up to date.", this.updateFile);
+                    this.compareCount = 0;
+                    retVal = true;
+                } else {
+                    // Compute the new pairs using the store's original normalization, so that the old and new
+                    // similarities are on the same scale.
+                    log.info("Adding {} new samples to {} existing samples in {}.", newIds.size(), nOld, this.updateFile);
+                    this.engine = new SampleSimilarityEngine(nSamples, source, oldRanges);
+                    this.totalCount = CorrelationWriter.triangleSize(nSamples) - CorrelationWriter.triangleSize(nOld);
+                    this.compareCount = 0;
+                    // The store is extended in a temporary copy, so a failure leaves the original intact.
+                    File tempFile = new File(this.updateFile.getPath() + ".tmp");
+                    try (DenseCorrelationWriter binOut = CorrelationWriter.appendDense(this.updateFile, tempFile,
+                            newIds)) {
+                        this.runPipeline(nSamples, BINARY_STRIP, nOld, (i0, i1) -> this.storeStrip(binOut, i0, i1, nOld),
+                                (i0, i1) -> stripPairs(nSamples, i0, i1, nOld) * Float.BYTES, x -> { });
+                    }
+                    replaceFile(tempFile, this.updateFile);
+                    // Save the fingerprints for the new sample set.  The normalization is still the original one.
+                    oldRanges.withSamples(newRanges).save(rangeFile);
+                    retVal = true;
                 }
             }
-            // The similarity is 1 - mean-absolute-error.
-            double sim = (count > 0 ? 1.0 - (errorSum / count) : 0.0);
-            this.writeCorrelation(writer, sample1, sample2, sim);
         }
+        return retVal;
+    }
+
+    /**
+     * Replace a correlation file with a completed temporary file.
+     *
+     * @param tempFile	completed temporary file
+     * @param outFile	correlation file to replace
+     *
+     * @throws IOException
+     */
+    private static void replaceFile(File tempFile, File outFile) throws IOException {
+        if (outFile.exists() && ! outFile.delete())
+            throw new IOException("Could not replace correlation file " + outFile + ".");
+        if (! tempFile.renameTo(outFile))
+            throw new IOException("Could not rename " + tempFile + " to " + outFile + ".");
+    }
+
+    /**
+     * Compute the similarities for a strip of samples and store them in a dense correlation file.
+     *
+     * @param binOut	dense correlation writer
+     * @param i0		index of the first sample in the strip
+     * @param i1		past-the-end index of the last sample in the strip
+     * @param jMin		index of the first column to compute
+     *
+     * @return an empty string (the output is stored directly)
+     */
+    private String storeStrip(DenseCorrelationWriter binOut, int i0, int i1, int jMin) {
+        float[][] sims = this.engine.createStripOutput(i0, i1, jMin);
+        this.engine.computeStrip(i0, i1, jMin, sims);
+        for (int r = 0; r < sims.length; r++) {
+            final int i = i0 + r;
+            final int j0 = SampleSimilarityEngine.firstColumn(i, jMin);
+            for (int k = 0; k < sims[r].length; k++)
+                binOut.write(i, j0 + k, sims[r][k]);
+        }
+        return "";
+    }
+
+    /**
+     * @return the normalization range file for a binary correlation file
+     *
+     * @param corrFile	binary correlation file
+     */
+    public static File getRangeFile(File corrFile) {
+        return new File(corrFile.getPath() + RANGE_SUFFIX);
+    }
+
+    /**
+     * This interface describes a task that processes a strip of rows.
+     */
+    @FunctionalInterface
+    private interface StripTask<T> {
+
+        /**
+         * Process a strip of rows.
+         *
+         * @param i0	index of the first row in the strip
+         * @param i1	past-the-end index of the last row in the strip
+         *
+         * @return the output for the strip
+         */
+        public T apply(int i0, int i1);
+
+    }
+
+    /**
+     * This interface describes a function that computes the number of bytes of memory used by a strip's
+     * output.
+     */
+    @FunctionalInterface
+    private interface StripSize {
+
+        /**
+         * @return the number of bytes needed for a strip's output
+         *
+         * @param i0	index of the first row in the strip
+         * @param i1	past-the-end index of the last row in the strip
+         */
+        public long bytes(int i0, int i1);
+
+    }
+
+    /**
+     * Run the strip tasks in parallel and pass the results to the output in row order.  The output is
+     * always called from the current thread, so it does not need to be thread-safe.  The strips in flight
+     * are bounded by the total size of their output rather than by their number, since the size of a strip
+     * depends on its position in the triangle and on the length of the sample IDs.  A strip is always
+     * started if nothing else is pending, so a single oversized strip cannot stall the pipeline.
+     *
+     * @param nSamples		number of samples (rows)
+     * @param stripRows		number of rows per strip
+     * @param jMin			index of the first column being computed
+     * @param stripTask		task to compute a strip's output given its row range
+     * @param stripSize		function to compute the memory needed for a strip's output given its row range
+     * @param output		consumer to receive each strip's output
+     */
+    private <T> void runPipeline(int nSamples, int stripRows, int jMin, StripTask<T> stripTask, StripSize stripSize,
+            Consumer<T> output) {
+        Deque<CompletableFuture<T>> pending = new ArrayDeque<CompletableFuture<T>>();
+        long pendingBytes = 0;
+        int nextRow = 0;
+        long lastMsg = System.currentTimeMillis();
+        for (int i0 = 0; i0 < nSamples; i0 += stripRows) {
+            // Fill the window.
+            while (nextRow < nSamples) {
+                final int row0 = nextRow;
+                final int row1 = Math.min(nSamples, nextRow + stripRows);
+                final long bytes = stripSize.bytes(row0, row1);
+                if (! pending.isEmpty() && pendingBytes + bytes > PENDING_BYTES)
+                    break;
+                pending.add(CompletableFuture.supplyAsync(() -> stripTask.apply(row0, row1)));
+                pendingBytes += bytes;
+                nextRow = row1;
+            }
+            // Output the oldest strip.
+            T result = pending.remove().join();
+            output.accept(result);
+            final int i1 = Math.min(nSamples, i0 + stripRows);
+            pendingBytes -= stripSize.bytes(i0, i1);
+            this.compareCount += stripPairs(nSamples, i0, i1, jMin);
+            if (log.isInfoEnabled() && System.currentTimeMillis() - lastMsg >= 10000) {
+                lastMsg = System.currentTimeMillis();
+                log.info("{} of {} comparisons computed.", this.compareCount, this.totalCount);
+            }
+        }
+    }
+
+    /**
+     * @return the number of pairs computed for a strip of rows
+     *
+     * @param nSamples	number of samples (rows)
+     * @param i0		index of the first row in the strip
+     * @param i1		past-the-end index of the last row in the strip
+     * @param jMin		index of the first column being computed
+     */
+    private static long stripPairs(int nSamples, int i0, int i1, int jMin) {
+        long retVal = 0;
+        for (int i = i0; i < i1; i++)
+            retVal += nSamples - SampleSimilarityEngine.firstColumn(i, jMin);
+        return retVal;
     }
 
     /**
-     * Write out the correlation results and document our progress.
+     * @return an array containing, for each sample index, the total length of the IDs from that index to the
+     * 		   end, with an extra zero entry at the end
      *
-     * @param sample1		name of first sample
-     * @param sample2		name of second sample
-     * @param sim			similarity score
+     * @param sampleIds		array of sample IDs, in index order
      */
-    private void writeCorrelation(PrintWriter writer, String sample1, String sample2, double sim) {
-        writer.format("%s\t%s\t%8.6f%n", sample1, sample2, sim);
-        this.compareCount++;
-        if (this.compareCount % 5000 == 0)
-            log.info("{} of {} comparisons computed.", this.compareCount, this.totalCount);
+    private static long[] suffixLengths(String[] sampleIds) {
+        long[] retVal = new long[sampleIds.length + 1];
+        for (int i = sampleIds.length - 1; i >= 0; i--)
+            retVal[i] = retVal[i + 1] + sampleIds[i].length();
+        return retVal;
+    }
+
+    /**
+     * @return the number of characters of output text for a strip of samples; for sample IDs in the Latin-1
+     * 		   character set, this is also the number of bytes in the output buffer
+     *
+     * @param i0			index of the first sample in the strip
+     * @param i1			past-the-end index of the last sample in the strip
+     * @param sampleIds		array of sample IDs, in index order
+     * @param idChars		array of ID suffix lengths from {@link #suffixLengths}
+     */
+    private static long textLength(int i0, int i1, String[] sampleIds, long[] idChars) {
+        final int nSamples = sampleIds.length;
+        final int fixed = 2 + SIM_WIDTH + LINE_END.length();
+        long retVal = 0;
+        for (int i = i0; i < i1; i++)
+            retVal += (long) (nSamples - i - 1) * (sampleIds[i].length() + fixed) + idChars[i + 1];
+        return retVal;
+    }
+
+    /**
+     * Compute the similarities for a strip of samples and format the output lines.
+     *
+     * @param i0			index of the first sample in the strip
+     * @param i1			past-the-end index of the last sample in the strip
+     * @param sampleIds		array of sample IDs, in index order
+     * @param idChars		array of ID suffix lengths from {@link #suffixLengths}
+     *
+     * @return the output text for the strip
+     */
+    private StringBuilder formatStrip(int i0, int i1, String[] sampleIds, long[] idChars) {
+        float[][] sims = this.engine.createStripOutput(i0, i1, 0);
+        this.engine.computeStrip(i0, i1, 0, sims);
+        StringBuilder retVal = new StringBuilder((int) textLength(i0, i1, sampleIds, idChars));
+        for (int r = 0; r < sims.length; r++) {
+            final int i = i0 + r;
+            String prefix = sampleIds[i] + "\t";
+            for (int k = 0; k < sims[r].length; k++) {
+                retVal.append(prefix).append(sampleIds[i + k + 1]).append('\t');
+                SIM_FORMAT.append(retVal, sims[r][k]);
+                retVal.append(LINE_END);
+            }
+        }
+        return retVal;
     }
 
 }
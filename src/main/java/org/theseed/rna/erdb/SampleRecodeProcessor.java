@@ -0,0 +1,155 @@
+/**
+ *
+ */
+package org.theseed.rna.erdb;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.kohsuke.args4j.Option;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.theseed.basic.ParseFailureException;
+import org.theseed.erdb.utils.DbCollectors;
+import org.theseed.java.erdb.DbConnection;
+import org.theseed.java.erdb.DbQuery;
+import org.theseed.java.erdb.DbRecord;
+import org.theseed.java.erdb.DbUpdate;
+import org.theseed.java.erdb.Relop;
+import org.theseed.rna.data.FeatureDataCodec;
+import org.theseed.rna.data.SampleMatrixCache;
+
+/**
+ * This command rewrites the expression-level arrays of a genome's samples in a new encoding.  It is used to
+ * migrate an existing database to the compressed feat_data format, or to convert between the compressed
+ * formats.  The samples are processed in batches, and each batch is committed separately, so the command
+ * can be safely interrupted and re-run.  Samples already in the desired encoding are skipped.
+ *
+ * Note that an SQLite database file does not shrink until it is vacuumed.
+ *
+ * The positional parameter is the ID of the target genome.
+ *
+ * The command-line options are as follows.
+ *
+ * -h	display command-line usage
+ * -v	display more frequent log messages
+ *
+ * --type		type of database (default SQLITE)
+ * --dbfile		database file name (SQLITE only)
+ * --url		URL of database (host and name)
+ * --parms		database connection parameter string (currently only MySQL)
+ * --cache		directory for cached sample matrix files (the genome's matrix will be invalidated)
+ * --xcache		directory for cached xmatrix data (the genome's entries will be deleted)
+ * --encoding	encoding to use for the expression data (required; only LEGACY is lossless)
+ * --lossy		confirm that a rounding encoding (FLOAT32 or LOG16) is acceptable
+ * --batch		number of samples to process in each batch (default 200)
+ *
+ * @author Bruce Parrello
+ *
+ */
+public class SampleRecodeProcessor extends BaseDbRnaProcessor {
+
+    // FIELDS
+    /** logging facility */
+    protected static Logger log = LoggerFactory.getLogger(SampleRecodeProcessor.class);
+
+    // COMMAND-LINE OPTIONS
+
+    /** encoding to use */
+    @Option(name = "--encoding", usage = "encoding to use for the expression data", required = true)
+    private FeatureDataCodec.Encoding encoding;
+
+    /** TRUE to allow an encoding that rounds the expression levels */
+    @Option(name = "--lossy", usage = "if specified, FLOAT32 and LOG16 encodings are allowed")
+    private boolean lossyFlag;
+
+    /** xmatrix cache directory */
+    @Option(name = "--xcache", metaVar = "xmatrixCache", usage = "directory for cached xmatrix data")
+    private File xCacheDir;
+
+    /** number of samples per batch */
+    @Option(name = "--batch", metaVar = "500", usage = "number of samples to process in each batch")
+    private int batchSize;
+
+    @Override
+    protected void setDbDefaults() {
+        this.encoding = null;
+        this.lossyFlag = false;
+        this.xCacheDir = null;
+        this.batchSize = 200;
+    }
+
+    @Override
+    protected void validateDbRnaParms() throws ParseFailureException, IOException {
+        if (this.batchSize < 1)
+            throw new ParseFailureException("Batch size must be positive.");
+        // The rounding encodings permanently discard precision in the database, so they must be confirmed.
+        if (this.encoding != FeatureDataCodec.Encoding.LEGACY && ! this.lossyFlag)
+            throw new ParseFailureException("Encoding " + this.encoding + " rounds the expression levels.  "
+                    + "Specify --lossy to confirm.");
+        // Verify the xmatrix cache directory.
+        if (this.xCacheDir != null)
+            SampleMatrixCache.validateDir(this.xCacheDir);
+    }
+
+    @Override
+    protected void runDbCommand(DbConnection db) throws Exception {
+        // Get the list of samples for the genome.
+        List<String> samples;
+        try (DbQuery query = new DbQuery(db, "RnaSample")) {
+            query.select("RnaSample", "sample_id");
+            query.rel("RnaSample.genome_id", Relop.EQ);
+            query.setParm(1, this.getGenomeId());
+            samples = new ArrayList<String>(query.stream().collect(DbCollectors.set("RnaSample.sample_id")));
+        }
+        Collections.sort(samples);
+        log.info("{} samples found for genome {}.  Converting to {} encoding.", samples.size(), this.getGenomeId(),
+                this.encoding);
+        // These will count the old and new array sizes in doubles.
+        long oldSize = 0;
+        long newSize = 0;
+        int changed = 0;
+        int skipped = 0;
+        long start = System.currentTimeMillis();
+        final int nSamples = samples.size();
+        for (int b0 = 0; b0 < nSamples; b0 += this.batchSize) {
+            final int b1 = Math.min(nSamples, b0 + this.batchSize);
+            try (var xact = db.new Transaction(); DbUpdate updater = DbUpdate.batch(db, "RnaSample")) {
+                updater.change("feat_data").primaryKey().createStatement();
+                for (int i = b0; i < b1; i++) {
+                    String sampleId = samples.get(i);
+                    DbRecord record = db.getRecord("RnaSample", sampleId);
+                    double[] raw = record.getDoubleArray("RnaSample.feat_data");
+                    oldSize += raw.length;
+                    if (FeatureDataCodec.getEncoding(raw) == this.encoding) {
+                        newSize += raw.length;
+                        skipped++;
+                    } else {
+                        double[] coded = FeatureDataCodec.encode(FeatureDataCodec.decode(raw), this.encoding);
+                        newSize += coded.length;
+                        updater.set("feat_data", coded);
+                        updater.set("sample_id", sampleId);
+                        updater.update();
+                        changed++;
+                    }
+                }
+                xact.commit();
+            }
+            log.info("{} of {} samples processed.", b1, nSamples);
+        }
+        log.info("{} samples converted and {} already in {} encoding, in {} seconds.", changed, skipped,
+                this.encoding, (System.currentTimeMillis() - start) / 1000.0);
+        if (newSize > 0)
+            log.info("Expression data size changed from {} to {} bytes ({} to 1).", oldSize * 8, newSize * 8,
+                    String.format("%1.2f", (double) oldSize / newSize));
+        // The stored values may have changed precision, so any cached matrix is obsolete.
+        if (changed > 0) {
+            SampleMatrixCache.invalidate(this.getCacheDir(), this.getGenomeId());
+            XMatrixCache.invalidate(this.xCacheDir, this.getGenomeId());
+        }
+    }
+
+}
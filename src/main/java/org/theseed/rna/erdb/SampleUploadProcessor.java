@@ -10,16 +10,20 @@ import java.sql.SQLException;
 import java.time.Instant;
 import java.time.LocalDate;
 import java.time.ZoneId;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
-import java.util.HashMap;
+import java.util.Deque;
 import java.util.HashSet;
-import java.util.Map;
+import java.util.List;
 import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 import java.util.stream.Collectors;
-import java.util.stream.IntStream;
 
 import org.kohsuke.args4j.Argument;
 import org.kohsuke.args4j.Option;
@@ -27,11 +31,13 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.theseed.basic.ParseFailureException;
 import org.theseed.io.LineReader;
-import org.theseed.io.TabbedLineReader;
 import org.theseed.java.erdb.DbConnection;
 import org.theseed.java.erdb.DbLoader;
 import org.theseed.java.erdb.DbQuery;
 import org.theseed.java.erdb.Relop;
+import org.theseed.rna.data.FeatureDataCodec;
+import org.theseed.rna.data.FeatureIdHash;
+import org.theseed.rna.data.TpmReader;
 
 /**
  * This command loads sample data downloaded from PATRIC directly into an RNA Seq database.
@@ -56,6 +62,9 @@ import org.theseed.java.erdb.Relop;
  * --qual		minimum percent quality required for a good sample
  * --min		minimum representation required for a good sample
  * --clear		erase all existing samples for the genome
+ * --workers	number of worker threads for parsing the sample files (default is the number of processors)
+ * --encoding	encoding to use for the expression data (default LEGACY, which is lossless; FLOAT32 and LOG16
+ * 				are much smaller but round the levels)
  *
  * @author Bruce Parrello
  *
@@ -67,6 +76,8 @@ public class SampleUploadProcessor extends BaseDbLoadProcessor {
     protected static Logger log = LoggerFactory.getLogger(SampleUploadProcessor.class);
     /** set of samples to process */
     private Set<String> sampleSet;
+    /** reusable expression level buffer for each worker thread */
+    private final ThreadLocal<double[]> levelBuffers = ThreadLocal.withInitial(() -> new double[this.getFeatureCount()]);
     /** pattern for extracting sample ID */
     private static final Pattern TPM_FILE_PATTERN = Pattern.compile("(.+)_genes\\.tpm");
     /** parser for SAMSTAT length line */
@@ -75,6 +86,8 @@ public class SampleUploadProcessor extends BaseDbLoadProcessor {
     protected static final Pattern SAMSTAT_COUNT_LINE = Pattern.compile("SN\\s+1st fragments:\\s+(\\d+)");
     /** parser for SAMSTAT quality line */
     protected static final Pattern SAMSTAT_QUALITY_LINE = Pattern.compile("MAPQ\\s+(\\d+)\\s+(\\d+)");
+    /** number of parsed samples allowed in flight per worker */
+    private static final int WINDOW_PER_WORKER = 2;
 
     // COMMAND-LINE OPTIONS
 
@@ -86,6 +99,14 @@ public class SampleUploadProcessor extends BaseDbLoadProcessor {
     @Option(name = "--qual", metaVar = "80.0", usage = "minimum percent of mappings that must be high-quality")
     private double minQualPct;
 
+    /** number of worker threads for parsing the sample files */
+    @Option(name = "--workers", metaVar = "8", usage = "number of worker threads for parsing sample files")
+    private int workers;
+
+    /** encoding for the expression data */
+    @Option(name = "--encoding", usage = "encoding to use for the stored expression data")
+    private FeatureDataCodec.Encoding encoding;
+
     /** if specified, all the samples for the genome will be deleted before loading */
     @Option(name = "--clear", usage = "erase existing samples before loading")
     private boolean clearFlag;
@@ -100,6 +121,8 @@ public class SampleUploadProcessor extends BaseDbLoadProcessor {
         this.minFeaturePct = 40.0;
         this.minQualPct = 50.0;
         this.clearFlag = false;
+        this.workers = Runtime.getRuntime().availableProcessors();
+        this.encoding = FeatureDataCodec.Encoding.LEGACY;
     }
 
     @Override
@@ -111,6 +134,8 @@ public class SampleUploadProcessor extends BaseDbLoadProcessor {
             throw new FileNotFoundException("Minimum feature percent must be between 0 and 100.");
         if (this.minFeaturePct <= 0.0 || minQualPct > 100.0)
             throw new FileNotFoundException("Minimum quality percent must be between 0 and 100.");
+        if (this.workers < 1)
+            throw new ParseFailureException("Number of workers must be at least 1.");
         // Now we need to parse the directory for the sample IDs.
         File[] inFiles = this.inDir.listFiles();
         this.sampleSet = Arrays.stream(inFiles).map(f -> TPM_FILE_PATTERN.matcher(f.getName())).filter(m -> m.matches())
@@ -145,7 +170,15 @@ public class SampleUploadProcessor extends BaseDbLoadProcessor {
                 log.info("{} samples deleted for genome {}.", count, this.getGenomeId());
             }
         }
-        // Now process the loading.
+        // Now process the loading.  The sample files are parsed in parallel by a bounded pool of workers,
+        // and the parsed samples are inserted by this thread in the original order.
+        // Each worker gets its own TPM reader, all sharing the perfect hash of the feature index.
+        final FeatureIdHash fidHash = this.getFeatureHash();
+        final ThreadLocal<TpmReader> tpmReaders = ThreadLocal.withInitial(() -> new TpmReader(fidHash));
+        List<String> samples = new ArrayList<String>(this.sampleSet);
+        final int nSamples = samples.size();
+        final int window = WINDOW_PER_WORKER * this.workers;
+        ExecutorService pool = Executors.newFixedThreadPool(this.workers);
         try (DbLoader jobLoader = DbLoader.batch(db, "RnaSample")) {
             // Store the genome ID and cluster ID in the loader.  These are
             // always the same.
@@ -155,102 +188,196 @@ public class SampleUploadProcessor extends BaseDbLoadProcessor {
             int count = 0;
             int skipped = 0;
             int badSamples = 0;
-            final int nSamples = this.sampleSet.size();
+            long start = System.currentTimeMillis();
+            Deque<Future<ParsedSample>> pending = new ArrayDeque<Future<ParsedSample>>(window);
+            int nextSample = 0;
             // Loop through the samples.
-            for (String sampleId : this.sampleSet) {
+            while (count < nSamples) {
+                // Fill the window.
+                while (nextSample < nSamples && pending.size() < window) {
+                    final String sampleId = samples.get(nextSample);
+                    pending.add(pool.submit(() -> this.parseSample(sampleId, tpmReaders.get())));
+                    nextSample++;
+                }
+                // Process the oldest sample.
+                ParsedSample sample = pending.remove().get();
                 count++;
-                // Set the sample ID.
-                jobLoader.set("sample_id", sampleId);
-                // Get the data files.
-                File samstatFile = new File(this.inDir, sampleId + ".samtools_stats");
-                File tpmFile = new File(this.inDir, sampleId + "_genes.tpm");
-                // We know the TPM file exists because we used it to find the sample ID.  Check the
-                // SAMSTAT file.
-                if (! samstatFile.exists()) {
-                    log.warn("No SAMSTAT file found for sample {}.", sampleId);
+                String sampleId = sample.getSampleId();
+                if (sample.getError() != null) {
+                    log.warn("{}", sample.getError());
                     skipped++;
                 } else {
-                    log.info("Processing sample {} of {}: {}.", count, nSamples, sampleId);
-                    // Find the data.
-                    try {
-                        double qual = this.processSamstat(jobLoader, samstatFile);
-                        double representation = this.processTpm(jobLoader, tpmFile);
-                        // Analyze the sample quality.
-                        boolean suspicious = (qual < this.minQualPct || representation < this.minFeaturePct);
-                        jobLoader.set("suspicious", suspicious);
-                        if (suspicious) {
-                            log.warn("Sample {} is suspicious: qual = {}, representation = {}.",
-                                    sampleId, qual, representation);
-                            badSamples++;
-                        }
-                        // Set the project and the pubmed.
-                        this.computeProjectInfo(jobLoader, sampleId);
-                        // Insert the sample.
-                        jobLoader.insert();
-                    } catch (IOException e) {
-                        log.error("Bad output for sample {}: {}", sampleId, e.toString());
-                        skipped++;
+                    log.info("Storing sample {} of {}: {}.", count, nSamples, sampleId);
+                    // Set the sample ID.
+                    jobLoader.set("sample_id", sampleId);
+                    sample.store(jobLoader);
+                    // Analyze the sample quality.
+                    double qual = sample.getQuality();
+                    double representation = sample.getRepresentation();
+                    boolean suspicious = (qual < this.minQualPct || representation < this.minFeaturePct);
+                    jobLoader.set("suspicious", suspicious);
+                    if (suspicious) {
+                        log.warn("Sample {} is suspicious: qual = {}, representation = {}.",
+                                sampleId, qual, representation);
+                        badSamples++;
                     }
+                    // Set the project and the pubmed.
+                    this.computeProjectInfo(jobLoader, sampleId);
+                    // Insert the sample.
+                    jobLoader.insert();
                 }
             }
-            log.info("{} samples processed, {} skipped, {} were bad.", count, skipped, badSamples);
+            log.info("{} samples processed in {} seconds using {} workers, {} skipped, {} were bad.", count,
+                    (System.currentTimeMillis() - start) / 1000.0, this.workers, skipped, badSamples);
+        } finally {
+            pool.shutdownNow();
         }
     }
 
     /**
-     * Fill the table loader with data from the TPM file.
-     *
-     * @param jobLoader		loader for the RnaSample table
-     * @param tpmFile		file containing the TPM expression results
+     * This object contains the data parsed from the files for a single sample.  It is produced by a
+     * worker thread and stored in the database by the main thread.
+     */
+    private static class ParsedSample {
+
+        /** ID of the sample */
+        private final String sampleId;
+        /** error message, or NULL if the sample was parsed successfully */
+        private String error;
+        /** number of base pairs in the sample */
+        private double baseCount;
+        /** processing date */
+        private LocalDate procDate;
+        /** percent of mappings with high quality */
+        private double quality;
+        /** number of reads */
+        private int readCount;
+        /** number of features expressed */
+        private int featCount;
+        /** percent of features expressed */
+        private double representation;
+        /** encoded expression levels */
+        private double[] featData;
+
+        /**
+         * Create an empty parsed-sample object.
+         *
+         * @param sampleId		ID of the sample
+         */
+        protected ParsedSample(String sampleId) {
+            this.sampleId = sampleId;
+            this.error = null;
+        }
+
+        /**
+         * Store the parsed data in a sample loader.
+         *
+         * @param jobLoader		loader for the RnaSample table
+         *
+         * @throws SQLException
+         */
+        protected void store(DbLoader jobLoader) throws SQLException {
+            jobLoader.set("base_count", this.baseCount);
+            jobLoader.set("process_date", this.procDate);
+            jobLoader.set("quality", this.quality);
+            jobLoader.set("read_count", this.readCount);
+            jobLoader.set("feat_count", this.featCount);
+            jobLoader.set("feat_data", this.featData);
+        }
+
+        /**
+         * @return the ID of the sample
+         */
+        protected String getSampleId() {
+            return this.sampleId;
+        }
+
+        /**
+         * @return the error message, or NULL if the sample is valid
+         */
+        protected String getError() {
+            return this.error;
+        }
+
+        /**
+         * @return the percent of mappings with high quality
+         */
+        protected double getQuality() {
+            return this.quality;
+        }
+
+        /**
+         * @return the percent of features expressed
+         */
+        protected double getRepresentation() {
+            return this.representation;
+        }
+
+    }
+
+    /**
+     * Parse the files for a sample.  This method is called from the worker threads, so it must not touch the
+     * database.
      *
-     * @return the percent of features expressed
+     * @param sampleId		ID of the sample to parse
+     * @param tpmReader		TPM file reader for the current thread
      *
-     * @throws IOException
-     * @throws SQLException
+     * @return the parsed sample data
      */
-    private double processTpm(DbLoader jobLoader, File tpmFile) throws IOException, SQLException {
-        double retVal = 0.0;
-        try (TabbedLineReader inStream = new TabbedLineReader(tpmFile)) {
-            // The main content of this file is the expression levels (feat_data, feat_count).
-            // Each feature is on a line by itself, and we store its level in the following array.
-            final int n = this.getFeatureCount();
-            // Get the columns of the key data fields.  Note that the result column name is no longer
-            // constant, but its position is fixed.
-            int fidCol = inStream.findField("Gene_id");
-            int tpmCol = 1;
-            // First, create a map of feature IDs to expression levels.
-            Map<String, Double> levels = new HashMap<String, Double>(n * 4 / 3);
-            for (TabbedLineReader.Line line : inStream) {
-                double tpm = line.getDouble(tpmCol);
-                if (tpm > 0.0) {
-                    String fid = line.get(fidCol);
-                    levels.put(fid, tpm);
-                }
+    private ParsedSample parseSample(String sampleId, TpmReader tpmReader) {
+        ParsedSample retVal = new ParsedSample(sampleId);
+        // Get the data files.
+        File samstatFile = new File(this.inDir, sampleId + ".samtools_stats");
+        File tpmFile = new File(this.inDir, sampleId + "_genes.tpm");
+        // We know the TPM file exists because we used it to find the sample ID.  Check the
+        // SAMSTAT file.
+        if (! samstatFile.exists())
+            retVal.error = "No SAMSTAT file found for sample " + sampleId + ".";
+        else {
+            // Find the data.
+            try {
+                this.processSamstat(retVal, samstatFile);
+                this.processTpm(retVal, tpmFile, tpmReader);
+            } catch (IOException | RuntimeException e) {
+                retVal.error = "Bad output for sample " + sampleId + ": " + e.toString();
             }
-            // The feature count and percent are computed from the map size.
-            jobLoader.set("feat_count", levels.size());
-            retVal = levels.size() * 100.0 / n;
-            // Create the feature-data array.
-            double[] featData = IntStream.range(0, n)
-                    .mapToDouble(i -> levels.getOrDefault(this.getFeatureId(i), Double.NaN))
-                    .toArray();
-            jobLoader.set("feat_data", featData);
         }
         return retVal;
     }
 
     /**
-     * Fill the table loader with data from the SAMSTAT file.
+     * Fill in the expression data from the TPM file.
      *
-     * @param jobLoader		loader for the RnaSample table
-     * @param samstatFile	file containing the SAMSTAT tools data
+     * @param sample		parsed-sample object to fill in
+     * @param tpmFile		file containing the TPM expression results
+     * @param tpmReader		TPM file reader for the current thread
      *
-     * @return the percent of mappings with high quality
+     * @throws IOException
+     */
+    private void processTpm(ParsedSample sample, File tpmFile, TpmReader tpmReader) throws IOException {
+        // The main content of this file is the expression levels (feat_data, feat_count).  The levels are
+        // read into a buffer that each thread reuses, and then encoded here, on the worker thread.
+        final int n = this.getFeatureCount();
+        double[] featData = this.levelBuffers.get();
+        // The feature count and percent are computed from the number of distinct features expressed.
+        int featCount = tpmReader.read(tpmFile, featData);
+        sample.featCount = featCount;
+        sample.representation = featCount * 100.0 / n;
+        // The encoder returns its input when the raw array is stored, either by request or because the levels
+        // do not fit the requested encoding.  The buffer will be reused, so in that case we need a copy.
+        double[] coded = FeatureDataCodec.encode(featData, this.encoding);
+        sample.featData = (coded == featData ? featData.clone() : coded);
+    }
+
+    /**
+     * Fill in the mapping data from the SAMSTAT file.
+     *
+     * @param sample		parsed-sample object to fill in
+     * @param samstatFile	file containing the SAMSTAT tools data
      *
      * @throws IOException
-     * @throws SQLException
      */
-    private double processSamstat(DbLoader jobLoader, File samstatFile) throws IOException, SQLException {
+    private void processSamstat(ParsedSample sample, File samstatFile) throws IOException {
         // We will put the quality and read-count values in here.
         int qualCount = 0;
         int readCount = 0;
@@ -286,16 +413,15 @@ public class SampleUploadProcessor extends BaseDbLoadProcessor {
         if (baseCount == 0.0)
             throw new IOException("Base-pair count not found in " + samstatFile + ".");
         // Compute the final quality.  It is the percentage of quality reads in the total reads.
-        double retVal;
+        double quality;
         if (readCount <= 0)
-            retVal = 0.0;
+            quality = 0.0;
         else
-            retVal = (100.0 * qualCount) / readCount;
-        jobLoader.set("base_count", baseCount);
-        jobLoader.set("process_date", procDate);
-        jobLoader.set("quality", retVal);
-        jobLoader.set("read_count", readCount);
-        return retVal;
+            quality = (100.0 * qualCount) / readCount;
+        sample.baseCount = baseCount;
+        sample.procDate = procDate;
+        sample.quality = quality;
+        sample.readCount = readCount;
     }
 
     @Override
@@ -0,0 +1,190 @@
+/**
+ *
+ */
+package org.theseed.rna.erdb;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * This object reads a binary tensor xmatrix produced by TensorXMatrixWriter.  The data portion of the file is
+ * memory-mapped, so the values can be used without parsing or copying.  The sample IDs, output labels, and column
+ * names are read from the sidecar files.
+ *
+ * @author Bruce Parrello
+ *
+ */
+public class TensorXMatrixReader {
+
+    // FIELDS
+    /** mapped input values */
+    private final FloatBuffer data;
+    /** number of rows */
+    private final int nRows;
+    /** number of columns */
+    private final int nCols;
+    /** column names */
+    private final List<String> colNames;
+    /** sample IDs */
+    private final String[] sampleIds;
+    /** output labels */
+    private final String[] labels;
+    /** name of the sample ID column */
+    private final String idColName;
+    /** name of the output column */
+    private final String outColName;
+
+    /**
+     * Open a tensor xmatrix.
+     *
+     * @param dataFile	tensor data file
+     *
+     * @throws IOException
+     */
+    public TensorXMatrixReader(File dataFile) throws IOException {
+        try (FileChannel channel = FileChannel.open(dataFile.toPath(), StandardOpenOption.READ)) {
+            // Read and validate the header.
+            ByteBuffer header = ByteBuffer.allocate(TensorXMatrixWriter.HEADER_LEN).order(ByteOrder.LITTLE_ENDIAN);
+            int n = 0;
+            while (header.hasRemaining() && n >= 0)
+                n = channel.read(header);
+            if (header.hasRemaining())
+                throw new IOException("Tensor file " + dataFile + " is too short.");
+            header.flip();
+            byte[] magic = new byte[TensorXMatrixWriter.MAGIC.length];
+            header.get(magic);
+            if (! Arrays.equals(magic, TensorXMatrixWriter.MAGIC))
+                throw new IOException("File " + dataFile + " is not a tensor xmatrix.");
+            int version = header.getInt();
+            if (version != TensorXMatrixWriter.VERSION)
+                throw new IOException("Tensor file " + dataFile + " has unsupported version " + version + ".");
+            int headerLen = header.getInt();
+            long rows = header.getLong();
+            this.nCols = header.getInt();
+            int valueLen = header.getInt();
+            if (valueLen != TensorXMatrixWriter.VALUE_LEN)
+                throw new IOException("Tensor file " + dataFile + " has unsupported value size " + valueLen + ".");
+            // Verify the data length and map the data.
+            long dataLen = rows * this.nCols * valueLen;
+            if (channel.size() != headerLen + dataLen)
+                throw new IOException("Tensor file " + dataFile + " has the wrong length for " + rows + " rows of "
+                        + this.nCols + " columns.");
+            if (dataLen > Integer.MAX_VALUE)
+                throw new IOException("Tensor file " + dataFile + " is too large to map.");
+            this.nRows = (int) rows;
+            this.data = channel.map(FileChannel.MapMode.READ_ONLY, headerLen, dataLen)
+                    .order(ByteOrder.LITTLE_ENDIAN).asFloatBuffer();
+        }
+        // Read the sidecars.
+        this.colNames = Files.readAllLines(TensorXMatrixWriter.sidecar(dataFile, TensorXMatrixWriter.COL_SUFFIX).toPath());
+        if (this.colNames.size() != this.nCols)
+            throw new IOException("Column file for " + dataFile + " has " + this.colNames.size() + " names, but "
+                    + this.nCols + " were expected.");
+        List<String> rowLines = Files.readAllLines(TensorXMatrixWriter.sidecar(dataFile, TensorXMatrixWriter.ROW_SUFFIX).toPath());
+        if (rowLines.size() != this.nRows + 1)
+            throw new IOException("Row file for " + dataFile + " has " + (rowLines.size() - 1) + " rows, but "
+                    + this.nRows + " were expected.");
+        String[] heads = rowLines.get(0).split("\t", 2);
+        this.idColName = heads[0];
+        this.outColName = (heads.length > 1 ? heads[1] : "");
+        this.sampleIds = new String[this.nRows];
+        this.labels = new String[this.nRows];
+        for (int r = 0; r < this.nRows; r++) {
+            String[] parts = rowLines.get(r + 1).split("\t", 2);
+            this.sampleIds[r] = parts[0];
+            this.labels[r] = (parts.length > 1 ? parts[1] : "");
+        }
+    }
+
+    /**
+     * @return the number of rows
+     */
+    public int getRowCount() {
+        return this.nRows;
+    }
+
+    /**
+     * @return the number of input columns
+     */
+    public int getColCount() {
+        return this.nCols;
+    }
+
+    /**
+     * @return the input column names
+     */
+    public List<String> getColNames() {
+        return new ArrayList<String>(this.colNames);
+    }
+
+    /**
+     * @return the name of the sample ID column
+     */
+    public String getIdColName() {
+        return this.idColName;
+    }
+
+    /**
+     * @return the name of the output column
+     */
+    public String getOutColName() {
+        return this.outColName;
+    }
+
+    /**
+     * @return the sample ID for a row
+     *
+     * @param r		index of the row
+     */
+    public String getSampleId(int r) {
+        return this.sampleIds[r];
+    }
+
+    /**
+     * @return the output label for a row
+     *
+     * @param r		index of the row
+     */
+    public String getLabel(int r) {
+        return this.labels[r];
+    }
+
+    /**
+     * @return the input value at the specified position
+     *
+     * @param r		index of the row
+     * @param c		index of the column
+     */
+    public float get(int r, int c) {
+        return this.data.get(r * this.nCols + c);
+    }
+
+    /**
+     * Copy the input values for a row into a buffer.
+     *
+     * @param r		index of the row
+     * @param buf	buffer to receive the values (must be at least as long as the number of columns)
+     */
+    public void getRow(int r, float[] buf) {
+        FloatBuffer view = this.data.duplicate();
+        view.position(r * this.nCols);
+        view.get(buf, 0, this.nCols);
+    }
+
+    /**
+     * @return a read-only view of all the input values in row-major order
+     */
+    public FloatBuffer getData() {
+        return this.data.asReadOnlyBuffer();
+    }
+
+}
@@ -0,0 +1,197 @@
+/**
+ *
+ */
+package org.theseed.rna.erdb;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * This object writes an xmatrix as a binary tensor that can be memory-mapped by the training code, so that
+ * no text has to be parsed.  The main file contains a fixed-length header followed by the input values as
+ * little-endian 32-bit floats, one row after another.  Missing values are stored as NaN.  The sample IDs and
+ * output labels go in a tab-delimited sidecar file with the suffix ".rows", and the input column names go in a
+ * sidecar file with the suffix ".cols", one per line.
+ *
+ * The header is 32 bytes long and contains the following fields, all little-endian.
+ *
+ * 	0	the magic number "XMTF" (4 bytes)
+ * 	4	format version (int, currently 1)
+ * 	8	header length in bytes (int, currently 32)
+ * 	12	number of rows (long)
+ * 	20	number of columns (int)
+ * 	24	bytes per value (int, currently 4)
+ * 	28	reserved (int, currently 0)
+ *
+ * The row count is not known until the end, so it is filled in when the writer is closed.  The files are read by
+ * the TensorXMatrixReader class.
+ *
+ * The sidecar files are UTF-8 text with no quoting, so a column name cannot contain a line break, and a sample
+ * ID, label, or heading in the row sidecar cannot contain a line break or a tab.  The writer rejects any such
+ * name rather than produce files that would be read back incorrectly.  A null label is written as an empty
+ * string.
+ *
+ * @author Bruce Parrello
+ *
+ */
+public class TensorXMatrixWriter implements XMatrixShards.Sink {
+
+    // FIELDS
+    /** logging facility */
+    protected static Logger log = LoggerFactory.getLogger(TensorXMatrixWriter.class);
+    /** output data file */
+    private final File dataFile;
+    /** output channel for the data file */
+    private FileChannel channel;
+    /** output buffer for the data file */
+    private final ByteBuffer buffer;
+    /** output writer for the row sidecar */
+    private PrintWriter rowWriter;
+    /** number of columns */
+    private int nCols;
+    /** number of rows written */
+    private long nRows;
+    /** magic number at the start of the file */
+    public static final byte[] MAGIC = new byte[] { 'X', 'M', 'T', 'F' };
+    /** format version */
+    public static final int VERSION = 1;
+    /** header length */
+    public static final int HEADER_LEN = 32;
+    /** offset of the row count in the header */
+    public static final int ROWS_OFFSET = 12;
+    /** bytes per value */
+    public static final int VALUE_LEN = Float.BYTES;
+    /** suffix for the row sidecar file */
+    public static final String ROW_SUFFIX = ".rows";
+    /** suffix for the column sidecar file */
+    public static final String COL_SUFFIX = ".cols";
+    /** size of the output buffer */
+    private static final int BUFFER_SIZE = 1 << 20;
+
+    /**
+     * Create a tensor writer.
+     *
+     * @param dataFile		output data file; the sidecar files will have the same name with suffixes added
+     *
+     * @throws IOException
+     */
+    public TensorXMatrixWriter(File dataFile) throws IOException {
+        this.dataFile = dataFile;
+        this.channel = FileChannel.open(dataFile.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING);
+        this.buffer = ByteBuffer.allocateDirect(BUFFER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        this.rowWriter = null;
+        this.nCols = -1;
+        this.nRows = 0;
+    }
+
+    /**
+     * @return a sidecar file for a tensor data file
+     *
+     * @param dataFile	tensor data file
+     * @param suffix	suffix for the sidecar
+     */
+    public static File sidecar(File dataFile, String suffix) {
+        return new File(dataFile.getAbsoluteFile().getParentFile(), dataFile.getName() + suffix);
+    }
+
+    /**
+     * Verify that a string can be stored in a sidecar file.
+     *
+     * @param text		string to check
+     * @param desc		description of the string, for error messages
+     * @param inRow		TRUE if the string is a field in the row sidecar, where tabs are not allowed
+     */
+    private static void checkText(String text, String desc, boolean inRow) {
+        if (text.indexOf('\n') >= 0 || text.indexOf('\r') >= 0 || (inRow && text.indexOf('\t') >= 0))
+            throw new IllegalArgumentException("Cannot store " + desc + " \"" + text
+                    + "\" in a tensor xmatrix because it contains a " + (inRow ? "tab or " : "") + "line break.");
+    }
+
+    @Override
+    public void setHeaders(String idCol, List<String> cols, String outCol) throws IOException {
+        checkText(idCol, "sample ID column name", true);
+        checkText(outCol, "output column name", true);
+        for (String col : cols)
+            checkText(col, "column name", false);
+        this.nCols = cols.size();
+        // Write the column sidecar.
+        try (PrintWriter colWriter = new PrintWriter(new BufferedWriter(new FileWriter(
+                sidecar(this.dataFile, COL_SUFFIX), StandardCharsets.UTF_8)))) {
+            for (String col : cols)
+                colWriter.println(col);
+        }
+        // Start the row sidecar.
+        this.rowWriter = new PrintWriter(new BufferedWriter(new FileWriter(sidecar(this.dataFile, ROW_SUFFIX),
+                StandardCharsets.UTF_8)));
+        this.rowWriter.println(idCol + "\t" + outCol);
+        // Write the header.  The row count is filled in later.
+        this.buffer.put(MAGIC).putInt(VERSION).putInt(HEADER_LEN).putLong(0L).putInt(this.nCols)
+                .putInt(VALUE_LEN).putInt(0);
+    }
+
+    @Override
+    public void processRow(String sampleId, double[] xValues, String label) throws IOException {
+        checkText(sampleId, "sample ID", true);
+        if (label != null)
+            checkText(label, "label", true);
+        if (xValues.length != this.nCols)
+            throw new IllegalArgumentException("Row for " + sampleId + " has " + xValues.length
+                    + " values, but there are " + this.nCols + " columns.");
+        for (double v : xValues) {
+            if (this.buffer.remaining() < VALUE_LEN)
+                this.flush();
+            this.buffer.putFloat((float) v);
+        }
+        this.rowWriter.println(sampleId + "\t" + (label == null ? "" : label));
+        this.nRows++;
+    }
+
+    /**
+     * Write the buffered data to the output channel.
+     *
+     * @throws IOException
+     */
+    private void flush() throws IOException {
+        this.buffer.flip();
+        while (this.buffer.hasRemaining())
+            this.channel.write(this.buffer);
+        this.buffer.clear();
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            if (this.channel != null) {
+                this.flush();
+                // Fill in the row count.
+                ByteBuffer rowBuffer = ByteBuffer.allocate(Long.BYTES).order(ByteOrder.LITTLE_ENDIAN);
+                rowBuffer.putLong(this.nRows).flip();
+                this.channel.write(rowBuffer, ROWS_OFFSET);
+                log.info("{} rows of {} columns written to {}.", this.nRows, this.nCols, this.dataFile);
+            }
+        } finally {
+            if (this.channel != null) {
+                this.channel.close();
+                this.channel = null;
+            }
+            if (this.rowWriter != null) {
+                this.rowWriter.close();
+                this.rowWriter = null;
+            }
+        }
+    }
+
+}
@@ -0,0 +1,373 @@
+/**
+ *
+ */
+package org.theseed.rna.erdb;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.theseed.java.erdb.DbConnection;
+import org.theseed.rna.data.RnaFeature;
+import org.theseed.rna.data.SampleMatrix;
+
+/**
+ * This object manages a disk cache of transformed xmatrix data.  The cached data is the output of the xmatrix
+ * command before the output labels are attached:  the sample IDs, the names of the features kept, and the
+ * converted expression levels.  A later run that differs only in the labels or the output format can use the
+ * cache instead of reading the samples from the database.
+ *
+ * Each cache entry is a single file whose name is a digest of everything that determines the data.  This includes
+ * the genome ID, the feature filter type, the level computer type, the minimum quality, and the minimum feature
+ * fraction.  It also includes a fingerprint of the current database contents:  the column name, index, and
+ * baseline of each feature and the sample-matrix census hash of each qualifying sample that has a measurement.
+ * The census hash covers the sample's flags, feature count, process date, and a digest of its stored expression
+ * data, so a sample that is reloaded or recoded changes the digest.  The sample set is part of the key because the
+ * minimum feature fraction is computed over it.  The fingerprint requires a scan of the sample metadata and the
+ * stored data digests, but the expression data is never decoded.  When the database is reloaded or the baselines are recomputed, the
+ * digest changes and the old entries are simply no longer used.  Commands that change a genome's samples also
+ * call invalidate() to delete the genome's entries, since they can never be used again.
+ *
+ * New entries are written to a temporary file and renamed when complete, so a failed run never leaves a partial
+ * entry behind.
+ *
+ * @author Bruce Parrello
+ *
+ */
+public class XMatrixCache {
+
+    // FIELDS
+    /** logging facility */
+    protected static Logger log = LoggerFactory.getLogger(XMatrixCache.class);
+    /** cache entry file */
+    private final File cacheFile;
+    /** digest identifying the entry */
+    private final String digest;
+    /** readable description of the key parameters */
+    private final String description;
+    /** magic number at the start of a cache file */
+    private static final int MAGIC = 0x584d4331;
+    /** buffer size for cache file streams */
+    private static final int BUFFER_SIZE = 1 << 20;
+
+    /**
+     * Compute the cache entry for an xmatrix.
+     *
+     * @param cacheDir		cache directory
+     * @param db			source database
+     * @param genomeId		ID of the source genome
+     * @param minQual		minimum sample quality (a percent, as stored in the database)
+     * @param filterType	name of the feature filter type
+     * @param levelType		name of the level computer type
+     * @param minFrac		minimum fraction of samples that must have a value for a feature
+     * @param feats			list of features after filtering, in output order
+     * @param wanted		set of IDs for the samples with measurements
+     *
+     * @throws SQLException
+     */
+    public XMatrixCache(File cacheDir, DbConnection db, String genomeId, double minQual, String filterType,
+            String levelType, double minFrac, List<RnaFeature> feats, Set<String> wanted) throws SQLException {
+        this.description = String.format("genome=%s, filter=%s, levels=%s, qual=%g, min=%g", genomeId, filterType,
+                levelType, minQual, minFrac);
+        MessageDigest md = createDigest();
+        update(md, this.description);
+        for (RnaFeature feat : feats)
+            update(md, feat.getName() + "\t" + feat.getIdx() + "\t" + Double.toString(feat.getBaseLine()));
+        // Get the fingerprint of each qualifying sample with a measurement.  These are sorted so that the digest
+        // does not depend on the database order.
+        Map<String, Long> sampleMap = new TreeMap<String, Long>();
+        SampleMatrix.Census census = new SampleMatrix.Census(db, genomeId);
+        final int n = census.size();
+        for (int i = 0; i < n; i++) {
+            String sampleId = census.getSampleId(i);
+            if (census.getQuality(i) >= minQual && wanted.contains(sampleId))
+                sampleMap.put(sampleId, census.getSampleHash(i));
+        }
+        for (Map.Entry<String, Long> sampleEntry : sampleMap.entrySet())
+            update(md, sampleEntry.getKey() + "\t" + Long.toHexString(sampleEntry.getValue()));
+        StringBuilder hex = new StringBuilder(64);
+        for (byte b : md.digest())
+            hex.append(String.format("%02x", b));
+        this.digest = hex.toString();
+        this.cacheFile = new File(cacheDir, genomeId + "." + this.digest + ".xmc");
+    }
+
+    /**
+     * Delete all the cache entries for a genome.  This should be called when the genome's samples change,
+     * since the old entries will never match again.
+     *
+     * @param cacheDir		cache directory (if NULL, nothing is done)
+     * @param genomeId		ID of the genome whose samples have changed
+     */
+    public static void invalidate(File cacheDir, String genomeId) {
+        if (cacheDir != null) {
+            File[] entries = cacheDir.listFiles((d, name) -> name.startsWith(genomeId + ".") && name.endsWith(".xmc"));
+            if (entries != null) {
+                for (File entry : entries) {
+                    log.info("Invalidating cached xmatrix {}.", entry);
+                    if (! entry.delete())
+                        log.warn("Could not delete {}.  It will no longer match and can be removed by hand.", entry);
+                }
+            }
+        }
+    }
+
+    /**
+     * @return a SHA-256 message digest
+     */
+    private static MessageDigest createDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            // SHA-256 is required in every Java implementation.
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Add a string to a message digest, followed by a separator.
+     *
+     * @param md		message digest to update
+     * @param string	string to add
+     */
+    private static void update(MessageDigest md, String string) {
+        md.update(string.getBytes(StandardCharsets.UTF_8));
+        md.update((byte) '\n');
+    }
+
+    /**
+     * @return a readable description of the cache key
+     */
+    public String getDescription() {
+        return this.description;
+    }
+
+    /**
+     * @return the cache entry file
+     */
+    public File getFile() {
+        return this.cacheFile;
+    }
+
+    /**
+     * @return a reader for the cache entry, or NULL if there is no usable entry
+     */
+    public Reader open() {
+        Reader retVal = null;
+        if (this.cacheFile.canRead()) {
+            try {
+                retVal = new Reader();
+            } catch (IOException e) {
+                log.warn("Cache file {} is unusable: {}", this.cacheFile, e.toString());
+            }
+        }
+        return retVal;
+    }
+
+    /**
+     * @return a writer for a new cache entry
+     *
+     * @param cols			names of the features kept
+     * @param sampleIds		IDs of the samples, in output order
+     *
+     * @throws IOException
+     */
+    public Writer create(List<String> cols, List<String> sampleIds) throws IOException {
+        return new Writer(cols, sampleIds);
+    }
+
+    /**
+     * This object reads the rows of a cache entry.  The rows are in the order of the sample ID list.  The build time
+     * is stored at the end of the file, so it is only available after all the rows have been read.
+     */
+    public class Reader implements AutoCloseable {
+
+        /** input stream */
+        private final DataInputStream inStream;
+        /** names of the features */
+        private final List<String> cols;
+        /** sample IDs in row order */
+        private final List<String> sampleIds;
+        /** number of rows read */
+        private int rowsRead;
+        /** time originally taken to build the matrix, in milliseconds (-1 if not yet read) */
+        private long buildTime;
+
+        /**
+         * Open the cache entry and read the header.
+         *
+         * @throws IOException
+         */
+        protected Reader() throws IOException {
+            this.inStream = new DataInputStream(new BufferedInputStream(new FileInputStream(cacheFile),
+                    BUFFER_SIZE));
+            try {
+                if (this.inStream.readInt() != MAGIC)
+                    throw new IOException("Invalid magic number.");
+                String fileDigest = this.inStream.readUTF();
+                if (! fileDigest.equals(digest))
+                    throw new IOException("Digest mismatch.");
+                final int nCols = this.inStream.readInt();
+                List<String> colList = new ArrayList<String>(nCols);
+                for (int i = 0; i < nCols; i++)
+                    colList.add(this.inStream.readUTF());
+                this.cols = Collections.unmodifiableList(colList);
+                final int nRows = this.inStream.readInt();
+                List<String> sampleList = new ArrayList<String>(nRows);
+                for (int r = 0; r < nRows; r++)
+                    sampleList.add(this.inStream.readUTF());
+                this.sampleIds = Collections.unmodifiableList(sampleList);
+            } catch (IOException e) {
+                this.inStream.close();
+                throw e;
+            }
+            this.rowsRead = 0;
+            this.buildTime = -1;
+            if (this.sampleIds.isEmpty())
+                this.buildTime = this.inStream.readLong();
+        }
+
+        /**
+         * @return the names of the features
+         */
+        public List<String> getCols() {
+            return this.cols;
+        }
+
+        /**
+         * @return the sample IDs, in row order
+         */
+        public List<String> getSampleIds() {
+            return this.sampleIds;
+        }
+
+        /**
+         * Read the next row of values.
+         *
+         * @param buf	buffer to receive the values
+         *
+         * @throws IOException
+         */
+        public void read(double[] buf) throws IOException {
+            final int n = this.cols.size();
+            for (int i = 0; i < n; i++)
+                buf[i] = this.inStream.readDouble();
+            this.rowsRead++;
+            if (this.rowsRead == this.sampleIds.size())
+                this.buildTime = this.inStream.readLong();
+        }
+
+        /**
+         * @return the time originally taken to build the matrix, in milliseconds, or -1 if the rows have not all
+         * 		   been read
+         */
+        public long getBuildTime() {
+            return this.buildTime;
+        }
+
+        @Override
+        public void close() throws IOException {
+            this.inStream.close();
+        }
+
+    }
+
+    /**
+     * This object writes a new cache entry.  The rows must be written in the order of the sample ID list, and then
+     * commit() must be called to make the entry visible.
+     */
+    public class Writer implements AutoCloseable {
+
+        /** temporary output file */
+        private final File tempFile;
+        /** output stream */
+        private final DataOutputStream outStream;
+        /** TRUE if the entry has been committed */
+        private boolean committed;
+
+        /**
+         * Create the temporary file and write the header.
+         *
+         * @param cols			names of the features kept
+         * @param sampleIds		IDs of the samples, in output order
+         *
+         * @throws IOException
+         */
+        protected Writer(List<String> cols, List<String> sampleIds) throws IOException {
+            this.tempFile = File.createTempFile("xmatrix", ".tmp", cacheFile.getAbsoluteFile().getParentFile());
+            this.outStream = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(this.tempFile),
+                    BUFFER_SIZE));
+            this.committed = false;
+            this.outStream.writeInt(MAGIC);
+            this.outStream.writeUTF(digest);
+            this.outStream.writeInt(cols.size());
+            for (String col : cols)
+                this.outStream.writeUTF(col);
+            this.outStream.writeInt(sampleIds.size());
+            for (String sampleId : sampleIds)
+                this.outStream.writeUTF(sampleId);
+        }
+
+        /**
+         * Write a row of values.
+         *
+         * @param xValues	values to write
+         *
+         * @throws IOException
+         */
+        public void write(double[] xValues) throws IOException {
+            for (double v : xValues)
+                this.outStream.writeDouble(v);
+        }
+
+        /**
+         * Finish the entry and move it into place.
+         *
+         * @param buildTime		time taken to build the matrix, in milliseconds
+         *
+         * @throws IOException
+         */
+        public void commit(long buildTime) throws IOException {
+            this.outStream.writeLong(buildTime);
+            this.outStream.close();
+            try {
+                Files.move(this.tempFile.toPath(), cacheFile.toPath(), StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(this.tempFile.toPath(), cacheFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            }
+            this.committed = true;
+            log.info("Xmatrix cached in {} ({} bytes).", cacheFile, cacheFile.length());
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (! this.committed) {
+                this.outStream.close();
+                if (! this.tempFile.delete())
+                    log.warn("Could not delete temporary cache file {}.", this.tempFile);
+            }
+        }
+
+    }
+
+}
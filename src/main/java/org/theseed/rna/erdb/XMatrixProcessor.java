@@ -3,10 +3,18 @@
  */
 package org.theseed.rna.erdb;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.sql.SQLException;
+import java.util.ArrayList;
 import java.util.HashMap;
-import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.stream.Collectors;
@@ -17,13 +25,14 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.theseed.basic.ParseFailureException;
 import org.theseed.java.erdb.DbConnection;
-import org.theseed.java.erdb.DbQuery;
 import org.theseed.java.erdb.DbRecord;
-import org.theseed.java.erdb.Relop;
+import org.theseed.rna.data.FeatureDataCodec;
 import org.theseed.rna.data.RnaFeatureFilter;
 import org.theseed.rna.data.MeasureFinder;
 import org.theseed.rna.data.RnaFeature;
 import org.theseed.rna.data.RnaFeatureLevelComputer;
+import org.theseed.rna.data.SampleFetcher;
+import org.theseed.rna.data.SampleMatrixCache;
 import org.theseed.reports.NaturalSort;
 import org.theseed.reports.XMatrixReporter;
 
@@ -33,6 +42,25 @@ import org.theseed.reports.XMatrixReporter;
  * reason, it is designed to be highly flexible.  The output format, the means of representing the aforementioned
  * characteristics, the subset of features to use, and the means of scaling the expression levels are all configurable.
  *
+ * The samples are streamed in two passes, so memory use depends on the number of features and not the number of
+ * samples.  The first pass reads the samples from the database, counts the values found for each feature, and
+ * writes the sample data to a temporary spill file.  The second pass reads the spill file and writes the output.
+ *
+ * The output can be split into a training and testing set or into k folds for cross-validation.  The split is
+ * stratified by the output column and depends only on the samples and the random-number seed, so it is repeatable.
+ * Each piece of the split is written to its own shard by a separate thread.  The shard name is inserted before the
+ * extension of the output file name (or appended to the output directory name), so that "xmatrix.csv" becomes
+ * "xmatrix.train.csv" and "xmatrix.test.csv", or "xmatrix.fold1.csv" through "xmatrix.fold5.csv".
+ *
+ * If the binary option is specified, the output format is ignored and the output is written as a memory-mappable
+ * tensor of little-endian 32-bit floats with sidecar files for the sample IDs, labels, and column names (see
+ * TensorXMatrixWriter).  This can be loaded for training without any parsing.
+ *
+ * If an xmatrix cache directory is specified, the converted expression levels are saved there after the matrix is built.  A
+ * later run with the same genome, feature filter, level computer, quality and feature thresholds, measured samples,
+ * and database contents reuses the cached matrix instead of reading the samples, and only attaches the new output
+ * labels.  This makes it cheap to regenerate the matrix with a different measurement column or output format.
+ *
  * The positional parameters are the ID of the source genome and the name of the output file or directory.
  *
  * The following command-line options are supported.
@@ -55,6 +83,13 @@ import org.theseed.reports.XMatrixReporter;
  * --format		output type (default CSV)
  * --qual		minimum fraction sample quality level (default 0.40)
  * --outCol		output column name (default "condition")
+ * --spill		directory for the temporary file holding the sample data between passes (default is system temp)
+ * --split		method for splitting the output into shards (default NONE)
+ * --test		fraction of samples to put in the testing shard (for TRAIN_TEST split); the default is 0.20
+ * --folds		number of folds (for KFOLD split); the default is 5
+ * --seed		random-number seed for the split (default 42)
+ * --binary		write the output as a binary tensor file instead of in the specified format
+ * --xcache		directory for cached xmatrix data (default is no caching)
  *
  * @author Bruce Parrello
  *
@@ -71,6 +106,8 @@ public class XMatrixProcessor extends BaseDbRnaProcessor implements RnaFeatureFi
     private RnaFeatureLevelComputer levelComputer;
     /** measurement computer */
     private MeasureFinder measurer;
+    /** buffer size for the spill file streams */
+    private static final int SPILL_BUFFER = 1 << 20;
 
     // COMMAND-LINE OPTIONS
 
@@ -118,6 +155,35 @@ public class XMatrixProcessor extends BaseDbRnaProcessor implements RnaFeatureFi
     @Option(name = "--outCol", metaVar = "diagnosis", usage = "name for the output column")
     private String outColName;
 
+    /** directory for the temporary spill file */
+    @Option(name = "--spill", metaVar = "tmpDir", usage = "directory for the temporary sample spill file (default is system temp)")
+    private File spillDir;
+
+    /** method for splitting the output */
+    @Option(name = "--split", usage = "method for splitting the output into training and testing shards")
+    private XMatrixShards.Split splitType;
+
+    /** fraction of samples to put in the testing shard */
+    @Option(name = "--test", metaVar = "0.25", usage = "for split=TRAIN_TEST, fraction of samples to use for testing")
+    private double testFrac;
+
+    /** number of folds for cross-validation */
+    @Option(name = "--folds", metaVar = "10", usage = "for split=KFOLD, number of folds")
+    private int folds;
+
+    /** random-number seed for the split */
+    @Option(name = "--seed", metaVar = "12345", usage = "random-number seed for splitting the output")
+    private long seed;
+
+    /** TRUE to write a binary tensor instead of an xmatrix report */
+    @Option(name = "--binary", usage = "if specified, the output will be written as a binary float32 tensor file")
+    private boolean binaryFlag;
+
+    /** xmatrix cache directory */
+    @Option(name = "--xcache", metaVar = "xmatrixCache", usage = "directory for cached xmatrix data")
+    private File xCacheDir;
+
+
     /** ID of input genome */
     @Argument(index = 0, metaVar = "genome_id", usage = "ID of source genome for samples", required = true)
     private String genomeId;
@@ -140,10 +206,28 @@ public class XMatrixProcessor extends BaseDbRnaProcessor implements RnaFeatureFi
         this.minQual = 0.40;
         this.minFrac = 0.80;
         this.outColName = "condition";
+        this.spillDir = null;
+        this.splitType = XMatrixShards.Split.NONE;
+        this.testFrac = 0.20;
+        this.folds = 5;
+        this.seed = 42;
+        this.binaryFlag = false;
+        this.xCacheDir = null;
     }
 
     @Override
     protected void validateDbRnaParms() throws ParseFailureException, IOException {
+        // Verify the spill directory.
+        if (this.spillDir != null && ! this.spillDir.isDirectory())
+            throw new FileNotFoundException("Spill directory " + this.spillDir + " is not found or invalid.");
+        // Verify the xmatrix cache directory.
+        if (this.xCacheDir != null)
+            SampleMatrixCache.validateDir(this.xCacheDir);
+        // Verify the split parameters.
+        if (this.testFrac <= 0.0 || this.testFrac >= 1.0)
+            throw new ParseFailureException("Test fraction must be between 0 and 1.");
+        if (this.folds < 2)
+            throw new ParseFailureException("Number of folds must be at least 2.");
         // Create the feature filter.
         log.info("Creating feature filter of type {}.", this.featFilterType);
         this.featFilter = this.featFilterType.create(this);
@@ -157,6 +241,7 @@ public class XMatrixProcessor extends BaseDbRnaProcessor implements RnaFeatureFi
 
     @Override
     protected void runDbCommand(DbConnection db) throws Exception {
+        final long start = System.currentTimeMillis();
         // Get the features to use.  For each we have its column name, its baseline value, and its index in the
         // database records.
         log.info("Loading features from {}.", this.genomeId);
@@ -165,92 +250,202 @@ public class XMatrixProcessor extends BaseDbRnaProcessor implements RnaFeatureFi
         // samples to include.
         Map<String, String> measureMap = this.measurer.getMeasureMap();
         log.info("{} samples have measurements.", measureMap.size());
-        // Now we need to get all the database records.  We only keep the ones that appear in the measurement map.
-        // When we are done, we have to filter out the features with insufficient mappings.  To start, however,
-        // we get a mapping from sample IDs to feature value arrays.
-        log.info("Loading samples from the database.");
-        Map<String, double[]> sampMap = new HashMap<String, double[]>(measureMap.size() * 4 / 3 + 1);
-        try (DbQuery query = new DbQuery(db, "RnaSample")) {
-            // We only want samples for the target genome with the specified quality level.  In the database,
-            // the quality level is a percent, so we have to scale by 100.
-            query.rel("RnaSample.genome_id", Relop.EQ);
-            query.rel("RnaSample.quality", Relop.GE);
-            query.select("RnaSample", "sample_id", "feat_data");
-            query.setParm(1, this.genomeId);
-            query.setParm(2, this.minQual * 100.0);
-            // Now loop through the records, keeping the ones in the measure map.
-            long lastMsg = System.currentTimeMillis();
-            int inCount = 0;
-            int keptCount = 0;
-            Iterator<DbRecord> iter = query.iterator();
-            while (iter.hasNext()) {
-                DbRecord record = iter.next();
-                String sampleId = record.getString("RnaSample.sample_id");
-                double[] levels = record.getDoubleArray("RnaSample.feat_data");
-                inCount++;
-                if (measureMap.containsKey(sampleId)) {
-                    keptCount++;
-                    sampMap.put(sampleId, levels);
-                }
-                if (System.currentTimeMillis() - lastMsg >= 5000) {
-                    log.info("{} samples processed.  {} kept.", inCount, keptCount);
-                    lastMsg = System.currentTimeMillis();
+        // Sort the features by ID.  This is the order in which they will be output, and it is also the order of
+        // the values we keep for each sample.  We only decode the values for these features.
+        List<RnaFeature> feats = fidData.keySet().stream().sorted(new NaturalSort()).map(x -> fidData.get(x))
+                .collect(Collectors.toList());
+        // Check for a cached copy of the matrix.
+        XMatrixCache cache = null;
+        XMatrixCache.Reader cached = null;
+        if (this.xCacheDir != null) {
+            cache = new XMatrixCache(this.xCacheDir, db, this.genomeId, this.minQual * 100.0,
+                    this.featFilterType.name(), this.levelComputerType.name(), this.minFrac, feats,
+                    measureMap.keySet());
+            cached = cache.open();
+            if (cached == null)
+                log.info("No cached xmatrix found for {}.", cache.getDescription());
+        }
+        if (cached != null) {
+            try {
+                this.writeFromCache(cache, cached, measureMap, start);
+            } finally {
+                cached.close();
+            }
+        } else
+            this.buildMatrix(db, feats, measureMap, cache, start);
+        // All Done.
+    }
+
+    /**
+     * Build the xmatrix from the database and write it to the output.
+     *
+     * @param db			source database connection
+     * @param feats			list of features to use, in output order
+     * @param measureMap	map of sample IDs to output labels
+     * @param cache			cache entry to create, or NULL if there is no caching
+     * @param start			start time of the command, in milliseconds
+     *
+     * @throws SQLException
+     * @throws IOException
+     */
+    private void buildMatrix(DbConnection db, List<RnaFeature> feats, Map<String, String> measureMap,
+            XMatrixCache cache, long start) throws SQLException, IOException {
+        FeatureDataCodec.Projection projection = new FeatureDataCodec.Projection(feats.stream()
+                .mapToInt(x -> x.getIdx()).toArray());
+        // Now we need to get the database records.  We only fetch the ones that appear in the measurement map.
+        // The samples are processed in two passes, so that we never hold all of them in memory.  The first pass
+        // reads the samples from the database, counts the finite values for each feature, and writes the values
+        // to a spill file.  The second pass reads the spill file and writes the output rows.
+        final int nCols = feats.size();
+        int[] found = new int[nCols];
+        // This will map each stored sample to its output label.  It is used to split the output.
+        Map<String, String> labelMap = new HashMap<String, String>(measureMap.size() * 4 / 3 + 1);
+        // This will list the stored samples in order, for the cache.
+        List<String> sampleIds = new ArrayList<String>(measureMap.size());
+        double[] sampData = new double[nCols];
+        File spillFile = File.createTempFile("xmatrix", ".spill", this.spillDir);
+        try {
+            int sampCount = 0;
+            log.info("Loading samples from the database into {}.", spillFile);
+            // We only want samples for the target genome with the specified quality level that are in the
+            // measurement map.  In the database, the quality level is a percent, so we have to scale by 100.
+            try (SampleFetcher fetcher = new SampleFetcher(db, this.genomeId, this.minQual * 100.0, measureMap.keySet());
+                    DataOutputStream spillStream = new DataOutputStream(new BufferedOutputStream(
+                            new FileOutputStream(spillFile), SPILL_BUFFER))) {
+                long lastMsg = System.currentTimeMillis();
+                for (DbRecord record = fetcher.next(); record != null; record = fetcher.next()) {
+                    String sampleId = record.getString("RnaSample.sample_id");
+                    sampCount++;
+                    labelMap.put(sampleId, measureMap.get(sampleId));
+                    sampleIds.add(sampleId);
+                    projection.getLevels(record, sampData);
+                    spillStream.writeUTF(sampleId);
+                    for (int k = 0; k < nCols; k++) {
+                        double v = sampData[k];
+                        if (Double.isFinite(v))
+                            found[k]++;
+                        spillStream.writeDouble(v);
+                    }
+                    if (System.currentTimeMillis() - lastMsg >= 5000) {
+                        log.info("{} samples kept.", sampCount);
+                        lastMsg = System.currentTimeMillis();
+                    }
                 }
+                log.info("{} sample records fetched, {} kept.", fetcher.getFetched(), fetcher.getKept());
             }
-            log.info("{} samples stored.", sampMap.size());
-        }
-        // Now we loop through the features, removing the ones with insufficient data.
-        int minFound = (int) Math.ceil(sampMap.size() * minFrac);
-        int deletedCol = 0;
-        var featIter = fidData.entrySet().iterator();
-        while (featIter.hasNext()) {
-            RnaFeature featData = featIter.next().getValue();
-            int idx = featData.getIdx();
-            int found = 0;
-            for (double[] sampData : sampMap.values()) {
-                if (Double.isFinite(sampData[idx]))
-                    found++;
+            log.info("{} samples stored.", sampCount);
+            // Now we loop through the features, removing the ones with insufficient data.  We build a list of the
+            // positions of the surviving features in the sample value arrays.
+            int minFound = (int) Math.ceil(sampCount * minFrac);
+            int deletedCol = 0;
+            List<RnaFeature> keptFeats = new ArrayList<RnaFeature>(nCols);
+            int[] keptPositions = new int[nCols];
+            for (int k = 0; k < nCols; k++) {
+                if (found[k] < minFound) {
+                    // Here the feature has insufficient data to be useful.
+                    deletedCol++;
+                } else {
+                    keptPositions[keptFeats.size()] = k;
+                    keptFeats.add(feats.get(k));
+                }
             }
-            if (found < minFound) {
-                // Here the feature has insufficient data to be useful.
-                featIter.remove();
-                deletedCol++;
+            final int nFeats = keptFeats.size();
+            log.info("{} features deleted due to insufficient mappings.  {} remaining.", deletedCol, nFeats);
+            // Now we have the final feature list. We need a list of just the feature names to pass to the reporter.
+            List<String> fCols = keptFeats.stream().map(x -> x.getName()).collect(Collectors.toList());
+            // Set up the output reporters and the cache writer.
+            try (var reporter = this.createShards(labelMap);
+                    DataInputStream spillStream = new DataInputStream(new BufferedInputStream(
+                            new FileInputStream(spillFile), SPILL_BUFFER));
+                    XMatrixCache.Writer cacheWriter = (cache == null ? null : cache.create(fCols, sampleIds))) {
+                reporter.setHeaders("sample_id", fCols, this.outColName);
+                // We now know the number of feature columns, so we can pre-allocate data arrays for the raw and
+                // converted expression values.  The baselines are extracted once, so that each row is converted
+                // by a single primitive loop.
+                double[] rawValues = new double[nFeats];
+                double[] xValues = new double[nFeats];
+                double[] baselines = RnaFeatureLevelComputer.getBaselines(keptFeats);
+                // Now we loop through the spilled samples.  For each sample, we need to output a line of data.
+                // We not only need the data but we need to convert the expression levels to their output form.
+                long lastMsg = System.currentTimeMillis();
+                for (int s = 0; s < sampCount; s++) {
+                    String sampleId = spillStream.readUTF();
+                    for (int k = 0; k < nCols; k++)
+                        sampData[k] = spillStream.readDouble();
+                    // Extract the kept features and convert the row.
+                    for (int i = 0; i < nFeats; i++)
+                        rawValues[i] = sampData[keptPositions[i]];
+                    this.levelComputer.computeRow(rawValues, baselines, xValues);
+                    if (cacheWriter != null)
+                        cacheWriter.write(xValues);
+                    // Queue this row for output to its shard.
+                    reporter.processRow(sampleId, xValues, measureMap.get(sampleId));
+                    if (log.isInfoEnabled() && System.currentTimeMillis() - lastMsg >= 5000) {
+                        log.info("{} samples processed for output.", s + 1);
+                        lastMsg = System.currentTimeMillis();
+                    }
+                }
+                if (cacheWriter != null)
+                    cacheWriter.commit(System.currentTimeMillis() - start);
             }
+        } finally {
+            if (! spillFile.delete())
+                log.warn("Could not delete spill file {}.", spillFile);
         }
-        final int nFeats = fidData.size();
-        log.info("{} features deleted due to insufficient mappings.  {} remaining.", deletedCol, nFeats);
-        // Now we have the sample data and the final feature list. Set up the output reporter.
-        log.info("Creating report object of type {} for {}.", this.reporterType, this.outDir);
-        try (var reporter = this.reporterType.create(this, this.outDir)) {
-            // First we need to set the headers.  We sort the feature data into an array by feature ID.
-            List<RnaFeature> feats = fidData.keySet().stream().sorted(new NaturalSort()).map(x -> fidData.get(x)).collect(Collectors.toList());
-            // We will use the above list to produce output.  We need one of just the names to pass to the reporter.
-            List<String> fCols = feats.stream().map(x -> x.getName()).collect(Collectors.toList());
+    }
+
+    /**
+     * Write the xmatrix from a cache entry, attaching the current output labels.
+     *
+     * @param cache			cache entry descriptor
+     * @param cached		reader for the cache entry
+     * @param measureMap	map of sample IDs to output labels
+     * @param start			start time of the command, in milliseconds
+     *
+     * @throws IOException
+     */
+    private void writeFromCache(XMatrixCache cache, XMatrixCache.Reader cached, Map<String, String> measureMap,
+            long start) throws IOException {
+        List<String> sampleIds = cached.getSampleIds();
+        List<String> fCols = cached.getCols();
+        log.info("Using cached xmatrix {} for {}:  {} samples, {} features.", cache.getFile(),
+                cache.getDescription(), sampleIds.size(), fCols.size());
+        Map<String, String> labelMap = new HashMap<String, String>(sampleIds.size() * 4 / 3 + 1);
+        for (String sampleId : sampleIds)
+            labelMap.put(sampleId, measureMap.get(sampleId));
+        try (var reporter = this.createShards(labelMap)) {
             reporter.setHeaders("sample_id", fCols, this.outColName);
-            // We now know the number of feature columns, so we can pre-allocate a data array for expression values.
-            double[] xValues = new double[nFeats];
-            // Now we loop through the sample map.  For each sample, we need to output a line of data.
-            // We not only need the data but we need to convert the expression levels to their output form.
-            long lastMsg = System.currentTimeMillis();
-            int sampCount = 0;
-            for (var sampEntry : sampMap.entrySet()) {
-                String sampleId = sampEntry.getKey();
-                double[] sampData = sampEntry.getValue();
-                // Loop through the features.
-                for (int i = 0; i < nFeats; i++) {
-                    RnaFeature feat = feats.get(i);
-                    xValues[i] = this.levelComputer.compute(feat, sampData[i]);
-                }
-                // Output this row.
+            double[] xValues = new double[fCols.size()];
+            for (String sampleId : sampleIds) {
+                cached.read(xValues);
                 reporter.processRow(sampleId, xValues, measureMap.get(sampleId));
-                sampCount++;
-                if (log.isInfoEnabled() && System.currentTimeMillis() - lastMsg >= 5000) {
-                    log.info("{} samples processed for output.", sampCount);
-                    lastMsg = System.currentTimeMillis();
-                }
             }
         }
-        // All Done.
+        long elapsed = System.currentTimeMillis() - start;
+        long buildTime = cached.getBuildTime();
+        log.info("Cache hit for {}:  output took {} seconds instead of {}, saving {} seconds.",
+                cache.getDescription(), elapsed / 1000.0, buildTime / 1000.0, (buildTime - elapsed) / 1000.0);
+    }
+
+    /**
+     * @return the shard writer for the output
+     *
+     * @param labelMap		map of the IDs of the samples to be output to their output labels
+     *
+     * @throws IOException
+     */
+    private XMatrixShards createShards(Map<String, String> labelMap) throws IOException {
+        XMatrixShards.SinkFactory factory;
+        if (this.binaryFlag) {
+            log.info("Creating binary tensor output for {} with split {}.", this.outDir, this.splitType);
+            factory = f -> new TensorXMatrixWriter(f);
+        } else {
+            log.info("Creating report objects of type {} for {} with split {}.", this.reporterType, this.outDir,
+                    this.splitType);
+            factory = XMatrixShards.reporterFactory(this.reporterType, this);
+        }
+        return new XMatrixShards(factory, this.outDir, this.splitType, labelMap, this.testFrac, this.folds,
+                this.seed);
     }
 
     @Override
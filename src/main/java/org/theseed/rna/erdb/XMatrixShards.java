@@ -0,0 +1,505 @@
+/**
+ *
+ */
+package org.theseed.rna.erdb;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.theseed.reports.XMatrixReporter;
+
+/**
+ * This object writes xmatrix output rows to one or more shards.  Each shard is a separate xmatrix report
+ * written by its own thread, so the formatting and output of the shards overlap with each other and with the
+ * production of the rows.  The rows for each shard are passed to its thread through a bounded queue.
+ *
+ * The samples are assigned to shards before any rows are written, using a stratified split that depends only
+ * on the sample IDs, their output labels, and a random-number seed, so the same input always produces the same
+ * shards.  The samples are sorted by output label (numerically if all the labels are numbers), with ties broken
+ * randomly, and then dealt out systematically.  For a train/test split, this puts the requested fraction of
+ * each label (or each range of values) in the test shard.  For a k-fold split, every run of k consecutive
+ * samples in the sorted order is spread across all k folds.
+ *
+ * Each shard is written to a sink, which is either an xmatrix reporter or a binary tensor writer.
+ *
+ * @author Bruce Parrello
+ *
+ */
+public class XMatrixShards implements AutoCloseable {
+
+    // FIELDS
+    /** logging facility */
+    protected static Logger log = LoggerFactory.getLogger(XMatrixShards.class);
+    /** writers for the shards */
+    private final List<ShardWriter> writers;
+    /** map of sample IDs to shard indices */
+    private final Map<String, Integer> shardMap;
+    /** number of rows queued for each shard */
+    private static final int QUEUE_SIZE = 256;
+
+    /**
+     * This enumeration describes the ways to split the output.
+     */
+    public static enum Split {
+        /** all samples in a single output */
+        NONE,
+        /** samples split into training and testing shards */
+        TRAIN_TEST,
+        /** samples split into k folds */
+        KFOLD;
+    }
+
+    /**
+     * This interface describes an output sink for a shard.
+     */
+    public interface Sink extends AutoCloseable {
+
+        /**
+         * Write the column headers.
+         *
+         * @param idCol		name of the sample ID column
+         * @param cols		names of the input columns
+         * @param outCol	name of the output column
+         *
+         * @throws IOException
+         */
+        public void setHeaders(String idCol, List<String> cols, String outCol) throws IOException;
+
+        /**
+         * Write a data row.
+         *
+         * @param sampleId	sample ID
+         * @param xValues	input values
+         * @param label		output label
+         *
+         * @throws IOException
+         */
+        public void processRow(String sampleId, double[] xValues, String label) throws IOException;
+
+        @Override
+        public void close() throws IOException;
+
+    }
+
+    /**
+     * This interface creates the sink for a shard.
+     */
+    @FunctionalInterface
+    public interface SinkFactory {
+
+        /**
+         * @return a sink that writes to the specified output file or directory
+         *
+         * @param outFile	output file or directory for the shard
+         *
+         * @throws IOException
+         */
+        public Sink create(File outFile) throws IOException;
+
+    }
+
+    /**
+     * This object adapts an xmatrix reporter to the sink interface.
+     */
+    private static class ReporterSink implements Sink {
+
+        /** reporter to write */
+        private final XMatrixReporter reporter;
+
+        /**
+         * Create a sink for an xmatrix reporter.
+         *
+         * @param reporter	reporter to write
+         */
+        protected ReporterSink(XMatrixReporter reporter) {
+            this.reporter = reporter;
+        }
+
+        @Override
+        public void setHeaders(String idCol, List<String> cols, String outCol) throws IOException {
+            this.reporter.setHeaders(idCol, cols, outCol);
+        }
+
+        @Override
+        public void processRow(String sampleId, double[] xValues, String label) throws IOException {
+            this.reporter.processRow(sampleId, xValues, label);
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                this.reporter.close();
+            } catch (RuntimeException e) {
+                throw e;
+            } catch (Exception e) {
+                // The reporter's close may or may not declare a checked exception.
+                if (e instanceof IOException)
+                    throw (IOException) e;
+                throw new IOException("Error closing xmatrix reporter: " + e.toString(), e);
+            }
+        }
+
+    }
+
+    /**
+     * @return a sink factory for xmatrix reporters of the specified type
+     *
+     * @param type		xmatrix reporter type
+     * @param parms		parameters for the reporters
+     */
+    public static SinkFactory reporterFactory(XMatrixReporter.Type type, XMatrixReporter.IParms parms) {
+        return f -> new ReporterSink(type.create(parms, f));
+    }
+
+    /**
+     * This object describes a single output row.
+     */
+    private static class Row {
+
+        /** sample ID */
+        private final String sampleId;
+        /** input values */
+        private final double[] xValues;
+        /** output label */
+        private final String label;
+
+        /**
+         * Create an output row.
+         *
+         * @param sampleId		sample ID
+         * @param xValues		input values (will be copied)
+         * @param label			output label
+         */
+        protected Row(String sampleId, double[] xValues, String label) {
+            this.sampleId = sampleId;
+            this.xValues = (xValues == null ? null : xValues.clone());
+            this.label = label;
+        }
+
+    }
+
+    /** marker for the end of a shard's rows */
+    private static final Row END = new Row(null, null, null);
+
+    /**
+     * This object manages the thread that writes a single shard.
+     */
+    private static class ShardWriter implements Runnable {
+
+        /** name of the shard */
+        private final String name;
+        /** output sink for the shard */
+        private final Sink reporter;
+        /** queue of rows to write */
+        private final BlockingQueue<Row> queue;
+        /** writing thread */
+        private Thread thread;
+        /** error that stopped the thread, or NULL if none */
+        private volatile Throwable error;
+        /** number of rows written */
+        private int count;
+
+        /**
+         * Create a shard writer.
+         *
+         * @param name			name of the shard
+         * @param reporter		output sink for the shard
+         */
+        protected ShardWriter(String name, Sink reporter) {
+            this.name = name;
+            this.reporter = reporter;
+            this.queue = new ArrayBlockingQueue<Row>(QUEUE_SIZE);
+            this.error = null;
+            this.count = 0;
+        }
+
+        /**
+         * Start the writing thread.
+         */
+        protected void start() {
+            this.thread = new Thread(this, "xmatrix-" + this.name);
+            this.thread.start();
+        }
+
+        @Override
+        public void run() {
+            try {
+                Row row = this.queue.take();
+                while (row != END) {
+                    this.reporter.processRow(row.sampleId, row.xValues, row.label);
+                    this.count++;
+                    row = this.queue.take();
+                }
+            } catch (Throwable e) {
+                // We catch everything here, including errors, so the producer is never left waiting on a
+                // queue that nobody is reading.
+                this.error = e;
+            }
+        }
+
+        /**
+         * Queue a row for output.
+         *
+         * @param row	row to write
+         *
+         * @throws IOException
+         */
+        protected void put(Row row) throws IOException {
+            try {
+                while (! this.queue.offer(row, 1, TimeUnit.SECONDS)) {
+                    this.checkError();
+                    if (! this.thread.isAlive())
+                        throw new IOException("Writing thread for shard " + this.name + " has stopped.");
+                }
+            } catch (InterruptedException e) {
+                throw new IOException("Interrupted writing shard " + this.name + ".", e);
+            }
+        }
+
+        /**
+         * Throw an exception if the writing thread failed.
+         *
+         * @throws IOException
+         */
+        protected void checkError() throws IOException {
+            if (this.error != null)
+                throw new IOException("Error writing shard " + this.name + ": " + this.error.toString(), this.error);
+        }
+
+        /**
+         * Wait for the thread to finish and close the reporter.
+         *
+         * @throws IOException
+         */
+        protected void finish() throws IOException {
+            try {
+                if (this.thread != null) {
+                    if (this.error == null && this.thread.isAlive())
+                        this.put(END);
+                    this.thread.join();
+                }
+            } catch (InterruptedException e) {
+                throw new IOException("Interrupted finishing shard " + this.name + ".", e);
+            } finally {
+                this.reporter.close();
+            }
+            this.checkError();
+            log.info("{} rows written to shard {}.", this.count, this.name);
+        }
+
+    }
+
+    /**
+     * Create the shards for an xmatrix.
+     *
+     * @param factory		factory for creating the shard sinks
+     * @param outFile		output file or directory; the shard name is added for split output
+     * @param split			type of split
+     * @param labels		map of sample IDs to output labels for all the samples to be written
+     * @param testFrac		fraction of samples to put in the test shard (TRAIN_TEST only)
+     * @param folds			number of folds (KFOLD only)
+     * @param seed			random-number seed for the split
+     *
+     * @throws IOException
+     */
+    public XMatrixShards(SinkFactory factory, File outFile, Split split,
+            Map<String, String> labels, double testFrac, int folds, long seed) throws IOException {
+        // Compute the shard names and the sample assignments.
+        List<String> names = new ArrayList<String>();
+        switch (split) {
+        case NONE :
+            names.add(null);
+            this.shardMap = null;
+            break;
+        case TRAIN_TEST :
+            names.add("train");
+            names.add("test");
+            this.shardMap = assign(labels, (order, p) -> isTest(p, testFrac, order), seed);
+            break;
+        default :
+            for (int i = 1; i <= folds; i++)
+                names.add("fold" + i);
+            this.shardMap = assign(labels, (order, p) -> (int) ((p + order) % folds), seed);
+        }
+        // Create the reporters.
+        this.writers = new ArrayList<ShardWriter>(names.size());
+        try {
+            for (String name : names) {
+                File shardFile = shardFile(outFile, name);
+                log.info("Creating shard output {}.", shardFile);
+                this.writers.add(new ShardWriter(name == null ? "all" : name, factory.create(shardFile)));
+            }
+        } catch (IOException | RuntimeException e) {
+            for (ShardWriter writer : this.writers) {
+                try {
+                    writer.reporter.close();
+                } catch (IOException e2) {
+                    log.warn("Error closing shard {}: {}", writer.name, e2.toString());
+                }
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * This interface computes the shard for a sample from its position in the sorted order.
+     */
+    @FunctionalInterface
+    private interface Dealer {
+
+        /**
+         * @return the shard index for the sample at the specified position
+         *
+         * @param offset	random offset for the deal
+         * @param p			position in the sorted order
+         */
+        public int deal(long offset, int p);
+
+    }
+
+    /**
+     * @return 1 if the sample at the specified position belongs in the test shard, else 0
+     *
+     * @param p			position of the sample in the sorted order
+     * @param testFrac	fraction of samples to put in the test shard
+     * @param offset	random offset, from 0 to 999999
+     */
+    private static int isTest(int p, double testFrac, long offset) {
+        double start = offset / 1000000.0;
+        return (Math.floor((p + 1) * testFrac + start) > Math.floor(p * testFrac + start) ? 1 : 0);
+    }
+
+    /**
+     * Assign the samples to shards.  The samples are sorted by label, with ties broken randomly, and then
+     * dealt into shards by position.
+     *
+     * @param labels	map of sample IDs to output labels
+     * @param dealer	function that computes the shard from the random offset and the sorted position
+     * @param seed		random-number seed
+     *
+     * @return a map from sample IDs to shard indices
+     */
+    private static Map<String, Integer> assign(Map<String, String> labels, Dealer dealer, long seed) {
+        Random rand = new Random(seed);
+        // Put the samples in a fixed order and then shuffle them, so that the ties are broken the same way
+        // regardless of the map order.
+        List<String> samples = new ArrayList<String>(labels.keySet());
+        Collections.sort(samples);
+        Collections.shuffle(samples, rand);
+        // Sort by label.  The sort is stable, so ties stay in shuffled order.
+        boolean numeric = labels.values().stream().allMatch(x -> isNumber(x));
+        Comparator<String> byLabel;
+        if (numeric)
+            byLabel = Comparator.comparingDouble(x -> Double.parseDouble(labels.get(x)));
+        else
+            byLabel = Comparator.comparing(x -> labels.get(x), Comparator.nullsFirst(Comparator.naturalOrder()));
+        samples.sort(byLabel);
+        // Deal out the samples.
+        long offset = rand.nextInt(1000000);
+        Map<String, Integer> retVal = new HashMap<String, Integer>(samples.size() * 4 / 3 + 1);
+        for (int p = 0; p < samples.size(); p++)
+            retVal.put(samples.get(p), dealer.deal(offset, p));
+        return retVal;
+    }
+
+    /**
+     * @return TRUE if the specified label is a finite number
+     *
+     * @param label		label to check
+     */
+    private static boolean isNumber(String label) {
+        boolean retVal = false;
+        if (label != null) {
+            try {
+                retVal = Double.isFinite(Double.parseDouble(label));
+            } catch (NumberFormatException e) {
+                retVal = false;
+            }
+        }
+        return retVal;
+    }
+
+    /**
+     * @return the output file for a shard
+     *
+     * @param outFile	base output file or directory
+     * @param name		name of the shard, or NULL if there is only one
+     */
+    public static File shardFile(File outFile, String name) {
+        File retVal;
+        if (name == null)
+            retVal = outFile;
+        else {
+            String base = outFile.getName();
+            int dot = base.lastIndexOf('.');
+            String shardName = (dot > 0 ? base.substring(0, dot) + "." + name + base.substring(dot)
+                    : base + "." + name);
+            retVal = new File(outFile.getAbsoluteFile().getParentFile(), shardName);
+        }
+        return retVal;
+    }
+
+    /**
+     * Write the column headers to all the shards and start the writing threads.
+     *
+     * @param idCol		name of the sample ID column
+     * @param cols		names of the input columns
+     * @param outCol	name of the output column
+     *
+     * @throws IOException
+     */
+    public void setHeaders(String idCol, List<String> cols, String outCol) throws IOException {
+        for (ShardWriter writer : this.writers) {
+            writer.reporter.setHeaders(idCol, cols, outCol);
+            writer.start();
+        }
+    }
+
+    /**
+     * Queue a row for output to its shard.
+     *
+     * @param sampleId		sample ID
+     * @param xValues		input values (these are copied, so the array can be reused)
+     * @param label			output label
+     *
+     * @throws IOException
+     */
+    public void processRow(String sampleId, double[] xValues, String label) throws IOException {
+        int shard = 0;
+        if (this.shardMap != null) {
+            Integer idx = this.shardMap.get(sampleId);
+            if (idx == null)
+                throw new IllegalArgumentException("Sample " + sampleId + " was not assigned to a shard.");
+            shard = idx;
+        }
+        this.writers.get(shard).put(new Row(sampleId, xValues, label));
+    }
+
+    @Override
+    public void close() throws IOException {
+        IOException error = null;
+        for (ShardWriter writer : this.writers) {
+            try {
+                writer.finish();
+            } catch (IOException e) {
+                if (error == null)
+                    error = e;
+            }
+        }
+        if (error != null)
+            throw error;
+    }
+
+}
@@ -0,0 +1,185 @@
+/**
+ *
+ */
+package org.theseed.rna.corr;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * @author Bruce Parrello
+ *
+ */
+class BinaryCorrelationTest {
+
+    /** IDs used for the tests */
+    private static final List<String> IDS = List.of("s1", "s2", "s3", "s4", "s5", "s6");
+
+    /**
+     * @return a test score for a pair of indices, or NaN if the pair should be left out
+     *
+     * @param i		first index
+     * @param j		second index
+     */
+    private static double score(int i, int j) {
+        double retVal = Double.NaN;
+        if ((i + j) % 4 != 1)
+            retVal = (i * 10 + j) / 100.0 - 0.25;
+        return retVal;
+    }
+
+    /**
+     * @return a map of "i,j" keys to scores read from a correlation file
+     *
+     * @param reader	reader for the correlation file
+     *
+     * @throws IOException
+     */
+    private static Map<String, Double> readAll(CorrelationReader reader) throws IOException {
+        Map<String, Double> retVal = new HashMap<String, Double>();
+        reader.forEach((i, j, r) -> {
+            String key = Math.min(i, j) + "," + Math.max(i, j);
+            assertThat(key, retVal.put(key, r), nullValue());
+        });
+        return retVal;
+    }
+
+    @Test
+    void testPairs(@TempDir Path tempDir) throws IOException {
+        File outFile = tempDir.resolve("pairs.bcor").toFile();
+        // The pairs writer adds IDs as they are encountered, so we start with an empty dictionary.
+        try (PairCorrelationWriter writer = CorrelationWriter.pairs(outFile, new ArrayList<String>())) {
+            for (int i = 0; i < IDS.size(); i++) {
+                for (int j = i + 1; j < IDS.size(); j++) {
+                    double r = score(i, j);
+                    if (! Double.isNaN(r))
+                        writer.write(IDS.get(j), IDS.get(i), r);
+                }
+            }
+        }
+        assertThat(CorrelationReader.isBinary(outFile), equalTo(true));
+        try (CorrelationReader reader = CorrelationReader.open(outFile)) {
+            assertThat(reader, instanceOf(BinaryCorrelationReader.class));
+            assertThat(reader.isBinary(), equalTo(true));
+            assertThat(reader.isDense(), equalTo(false));
+            assertThat(((BinaryCorrelationReader) reader).getLayout(), equalTo(CorrelationWriter.Layout.PAIRS));
+            assertThat(reader.getIdCount(), equalTo(IDS.size()));
+            assertThat(reader.findIndex("nothing"), equalTo(-1));
+            Map<String, Double> found = readAll(reader);
+            int expected = 0;
+            for (int i = 0; i < IDS.size(); i++) {
+                for (int j = i + 1; j < IDS.size(); j++) {
+                    double r = score(i, j);
+                    if (! Double.isNaN(r)) {
+                        expected++;
+                        int i2 = reader.findIndex(IDS.get(i));
+                        int j2 = reader.findIndex(IDS.get(j));
+                        String key = Math.min(i2, j2) + "," + Math.max(i2, j2);
+                        assertThat(key, found.get(key), closeTo(r, 1e-6));
+                    }
+                }
+            }
+            assertThat(found.size(), equalTo(expected));
+            assertThrows(UnsupportedOperationException.class, () -> reader.getScore(0, 1));
+        }
+    }
+
+    @Test
+    void testDense(@TempDir Path tempDir) throws IOException {
+        File outFile = tempDir.resolve("dense.bcor").toFile();
+        try (DenseCorrelationWriter writer = CorrelationWriter.dense(outFile, IDS)) {
+            assertThat(writer.size(), equalTo(CorrelationWriter.triangleSize(IDS.size())));
+            // Write the pairs in reverse order to verify random access.
+            for (int j = IDS.size() - 1; j > 0; j--) {
+                for (int i = j - 1; i >= 0; i--) {
+                    double r = score(i, j);
+                    if (! Double.isNaN(r))
+                        writer.write(j, i, r);
+                }
+            }
+            assertThrows(IllegalArgumentException.class, () -> writer.write("s1", "s99", 0.5));
+        }
+        try (CorrelationReader reader = CorrelationReader.open(outFile)) {
+            assertThat(reader.isBinary(), equalTo(true));
+            assertThat(reader.isDense(), equalTo(true));
+            assertThat(reader.getIdCount(), equalTo(IDS.size()));
+            for (int i = 0; i < IDS.size(); i++) {
+                assertThat(reader.getId(i), equalTo(IDS.get(i)));
+                assertThat(reader.findIndex(IDS.get(i)), equalTo(i));
+            }
+            Map<String, Double> found = readAll(reader);
+            int expected = 0;
+            for (int i = 0; i < IDS.size(); i++) {
+                for (int j = i + 1; j < IDS.size(); j++) {
+                    double r = score(i, j);
+                    if (Double.isNaN(r)) {
+                        assertThat(found.containsKey(i + "," + j), equalTo(false));
+                        assertThat(Double.isNaN(reader.getScore(i, j)), equalTo(true));
+                    } else {
+                        expected++;
+                        assertThat(found.get(i + "," + j), closeTo(r, 1e-6));
+                        assertThat(reader.getScore(i, j), closeTo(r, 1e-6));
+                        assertThat(reader.getScore(j, i), closeTo(r, 1e-6));
+                    }
+                }
+            }
+            assertThat(found.size(), equalTo(expected));
+        }
+    }
+
+    @Test
+    void testAppend(@TempDir Path tempDir) throws IOException {
+        File oldFile = tempDir.resolve("old.bcor").toFile();
+        File newFile = tempDir.resolve("new.bcor").toFile();
+        final int nOld = 4;
+        List<String> oldIds = IDS.subList(0, nOld);
+        try (DenseCorrelationWriter writer = CorrelationWriter.dense(oldFile, oldIds)) {
+            for (int j = 1; j < nOld; j++) {
+                for (int i = 0; i < j; i++)
+                    writer.write(i, j, score(i, j));
+            }
+        }
+        long oldLen = oldFile.length();
+        assertThrows(IOException.class, () -> CorrelationWriter.appendDense(oldFile, oldFile, IDS.subList(nOld, IDS.size())));
+        try (DenseCorrelationWriter writer = CorrelationWriter.appendDense(oldFile, newFile, IDS.subList(nOld, IDS.size()))) {
+            assertThrows(IllegalArgumentException.class, () -> writer.write(0, 1, 0.5));
+            for (int j = nOld; j < IDS.size(); j++) {
+                for (int i = 0; i < j; i++)
+                    writer.write(i, j, score(i, j));
+            }
+        }
+        // The original store must be unchanged.
+        assertThat(oldFile.length(), equalTo(oldLen));
+        try (CorrelationReader reader = CorrelationReader.open(oldFile)) {
+            assertThat(reader.getIdCount(), equalTo(nOld));
+            assertThat(reader.getScore(1, 3), closeTo(score(1, 3), 1e-6));
+        }
+        try (CorrelationReader reader = CorrelationReader.open(newFile)) {
+            assertThat(reader.getIdCount(), equalTo(IDS.size()));
+            for (int i = 0; i < IDS.size(); i++)
+                assertThat(reader.getId(i), equalTo(IDS.get(i)));
+            for (int j = 1; j < IDS.size(); j++) {
+                for (int i = 0; i < j; i++) {
+                    double r = score(i, j);
+                    if (Double.isNaN(r))
+                        assertThat(Double.isNaN(reader.getScore(i, j)), equalTo(true));
+                    else
+                        assertThat(reader.getScore(i, j), closeTo(r, 1e-6));
+                }
+            }
+        }
+    }
+
+}
@@ -0,0 +1,74 @@
+/**
+ *
+ */
+package org.theseed.rna.corr;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+
+import java.util.Random;
+
+import org.apache.commons.math3.stat.correlation.PearsonsCorrelation;
+import org.apache.commons.math3.util.ResizableDoubleArray;
+import org.junit.jupiter.api.Test;
+
+/**
+ * @author Bruce Parrello
+ *
+ */
+class PearsonEngineTest {
+
+    @Test
+    void testEngine() {
+        // Build a set of columns with some missing values and one constant column.
+        final int nCols = 70;
+        final int nSamples = 150;
+        Random rand = new Random(1234);
+        double[][] columns = new double[nCols][nSamples];
+        for (int c = 0; c < nCols; c++) {
+            for (int k = 0; k < nSamples; k++) {
+                if (c % 3 == 0 && rand.nextDouble() < 0.2)
+                    columns[c][k] = Double.NaN;
+                else
+                    columns[c][k] = 500.0 + rand.nextGaussian() * 40.0 + (c % 4) * k;
+            }
+        }
+        for (int k = 0; k < nSamples; k++)
+            columns[1][k] = 12.5;
+        PearsonEngine engine = new PearsonEngine(columns);
+        assertThat(engine.size(), equalTo(nCols));
+        assertThat(engine.getSampleCount(), equalTo(nSamples));
+        double[][] found = new double[nCols][nCols];
+        int[] count = new int[1];
+        engine.computeAll((i, j, r) -> {
+            synchronized (found) {
+                assertThat(j, greaterThan(i));
+                found[i][j] = r;
+                count[0]++;
+            }
+        });
+        assertThat(count[0], equalTo(nCols * (nCols - 1) / 2));
+        PearsonsCorrelation computer = new PearsonsCorrelation();
+        for (int i = 0; i < nCols; i++) {
+            for (int j = i + 1; j < nCols; j++) {
+                ResizableDoubleArray arrayI = new ResizableDoubleArray(nSamples);
+                ResizableDoubleArray arrayJ = new ResizableDoubleArray(nSamples);
+                for (int k = 0; k < nSamples; k++) {
+                    if (Double.isFinite(columns[i][k]) && Double.isFinite(columns[j][k])) {
+                        arrayI.addElement(columns[i][k]);
+                        arrayJ.addElement(columns[j][k]);
+                    }
+                }
+                String label = "(" + i + "," + j + ")";
+                if (i == 1 || j == 1)
+                    assertThat(label, found[i][j], notANumber());
+                else {
+                    double expected = computer.correlation(arrayI.getElements(), arrayJ.getElements());
+                    assertThat(label, found[i][j], closeTo(expected, 1e-9));
+                    assertThat(label, engine.correlation(i, j), closeTo(expected, 1e-9));
+                }
+            }
+        }
+    }
+
+}
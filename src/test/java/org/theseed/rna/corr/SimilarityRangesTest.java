@@ -0,0 +1,71 @@
+/**
+ *
+ */
+package org.theseed.rna.corr;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * @author Bruce Parrello
+ *
+ */
+class SimilarityRangesTest {
+
+    @Test
+    void testFingerprints(@TempDir Path tempDir) throws IOException {
+        final int nFeatures = 40;
+        Random rand = new Random(8001);
+        double[][] rows = new double[7][nFeatures];
+        for (double[] row : rows) {
+            for (int f = 0; f < nFeatures; f++)
+                row[f] = (f % 9 == 4 ? Double.NaN : rand.nextGaussian() * 10.0);
+        }
+        SampleSimilarityEngine.RowSource source = (i, buffer) -> System.arraycopy(rows[i], 0, buffer, 0, nFeatures);
+        SampleSimilarityEngine.Ranges oldRanges = new SampleSimilarityEngine.Ranges(5, nFeatures, source);
+        assertThat(oldRanges.size(), equalTo(nFeatures));
+        assertThat(oldRanges.getSampleCount(), equalTo(5));
+        File rangeFile = tempDir.resolve("test.ranges").toFile();
+        oldRanges.save(rangeFile);
+        SampleSimilarityEngine.Ranges loaded = SampleSimilarityEngine.Ranges.load(rangeFile);
+        assertThat(loaded.getSampleCount(), equalTo(5));
+        assertThat(loaded.drift(oldRanges).getValue(), equalTo(0.0));
+        // Adding samples does not change the fingerprints of the old ones.
+        SampleSimilarityEngine.Ranges newRanges = new SampleSimilarityEngine.Ranges(7, nFeatures, source);
+        assertThat(loaded.countChanged(newRanges), equalTo(0));
+        // Updating the ranges keeps the old normalization with the new fingerprints.
+        SampleSimilarityEngine.Ranges updated = loaded.withSamples(newRanges);
+        updated.save(rangeFile);
+        loaded = SampleSimilarityEngine.Ranges.load(rangeFile);
+        assertThat(loaded.getSampleCount(), equalTo(7));
+        assertThat(loaded.drift(oldRanges).getValue(), equalTo(0.0));
+        assertThat(loaded.countChanged(newRanges), equalTo(0));
+        // A changed value, even one that does not move the ranges, is detected.
+        rows[2][7] = Math.nextUp(rows[2][7]);
+        rows[4][4] = 0.0;
+        newRanges = new SampleSimilarityEngine.Ranges(7, nFeatures, source);
+        assertThat(oldRanges.countChanged(newRanges), equalTo(2));
+        assertThat(loaded.countChanged(newRanges), equalTo(2));
+        // A range file without fingerprints has an unknown sample count.
+        File oldFile = tempDir.resolve("old.ranges").toFile();
+        try (DataOutputStream outStream = new DataOutputStream(new FileOutputStream(oldFile))) {
+            outStream.writeInt(1);
+            outStream.writeDouble(0.0);
+            outStream.writeDouble(1.0);
+        }
+        loaded = SampleSimilarityEngine.Ranges.load(oldFile);
+        assertThat(loaded.size(), equalTo(1));
+        assertThat(loaded.getSampleCount(), equalTo(-1));
+    }
+
+}
@@ -0,0 +1,260 @@
+/**
+ *
+ */
+package org.theseed.rna.data;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * @author Bruce Parrello
+ *
+ */
+class FeatureDataCodecTest {
+
+    /**
+     * @return a random expression-level array with some missing values
+     *
+     * @param rand		randomizer to use
+     * @param n			number of features
+     * @param missing	fraction of values that should be missing
+     */
+    private static double[] randomLevels(Random rand, int n, double missing) {
+        double[] retVal = new double[n];
+        for (int i = 0; i < n; i++) {
+            if (rand.nextDouble() < missing)
+                retVal[i] = Double.NaN;
+            else
+                retVal[i] = Math.exp(rand.nextGaussian() * 3.0 + 4.0);
+        }
+        return retVal;
+    }
+
+    /**
+     * Verify the structure of an encoded array.
+     *
+     * @param coded		encoded array
+     * @param n			expected number of features
+     * @param type		expected encoding
+     *
+     * @return the parsed header
+     */
+    private static FeatureDataCodec.Header checkStructure(double[] coded, int n, FeatureDataCodec.Encoding type) {
+        assertThat(FeatureDataCodec.isEncoded(coded), equalTo(true));
+        assertThat(coded[0], equalTo(FeatureDataCodec.MARKER));
+        assertThat(FeatureDataCodec.getEncoding(coded), equalTo(type));
+        final int len = (int) coded[1];
+        // Every packed word must be a non-negative integer of at most 52 bits, and the words must hold
+        // exactly the stream length.
+        for (int w = 2; w < coded.length; w++) {
+            double v = coded[w];
+            assertThat(v, equalTo(Math.rint(v)));
+            assertThat(v >= 0.0 && v < 0x1p52, equalTo(true));
+        }
+        assertThat(coded.length - 2, equalTo((len * 8 + 51) / 52));
+        // Parse the header and check the chunk table.
+        ByteBuffer buffer = FeatureDataCodec.unpack(coded);
+        FeatureDataCodec.Header header = new FeatureDataCodec.Header(buffer);
+        assertThat(header.getType(), equalTo(type));
+        assertThat(header.getFeatureCount(), equalTo(n));
+        final int chunkFeatures = header.getChunkFeatures();
+        assertThat(header.nChunks(), equalTo((n + chunkFeatures - 1) / chunkFeatures));
+        int tableEnd = (type == FeatureDataCodec.Encoding.LOG16 ? 26 : 10) + 4 * header.nChunks();
+        int pos = tableEnd;
+        for (int c = 0; c < header.nChunks(); c++) {
+            assertThat(header.chunkOffset(c), equalTo(pos));
+            pos += header.chunkLength(c);
+            if (! header.isDeflated(c)) {
+                // An undeflated chunk is the bitmap plus the present values.
+                int f0 = c * chunkFeatures;
+                int f1 = Math.min(n, f0 + chunkFeatures);
+                assertThat(header.chunkLength(c), lessThanOrEqualTo(header.maxChunkLength()));
+                assertThat(header.chunkLength(c), greaterThanOrEqualTo((f1 - f0 + 7) / 8));
+            }
+        }
+        assertThat(pos, equalTo(len));
+        // Any range of the stream must unpack to the same bytes as the whole stream.
+        byte[] bytes = new byte[len + 8];
+        Random rand = new Random(len);
+        for (int k = 0; k < 50; k++) {
+            int from = rand.nextInt(len);
+            int to = from + rand.nextInt(len - from + 1);
+            Arrays.fill(bytes, (byte) 0x5A);
+            FeatureDataCodec.unpackRange(coded, from, to, bytes);
+            for (int i = from; i < to; i++)
+                assertThat(buffer.get(i), equalTo(bytes[i]));
+            if (from > 0)
+                assertThat(bytes[from - 1], equalTo((byte) 0x5A));
+            if (to < len)
+                assertThat(bytes[to], equalTo((byte) 0x5A));
+        }
+        return header;
+    }
+
+    @Test
+    void testFloat32() {
+        Random rand = new Random(1001);
+        // Use a partial last chunk.
+        final int n = 2500;
+        double[] levels = randomLevels(rand, n, 0.3);
+        levels[0] = 0.0;
+        levels[1] = -2.5;
+        levels[n - 1] = Double.NaN;
+        double[] saved = levels.clone();
+        double[] coded = FeatureDataCodec.encode(levels, FeatureDataCodec.Encoding.FLOAT32);
+        assertThat(Arrays.equals(levels, saved), equalTo(true));
+        assertThat(coded.length, lessThan(n));
+        checkStructure(coded, n, FeatureDataCodec.Encoding.FLOAT32);
+        double[] decoded = FeatureDataCodec.decode(coded);
+        assertThat(decoded.length, equalTo(n));
+        for (int i = 0; i < n; i++) {
+            if (Double.isNaN(levels[i]))
+                assertThat(Double.isNaN(decoded[i]), equalTo(true));
+            else
+                assertThat(decoded[i], equalTo((double) (float) levels[i]));
+        }
+    }
+
+    @Test
+    void testDeflate() {
+        Random rand = new Random(1002);
+        final int n = 3000;
+        double[] levels = randomLevels(rand, n, 0.1);
+        // The first chunk is highly repetitive, so it must be deflated.
+        for (int i = 0; i < 1024; i++)
+            levels[i] = (i % 3 == 0 ? Double.NaN : 100.0);
+        double[] coded = FeatureDataCodec.encode(levels, FeatureDataCodec.Encoding.FLOAT32);
+        FeatureDataCodec.Header header = checkStructure(coded, n, FeatureDataCodec.Encoding.FLOAT32);
+        assertThat(header.getChunkFeatures(), equalTo(1024));
+        assertThat(header.isDeflated(0), equalTo(true));
+        assertThat(header.chunkLength(0), lessThan(128 + 683 * 4));
+        double[] decoded = FeatureDataCodec.decode(coded);
+        for (int i = 0; i < n; i++) {
+            if (Double.isNaN(levels[i]))
+                assertThat(Double.isNaN(decoded[i]), equalTo(true));
+            else
+                assertThat(decoded[i], equalTo((double) (float) levels[i]));
+        }
+        // A very short chunk cannot be made smaller, so it must be stored as is.
+        double[] tiny = new double[] { 1.5, Double.NaN, 2.75, 1234.125 };
+        coded = FeatureDataCodec.encode(tiny, FeatureDataCodec.Encoding.FLOAT32);
+        header = checkStructure(coded, tiny.length, FeatureDataCodec.Encoding.FLOAT32);
+        assertThat(header.isDeflated(0), equalTo(false));
+        assertThat(header.chunkLength(0), equalTo(1 + 3 * 4));
+        decoded = FeatureDataCodec.decode(coded);
+        assertThat(decoded[0], equalTo(1.5));
+        assertThat(Double.isNaN(decoded[1]), equalTo(true));
+        assertThat(decoded[3], equalTo(1234.125));
+        // An array with no values at all must also survive.
+        double[] empty = new double[1500];
+        Arrays.fill(empty, Double.NaN);
+        coded = FeatureDataCodec.encode(empty, FeatureDataCodec.Encoding.LOG16);
+        checkStructure(coded, empty.length, FeatureDataCodec.Encoding.LOG16);
+        decoded = FeatureDataCodec.decode(coded);
+        assertThat(decoded.length, equalTo(empty.length));
+        for (double v : decoded)
+            assertThat(Double.isNaN(v), equalTo(true));
+    }
+
+    @Test
+    void testLog16() {
+        Random rand = new Random(1003);
+        final int n = 4518;
+        double[] levels = randomLevels(rand, n, 0.2);
+        double lo = Double.POSITIVE_INFINITY;
+        double hi = Double.NEGATIVE_INFINITY;
+        for (double v : levels) {
+            if (! Double.isNaN(v)) {
+                lo = Math.min(lo, Math.log(v));
+                hi = Math.max(hi, Math.log(v));
+            }
+        }
+        double[] coded = FeatureDataCodec.encode(levels, FeatureDataCodec.Encoding.LOG16);
+        FeatureDataCodec.Header header = checkStructure(coded, n, FeatureDataCodec.Encoding.LOG16);
+        double step = header.getStep();
+        assertThat(step, closeTo((hi - lo) / 0xFFFF, 1e-12));
+        double[] decoded = FeatureDataCodec.decode(coded);
+        for (int i = 0; i < n; i++) {
+            if (Double.isNaN(levels[i]))
+                assertThat(Double.isNaN(decoded[i]), equalTo(true));
+            else {
+                // The error in log space is at most half a quantization step.
+                double err = Math.abs(Math.log(decoded[i]) - Math.log(levels[i]));
+                assertThat(err, lessThanOrEqualTo(step / 2 + 1e-9));
+            }
+        }
+        // A constant array has a zero step and must decode exactly (up to the exp/log round trip).
+        double[] constant = new double[100];
+        Arrays.fill(constant, 37.5);
+        decoded = FeatureDataCodec.decode(FeatureDataCodec.encode(constant, FeatureDataCodec.Encoding.LOG16));
+        for (double v : decoded)
+            assertThat(v, closeTo(37.5, 1e-9));
+        // A non-positive value forces FLOAT32, and a value too big for a float forces LEGACY.  LOG16 can
+        // handle the big value.
+        double[] zeroes = constant.clone();
+        zeroes[5] = 0.0;
+        coded = FeatureDataCodec.encode(zeroes, FeatureDataCodec.Encoding.LOG16);
+        assertThat(FeatureDataCodec.getEncoding(coded), equalTo(FeatureDataCodec.Encoding.FLOAT32));
+        assertThat(FeatureDataCodec.decode(coded)[5], equalTo(0.0));
+        double[] huge = constant.clone();
+        huge[7] = 1e300;
+        coded = FeatureDataCodec.encode(huge, FeatureDataCodec.Encoding.LOG16);
+        assertThat(FeatureDataCodec.getEncoding(coded), equalTo(FeatureDataCodec.Encoding.LOG16));
+        huge[8] = -1.0;
+        coded = FeatureDataCodec.encode(huge, FeatureDataCodec.Encoding.LOG16);
+        assertThat(coded, sameInstance(huge));
+        assertThat(FeatureDataCodec.getEncoding(coded), equalTo(FeatureDataCodec.Encoding.LEGACY));
+    }
+
+    @Test
+    void testLegacy() {
+        Random rand = new Random(1004);
+        double[] raw = randomLevels(rand, 200, 0.25);
+        assertThat(FeatureDataCodec.isEncoded(raw), equalTo(false));
+        assertThat(FeatureDataCodec.getEncoding(raw), equalTo(FeatureDataCodec.Encoding.LEGACY));
+        assertThat(FeatureDataCodec.decode(raw), sameInstance(raw));
+        assertThat(FeatureDataCodec.encode(raw, FeatureDataCodec.Encoding.LEGACY), sameInstance(raw));
+        double[] empty = new double[0];
+        assertThat(FeatureDataCodec.isEncoded(empty), equalTo(false));
+        assertThat(FeatureDataCodec.decode(empty), sameInstance(empty));
+        double[] single = new double[] { FeatureDataCodec.MARKER };
+        assertThat(FeatureDataCodec.isEncoded(single), equalTo(false));
+    }
+
+    @Test
+    void testProjection() {
+        Random rand = new Random(1005);
+        final int n = 4518;
+        int[] indices = new int[] { 4517, 3, 2048, 1023, 1024, 3, 5000, 0, 4100, 2047 };
+        FeatureDataCodec.Projection projection = new FeatureDataCodec.Projection(indices);
+        assertThat(projection.size(), equalTo(indices.length));
+        double[] out = new double[indices.length];
+        // The same projection must work across encodings and array sizes.
+        for (FeatureDataCodec.Encoding type : FeatureDataCodec.Encoding.values()) {
+            for (int size : new int[] { n, 1500 }) {
+                double[] levels = randomLevels(rand, size, 0.3);
+                double[] coded = FeatureDataCodec.encode(levels, type);
+                assertThat(FeatureDataCodec.getEncoding(coded), equalTo(type));
+                double[] full = FeatureDataCodec.decode(coded);
+                double[] found = projection.project(coded, out);
+                assertThat(found, sameInstance(out));
+                for (int k = 0; k < indices.length; k++) {
+                    int idx = indices[k];
+                    String label = type + "/" + size + "[" + idx + "]";
+                    if (idx >= size)
+                        assertThat(label, Double.isNaN(found[k]), equalTo(true));
+                    else
+                        assertThat(label, Double.doubleToLongBits(found[k]),
+                                equalTo(Double.doubleToLongBits(full[idx])));
+                }
+            }
+        }
+    }
+
+}
@@ -0,0 +1,109 @@
+/**
+ *
+ */
+package org.theseed.rna.data;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * @author Bruce Parrello
+ *
+ */
+class RnaFeatureLevelComputerTest implements RnaFeatureLevelComputer.IParms {
+
+    /** baselines to test, including degenerate ones */
+    private static final double[] BASELINES = new double[] { 61.54, 100.0, 1.0, 0.0, 1e-310, 3e307, Double.NaN,
+            Double.POSITIVE_INFINITY };
+
+    /**
+     * @return a list of interesting levels for a baseline:  the triage thresholds, their neighbors, and the
+     * 		   special values
+     *
+     * @param baseline	baseline of interest
+     */
+    private static List<Double> levelsFor(double baseline) {
+        List<Double> retVal = new ArrayList<Double>();
+        for (double t : new double[] { baseline * 2.0, baseline / 2.0, baseline }) {
+            retVal.add(t);
+            retVal.add(Math.nextUp(t));
+            retVal.add(Math.nextDown(t));
+        }
+        retVal.add(Double.NaN);
+        retVal.add(Double.POSITIVE_INFINITY);
+        retVal.add(Double.NEGATIVE_INFINITY);
+        retVal.add(0.0);
+        retVal.add(-0.0);
+        retVal.add(-5.0);
+        retVal.add(Double.MAX_VALUE);
+        retVal.add(Double.MIN_VALUE);
+        return retVal;
+    }
+
+    @Test
+    void testRowMatchesSingle() {
+        Random rand = new Random(4001);
+        // Build a row with every combination of baseline and interesting level, plus some random values.
+        List<RnaFeature> feats = new ArrayList<RnaFeature>();
+        List<Double> levelList = new ArrayList<Double>();
+        for (double baseline : BASELINES) {
+            for (double level : levelsFor(baseline)) {
+                feats.add(new RnaFeature("fig|511145.183.peg." + (feats.size() + 1), null, baseline, feats.size()));
+                levelList.add(level);
+            }
+        }
+        for (int i = 0; i < 500; i++) {
+            double baseline = Math.exp(rand.nextGaussian() * 2.0 + 4.0);
+            feats.add(new RnaFeature("fig|511145.183.peg." + (feats.size() + 1), null, baseline, feats.size()));
+            levelList.add(baseline * Math.exp(rand.nextGaussian()));
+        }
+        final int n = feats.size();
+        double[] levels = levelList.stream().mapToDouble(x -> x).toArray();
+        double[] baselines = RnaFeatureLevelComputer.getBaselines(feats);
+        assertThat(baselines.length, equalTo(n));
+        for (int i = 0; i < n; i++) {
+            long expected = Double.doubleToLongBits(feats.get(i).getBaseLine());
+            assertThat(Double.doubleToLongBits(baselines[i]), equalTo(expected));
+        }
+        for (RnaFeatureLevelComputer.Type type : RnaFeatureLevelComputer.Type.values()) {
+            RnaFeatureLevelComputer computer = type.create(this);
+            double[] out = new double[n];
+            computer.computeRow(levels, baselines, out);
+            // The row method must also work in place.
+            double[] inPlace = levels.clone();
+            computer.computeRow(inPlace, baselines, inPlace);
+            for (int i = 0; i < n; i++) {
+                double expected = computer.compute(feats.get(i), levels[i]);
+                String label = type + " level " + levels[i] + " baseline " + baselines[i];
+                assertThat(label, Double.doubleToLongBits(out[i]), equalTo(Double.doubleToLongBits(expected)));
+                assertThat(label, Double.doubleToLongBits(inPlace[i]), equalTo(Double.doubleToLongBits(expected)));
+            }
+        }
+    }
+
+    @Test
+    void testThresholds() {
+        RnaFeatureLevelComputer computer = RnaFeatureLevelComputer.Type.TRIAGE.create(this);
+        double[] baselines = new double[] { 100.0, 100.0, 100.0, 100.0, 100.0, 100.0, 100.0, 100.0 };
+        double[] levels = new double[] { 200.0, Math.nextDown(200.0), 50.0, Math.nextUp(50.0), Double.NaN,
+                Double.POSITIVE_INFINITY, Double.NEGATIVE_INFINITY, 100.0 };
+        double[] expected = new double[] { 1.0, 0.0, -1.0, 0.0, 0.0, 1.0, -1.0, 0.0 };
+        double[] out = new double[levels.length];
+        computer.computeRow(levels, baselines, out);
+        for (int i = 0; i < levels.length; i++)
+            assertThat("level " + levels[i], out[i], equalTo(expected[i]));
+        computer = RnaFeatureLevelComputer.Type.IDENTITY.create(this);
+        computer.computeRow(levels, baselines, out);
+        for (int i = 0; i < levels.length; i++) {
+            double e = (Double.isFinite(levels[i]) ? levels[i] : 100.0);
+            assertThat("level " + levels[i], out[i], equalTo(e));
+        }
+    }
+
+}
@@ -0,0 +1,129 @@
+/**
+ *
+ */
+package org.theseed.rna.data;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import org.apache.commons.math3.stat.descriptive.DescriptiveStatistics;
+import org.junit.jupiter.api.Test;
+
+/**
+ * @author Bruce Parrello
+ *
+ */
+class StreamingMomentsTest {
+
+    /**
+     * Verify that a statistic matches the reference value, allowing for rounding relative to a scale.
+     *
+     * @param label		label for the statistic
+     * @param found		value computed by the accumulator
+     * @param expected	value computed by the reference
+     * @param scale		magnitude of the rounding error to allow for
+     */
+    private static void checkValue(String label, double found, double expected, double scale) {
+        if (Double.isNaN(expected))
+            assertThat(label, Double.isNaN(found), equalTo(true));
+        else
+            assertThat(label, found, closeTo(expected, 1e-9 * scale));
+    }
+
+    /**
+     * Compare the accumulator results to DescriptiveStatistics for the finite values in an array.
+     *
+     * @param label		label for the test case
+     * @param values	array of values to test
+     */
+    private static void checkValues(String label, double[] values) {
+        StreamingMoments moments = new StreamingMoments();
+        moments.addFinite(values, values.length);
+        DescriptiveStatistics stats = new DescriptiveStatistics();
+        Arrays.stream(values).filter(v -> Double.isFinite(v)).forEach(v -> stats.addValue(v));
+        assertThat(label, moments.getN(), equalTo(stats.getN()));
+        final double sdev = stats.getStandardDeviation();
+        checkValue(label + " mean", moments.getMean(), stats.getMean(), Math.abs(stats.getMean()) + sdev);
+        checkValue(label + " variance", moments.getVariance(), stats.getVariance(), stats.getVariance());
+        checkValue(label + " sdev", moments.getStandardDeviation(), sdev, sdev);
+        checkValue(label + " skewness", moments.getSkewness(), stats.getSkewness(),
+                Math.max(1.0, Math.abs(stats.getSkewness())));
+        checkValue(label + " kurtosis", moments.getKurtosis(), stats.getKurtosis(),
+                Math.max(1.0, Math.abs(stats.getKurtosis())));
+    }
+
+    @Test
+    void testRandom() {
+        Random rand = new Random(2001);
+        for (int n : new int[] { 0, 1, 2, 3, 4, 5, 10, 100, 5000 }) {
+            double[] values = new double[n];
+            for (int i = 0; i < n; i++)
+                values[i] = Math.exp(rand.nextGaussian() * 2.0 + 3.0);
+            checkValues("lognormal/" + n, values);
+            for (int i = 0; i < n; i++)
+                values[i] = rand.nextGaussian() * 10.0 - 4.0;
+            checkValues("normal/" + n, values);
+        }
+    }
+
+    @Test
+    void testNonFinite() {
+        Random rand = new Random(2002);
+        double[] values = new double[1000];
+        for (int i = 0; i < values.length; i++) {
+            if (i % 7 == 0)
+                values[i] = Double.NaN;
+            else if (i % 7 == 3)
+                values[i] = (i % 2 == 0 ? Double.POSITIVE_INFINITY : Double.NEGATIVE_INFINITY);
+            else
+                values[i] = rand.nextGaussian() * 5.0 + 20.0;
+        }
+        checkValues("mixed", values);
+        // Only the requested prefix of the array is used.
+        StreamingMoments moments = new StreamingMoments();
+        moments.addFinite(values, 10);
+        assertThat(moments.getN(), equalTo(7L));
+        // An array with no finite values produces no statistics.
+        double[] missing = new double[] { Double.NaN, Double.POSITIVE_INFINITY, Double.NaN };
+        checkValues("missing", missing);
+        moments.clear();
+        moments.addFinite(missing, missing.length);
+        assertThat(moments.getN(), equalTo(0L));
+        assertThat(Double.isNaN(moments.getMean()), equalTo(true));
+        assertThat(Double.isNaN(moments.getStandardDeviation()), equalTo(true));
+    }
+
+    @Test
+    void testExtremes() {
+        Random rand = new Random(2003);
+        final int n = 2000;
+        double[] values = new double[n];
+        // A constant array has zero variance, skewness, and kurtosis.
+        Arrays.fill(values, 123.456);
+        checkValues("constant", values);
+        StreamingMoments moments = new StreamingMoments();
+        moments.addFinite(values, n);
+        assertThat(moments.getSkewness(), equalTo(0.0));
+        assertThat(moments.getKurtosis(), equalTo(0.0));
+        // A small spread around a large mean is where a naive sum-of-powers computation fails.
+        for (int i = 0; i < n; i++)
+            values[i] = 1e6 + rand.nextGaussian();
+        checkValues("offset", values);
+        // Very small and very large magnitudes.
+        for (int i = 0; i < n; i++)
+            values[i] = 1e-9 * rand.nextGaussian();
+        checkValues("tiny", values);
+        for (int i = 0; i < n; i++)
+            values[i] = 1e60 * Math.exp(rand.nextGaussian());
+        checkValues("huge", values);
+        // A single outlier dominates the higher moments.
+        for (int i = 0; i < n; i++)
+            values[i] = rand.nextGaussian();
+        values[n / 2] = 1e4;
+        checkValues("outlier", values);
+    }
+
+}
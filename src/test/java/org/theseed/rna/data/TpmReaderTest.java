@@ -0,0 +1,121 @@
+/**
+ *
+ */
+package org.theseed.rna.data;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.sql.SQLException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.junit.jupiter.api.Test;
+import org.theseed.io.TabbedLineReader;
+import org.theseed.java.erdb.DbConnection;
+import org.theseed.java.erdb.sqlite.SqliteDbConnection;
+
+/**
+ * @author Bruce Parrello
+ *
+ */
+class TpmReaderTest {
+
+    /**
+     * Read a TPM file the old way, using a tabbed line reader and a hash map.
+     *
+     * @param tpmFile	TPM file to read
+     * @param fids		feature index
+     * @param levels	array to receive the expression levels
+     *
+     * @return the number of distinct features expressed
+     *
+     * @throws IOException
+     */
+    private static int readOld(File tpmFile, List<String> fids, double[] levels) throws IOException {
+        Map<String, Integer> fidMap = new HashMap<String, Integer>(fids.size() * 4 / 3 + 1);
+        for (int i = 0; i < fids.size(); i++)
+            fidMap.put(fids.get(i), i);
+        Arrays.fill(levels, Double.NaN);
+        int retVal = 0;
+        try (TabbedLineReader inStream = new TabbedLineReader(tpmFile)) {
+            int fidCol = inStream.findField("Gene_id");
+            Set<String> others = new HashSet<String>();
+            for (TabbedLineReader.Line line : inStream) {
+                double tpm = line.getDouble(1);
+                if (tpm > 0.0) {
+                    String fid = line.get(fidCol);
+                    Integer idx = fidMap.get(fid);
+                    if (idx == null) {
+                        if (others.add(fid))
+                            retVal++;
+                    } else {
+                        if (Double.isNaN(levels[idx]))
+                            retVal++;
+                        levels[idx] = tpm;
+                    }
+                }
+            }
+        }
+        return retVal;
+    }
+
+    @Test
+    void testTpmFile() throws IOException, SQLException {
+        File dbFile = new File("data", "rnaseqTest.db");
+        File tpmFile = new File("data", "test.tpm.tbl");
+        List<String> fids;
+        try (DbConnection db = new SqliteDbConnection(dbFile)) {
+            fids = FeatureMetadata.get(db, "511145.183").getFids();
+        }
+        final int n = fids.size();
+        double[] expected = new double[n];
+        int expectedCount = readOld(tpmFile, fids, expected);
+        TpmReader reader = new TpmReader(new FeatureIdHash(fids));
+        // Pre-fill the output array to make sure every position is set.
+        double[] levels = new double[n];
+        Arrays.fill(levels, 42.0);
+        int count = reader.read(tpmFile, levels);
+        assertThat(count, equalTo(expectedCount));
+        assertThat(reader.getFeatCount(), equalTo(expectedCount));
+        // The test file contains two distinct unknown features with positive levels, one of them twice.
+        assertThat(reader.getUnknownCount(), equalTo(2));
+        for (int i = 0; i < n; i++) {
+            // The values must be bit-for-bit identical.
+            assertThat(fids.get(i), Double.doubleToLongBits(levels[i]),
+                    equalTo(Double.doubleToLongBits(expected[i])));
+        }
+        // Reading the file again with the same reader must give the same result.
+        count = reader.read(tpmFile, levels);
+        assertThat(count, equalTo(expectedCount));
+        assertThat(reader.getUnknownCount(), equalTo(2));
+    }
+
+    @Test
+    void testNumbers() throws IOException {
+        List<String> fids = List.of("fig|1.1.peg.1", "fig|1.1.peg.2", "fig|1.1.peg.3");
+        TpmReader reader = new TpmReader(new FeatureIdHash(fids));
+        String[] numbers = new String[] { "1e-5", "0.1", "3.14159265358979323846", "123456789012345678901",
+                "7.", ".5", "1E3", "4.35e+02", "2.2250738585072014E-308", "1.7976931348623157e308",
+                "12.000000000000000001", "0.30000000000000004", "9007199254740993", "5e22", "5e23" };
+        double[] levels = new double[fids.size()];
+        for (String number : numbers) {
+            // Use carriage returns and the feature ID in a later column to exercise the line handling.
+            String data = "TPM\tvalue\tGene_id\r\nx\t" + number + "\tfig|1.1.peg.2\r\n";
+            reader.read(new ByteArrayInputStream(data.getBytes(StandardCharsets.US_ASCII)), levels, number);
+            assertThat(number, Double.doubleToLongBits(levels[1]),
+                    equalTo(Double.doubleToLongBits(Double.parseDouble(number))));
+            assertThat(number, Double.isNaN(levels[0]), equalTo(true));
+            assertThat(number, reader.getFeatCount(), equalTo(1));
+        }
+    }
+
+}
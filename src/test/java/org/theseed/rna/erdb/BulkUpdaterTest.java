@@ -0,0 +1,137 @@
+/**
+ *
+ */
+package org.theseed.rna.erdb;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.SQLException;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.theseed.java.erdb.DbConnection;
+import org.theseed.java.erdb.DbRecord;
+import org.theseed.java.erdb.sqlite.SqliteDbConnection;
+
+/**
+ * These tests update a copy of the test database, so the checked-in database is never changed.
+ *
+ * @author Bruce Parrello
+ *
+ */
+class BulkUpdaterTest {
+
+    /**
+     * @return a copy of the test database in a temporary directory
+     *
+     * @param tempDir	temporary directory for the copy
+     *
+     * @throws IOException
+     */
+    private static File copyDb(Path tempDir) throws IOException {
+        File retVal = tempDir.resolve("bulkTest.db").toFile();
+        Files.copy(new File("data", "rnaseqTest.db").toPath(), retVal.toPath());
+        return retVal;
+    }
+
+    /**
+     * @return the feature ID for a peg number in the test genome
+     *
+     * @param peg	peg number
+     */
+    private static String fid(int peg) {
+        return "fig|511145.183.peg." + peg;
+    }
+
+    /**
+     * @return the feature record for a peg number in the test genome
+     *
+     * @param db	database connection
+     * @param peg	peg number
+     *
+     * @throws SQLException
+     */
+    private static DbRecord feature(DbConnection db, int peg) throws SQLException {
+        DbRecord retVal = db.getRecord("Feature", fid(peg));
+        assertThat(fid(peg), retVal, not(nullValue()));
+        return retVal;
+    }
+
+    @Test
+    void testNumbers(@TempDir Path tempDir) throws IOException, SQLException {
+        File dbFile = copyDb(tempDir);
+        try (DbConnection db = new SqliteDbConnection(dbFile)) {
+            double oldBase = feature(db, 50).getDouble("Feature.baseline");
+            try (var xact = db.new Transaction()) {
+                // Use a batch size that leaves a partial batch at the end.
+                try (BulkUpdater updater = new BulkUpdater(db, "Feature", "fig_id", "baseline",
+                        BulkUpdater.ValueType.DOUBLE, 7)) {
+                    for (int peg = 1; peg <= 20; peg++) {
+                        // Peg 4 is staged twice in the same batch, and the first value must be replaced.
+                        if (peg == 4)
+                            updater.set(fid(peg), -1.0);
+                        updater.set(fid(peg), peg * 1.5);
+                    }
+                    // A key with no record is staged but does not match anything.
+                    updater.set("fig|511145.183.peg.99999", 1.0);
+                    assertThat(updater.getStaged(), equalTo(22));
+                    assertThat(updater.getInserts(), equalTo(3));
+                    assertThrows(IllegalStateException.class, () -> updater.set(fid(21), "x"));
+                    assertThat(updater.apply(), equalTo(20));
+                    assertThat(updater.getInserts(), equalTo(0));
+                    assertThat(updater.getStageTime(), equalTo(0L));
+                    assertThat(updater.getStaged(), equalTo(0));
+                    // The updater can be reused after an apply.  Here peg 22 is staged twice in different batches.
+                    updater.set(fid(22), -1.0);
+                    for (int i = 0; i < 7; i++)
+                        updater.set(fid(21), 1234.5 + i);
+                    updater.set(fid(22), 2222.5);
+                    assertThat(updater.getInserts(), equalTo(1));
+                    assertThat(updater.apply(), equalTo(2));
+                }
+                xact.commit();
+            }
+            for (int peg = 1; peg <= 20; peg++)
+                assertThat(fid(peg), feature(db, peg).getDouble("Feature.baseline"), equalTo(peg * 1.5));
+            assertThat(feature(db, 21).getDouble("Feature.baseline"), equalTo(1240.5));
+            assertThat(feature(db, 22).getDouble("Feature.baseline"), equalTo(2222.5));
+            assertThat(feature(db, 50).getDouble("Feature.baseline"), equalTo(oldBase));
+        }
+    }
+
+    @Test
+    void testStrings(@TempDir Path tempDir) throws IOException, SQLException {
+        File dbFile = copyDb(tempDir);
+        try (DbConnection db = new SqliteDbConnection(dbFile)) {
+            String oldAlias = feature(db, 51).getString("Feature.alias");
+            try (var xact = db.new Transaction()) {
+                // Here the last batch is exactly full.
+                try (BulkUpdater updater = new BulkUpdater(db, "Feature", "fig_id", "alias",
+                        BulkUpdater.ValueType.STRING, 5)) {
+                    for (int peg = 1; peg <= 10; peg++)
+                        updater.set(fid(peg), (peg % 3 == 0 ? null : "alias" + peg));
+                    assertThrows(IllegalStateException.class, () -> updater.set(fid(11), 1.0));
+                    assertThat(updater.getInserts(), equalTo(2));
+                    assertThat(updater.apply(), equalTo(10));
+                    assertThat(updater.getInserts(), equalTo(0));
+                }
+                xact.commit();
+            }
+            for (int peg = 1; peg <= 10; peg++) {
+                DbRecord record = feature(db, peg);
+                if (peg % 3 == 0)
+                    assertThat(fid(peg), record.isNull("Feature.alias"), equalTo(true));
+                else
+                    assertThat(fid(peg), record.getString("Feature.alias"), equalTo("alias" + peg));
+            }
+            assertThat(feature(db, 51).getString("Feature.alias"), equalTo(oldAlias));
+        }
+    }
+
+}
@@ -0,0 +1,108 @@
+/**
+ *
+ */
+package org.theseed.rna.erdb;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.FloatBuffer;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * @author Bruce Parrello
+ *
+ */
+class TensorXMatrixTest {
+
+    @Test
+    void testRoundTrip(@TempDir Path tempDir) throws IOException {
+        File dataFile = tempDir.resolve("xmatrix.xmt").toFile();
+        List<String> cols = Arrays.asList("thrA", "thrB", "yaaX", "g\u00e8ne", "col with spaces");
+        final int nRows = 300;
+        Random rand = new Random(3001);
+        double[][] values = new double[nRows][cols.size()];
+        String[] labels = new String[nRows];
+        try (TensorXMatrixWriter writer = new TensorXMatrixWriter(dataFile)) {
+            writer.setHeaders("sample_id", cols, "condition");
+            for (int r = 0; r < nRows; r++) {
+                for (int c = 0; c < cols.size(); c++)
+                    values[r][c] = rand.nextGaussian() * 100.0;
+                // Include missing values, infinities, and a value that only fits approximately in a float.
+                final int k = r % cols.size();
+                if (r % 3 == 0)
+                    values[r][k] = Double.NaN;
+                else if (r % 3 == 1)
+                    values[r][k] = Double.NEGATIVE_INFINITY;
+                else
+                    values[r][k] = 1.0 / 3.0;
+                labels[r] = (r % 4 == 0 ? null : "label " + (r % 7));
+                writer.processRow("SRR" + r, values[r], labels[r]);
+            }
+        }
+        TensorXMatrixReader reader = new TensorXMatrixReader(dataFile);
+        assertThat(reader.getRowCount(), equalTo(nRows));
+        assertThat(reader.getColCount(), equalTo(cols.size()));
+        assertThat(reader.getColNames(), contains(cols.toArray()));
+        assertThat(reader.getIdColName(), equalTo("sample_id"));
+        assertThat(reader.getOutColName(), equalTo("condition"));
+        float[] buf = new float[cols.size()];
+        FloatBuffer data = reader.getData();
+        assertThat(data.remaining(), equalTo(nRows * cols.size()));
+        for (int r = 0; r < nRows; r++) {
+            assertThat(reader.getSampleId(r), equalTo("SRR" + r));
+            assertThat(reader.getLabel(r), equalTo(labels[r] == null ? "" : labels[r]));
+            reader.getRow(r, buf);
+            for (int c = 0; c < cols.size(); c++) {
+                float expected = (float) values[r][c];
+                String label = "[" + r + "," + c + "]";
+                assertThat(label, Float.floatToIntBits(reader.get(r, c)), equalTo(Float.floatToIntBits(expected)));
+                assertThat(label, Float.floatToIntBits(buf[c]), equalTo(Float.floatToIntBits(expected)));
+                assertThat(label, Float.floatToIntBits(data.get(r * cols.size() + c)),
+                        equalTo(Float.floatToIntBits(expected)));
+            }
+        }
+        // An empty matrix must also be readable.
+        File emptyFile = tempDir.resolve("empty.xmt").toFile();
+        try (TensorXMatrixWriter writer = new TensorXMatrixWriter(emptyFile)) {
+            writer.setHeaders("sample_id", cols, "condition");
+        }
+        reader = new TensorXMatrixReader(emptyFile);
+        assertThat(reader.getRowCount(), equalTo(0));
+        assertThat(reader.getColCount(), equalTo(cols.size()));
+    }
+
+    @Test
+    void testBadNames(@TempDir Path tempDir) throws IOException {
+        File dataFile = tempDir.resolve("bad.xmt").toFile();
+        List<String> cols = Arrays.asList("a", "b");
+        double[] row = new double[] { 1.0, 2.0 };
+        try (TensorXMatrixWriter writer = new TensorXMatrixWriter(dataFile)) {
+            assertThrows(IllegalArgumentException.class,
+                    () -> writer.setHeaders("sample_id", Arrays.asList("a", "b\nc"), "condition"));
+            assertThrows(IllegalArgumentException.class, () -> writer.setHeaders("sample\tid", cols, "condition"));
+            assertThrows(IllegalArgumentException.class, () -> writer.setHeaders("sample_id", cols, "cond\r"));
+            // A tab is allowed in a column name, since the column sidecar has one name per line.
+            writer.setHeaders("sample_id", Arrays.asList("a", "b\tc"), "condition");
+            assertThrows(IllegalArgumentException.class, () -> writer.processRow("SRR\t1", row, "x"));
+            assertThrows(IllegalArgumentException.class, () -> writer.processRow("SRR1", row, "x\ny"));
+            assertThrows(IllegalArgumentException.class, () -> writer.processRow("SRR1", row, "x\ty"));
+            assertThrows(IllegalArgumentException.class, () -> writer.processRow("SRR1", new double[1], "x"));
+            writer.processRow("SRR1", row, "x y");
+        }
+        TensorXMatrixReader reader = new TensorXMatrixReader(dataFile);
+        assertThat(reader.getRowCount(), equalTo(1));
+        assertThat(reader.getColNames(), contains("a", "b\tc"));
+        assertThat(reader.getLabel(0), equalTo("x y"));
+    }
+
+}
@@ -0,0 +1,199 @@
+/**
+ *
+ */
+package org.theseed.rna.erdb;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * @author Bruce Parrello
+ *
+ */
+class XMatrixShardsTest {
+
+    /** dummy output file for the shards */
+    private static final File OUT_FILE = new File("xmatrix.tbl");
+
+    /**
+     * This sink remembers the sample IDs written to it.  It can also be told to fail after a certain number
+     * of rows.
+     */
+    private static class TestSink implements XMatrixShards.Sink {
+
+        /** sample IDs written */
+        private final List<String> samples;
+        /** number of rows to accept before failing (-1 to never fail) */
+        private final int failAt;
+        /** error to throw */
+        private final Throwable failure;
+
+        protected TestSink(int failAt, Throwable failure) {
+            this.samples = new ArrayList<String>();
+            this.failAt = failAt;
+            this.failure = failure;
+        }
+
+        @Override
+        public void setHeaders(String idCol, List<String> cols, String outCol) throws IOException {
+        }
+
+        @Override
+        public void processRow(String sampleId, double[] xValues, String label) throws IOException {
+            if (this.samples.size() == this.failAt) {
+                if (this.failure instanceof IOException)
+                    throw (IOException) this.failure;
+                throw (Error) this.failure;
+            }
+            this.samples.add(sampleId);
+        }
+
+        @Override
+        public void close() throws IOException {
+        }
+
+    }
+
+    /**
+     * Write the samples through a set of shards and return the shard for each sample.
+     *
+     * @param split		type of split
+     * @param labels	map of sample IDs to labels, in the order the rows should be written
+     * @param testFrac	test fraction for a train/test split
+     * @param folds		number of folds for a k-fold split
+     * @param seed		random-number seed
+     *
+     * @return a map from each sample ID to the name of its shard file
+     *
+     * @throws IOException
+     */
+    private static Map<String, String> runSplit(XMatrixShards.Split split, Map<String, String> labels,
+            double testFrac, int folds, long seed) throws IOException {
+        Map<String, TestSink> sinks = new TreeMap<String, TestSink>();
+        XMatrixShards.SinkFactory factory = f -> {
+            TestSink retVal = new TestSink(-1, null);
+            sinks.put(f.getName(), retVal);
+            return retVal;
+        };
+        double[] xValues = new double[] { 1.0, 2.0 };
+        try (XMatrixShards shards = new XMatrixShards(factory, OUT_FILE, split, labels, testFrac, folds, seed)) {
+            shards.setHeaders("sample_id", List.of("a", "b"), "label");
+            for (Map.Entry<String, String> entry : labels.entrySet())
+                shards.processRow(entry.getKey(), xValues, entry.getValue());
+        }
+        Map<String, String> retVal = new HashMap<String, String>(labels.size() * 2);
+        for (Map.Entry<String, TestSink> sinkEntry : sinks.entrySet()) {
+            for (String sampleId : sinkEntry.getValue().samples) {
+                String old = retVal.put(sampleId, sinkEntry.getKey());
+                assertThat(sampleId, old, nullValue());
+            }
+        }
+        assertThat(retVal.keySet(), equalTo(labels.keySet()));
+        return retVal;
+    }
+
+    /**
+     * @return a map of sample IDs to category labels, with 100 "A" samples, 60 "B" samples, and 40 "C" samples
+     */
+    private static Map<String, String> categoryLabels() {
+        Map<String, String> retVal = new LinkedHashMap<String, String>();
+        for (int i = 0; i < 200; i++) {
+            String label = (i % 5 < 2 ? "B" : "A");
+            if (i % 5 == 4)
+                label = "C";
+            // Make the sample IDs unrelated to the labels.
+            retVal.put(String.format("SRR%06d", (i * 7919) % 1000), label);
+        }
+        return retVal;
+    }
+
+    @Test
+    void testTrainTest() throws IOException {
+        Map<String, String> labels = categoryLabels();
+        Map<String, String> shards = runSplit(XMatrixShards.Split.TRAIN_TEST, labels, 0.2, 0, 42);
+        // Each label must be split in the requested proportion.
+        Map<String, int[]> counts = new TreeMap<String, int[]>();
+        for (Map.Entry<String, String> entry : labels.entrySet()) {
+            int[] count = counts.computeIfAbsent(entry.getValue(), x -> new int[2]);
+            count[0]++;
+            if (shards.get(entry.getKey()).equals("xmatrix.test.tbl"))
+                count[1]++;
+        }
+        assertThat(counts.keySet(), contains("A", "B", "C"));
+        int testCount = 0;
+        for (int[] count : counts.values()) {
+            assertThat(Math.abs(count[1] - count[0] * 0.2), lessThanOrEqualTo(1.0));
+            testCount += count[1];
+        }
+        assertThat(testCount, equalTo(40));
+        // The split must depend only on the samples, labels, and seed, not on the row order.
+        List<String> keys = new ArrayList<String>(labels.keySet());
+        Collections.reverse(keys);
+        Map<String, String> reversed = new LinkedHashMap<String, String>();
+        for (String key : keys)
+            reversed.put(key, labels.get(key));
+        assertThat(runSplit(XMatrixShards.Split.TRAIN_TEST, reversed, 0.2, 0, 42), equalTo(shards));
+        assertThat(runSplit(XMatrixShards.Split.TRAIN_TEST, labels, 0.2, 0, 42), equalTo(shards));
+        // A different seed gives a different split.
+        assertThat(runSplit(XMatrixShards.Split.TRAIN_TEST, labels, 0.2, 0, 43), not(equalTo(shards)));
+    }
+
+    @Test
+    void testKFold() throws IOException {
+        Map<String, String> labels = new LinkedHashMap<String, String>();
+        for (int i = 0; i < 100; i++)
+            labels.put(String.format("SRR%06d", (i * 37) % 100), Integer.toString(i));
+        Map<String, String> shards = runSplit(XMatrixShards.Split.KFOLD, labels, 0.0, 5, 1234);
+        // The labels are numeric, so every run of five consecutive values must be spread over all five folds.
+        Map<String, String> byLabel = new HashMap<String, String>();
+        for (Map.Entry<String, String> entry : labels.entrySet())
+            byLabel.put(entry.getValue(), shards.get(entry.getKey()));
+        for (int b = 0; b < 100; b += 5) {
+            Set<String> folds = new HashSet<String>();
+            for (int i = b; i < b + 5; i++)
+                folds.add(byLabel.get(Integer.toString(i)));
+            assertThat(Integer.toString(b), folds, hasSize(5));
+        }
+        assertThat(runSplit(XMatrixShards.Split.KFOLD, labels, 0.0, 5, 1234), equalTo(shards));
+        // With no split, everything goes to the main output file.
+        Map<String, String> single = runSplit(XMatrixShards.Split.NONE, labels, 0.0, 0, 1234);
+        assertThat(new HashSet<String>(single.values()), contains("xmatrix.tbl"));
+    }
+
+    @Test
+    void testFailure() throws IOException {
+        Map<String, String> labels = new LinkedHashMap<String, String>();
+        for (int i = 0; i < 2000; i++)
+            labels.put("S" + i, "x");
+        double[] xValues = new double[] { 1.0 };
+        // An error in the writing thread must not leave the producer blocked on a full queue.
+        for (Throwable failure : List.of(new IOException("disk full"), new OutOfMemoryError("test"))) {
+            XMatrixShards.SinkFactory factory = f -> new TestSink(3, failure);
+            IOException e = assertThrows(IOException.class, () -> {
+                try (XMatrixShards shards = new XMatrixShards(factory, OUT_FILE, XMatrixShards.Split.NONE, labels,
+                        0.0, 0, 1)) {
+                    shards.setHeaders("sample_id", List.of("a"), "label");
+                    for (String sampleId : labels.keySet())
+                        shards.processRow(sampleId, xValues, "x");
+                }
+            });
+            assertThat(e.getCause(), sameInstance(failure));
+        }
+    }
+
+}